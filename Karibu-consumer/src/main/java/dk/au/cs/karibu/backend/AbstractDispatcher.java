@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Common behaviour of the dispatchers that hand deliveries
+ * fetched by the receiver endpoint's single polling thread over
+ * to other threads for processing.
+ *
+ * Acknowledgement is handled by a DeliveryTracker per channel
+ * so messages are acknowledged in delivery order even though
+ * they finish out of order, optionally coalesced by an
+ * acknowledgement batcher. The number of deliveries in flight
+ * is bounded.
+ *
+ * If a message is flagged as 'not processed', the failure is
+ * handled exactly like the single threaded endpoint does:
+ * dispatching is paused, the messages still in flight are allowed
+ * to finish (and the successful ones are acknowledged), then the
+ * recovery thread sleeps and asks the consumer to recover, which
+ * makes the MQ redeliver every unacknowledged message. A delivery
+ * that the receiver fetched before the recovery is discarded as
+ * the MQ has requeued it.
+ *
+ * Subclasses define how a dispatched delivery is processed, and
+ * must report the outcome using completed().
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+abstract class AbstractDispatcher {
+
+  /** A delivery handed over for processing. */
+  static final class InFlight {
+    private final DeliveryTracker tracker;
+    private final DeliveryTracker.Entry entry;
+    /** the result of the decode stage, when pipelined */
+    DecodedMessage decoded;
+
+    private InFlight(DeliveryTracker tracker, DeliveryTracker.Entry entry) {
+      this.tracker = tracker;
+      this.entry = entry;
+    }
+
+    byte[] getPayload() {
+      return entry.getDelivery().getPayload();
+    }
+
+    /** return the tracker of the channel the delivery was
+     * received on. */
+    DeliveryTracker getTracker() {
+      return tracker;
+    }
+  }
+
+  protected final PollingConsumer consumer;
+  protected final AcknowledgementBatcher batcher;
+  protected final Logger log;
+  protected final LatencyHistograms latencies;
+  protected final int notProcessedDelayMs;
+
+  private final int maxInFlight;
+  private final Semaphore inFlightPermits;
+  private final ExecutorService recoveryThread;
+
+  private final Object lock = new Object();
+  // the fields below are guarded by 'lock'
+  private DeliveryTracker tracker;
+  private boolean recovering;
+  private long recoveryCount;
+
+  AbstractDispatcher(PollingConsumer consumer,
+      AcknowledgementBatcher batcher, Logger log,
+      LatencyHistograms latencies, int notProcessedDelayMs,
+      int maxInFlight, final String recoveryThreadName) {
+    this.consumer = consumer;
+    this.batcher = batcher;
+    this.log = log;
+    this.latencies = latencies;
+    this.notProcessedDelayMs = notProcessedDelayMs;
+    this.maxInFlight = maxInFlight;
+
+    inFlightPermits = new Semaphore(maxInFlight);
+    recoveryThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, recoveryThreadName);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    recovering = false;
+    recoveryCount = 0L;
+  }
+
+  /** Must be called every time before the polling consumer
+   * (re)opens its channel, as delivery tags from the previous
+   * channel are no longer valid.
+   */
+  final void channelReset() {
+    synchronized (lock) {
+      if ( tracker != null ) {
+        tracker.retire();
+      }
+      tracker = new DeliveryTracker(consumer, batcher, log, latencies);
+    }
+  }
+
+  /** Hand a delivery over for processing. Blocks while too many
+   * deliveries are in flight or a recovery is in progress.
+   */
+  final void dispatch(Delivery delivery) throws InterruptedException {
+    long recoveriesAtFetch;
+    synchronized (lock) {
+      recoveriesAtFetch = recoveryCount;
+    }
+    inFlightPermits.acquire();
+
+    InFlight inFlight;
+    synchronized (lock) {
+      try {
+        while ( recovering ) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        inFlightPermits.release();
+        throw e;
+      }
+      if ( recoveryCount != recoveriesAtFetch ) {
+        inFlightPermits.release();
+        log.info("Delivery fetched before consumer recovery discarded, MQ will redeliver it.");
+        return;
+      }
+      inFlight = new InFlight(tracker, tracker.register(delivery));
+    }
+    try {
+      handOver(inFlight);
+    } catch (InterruptedException e) {
+      completed(inFlight, false);
+      throw e;
+    }
+  }
+
+  /** Start the processing of a dispatched delivery. */
+  protected abstract void handOver(InFlight inFlight) throws InterruptedException;
+
+  /** Record that a worker starts processing a dispatched
+   * delivery, and return its payload.
+   * @param inFlight the delivery
+   * @return the payload of the delivery
+   */
+  protected final byte[] started(InFlight inFlight) {
+    Delivery delivery = inFlight.entry.getDelivery();
+    latencies.record(LatencyHistograms.Stage.QUEUE, delivery.getPayload(),
+        System.nanoTime() - delivery.getReceivedAtNanos());
+    return delivery.getPayload();
+  }
+
+  /** Report the outcome of processing a dispatched delivery.
+   * @param inFlight the delivery
+   * @param processingSuccess true if the request handler
+   * processed the payload correctly
+   */
+  protected final void completed(InFlight inFlight, boolean processingSuccess) {
+    try {
+      inFlight.tracker.complete(inFlight.entry, processingSuccess);
+      if ( ! processingSuccess ) {
+        startRecovery(inFlight.tracker);
+      }
+    } finally {
+      inFlightPermits.release();
+    }
+  }
+
+  private void startRecovery(final DeliveryTracker failedTracker) {
+    synchronized (lock) {
+      // Only one recovery handles the failures on a given tracker,
+      // the other failed messages are recovered as well.
+      if ( recovering || failedTracker != tracker ) { return; }
+      recovering = true;
+    }
+    try {
+      recoveryThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          recoverAfterFailure(failedTracker);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shutting down, the MQ will redeliver on the next channel
+      endRecovery(failedTracker);
+    }
+  }
+
+  private void recoverAfterFailure(DeliveryTracker failedTracker) {
+    try {
+      failedTracker.awaitQuiescence();
+      failedTracker.acknowledgeRemainingSuccesses();
+
+      log.info("Request handler flagged message as 'not processed', will sleep ("+notProcessedDelayMs+") ms." );
+      Thread.sleep(notProcessedDelayMs);
+      log.info("Will ask consumer to recover.");
+      synchronized (lock) {
+        // deliveries fetched before this point are requeued by
+        // the recover, the dispatcher must discard them
+        recoveryCount++;
+      }
+      consumer.recover();
+      log.info("Will continue receiving now.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("IOException during recover(): "+theTrace);
+    } catch (RuntimeException e) {
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("Exception during recover(): "+theTrace);
+    } finally {
+      endRecovery(failedTracker);
+    }
+  }
+
+  private void endRecovery(DeliveryTracker failedTracker) {
+    synchronized (lock) {
+      if ( failedTracker == tracker ) {
+        failedTracker.retire();
+        tracker = new DeliveryTracker(consumer, batcher, log, latencies);
+      }
+      recovering = false;
+      lock.notifyAll();
+    }
+  }
+
+  /** Stop processing, allowing the deliveries in flight
+   * to finish processing and be acknowledged.
+   */
+  abstract void shutdown();
+
+  /** Wait for a recovery in progress to finish and stop
+   * the recovery thread. */
+  protected final void shutdownRecovery(long maxWaitMs) {
+    recoveryThread.shutdown();
+    try {
+      if ( ! recoveryThread.awaitTermination(maxWaitMs, TimeUnit.MILLISECONDS) ) {
+        recoveryThread.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      recoveryThread.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Wait until no deliveries are in flight.
+   * @return false if they did not finish within the time given
+   */
+  protected final boolean awaitNoneInFlight(long maxWaitMs) throws InterruptedException {
+    if ( ! inFlightPermits.tryAcquire(maxInFlight, maxWaitMs, TimeUnit.MILLISECONDS) ) {
+      return false;
+    }
+    inFlightPermits.release(maxInFlight);
+    return true;
+  }
+
+  /** return the number of deliveries dispatched but not yet
+   * completed. */
+  final int getInFlightCount() {
+    return maxInFlight - inFlightPermits.availablePermits();
+  }
+
+  final int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /** return the number of deliveries on the current channel
+   * that are not yet acknowledged (or handed to the batcher). */
+  final int getUnacknowledgedCount() {
+    synchronized (lock) {
+      return tracker == null ? 0 : tracker.getPendingCount();
+    }
+  }
+
+  /** return a description of the state of the processing,
+   * for monitoring. */
+  abstract String getStatus();
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Coalesces acknowledgements of successfully processed
+ * deliveries into a single 'acknowledge up to' operation
+ * on the polling consumer, once a given count of deliveries
+ * is pending or the oldest pending has waited a given time.
+ *
+ * The batcher relies on its caller to only hand it deliveries
+ * in delivery order, and only when all earlier deliveries on
+ * the channel are either processed successfully or have been
+ * recovered; as an 'acknowledge up to' covers every earlier
+ * unacknowledged delivery a failed one must never be pending
+ * behind a delivery given to the batcher. Thus flush() must be
+ * called before a recover, and discard() when the channel is
+ * reset.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+final class AcknowledgementBatcher {
+
+  private final PollingConsumer consumer;
+  private final Logger log;
+  private final int maxPendingCount;
+  private final long maxDelayMs;
+
+  // the fields below are guarded by 'this'
+  private Delivery lastPending;
+  private int pendingCount;
+  private long firstPendingAt;
+  private Timer flushTimer;
+
+  AcknowledgementBatcher(PollingConsumer consumer, Logger log,
+      int maxPendingCount, long maxDelayMs) {
+    this.consumer = consumer;
+    this.log = log;
+    this.maxPendingCount = maxPendingCount;
+    this.maxDelayMs = maxDelayMs;
+    lastPending = null;
+    pendingCount = 0;
+    flushTimer = null;
+  }
+
+  /** Start the timer that flushes acknowledgements
+   * that have been pending for too long.
+   */
+  synchronized void start() {
+    if ( flushTimer != null ) { return; }
+    flushTimer = new Timer("AcknowledgementFlusher", true);
+    long period = Math.max(1L, maxDelayMs / 2);
+    flushTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        flushIfOverdue();
+      }
+    }, period, period);
+  }
+
+  /** Flush any pending acknowledgements and stop the timer. */
+  synchronized void stop() {
+    flush();
+    if ( flushTimer != null ) {
+      flushTimer.cancel();
+      flushTimer = null;
+    }
+  }
+
+  /** Register that the delivery, and every delivery before
+   * it, has been processed successfully.
+   */
+  synchronized void acknowledge(Delivery delivery) {
+    if ( pendingCount == 0 ) {
+      firstPendingAt = System.currentTimeMillis();
+    }
+    lastPending = delivery;
+    pendingCount++;
+    if ( pendingCount >= maxPendingCount ) {
+      flush();
+    }
+  }
+
+  /** Send the pending acknowledgements to the MQ now. */
+  synchronized void flush() {
+    if ( lastPending == null ) { return; }
+    Delivery toAcknowledge = lastPending;
+    lastPending = null;
+    pendingCount = 0;
+    try {
+      consumer.acknowledgeUpTo(toAcknowledge);
+    } catch (IOException e) {
+      // the MQ will redeliver the messages after the reconnect
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("IOException during acknowledgeUpTo(): "+theTrace);
+    } catch (RuntimeException e) {
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("Exception during acknowledgeUpTo(): "+theTrace);
+    }
+  }
+
+  /** Forget the pending acknowledgements, as the channel
+   * they were received on is gone.
+   */
+  synchronized void discard() {
+    lastPending = null;
+    pendingCount = 0;
+  }
+
+  private synchronized void flushIfOverdue() {
+    if ( pendingCount > 0 &&
+        System.currentTimeMillis() - firstPendingAt >= maxDelayMs ) {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+/** A polling consumer that buffers the messages pushed to it by
+ * the MQ in memory until they are fetched by nextDelivery(); the
+ * depth of the buffer may be monitored.
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public interface BufferedPollingConsumer extends PollingConsumer {
+
+  /** return the number of messages in the buffer */
+  int getBufferedMessageCount();
+
+  /** return the total size in bytes of the messages
+   * in the buffer */
+  long getBufferedByteCount();
+
+  /** return the number of times the consumer has asked the
+   * MQ to pause the delivery because the buffer was full */
+  long getPauseCount();
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend; 
+
+import java.util.*;
+
+import com.mongodb.*; 
+ 
+/** A processing strategy that is also able to process
+ * a list of BSON documents in a single operation; in the
+ * core use case as a bulk insert into MongoDB, which
+ * saves a database round trip per document.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public interface BulkProcessingStrategy extends ProcessingStrategy { 
+ 
+  /** given a producer code and a list of BSON documents,
+   * process all of them. The documents are independent,
+   * so the failure of one must not prevent the rest from
+   * being processed.
+   * @param producerCode the code of the 
+   * producer of the documents. 
+   * @param dbos the BSON documents to process.
+   * @return a map from the index in the list of every
+   * document that failed to the exception describing the
+   * failure; an empty map if all were processed.
+   * @throws MongoException if the processing of the list
+   * failed as a whole, no document should then be considered
+   * processed.
+   */ 
+  public Map<Integer,MongoException> processBulk(String producerCode, 
+      List<BasicDBObject> dbos); 
+} 
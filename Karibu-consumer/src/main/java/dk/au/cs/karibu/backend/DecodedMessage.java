@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+
+/** A received message that has been decoded and deserialized,
+ * and is ready to be processed: the producer code, the name of
+ * the collection to store it in, and the BSON document.
+ * 
+ * A raw message holds the document in its encoded form
+ * instead, as a range of the received bytes, to be processed
+ * by a RawProcessingStrategy; and a batch message holds the
+ * documents of a batch envelope, to be processed together.
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public final class DecodedMessage {
+
+  private final String producerCode;
+  private final String collectionName;
+  private final BasicDBObject document;
+  private final byte[] rawBuffer;
+  private final int rawOffset;
+  private final int rawLength;
+  private final List<BasicDBObject> documents;
+
+  public DecodedMessage(String producerCode, String collectionName,
+      BasicDBObject document) {
+    this.producerCode = producerCode;
+    this.collectionName = collectionName;
+    this.document = document;
+    rawBuffer = null;
+    rawOffset = 0;
+    rawLength = 0;
+    documents = null;
+  }
+
+  /** Create a batch message holding the documents of
+   * a batch envelope. */
+  public DecodedMessage(String producerCode, String collectionName,
+      List<BasicDBObject> documents) {
+    this.producerCode = producerCode;
+    this.collectionName = collectionName;
+    this.document = null;
+    rawBuffer = null;
+    rawOffset = 0;
+    rawLength = 0;
+    this.documents = documents;
+  }
+
+  /** Create a raw message whose document is the given
+   * range of the received bytes. */
+  public DecodedMessage(String producerCode, String collectionName,
+      byte[] rawBuffer, int rawOffset, int rawLength) {
+    this.producerCode = producerCode;
+    this.collectionName = collectionName;
+    this.document = null;
+    this.rawBuffer = rawBuffer;
+    this.rawOffset = rawOffset;
+    this.rawLength = rawLength;
+    documents = null;
+  }
+
+  public String getProducerCode() {
+    return producerCode;
+  }
+
+  public String getCollectionName() {
+    return collectionName;
+  }
+
+  /** return the BSON document, or null if the message is
+   * raw or a batch, or if deserialization failed in a way that means the
+   * message must be dropped.
+   */
+  public BasicDBObject getDocument() {
+    return document;
+  }
+
+  /** return true if the document is held in encoded form. */
+  public boolean isRaw() {
+    return rawBuffer != null;
+  }
+
+  public byte[] getRawBuffer() {
+    return rawBuffer;
+  }
+
+  public int getRawOffset() {
+    return rawOffset;
+  }
+
+  public int getRawLength() {
+    return rawLength;
+  }
+
+  /** return true if the message holds the documents of
+   * a batch envelope. */
+  public boolean isBatch() {
+    return documents != null;
+  }
+
+  public List<BasicDBObject> getDocuments() {
+    return documents;
+  }
+}
@@ -27,10 +27,20 @@ public class Delivery {
 
   private byte[] payload;
   private long deliveryTag;
+  private long receivedAtNanos;
 
   public Delivery(long deliveryTag, byte[] payload) {
+    this(deliveryTag, payload, System.nanoTime());
+  }
+
+  /** Create a delivery that arrived from the MQ earlier than
+   * now, for instance one that waited in a client side queue.
+   * @param receivedAtNanos the System.nanoTime() of arrival
+   */
+  public Delivery(long deliveryTag, byte[] payload, long receivedAtNanos) {
     this.deliveryTag = deliveryTag;
     this.payload = payload;
+    this.receivedAtNanos = receivedAtNanos;
   }
 
   public byte[] getPayload() {
@@ -40,4 +50,10 @@ public class Delivery {
   public long getDeliveryTag() {
     return deliveryTag;
   }
+
+  /** return the System.nanoTime() when the delivery was
+   * received from the MQ. */
+  public long getReceivedAtNanos() {
+    return receivedAtNanos;
+  }
 }
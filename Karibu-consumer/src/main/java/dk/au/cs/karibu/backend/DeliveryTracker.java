@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Book keeping of the deliveries that have been fetched from
+ * the polling consumer on ONE channel but not yet acknowledged.
+ *
+ * Deliveries are registered in the order they are fetched and
+ * may complete in any order when processed by several workers.
+ * A delivery is only acknowledged once it AND all deliveries
+ * fetched before it have completed successfully; thus acknowledgements
+ * are always sent in delivery tag order. A delivery that failed
+ * processing blocks the acknowledgement of the ones behind it
+ * until the failure has been handled by the owner of the tracker.
+ * If configured with an acknowledgement batcher, the in order
+ * acknowledgements are coalesced by it.
+ *
+ * Delivery tags are only valid on the channel that issued them,
+ * so a tracker is retired when the channel is reset or recovered;
+ * completions reported to a retired tracker are ignored.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+final class DeliveryTracker {
+
+  /** A delivery in the tracker and its processing outcome. */
+  static final class Entry {
+    private final Delivery delivery;
+    private boolean done;
+    private boolean success;
+    private long completedAtNanos;
+
+    private Entry(Delivery delivery) {
+      this.delivery = delivery;
+    }
+
+    Delivery getDelivery() {
+      return delivery;
+    }
+  }
+
+  private final PollingConsumer consumer;
+  private final AcknowledgementBatcher batcher;
+  private final Logger log;
+  private final LatencyHistograms latencies;
+  /** pending entries, in the order they were fetched */
+  private final LinkedList<Entry> pending;
+  private boolean retired;
+
+  DeliveryTracker(PollingConsumer consumer,
+      AcknowledgementBatcher batcher, Logger log,
+      LatencyHistograms latencies) {
+    this.consumer = consumer;
+    this.batcher = batcher;
+    this.log = log;
+    this.latencies = latencies;
+    pending = new LinkedList<Entry>();
+    retired = false;
+  }
+
+  /** Register a delivery that has just been fetched from
+   * the polling consumer.
+   * @param delivery the fetched delivery
+   * @return the entry to report completion on
+   */
+  synchronized Entry register(Delivery delivery) {
+    Entry entry = new Entry(delivery);
+    pending.addLast(entry);
+    return entry;
+  }
+
+  /** Report the outcome of processing a registered delivery.
+   * Acknowledges every delivery at the head of the pending
+   * list that has completed successfully.
+   * @param entry the entry returned by register
+   * @param success true if the request handler processed the
+   * payload correctly
+   */
+  synchronized void complete(Entry entry, boolean success) {
+    entry.done = true;
+    entry.success = success;
+    entry.completedAtNanos = System.nanoTime();
+    if ( ! retired ) {
+      while ( ! pending.isEmpty() && pending.getFirst().done
+          && pending.getFirst().success ) {
+        acknowledgeInOrder( pending.removeFirst() );
+      }
+    }
+    notifyAll();
+  }
+
+  /** Block until every registered delivery has completed, or
+   * the tracker has been retired.
+   */
+  synchronized void awaitQuiescence() throws InterruptedException {
+    while ( ! retired && countUnfinished() > 0 ) {
+      wait();
+    }
+  }
+
+  /** Acknowledge every successfully processed delivery that
+   * is still pending, typically the ones behind a failed
+   * delivery. Only call this when the tracker is quiescent;
+   * the failed deliveries are left for the consumer to
+   * recover.
+   */
+  synchronized void acknowledgeRemainingSuccesses() {
+    if ( retired ) { return; }
+    // the batched ones precede the failed delivery
+    if ( batcher != null ) {
+      batcher.flush();
+    }
+    for ( Entry entry : pending ) {
+      if ( entry.done && entry.success ) {
+        recordAckLatency(entry);
+        acknowledge(entry);
+      }
+    }
+    pending.clear();
+  }
+
+  /** Retire the tracker; no further acknowledgements will be
+   * made on behalf of the deliveries registered with it.
+   */
+  synchronized void retire() {
+    retired = true;
+    pending.clear();
+    notifyAll();
+  }
+
+  /** return the number of registered deliveries not
+   * yet acknowledged. */
+  synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  private int countUnfinished() {
+    int count = 0;
+    for ( Entry entry : pending ) {
+      if ( ! entry.done ) { count++; }
+    }
+    return count;
+  }
+
+  private void acknowledgeInOrder(Entry entry) {
+    recordAckLatency(entry);
+    if ( batcher != null ) {
+      batcher.acknowledge(entry.delivery);
+    } else {
+      acknowledge(entry);
+    }
+  }
+
+  // the time a completed delivery waited for the deliveries
+  // before it to complete
+  private void recordAckLatency(Entry entry) {
+    latencies.record(LatencyHistograms.Stage.ACK, entry.delivery.getPayload(),
+        System.nanoTime() - entry.completedAtNanos);
+  }
+
+  private void acknowledge(Entry entry) {
+    try {
+      consumer.acknowledge(entry.delivery);
+    } catch (IOException e) {
+      // the channel is most likely gone; the receiver will
+      // detect it on next fetch, reconnect, and the MQ will
+      // redeliver the message.
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("IOException during acknowledge(): "+theTrace);
+    } catch (RuntimeException e) {
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("Exception during acknowledge(): "+theTrace);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.standard.ProducerCodeTable;
+import dk.au.cs.karibu.common.Histogram;
+
+/** Histograms of the latency of each stage of the processing
+ * of a message, per producer code, so a slowdown can be
+ * traced to the stage that causes it. The stages are
+ * 
+ * QUEUE: from the polling consumer received the message
+ * from the MQ until the request handler starts on it;
+ * 
+ * DESERIALIZE: the decoding and deserialization;
+ * 
+ * STORE: the processing (storing) of the document;
+ * 
+ * ACK: from the processing ended until the acknowledgement is
+ * issued, which includes waiting for the messages before it;
+ * a batched acknowledgement may be sent later still.
+ * 
+ * Latencies are recorded in nanoseconds, and reported in
+ * milliseconds. Recording is lock free. The histograms are
+ * collected in chunks like the rest of the statistics: drain()
+ * returns them and starts new ones; a value recorded while
+ * draining may be left out of both. To protect the heap against
+ * garbage producer codes, a chunk holds the histograms of at
+ * most MAX_CODES producer codes; the latencies of further codes
+ * are not recorded.
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public final class LatencyHistograms {
+
+  /** The stages of the processing of a message. */
+  public enum Stage { 
+    QUEUE("Queue"), DESERIALIZE("Deserialize"), STORE("Store"), ACK("Ack");
+
+    private final String label;
+    private Stage(String label) { this.label = label; }
+
+    /** return the name used in statistics documents. */
+    public String getLabel() { return label; }
+  }
+
+  /** max number of producer codes that have histograms in a chunk */
+  public static final int MAX_CODES = 256;
+
+  private static final long NANOS_PER_MS = 1000000L;
+
+  private final ProducerCodeTable codeTable;
+  private final AtomicReference<ConcurrentMap<String,Histogram[]>> current;
+
+  public LatencyHistograms() {
+    codeTable = new ProducerCodeTable();
+    current = new AtomicReference<ConcurrentMap<String,Histogram[]>>(
+        new ConcurrentHashMap<String,Histogram[]>());
+  }
+
+  /** Record the latency of a stage.
+   * @param stage the stage
+   * @param producerCode the producer code of the message
+   * @param nanos the time spent in the stage
+   */
+  public void record(Stage stage, String producerCode, long nanos) {
+    ConcurrentMap<String,Histogram[]> map = current.get();
+    Histogram[] histograms = map.get(producerCode);
+    if ( histograms == null ) {
+      if ( map.size() >= MAX_CODES ) { return; }
+      Histogram[] created = new Histogram[Stage.values().length];
+      for ( int i = 0; i < created.length; i++ ) {
+        created[i] = new Histogram();
+      }
+      histograms = map.putIfAbsent(producerCode, created);
+      if ( histograms == null ) { histograms = created; }
+    }
+    histograms[stage.ordinal()].record(nanos);
+  }
+
+  /** Record the latency of a stage of a message, given
+   * as received, starting with its producer code. */
+  public void record(Stage stage, byte[] message, long nanos) {
+    record(stage, codeTable.lookup(message), nanos);
+  }
+
+  /** return the histogram of the stage of the producer
+   * code in the current chunk, or null if none recorded. */
+  public Histogram getHistogram(String producerCode, Stage stage) {
+    Histogram[] histograms = current.get().get(producerCode);
+    return histograms == null ? null : histograms[stage.ordinal()];
+  }
+
+  /** return the histograms of the current chunk, as for
+   * the statistics document. */
+  public List<BasicDBObject> toBSON() {
+    return toBSON(current.get());
+  }
+
+  /** return the histograms of the current chunk, as for the
+   * statistics document, and start a new chunk. */
+  public List<BasicDBObject> drain() {
+    return toBSON(current.getAndSet(new ConcurrentHashMap<String,Histogram[]>()));
+  }
+
+  private static List<BasicDBObject> toBSON(Map<String,Histogram[]> map) {
+    List<BasicDBObject> list = new ArrayList<BasicDBObject>();
+    for ( Map.Entry<String,Histogram[]> entry : new TreeMap<String,Histogram[]>(map).entrySet() ) {
+      BasicDBObject item = new BasicDBObject("ProducerCode", entry.getKey());
+      for ( Stage stage : Stage.values() ) {
+        Histogram h = entry.getValue()[stage.ordinal()];
+        BasicDBObject percentiles = new BasicDBObject();
+        percentiles.put("Count", h.getCount());
+        percentiles.put("P50Ms", inMs(h.getValueAtPercentile(50)));
+        percentiles.put("P99Ms", inMs(h.getValueAtPercentile(99)));
+        percentiles.put("P999Ms", inMs(h.getValueAtPercentile(99.9)));
+        percentiles.put("MaxMs", inMs(h.getMax()));
+        percentiles.put("SumMs", inMs(h.getSum()));
+        item.put(stage.getLabel(), percentiles);
+      }
+      list.add(item);
+    }
+    return list;
+  }
+
+  private static double inMs(long nanos) {
+    return (double) nanos / NANOS_PER_MS;
+  }
+
+  /** return a human readable line per producer code and
+   * stage, for monitoring. */
+  public String getStatusAsString() {
+    StringBuilder sb = new StringBuilder();
+    Map<String,Histogram[]> map = new TreeMap<String,Histogram[]>(current.get());
+    for ( Map.Entry<String,Histogram[]> entry : map.entrySet() ) {
+      for ( Stage stage : Stage.values() ) {
+        Histogram h = entry.getValue()[stage.ordinal()];
+        if ( h.getCount() == 0 ) { continue; }
+        if ( sb.length() > 0 ) { sb.append("; "); }
+        sb.append(entry.getKey()).append(" ").append(stage.getLabel()).append(": ");
+        sb.append(h.toString(NANOS_PER_MS, "ms"));
+      }
+    }
+    return sb.length() == 0 ? "No latencies recorded" : sb.toString();
+  }
+}
@@ -18,12 +18,16 @@ package dk.au.cs.karibu.backend;
  
 import java.io.IOException; 
 import java.net.ConnectException;
+import java.util.*;
 
 import org.apache.commons.lang.exception.ExceptionUtils; 
 import org.slf4j.*; 
  
 import com.rabbitmq.client.ShutdownSignalException; 
 
+import dk.au.cs.karibu.backend.standard.*;
+import dk.au.cs.karibu.serialization.CompressionStatistics;
+
 /** This is a Message Endpoint (Hohpe and Woolf, 2003) on the 
  * message receiver side; also called MessageReceiver in the 
  * JMS terminology. It is the top level abstraction in the
@@ -61,6 +65,32 @@ import com.rabbitmq.client.ShutdownSignalException;
  * further processing is paused for a default
  * value of 30 seconds, after which the
  * normal operation is continued.
+ * 
+ * By default messages are processed one at a time by the
+ * receiving thread. If configured with more than one
+ * processing worker, the receiving thread only fetches
+ * messages and hands them over to a pool of workers
+ * that process them concurrently; the server request
+ * handler must then be thread safe. Messages are still
+ * acknowledged in the order they were delivered, and a
+ * message flagged as 'not processed' is handled as described
+ * above once the messages in flight have finished.
+ * 
+ * The workers may be partitioned by producer code instead, so
+ * the messages from one producer are always processed by the
+ * same worker in the order they were received.
+ * 
+ * Alternatively processing may be pipelined: the decoding and
+ * deserialization of messages and the storing of the resulting
+ * documents are then done by separate stages of threads,
+ * connected by bounded ring buffers, so parsing overlaps storing.
+ * Acknowledgement and failure handling is as for the workers.
+ * 
+ * Acknowledgements may be batched so a single acknowledgement
+ * covers several messages, sent once a given count of messages
+ * is processed or the oldest unacknowledged message has waited
+ * a given time. A message is still never acknowledged before it,
+ * and every message before it, has been processed successfully.
  *  
  * The process can be terminated by invoking 
  * 'stopReceiving', but as it is a polling consumer 
@@ -89,6 +119,32 @@ public final class MessageReceiverEndpoint implements Runnable {
    */
   private int notProcessedDelayMs;
   final public static int defaultNotProcessedDelayInMs = 30000;
+
+  /** the number of threads processing the received
+   * messages; one means the receiving thread processes
+   * them itself. */
+  private int processingWorkerCount;
+  final public static int defaultProcessingWorkerCount = 1;
+  
+  /** the dispatcher to the processing workers or pipeline,
+   * null if the receiving thread processes the messages itself */
+  private AbstractDispatcher dispatcher;
+
+  /** the batcher of acknowledgements, null if every
+   * message is acknowledged individually */
+  private AcknowledgementBatcher batcher;
+
+  /** the controller that tunes the flow control limits, null
+   * if they are fixed */
+  private AdaptiveFlowController flowController;
+
+  /** the flow control limits that may be changed at runtime,
+   * whether or not the controller tunes them */
+  private Map<String,AdaptiveFlowController.Tunable> flowControlLimits;
+
+  /** the request handlers of the partitioned workers, null
+   * if not partitioned */
+  private List<ServerRequestHandler> partitionRequestHandlers;
   
   /** Package visible constructor for the MessageReceiverEndpoint.
    * Use the MessageReceiverEndpointFactory to construct a
@@ -98,16 +154,59 @@ public final class MessageReceiverEndpoint implements Runnable {
       ServerRequestHandler serverRequestHandler, 
       int baseReconnectionDelayInMS, 
       Logger theLogger,
-      int mongoElectDelayInMS) { 
+      int mongoElectDelayInMS,
+      int processingWorkerCount,
+      int acknowledgeBatchSize,
+      int acknowledgeMaxDelayInMS,
+      int pipelineDecoderCount,
+      int pipelineStorerCount,
+      int pipelineRingCapacity,
+      List<ServerRequestHandler> partitionRequestHandlers,
+      AdaptiveFlowController flowController,
+      Map<String,AdaptiveFlowController.Tunable> flowControlLimits) { 
     consumer = mc; 
     srh = serverRequestHandler; 
     baseDelayMQReconnectInMs = baseReconnectionDelayInMS; 
     log = theLogger; 
     notProcessedDelayMs = mongoElectDelayInMS;
+    this.processingWorkerCount = processingWorkerCount;
+    this.flowController = flowController;
+    this.flowControlLimits = flowControlLimits;
+    this.partitionRequestHandlers = partitionRequestHandlers;
+    batcher = null;
+    if ( acknowledgeBatchSize > 1 ) {
+      batcher = new AcknowledgementBatcher(consumer, log, 
+          acknowledgeBatchSize, acknowledgeMaxDelayInMS);
+    }
+    dispatcher = null;
+    String processing = "single thread";
+    LatencyHistograms latencies = srh.getStatistic().getLatencyHistograms();
+    if ( pipelineStorerCount > 0 ) {
+      if ( ! (srh instanceof StagedServerRequestHandler) ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "a pipeline requires a StagedServerRequestHandler!");
+      }
+      dispatcher = new PipelineDispatcher(consumer, 
+          (StagedServerRequestHandler) srh, batcher, log, latencies, notProcessedDelayMs,
+          pipelineDecoderCount, pipelineStorerCount, pipelineRingCapacity);
+      processing = "pipeline "+pipelineDecoderCount+" decoders/"+
+          pipelineStorerCount+" storers/"+pipelineRingCapacity+" ring";
+    } else if ( partitionRequestHandlers != null ) {
+      dispatcher = new PartitionedDispatcher(consumer, partitionRequestHandlers,
+          batcher, log, latencies, notProcessedDelayMs, "ProcessingWorker-");
+      processing = partitionRequestHandlers.size()+" workers partitioned by producer code";
+    } else if ( processingWorkerCount > 1 ) {
+      dispatcher = new WorkerPoolDispatcher(consumer, srh, batcher, log,
+          latencies, notProcessedDelayMs, processingWorkerCount, "ProcessingWorker-");
+      processing = processingWorkerCount+" workers";
+    }
     log.info("MessageReceiverEndpoint configured ( PollingConsumer: "+
         consumer.toString()+", MQReconnect delay: "+
         baseDelayMQReconnectInMs+", MongoElect delay: "+
-        notProcessedDelayMs+" )");
+        notProcessedDelayMs+", Processing: "+
+        processing+", Ack batch: "+
+        (batcher == null ? "none" : acknowledgeBatchSize+"/"+acknowledgeMaxDelayInMS+"ms")+
+        (flowController == null ? "" : ", "+flowController)+" )");
   } 
 
   /** the number of retries made since last successful
@@ -122,13 +221,29 @@ public final class MessageReceiverEndpoint implements Runnable {
       byte[] payload; 
  
       try { 
+        // Forget acknowledgements belonging to a previous channel
+        if ( dispatcher != null ) {
+          dispatcher.channelReset();
+        }
+        if ( batcher != null ) {
+          batcher.discard();
+        }
         // Establish the channel and set routing in MQ 
         consumer.openChannelAndSetRouting();
          
         while ( isRunning ) { 
           // fetch the payload
           karibuDelivery = consumer.nextDelivery();
+          if ( dispatcher != null ) {
+            // let the workers process and acknowledge it
+            dispatcher.dispatch(karibuDelivery);
+            retryCount = 0;
+            continue;
+          }
           payload = karibuDelivery.getPayload();
+          LatencyHistograms latencies = srh.getStatistic().getLatencyHistograms();
+          latencies.record(LatencyHistograms.Stage.QUEUE, payload,
+              System.nanoTime() - karibuDelivery.getReceivedAtNanos());
           // let the request handler process it
           boolean processingSuccess = srh.receive(payload); 
           // reset the retry count as we have succesfully
@@ -137,8 +252,19 @@ public final class MessageReceiverEndpoint implements Runnable {
           // and acknowledge that the request handler
           // processed the payload correctly.
           if ( processingSuccess ) {
-            consumer.acknowledge(karibuDelivery);
+            long ackStart = System.nanoTime();
+            if ( batcher != null ) {
+              batcher.acknowledge(karibuDelivery);
+            } else {
+              consumer.acknowledge(karibuDelivery);
+            }
+            latencies.record(LatencyHistograms.Stage.ACK, payload,
+                System.nanoTime() - ackStart);
           } else {
+            // acknowledge the ones processed before this
+            if ( batcher != null ) {
+              batcher.flush();
+            }
             // if processing failed (typical situation is
             // mongoDB not responding as replica set
             // is choosing new master) then we
@@ -187,9 +313,25 @@ public final class MessageReceiverEndpoint implements Runnable {
   @Override 
   public void run() { 
     isRunning = true; 
+    if ( batcher != null ) {
+      batcher.start();
+    }
+    if ( flowController != null ) {
+      flowController.start(AdaptiveFlowController.DEFAULT_ADJUSTMENT_PERIOD_MS);
+    }
     log.info("Entering startReceiving"); 
     startReceiving(); 
     log.info("startReceiving left.");  
+    if ( dispatcher != null ) {
+      dispatcher.shutdown();
+      log.info("Processing workers stopped.");
+    }
+    if ( batcher != null ) {
+      batcher.stop();
+    }
+    if ( flowController != null ) {
+      flowController.stop();
+    }
     try { 
       consumer.closeChannel(); 
     } catch (IOException e) { 
@@ -215,6 +357,140 @@ public final class MessageReceiverEndpoint implements Runnable {
     return srh.getStatistic();
   }
  
+  /** Get a description of the state of the threads that
+   * process the messages, for monitoring: the depth of the
+   * polling consumer's buffer if it has one, and the occupancy
+   * and stall time of the stages when pipelined.
+   */
+  public String getStageStatus() {
+    String status = "";
+    if ( consumer instanceof BufferedPollingConsumer ) {
+      BufferedPollingConsumer bpc = (BufferedPollingConsumer) consumer;
+      status = "Consumer buffer: "+bpc.getBufferedMessageCount()+" msg/"+
+          (bpc.getBufferedByteCount() / 1024)+" KB, paused "+
+          bpc.getPauseCount()+" times. ";
+    }
+    if ( dispatcher == null ) {
+      return status+"Single thread: messages processed by the receiving thread";
+    }
+    return status+dispatcher.getStatus();
+  }
+
+  /** Get the latency percentiles of the stages of processing
+   * a message, per producer code, since the statistics were
+   * last flushed.
+   */
+  public String getLatencyStatus() {
+    return getStatistic().getLatencyHistograms().getStatusAsString();
+  }
+
+  /** Get the rate of received messages and bytes per producer
+   * code over the last second, minute and five minutes.
+   */
+  public String getThroughputStatus() {
+    return getStatistic().getThroughputWindows().getStatusAsString();
+  }
+
+  /** Get the number of messages buffered by the polling
+   * consumer, or -1 if it does not buffer messages.
+   */
+  public int getConsumerBufferDepth() {
+    if ( consumer instanceof BufferedPollingConsumer ) {
+      return ((BufferedPollingConsumer) consumer).getBufferedMessageCount();
+    }
+    return -1;
+  }
+
+  /** Get the number of messages handed over to the processing
+   * threads but not yet processed, or -1 if messages are
+   * processed by the receiving thread.
+   */
+  public int getInFlightCount() {
+    return dispatcher == null ? -1 : dispatcher.getInFlightCount();
+  }
+
+  /** Get the max number of messages that may be handed over
+   * to the processing threads, or -1 if messages are processed
+   * by the receiving thread.
+   */
+  public int getMaxInFlight() {
+    return dispatcher == null ? -1 : dispatcher.getMaxInFlight();
+  }
+
+  /** Make the request handlers forget the producer codes they
+   * remember as having no deserializer, so new deserializers
+   * are picked up immediately.
+   * @return the number of codes forgotten
+   */
+  public int invalidateUnknownProducerCodes() {
+    int count = 0;
+    for ( ServerRequestHandler handler : getRequestHandlers() ) {
+      if ( handler instanceof StandardServerRequestHandler ) {
+        count += ((StandardServerRequestHandler) handler).invalidateUnknownProducerCodes();
+      }
+    }
+    return count;
+  }
+
+  /** Get the ratio and CPU time of the decompression of
+   * compressed payloads, summed over the request handlers.
+   */
+  public CompressionStatistics getDecompressionStatistics() {
+    CompressionStatistics total = new CompressionStatistics();
+    for ( ServerRequestHandler handler : getRequestHandlers() ) {
+      if ( handler instanceof StandardServerRequestHandler ) {
+        total.add(((StandardServerRequestHandler) handler).getDecompressionStatistics());
+      }
+    }
+    return total;
+  }
+
+  private List<ServerRequestHandler> getRequestHandlers() {
+    List<ServerRequestHandler> handlers = new ArrayList<ServerRequestHandler>();
+    handlers.add(srh);
+    if ( partitionRequestHandlers != null ) {
+      handlers.addAll(partitionRequestHandlers);
+    }
+    return handlers;
+  }
+
+  /** Get the controller that tunes the flow control limits,
+   * or null if the limits are fixed.
+   */
+  public AdaptiveFlowController getFlowController() {
+    return flowController;
+  }
+
+  /** Get the current value of the named flow control limit,
+   * see MessageReceiverEndpointFactory.PREFETCH_COUNT and
+   * INSERT_BATCH_SIZE, or -1 if it is not configured.
+   */
+  public int getFlowControlLimit(String name) {
+    AdaptiveFlowController.Tunable limit = flowControlLimits.get(name);
+    return limit == null ? -1 : limit.getValue();
+  }
+
+  /** Change the named flow control limit. If the limit is
+   * tuned adaptively, tuning continues from the new value.
+   * @throws IllegalArgumentException if the value is below 1
+   * @throws IllegalStateException if the limit is not configured
+   */
+  public void setFlowControlLimit(String name, int value) {
+    if ( value < 1 ) {
+      throw new IllegalArgumentException("The "+name+" must be positive, was: "+value);
+    }
+    AdaptiveFlowController.Tunable limit = flowControlLimits.get(name);
+    if ( limit == null ) {
+      throw new IllegalStateException("The "+name+" is not configured for this endpoint");
+    }
+    if ( flowController != null ) {
+      flowController.setValue(name, value);
+    } else {
+      log.info("Flow control: "+name+" set to "+value);
+      limit.setValue(value);
+    }
+  }
+
   /** given the retry count, calculate an
    * exponential backoff delay. Note that
    * the delay is just exponentially
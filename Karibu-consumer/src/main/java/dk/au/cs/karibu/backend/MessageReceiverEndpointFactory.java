@@ -17,7 +17,7 @@
 package dk.au.cs.karibu.backend;
 
 import java.net.UnknownHostException;
-import java.util.Properties;
+import java.util.*;
 
 import org.slf4j.*;
 
@@ -50,6 +50,15 @@ import dk.au.cs.karibu.testdoubles.MonitoringStorageDecorator;
  */
 public class MessageReceiverEndpointFactory {
 
+  /** the name of the flow control limit on the prefetch count */
+  public static final String PREFETCH_COUNT = "prefetch count";
+  /** the name of the flow control limit on the insert batch size */
+  public static final String INSERT_BATCH_SIZE = "insert batch size";
+  /** how far above its configured value the tuned prefetch
+   * count may go; the insert batch size is bounded by the
+   * number of threads storing concurrently instead */
+  public static final int FLOW_CONTROL_MAX_FACTOR = 50;
+
   public static class Builder {
     private PollingConsumer pollingConsumer;
     private Properties exhangeProperties;
@@ -61,11 +70,28 @@ public class MessageReceiverEndpointFactory {
     private StatisticHandler statisticHandler;
 
     private DeserializerFactory deserializerFactory;
+    private Properties deserializerProperties;
     private Logger logger;
     
     private int baseReconnectionDelayInMs;
     private int mongoElectionDelayMs;
     private int countOfMessagesBetweenOutput;
+    private int processingWorkerCount;
+    private int acknowledgeBatchSize;
+    private int acknowledgeMaxDelayMs;
+    private int batchMaxDocuments;
+    private int batchMaxBytes;
+    private int batchMaxDelayMs;
+    private int pipelineDecoderCount;
+    private int pipelineStorerCount;
+    private int pipelineRingCapacity;
+    private boolean partitionByProducerCode;
+    private int consumerBufferMaxMessages;
+    private long consumerBufferMaxBytes;
+    private int flowControlTargetLatencyMs;
+    private AdaptiveFlowController flowController;
+    private Map<String,AdaptiveFlowController.Tunable> flowControlLimits;
+    private long unknownProducerCodeTtlMs;
 
     public Builder() { 
       // mark all delegates as null to allow
@@ -80,12 +106,29 @@ public class MessageReceiverEndpointFactory {
       exhangeProperties = null;
       queueProperties = null;
       mongoDBProperties = null;
+      deserializerProperties = null;
+      flowControlLimits = new LinkedHashMap<String,AdaptiveFlowController.Tunable>();
       
       countOfMessagesBetweenOutput = 0;
 
       // set default values for delays
       baseReconnectionDelayInMs = MessageReceiverEndpoint.defaultBaseDelayInMS;
       mongoElectionDelayMs = MessageReceiverEndpoint.defaultNotProcessedDelayInMs;
+      processingWorkerCount = MessageReceiverEndpoint.defaultProcessingWorkerCount;
+      acknowledgeBatchSize = 1;
+      acknowledgeMaxDelayMs = 0;
+      batchMaxDocuments = 0;
+      batchMaxBytes = 0;
+      batchMaxDelayMs = 0;
+      pipelineDecoderCount = 0;
+      pipelineStorerCount = 0;
+      pipelineRingCapacity = 0;
+      partitionByProducerCode = false;
+      consumerBufferMaxMessages = BufferedRabbitMQPollingConsumer.DEFAULT_MAX_BUFFERED_MESSAGES;
+      consumerBufferMaxBytes = BufferedRabbitMQPollingConsumer.DEFAULT_MAX_BUFFERED_BYTES;
+      flowControlTargetLatencyMs = 0;
+      flowController = null;
+      unknownProducerCodeTtlMs = StandardServerRequestHandler.DEFAULT_UNKNOWN_PRODUCER_CODE_TTL_MS;
     }
     /** configure using a pollingConsumer instance directly. This exclude using
      * the exchangeAndQueueProperies builder method.
@@ -113,6 +156,26 @@ public class MessageReceiverEndpointFactory {
       return this;
     }
 
+    /** configure the limits of the in memory buffer of messages
+     * received from RabbitMQ but not yet processed, when using
+     * the exchangeAndQueueProperties method. When either limit
+     * is reached RabbitMQ is asked to pause deliveries. If not
+     * called, default limits are used.
+     * @param maxMessages max number of buffered messages, also
+     * used as the prefetch count
+     * @param maxBytes max total size of the buffered messages
+     * @return
+     */
+    public Builder consumerBufferLimits(int maxMessages, long maxBytes) {
+      if ( maxMessages < 1 || maxBytes < 1 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "consumerBufferLimits() must be called with positive values!");
+      }
+      this.consumerBufferMaxMessages = maxMessages;
+      this.consumerBufferMaxBytes = maxBytes;
+      return this;
+    }
+
     /** configure to use a specific processing strategy. Excludes
      * using the mongoDBProperties method.
      */
@@ -159,6 +222,16 @@ public class MessageReceiverEndpointFactory {
       return this;
     }
 
+    /** configure deserializers for JSON payloads that are
+     * declared in properties, see DeclarativeDeserializerFactory.
+     * Producer codes that are not declared get their deserializer
+     * from the deserializer factory.
+     */
+    public Builder deserializerProperties( Properties properties ) {
+      this.deserializerProperties = properties;
+      return this;
+    }
+
     /** configure with a specific logger. if not called then
      * a standard logger is used (configured by ivy and log4j properties)
      */
@@ -185,27 +258,197 @@ public class MessageReceiverEndpointFactory {
       return this;
     }
 
+    /** configure the number of worker threads that process
+     * the received messages concurrently. If not called, or
+     * called with 1, the receiving thread processes each
+     * message itself. Messages are always acknowledged in
+     * the order they were received.
+     * @param workerCount number of processing workers, at least 1
+     * @return
+     */
+    public Builder processingWorkers(int workerCount) {
+      if ( workerCount < 1 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "processingWorkers() must be called with a count of at least 1!");
+      }
+      this.processingWorkerCount = workerCount;
+      return this;
+    }
+
+    /** configure the processing workers to be partitioned by
+     * producer code: all messages from a given producer are
+     * processed by the same worker, in the order they were
+     * received. Each worker has its own request handler and
+     * deserializers. Only effective combined with several
+     * processingWorkers().
+     * @return
+     */
+    public Builder partitionByProducerCode() {
+      this.partitionByProducerCode = true;
+      return this;
+    }
+
+    /** configure the received messages to be processed by a
+     * pipeline of two stages: decoderCount threads that decode
+     * and deserialize the messages, and storerCount threads
+     * that store the documents. The stages are connected by
+     * ring buffers holding up to ringCapacity messages. Messages
+     * are always acknowledged in the order they were received.
+     * Excludes using more than one processingWorkers().
+     * @param decoderCount number of decoding threads, at least 1
+     * @param storerCount number of storing threads, at least 1
+     * @param ringCapacity capacity of the rings between stages
+     * @return
+     */
+    public Builder pipelinedProcessing(int decoderCount, int storerCount, int ringCapacity) {
+      if ( decoderCount < 1 || storerCount < 1 || ringCapacity < 1 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "pipelinedProcessing() must be called with positive values!");
+      }
+      this.pipelineDecoderCount = decoderCount;
+      this.pipelineStorerCount = storerCount;
+      this.pipelineRingCapacity = ringCapacity;
+      return this;
+    }
+
+    /** configure acknowledgements to the MQ to be batched, so a
+     * single acknowledgement covers all messages processed since
+     * the last one. It is sent once batchSize messages have been
+     * processed successfully, or the oldest of them has waited
+     * maxDelayInMs. If not called, every message is acknowledged
+     * individually.
+     * @param batchSize max number of messages covered by a single
+     * acknowledgement
+     * @param maxDelayInMs max time a processed message may wait
+     * for its acknowledgement
+     * @return
+     */
+    public Builder acknowledgeInBatches(int batchSize, int maxDelayInMs) {
+      if ( batchSize < 1 || maxDelayInMs < 1 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "acknowledgeInBatches() must be called with positive values!");
+      }
+      this.acknowledgeBatchSize = batchSize;
+      this.acknowledgeMaxDelayMs = maxDelayInMs;
+      return this;
+    }
+
+    /** configure documents to be stored in batches, using a
+     * single bulk insert per batch and collection instead of
+     * an insert per document. A batch is stored once it holds
+     * maxDocuments documents or maxBytes bytes, or its oldest
+     * document has waited maxDelayInMs. Only a message whose
+     * document failed to be stored is not acknowledged.
+     * Requires that the processing strategy is a
+     * BulkProcessingStrategy (MongoDB storage is), and is only
+     * effective combined with several processingWorkers() or
+     * storing threads in pipelinedProcessing(). As each of those
+     * threads waits for its own document to be stored, a batch
+     * never holds more documents than there are such threads, so
+     * build() rejects a larger maxDocuments.
+     * @param maxDocuments max number of documents in a batch, at
+     * most the number of processing workers (or storing threads)
+     * @param maxBytes max size of a batch in bytes
+     * @param maxDelayInMs max time a document may wait for its
+     * batch to be stored
+     * @return
+     */
+    public Builder batchInserts(int maxDocuments, int maxBytes, int maxDelayInMs) {
+      if ( maxDocuments < 1 || maxBytes < 1 || maxDelayInMs < 1 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "batchInserts() must be called with positive values!");
+      }
+      this.batchMaxDocuments = maxDocuments;
+      this.batchMaxBytes = maxBytes;
+      this.batchMaxDelayMs = maxDelayInMs;
+      return this;
+    }
+
+    /** configure the prefetch count of the RabbitMQ polling
+     * consumer, and the batch size of batchInserts(), to be
+     * tuned at runtime: they are increased additively while the
+     * average latency of storing is below the target, and
+     * halved when it is above or storing fails. The configured
+     * values are the starting points, and the tuned values may
+     * be read and overridden through JMX. If not called, the
+     * values are fixed.
+     * @param targetLatencyInMs the max acceptable average
+     * latency of a call to the storage (a batch when batching)
+     * @return
+     */
+    public Builder adaptiveFlowControl(int targetLatencyInMs) {
+      if ( targetLatencyInMs < 1 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "adaptiveFlowControl() must be called with a positive value!");
+      }
+      this.flowControlTargetLatencyMs = targetLatencyInMs;
+      return this;
+    }
+
+    /** configure the time a producer code that the deserializer
+     * factory provides no deserializer for is remembered as
+     * unknown; its messages are stored as dead letters without
+     * asking the factory again during that time. The codes may
+     * be forgotten earlier through JMX. If not called, a
+     * default of one minute is used.
+     * @param ttlInMs the time to live, 0 to ask the factory on
+     * every message
+     * @return
+     */
+    public Builder unknownProducerCodeTimeToLiveMs(long ttlInMs) {
+      if ( ttlInMs < 0 ) {
+        throw new RuntimeException("MessageReceiverEndpoint build error: "+
+            "unknownProducerCodeTimeToLiveMs() must not be called with a negative value!");
+      }
+      this.unknownProducerCodeTtlMs = ttlInMs;
+      return this;
+    }
+
     /** the final method that builds the configuration. */
     public MessageReceiverEndpoint build() {
 
       ensureConfigurationIsSoundOrFail();
       
-      ServerRequestHandler requestHandler =  
-          new StandardServerRequestHandler(processingStrategy, 
-              deserializerFactory, 
-              statisticHandler,
-              logger); 
+      ServerRequestHandler requestHandler = createRequestHandler(); 
    
+      List<ServerRequestHandler> partitionRequestHandlers = null;
+      if ( partitionByProducerCode && processingWorkerCount > 1 ) {
+        // one handler per worker, so deserializers are never shared
+        partitionRequestHandlers = new ArrayList<ServerRequestHandler>();
+        for ( int i = 0; i < processingWorkerCount; i++ ) {
+          partitionRequestHandlers.add( createRequestHandler() );
+        }
+      }
+
       MessageReceiverEndpoint mre =
           new MessageReceiverEndpoint(pollingConsumer, 
               requestHandler, 
               baseReconnectionDelayInMs, 
               logger, 
-              mongoElectionDelayMs); 
+              mongoElectionDelayMs,
+              processingWorkerCount,
+              acknowledgeBatchSize,
+              acknowledgeMaxDelayMs,
+              pipelineDecoderCount,
+              pipelineStorerCount,
+              pipelineRingCapacity,
+              partitionRequestHandlers,
+              flowController,
+              flowControlLimits); 
 
       return mre;
     }
 
+    private ServerRequestHandler createRequestHandler() {
+      StandardServerRequestHandler handler = 
+          new StandardServerRequestHandler(processingStrategy, 
+              deserializerFactory, 
+              statisticHandler,
+              logger); 
+      handler.setUnknownProducerCodeTimeToLive(unknownProducerCodeTtlMs);
+      return handler;
+    }
+
     private void ensureConfigurationIsSoundOrFail() {
       // If there is not logger, we will just define one
       if ( logger == null ) {
@@ -229,10 +472,33 @@ public class MessageReceiverEndpointFactory {
         pollingConsumer = createRabbitMQPollingConsumer(exhangeProperties, queueProperties);
       }
       
+      if ( pipelineStorerCount > 0 && partitionByProducerCode ) {
+        String errMsg = "Invalid configuration in MessageEndPointFactory: "+
+            "partitionByProducerCode() and pipelinedProcessing() are mutually exclusive.";
+        logger.error(errMsg);
+        throw new RuntimeException(errMsg);
+      }
+      if ( pipelineStorerCount > 0 && processingWorkerCount > 1 ) {
+        String errMsg = "Invalid configuration in MessageEndPointFactory: "+
+            "processingWorkers() and pipelinedProcessing() are mutually exclusive.";
+        logger.error(errMsg);
+        throw new RuntimeException(errMsg);
+      }
+
       // If no deserializer factory is defined we use the standard one
       if ( deserializerFactory == null ) {
         deserializerFactory = new StandardDeserializerFactory();
       }
+      if ( deserializerProperties != null ) {
+        try {
+          deserializerFactory = 
+              new DeclarativeDeserializerFactory(deserializerProperties, deserializerFactory);
+        } catch (RuntimeException e) {
+          String errMsg = "Invalid configuration in MessageEndPointFactory: "+e.getMessage();
+          logger.error(errMsg);
+          throw new RuntimeException(errMsg);
+        }
+      }
             
       // Either a processing strategy OR mongoDB properties must be defined
       if ( processingStrategy == null && mongoDBProperties == null) {
@@ -257,6 +523,7 @@ public class MessageReceiverEndpointFactory {
         }
         processingStrategy = new MongoDBStorage(mongoConfig);
         coreProcessingStrategy = processingStrategy;
+        processingStrategy = decorateCoreProcessingStrategy(processingStrategy);
         // if a value has been set for the output count then we
         // decorate the processing strategy with a monitoring decorator
         if ( countOfMessagesBetweenOutput > 0 ) {
@@ -265,6 +532,8 @@ public class MessageReceiverEndpointFactory {
                   countOfMessagesBetweenOutput);
           processingStrategy = decorator;
         }
+      } else {
+        processingStrategy = decorateCoreProcessingStrategy(processingStrategy);
       }
       
       if ( statisticHandler == null ) {
@@ -279,6 +548,72 @@ public class MessageReceiverEndpointFactory {
       }
     }
 
+    /** decorate the core processing strategy for measuring
+     * the storage latency and for batching, if configured. The
+     * flow control limits are collected whether or not they
+     * are tuned, so they may always be changed through JMX. */
+    private ProcessingStrategy decorateCoreProcessingStrategy(ProcessingStrategy core) {
+      ProcessingStrategy ps = core;
+      if ( flowControlTargetLatencyMs > 0 ) {
+        flowController = new AdaptiveFlowController(flowControlTargetLatencyMs, true, logger);
+        ps = new MeasuringProcessingStrategy(core, flowController);
+      }
+      if ( pollingConsumer instanceof RabbitMQPollingConsumer ) {
+        final RabbitMQPollingConsumer rabbit = (RabbitMQPollingConsumer) pollingConsumer;
+        addFlowControlLimit(PREFETCH_COUNT, rabbit.getPrefetchCount(),
+            rabbit.getPrefetchCount() * FLOW_CONTROL_MAX_FACTOR,
+            new AdaptiveFlowController.Tunable() {
+              @Override
+              public int getValue() { return rabbit.getPrefetchCount(); }
+              @Override
+              public void setValue(int value) { rabbit.setPrefetchCount(value); }
+            });
+      }
+      if ( batchMaxDocuments == 0 ) { return ps; }
+      if ( ! (core instanceof BulkProcessingStrategy) ) {
+        String errMsg = "Invalid configuration in MessageEndPointFactory: "+
+            "batchInserts() requires a BulkProcessingStrategy, but the processing strategy is "+
+            core.getClass().getSimpleName()+".";
+        logger.error(errMsg);
+        throw new RuntimeException(errMsg);
+      }
+      // the threads that call the processing strategy concurrently
+      int concurrentCallers = 
+          pipelineStorerCount > 0 ? pipelineStorerCount : processingWorkerCount;
+      if ( batchMaxDocuments > concurrentCallers ) {
+        String errMsg = "Invalid configuration in MessageEndPointFactory: "+
+            "batchInserts() maxDocuments ("+batchMaxDocuments+
+            ") exceeds the number of threads storing concurrently ("+
+            concurrentCallers+"), which is the largest batch possible.";
+        logger.error(errMsg);
+        throw new RuntimeException(errMsg);
+      }
+      final BatchingProcessingStrategy batching = 
+          new BatchingProcessingStrategy((BulkProcessingStrategy) ps,
+              batchMaxDocuments, batchMaxBytes, batchMaxDelayMs,
+              concurrentCallers);
+      // a batch cannot grow beyond the threads waiting for it
+      addFlowControlLimit(INSERT_BATCH_SIZE, batchMaxDocuments,
+          batching.getMaxConcurrentCallers(),
+          new AdaptiveFlowController.Tunable() {
+            @Override
+            public int getValue() { return batching.getMaxDocuments(); }
+            @Override
+            public void setValue(int value) { batching.setMaxDocuments(value); }
+          });
+      return batching;
+    }
+
+    /** a tuned value may range from 1 to maxValue, in steps
+     * of a tenth of its configured value. */
+    private void addFlowControlLimit(String name, int configuredValue,
+        int maxValue, AdaptiveFlowController.Tunable tunable) {
+      flowControlLimits.put(name, tunable);
+      if ( flowController == null ) { return; }
+      flowController.addLimit(name, tunable, 1, maxValue,
+          Math.max(1, configuredValue / 10));
+    }
+
     private PollingConsumer createRabbitMQPollingConsumer(Properties exchangeProperties, 
         Properties queueProperties) {
       // Define the rabbit MQ exchange and queue configuration 
@@ -291,8 +626,9 @@ public class MessageReceiverEndpointFactory {
       // using a RabbitMQ as polling consumer 
       PollingConsumer pollingConsumer; 
       pollingConsumer = 
-          new RabbitMQPollingConsumer(rabbitExchangeConfig,
-              rabbitQueueConfig); 
+          new BufferedRabbitMQPollingConsumer(rabbitExchangeConfig,
+              rabbitQueueConfig, consumerBufferMaxMessages,
+              consumerBufferMaxBytes); 
 
       return pollingConsumer;
     }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Dispatches deliveries fetched by the receiver endpoint's single
+ * polling thread to a fixed set of workers, partitioned by the
+ * producer code: the producer code is hashed to a worker, so all
+ * messages from one producer are processed by the same worker, in
+ * the order they were received, while messages from different
+ * producers are processed in parallel.
+ *
+ * Each worker has its own server request handler, and thus its
+ * own cache of deserializers that is never shared with other
+ * threads, and it is the only one writing to the collections
+ * of its producers.
+ *
+ * Each worker has its own budget of deliveries in flight, so a
+ * hot or slow partition cannot take the in flight deliveries of
+ * the others; as deliveries arrive in order on one channel, the
+ * polling thread waits when the next one belongs to a partition
+ * whose budget is spent.
+ *
+ * When a message fails, the worker does not process the messages
+ * behind it from the same channel but flags them as failed too,
+ * so they are redelivered after the recovery in their original
+ * order, behind the failed one.
+ *
+ * Acknowledgement and the handling of messages flagged as
+ * 'not processed' are otherwise described in AbstractDispatcher.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+final class PartitionedDispatcher extends AbstractDispatcher {
+
+  /** the maximal number of deliveries in flight per worker */
+  private static final int IN_FLIGHT_PER_WORKER = 2;
+
+  private final List<Partition> partitions;
+
+  /** Create the dispatcher.
+   * @param requestHandlers one request handler per worker
+   */
+  PartitionedDispatcher(PollingConsumer consumer,
+      List<ServerRequestHandler> requestHandlers,
+      AcknowledgementBatcher batcher, Logger log,
+      LatencyHistograms latencies, int notProcessedDelayMs,
+      final String threadNamePrefix) {
+    super(consumer, batcher, log, latencies, notProcessedDelayMs,
+        requestHandlers.size() * IN_FLIGHT_PER_WORKER,
+        threadNamePrefix + "Recovery");
+    partitions = new ArrayList<Partition>(requestHandlers.size());
+    for ( int i = 0; i < requestHandlers.size(); i++ ) {
+      final String threadName = threadNamePrefix + (i + 1);
+      ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, threadName);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      partitions.add(new Partition(requestHandlers.get(i), worker));
+    }
+  }
+
+  /** return the index of the partition handling the producer
+   * code of the payload. */
+  static int partitionOf(byte[] payload, int partitionCount) {
+    int length = Math.min(payload.length, ServerRequestHandler.PRODUCER_CODE_LENGTH);
+    int hash = 1;
+    for ( int i = 0; i < length; i++ ) {
+      hash = 31 * hash + payload[i];
+    }
+    return (hash & 0x7fffffff) % partitionCount;
+  }
+
+  @Override
+  protected void handOver(final InFlight inFlight) throws InterruptedException {
+    final Partition partition =
+        partitions.get(partitionOf(inFlight.getPayload(), partitions.size()));
+    partition.inFlightPermits.acquire();
+    try {
+      partition.worker.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            partition.process(inFlight);
+          } finally {
+            partition.inFlightPermits.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      partition.inFlightPermits.release();
+      throw e;
+    }
+  }
+
+  private final class Partition {
+    private final ServerRequestHandler srh;
+    private final ExecutorService worker;
+    private final Semaphore inFlightPermits;
+    /** the tracker on which a delivery of this partition has
+     * failed; only accessed by the worker thread */
+    private DeliveryTracker failedOn;
+
+    private Partition(ServerRequestHandler srh, ExecutorService worker) {
+      this.srh = srh;
+      this.worker = worker;
+      inFlightPermits = new Semaphore(IN_FLIGHT_PER_WORKER);
+      failedOn = null;
+    }
+
+    private void process(InFlight inFlight) {
+      if ( inFlight.getTracker() == failedOn ) {
+        // keep the order of the producers; it will be redelivered
+        completed(inFlight, false);
+        return;
+      }
+      boolean processingSuccess = false;
+      try {
+        processingSuccess = srh.receive(started(inFlight));
+      } catch (RuntimeException exc) {
+        String theTrace = ExceptionUtils.getStackTrace(exc);
+        log.error(theTrace);
+      }
+      if ( ! processingSuccess ) {
+        failedOn = inFlight.getTracker();
+      }
+      completed(inFlight, processingSuccess);
+    }
+  }
+
+  @Override
+  void shutdown() {
+    long maxWaitMs = notProcessedDelayMs + 60000L;
+    for ( Partition partition : partitions ) {
+      partition.worker.shutdown();
+    }
+    try {
+      for ( Partition partition : partitions ) {
+        if ( ! partition.worker.awaitTermination(maxWaitMs, TimeUnit.MILLISECONDS) ) {
+          log.error("Processing workers did not terminate within "+maxWaitMs+" ms.");
+          partition.worker.shutdownNow();
+        }
+      }
+    } catch (InterruptedException e) {
+      for ( Partition partition : partitions ) {
+        partition.worker.shutdownNow();
+      }
+      Thread.currentThread().interrupt();
+    }
+    shutdownRecovery(maxWaitMs);
+  }
+
+  @Override
+  String getStatus() {
+    return "Partitioned workers ("+partitions.size()+"): in flight "+
+        getInFlightCount()+"/"+getMaxInFlight()+
+        ", unacknowledged "+getUnacknowledgedCount();
+  }
+}
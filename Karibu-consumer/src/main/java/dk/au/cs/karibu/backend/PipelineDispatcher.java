@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.util.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Dispatches deliveries fetched by the receiver endpoint's single
+ * polling thread through a pipeline of stages, connected by
+ * bounded ring buffers:
+ *
+ *   receiver -> [decode ring] -> decoders -> [store ring] -> storers -> ack
+ *
+ * The decoders extract the producer code and deserialize the
+ * payload (CPU bound), the storers process the resulting document
+ * (I/O bound), so parsing overlaps the database round trips. Each
+ * stage runs a configurable number of threads. The ack stage is
+ * the in order acknowledgement described in AbstractDispatcher.
+ *
+ * The occupancy of the rings, and the time the stage in front of
+ * each ring has stalled because it was full, tell which stage is
+ * the bottleneck.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+final class PipelineDispatcher extends AbstractDispatcher {
+
+  private final StagedServerRequestHandler srh;
+  private final RingBuffer<InFlight> decodeRing;
+  private final RingBuffer<InFlight> storeRing;
+  private final List<Thread> stageThreads;
+
+  PipelineDispatcher(PollingConsumer consumer,
+      StagedServerRequestHandler srh, AcknowledgementBatcher batcher,
+      Logger log, LatencyHistograms latencies, int notProcessedDelayMs,
+      int decoderCount, int storerCount, int ringCapacity) {
+    // allow both rings to fill, so the stall times tell
+    super(consumer, batcher, log, latencies, notProcessedDelayMs,
+        2 * ringCapacity + decoderCount + storerCount, "PipelineRecovery");
+    this.srh = srh;
+    decodeRing = new RingBuffer<InFlight>(ringCapacity);
+    storeRing = new RingBuffer<InFlight>(ringCapacity);
+
+    stageThreads = new ArrayList<Thread>();
+    for ( int i = 1; i <= decoderCount; i++ ) {
+      stageThreads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runDecodeStage();
+        }
+      }, "Decoder-" + i));
+    }
+    for ( int i = 1; i <= storerCount; i++ ) {
+      stageThreads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runStoreStage();
+        }
+      }, "Storer-" + i));
+    }
+    for ( Thread t : stageThreads ) {
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  @Override
+  protected void handOver(InFlight inFlight) throws InterruptedException {
+    decodeRing.put(inFlight);
+  }
+
+  private void runDecodeStage() {
+    try {
+      while ( true ) {
+        InFlight inFlight = decodeRing.take();
+        try {
+          inFlight.decoded = srh.decode(started(inFlight));
+        } catch (RuntimeException exc) {
+          String theTrace = ExceptionUtils.getStackTrace(exc);
+          log.error(theTrace);
+          completed(inFlight, false);
+          continue;
+        }
+        storeRing.put(inFlight);
+      }
+    } catch (InterruptedException e) {
+      // the pipeline is shut down
+    }
+  }
+
+  private void runStoreStage() {
+    try {
+      while ( true ) {
+        InFlight inFlight = storeRing.take();
+        boolean processingSuccess = false;
+        try {
+          processingSuccess = srh.store(inFlight.decoded);
+        } catch (RuntimeException exc) {
+          String theTrace = ExceptionUtils.getStackTrace(exc);
+          log.error(theTrace);
+        }
+        completed(inFlight, processingSuccess);
+      }
+    } catch (InterruptedException e) {
+      // the pipeline is shut down
+    }
+  }
+
+  @Override
+  void shutdown() {
+    long maxWaitMs = notProcessedDelayMs + 60000L;
+    try {
+      if ( ! awaitNoneInFlight(maxWaitMs) ) {
+        log.error("Pipeline did not empty within "+maxWaitMs+" ms.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for ( Thread t : stageThreads ) {
+      t.interrupt();
+    }
+    shutdownRecovery(maxWaitMs);
+  }
+
+  @Override
+  String getStatus() {
+    return "Pipeline: decode ring "+decodeRing.size()+"/"+decodeRing.capacity()+
+        " (receiver stalled "+decodeRing.getStallTimeMs()+" ms)"+
+        ", store ring "+storeRing.size()+"/"+storeRing.capacity()+
+        " (decoders stalled "+storeRing.getStallTimeMs()+" ms)"+
+        ", in flight "+getInFlightCount()+"/"+getMaxInFlight()+
+        ", unacknowledged "+getUnacknowledgedCount();
+  }
+}
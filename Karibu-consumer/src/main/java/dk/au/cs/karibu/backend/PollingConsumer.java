@@ -69,6 +69,17 @@ public interface PollingConsumer {
    */
   public void acknowledge( Delivery delivery ) throws IOException;
 
+  /** Acknowledge to the MQ, in a single operation, that the
+   * delivery AND all unacknowledged deliveries received
+   * before it were successfully processed (the 'multiple'
+   * flag in AMQP). ONLY invoke if all these messages were
+   * indeed processed.
+   * @param delivery the most recent delivery to acknowledge
+   * @throws IOException in case the socket to the MQ
+   * has errors in sending the acknowledge.
+   */
+  public void acknowledgeUpTo( Delivery delivery ) throws IOException;
+
   /** Request the MQ to recover unacknowledged
    * messages and requeue them for 'nextDelivery'
    * to be able to fetch them.
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend; 
+ 
+/** A processing strategy that is also able to process a
+ * BSON document in its encoded form, which saves decoding
+ * the payload into a document and encoding it again when
+ * storing it.
+ * 
+ * The request handler uses it for producer codes whose
+ * deserializer is a BSONDeserializer.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public interface RawProcessingStrategy extends ProcessingStrategy { 
+ 
+  /** given a producer code and a range of a byte array
+   * holding an encoded BSON document, process the document.
+   * The framing of the document has been validated; the
+   * buffer must neither be modified nor referenced once the
+   * method returns.
+   * @param producerCode the code of the 
+   * producer of the document. 
+   * @param buffer the array holding the document
+   * @param offset the index of the first byte of the document
+   * @param length the number of bytes of the document
+   */ 
+  public void processRaw(String producerCode, byte[] buffer, 
+      int offset, int length); 
+} 
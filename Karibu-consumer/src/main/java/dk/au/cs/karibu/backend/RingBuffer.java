@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/** A bounded, lock free ring buffer that may be used by several
+ * producing and several consuming threads (D. Vyukov's bounded
+ * MPMC queue). Each slot carries a sequence number that tells
+ * whether it is ready to be written or read in the current lap.
+ *
+ * The blocking put and take spin briefly, then back off by
+ * parking the thread for increasing periods up to a millisecond;
+ * the time spent by put waiting for a free slot is recorded as
+ * the stall time of the ring.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+final class RingBuffer<T> {
+
+  private static final int SPIN_TRIES = 100;
+  private static final long MAX_PARK_NANOS = 1000000L;
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<T> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong enqueuePosition;
+  private final AtomicLong dequeuePosition;
+  private final AtomicLong stallNanos;
+
+  /** Create a ring buffer.
+   * @param requestedCapacity the minimal capacity; it is rounded
+   * up to a power of two.
+   */
+  RingBuffer(int requestedCapacity) {
+    int c = 1;
+    while ( c < requestedCapacity ) { c <<= 1; }
+    capacity = c;
+    mask = c - 1;
+    slots = new AtomicReferenceArray<T>(c);
+    sequences = new AtomicLongArray(c);
+    for ( int i = 0; i < c; i++ ) {
+      sequences.set(i, i);
+    }
+    enqueuePosition = new AtomicLong(0L);
+    dequeuePosition = new AtomicLong(0L);
+    stallNanos = new AtomicLong(0L);
+  }
+
+  /** Insert the item if there is a free slot.
+   * @return false if the ring is full
+   */
+  boolean offer(T item) {
+    long position = enqueuePosition.get();
+    while ( true ) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if ( difference == 0 ) {
+        if ( enqueuePosition.compareAndSet(position, position + 1) ) {
+          slots.set(index, item);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = enqueuePosition.get();
+      } else if ( difference < 0 ) {
+        return false;
+      } else {
+        position = enqueuePosition.get();
+      }
+    }
+  }
+
+  /** Remove the oldest item.
+   * @return the item, or null if the ring is empty
+   */
+  T poll() {
+    long position = dequeuePosition.get();
+    while ( true ) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - (position + 1);
+      if ( difference == 0 ) {
+        if ( dequeuePosition.compareAndSet(position, position + 1) ) {
+          T item = slots.get(index);
+          slots.set(index, null);
+          sequences.set(index, position + capacity);
+          return item;
+        }
+        position = dequeuePosition.get();
+      } else if ( difference < 0 ) {
+        return null;
+      } else {
+        position = dequeuePosition.get();
+      }
+    }
+  }
+
+  /** Insert the item, waiting for a free slot if necessary. */
+  void put(T item) throws InterruptedException {
+    if ( offer(item) ) { return; }
+    long start = System.nanoTime();
+    int attempt = 0;
+    try {
+      while ( ! offer(item) ) {
+        backOff(attempt++);
+      }
+    } finally {
+      stallNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /** Remove the oldest item, waiting for one if necessary. */
+  T take() throws InterruptedException {
+    int attempt = 0;
+    T item;
+    while ( (item = poll()) == null ) {
+      backOff(attempt++);
+    }
+    return item;
+  }
+
+  private void backOff(int attempt) throws InterruptedException {
+    if ( Thread.interrupted() ) {
+      throw new InterruptedException();
+    }
+    if ( attempt < SPIN_TRIES ) {
+      Thread.yield();
+    } else {
+      long park = Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, attempt - SPIN_TRIES));
+      LockSupport.parkNanos(park);
+    }
+  }
+
+  /** return the number of items in the ring; only a snapshot
+   * when the ring is in use. */
+  int size() {
+    long size = enqueuePosition.get() - dequeuePosition.get();
+    return (int) Math.max(0L, Math.min(capacity, size));
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /** return the total time put() has waited for a free slot. */
+  long getStallTimeMs() {
+    return stallNanos.get() / 1000000L;
+  }
+}
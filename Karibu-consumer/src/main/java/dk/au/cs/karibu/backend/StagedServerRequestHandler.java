@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+/** A server request handler whose processing is split into
+ * two stages that may be run by different threads: the CPU
+ * bound decoding and deserialization of the payload, and the
+ * I/O bound processing (storing) of the resulting document.
+ * 
+ * receive(bytes) must be equivalent to store(decode(bytes)).
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public interface StagedServerRequestHandler extends ServerRequestHandler {
+
+  /** decode the producer code of the payload and deserialize
+   * it into a BSON document.
+   * 
+   * PRECONDITION: as for receive().
+   * 
+   * @param bytes the raw payload
+   * @return the decoded message
+   */
+  DecodedMessage decode(byte[] bytes);
+
+  /** process (store) a decoded message.
+   * 
+   * @param message the message returned by decode
+   * @return true iff the message was successfully processed,
+   * as for receive().
+   */
+  boolean store(DecodedMessage message);
+}
@@ -67,4 +67,16 @@ public interface StatisticHandler {
   public long getMaxChunkSize();
 
   public String getStatusAsString();
+
+  /** return a human readable description of the distribution
+   * of payload sizes of each producer code. */
+  public String getPayloadSizeStatus();
+
+  /** return the histograms of the latency of each stage of
+   * the processing, which the processing records into. */
+  public LatencyHistograms getLatencyHistograms();
+
+  /** return the rolling windows of the rate of the received
+   * messages, which notifyReceive records into. */
+  public ThroughputWindows getThroughputWindows();
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Live throughput, in messages and bytes per second, per
+ * producer code and in total, over rolling windows of the
+ * last second, minute and five minutes.
+ * 
+ * Every producer code has a ring of one second slots that
+ * covers the longest window; a slot is reused when time
+ * passes around the ring. A window covers the whole seconds
+ * before the current one, so the rate of the last second
+ * is stable during the current second.
+ * 
+ * Recording is lock free. A message recorded just as its slot
+ * is reused for a new second may be left out; the rates are
+ * meant for monitoring and alerting, the exact counts are
+ * in the flushed statistics.
+ * 
+ * To protect the heap against garbage producer codes, the
+ * ring of a producer code is removed when no message has been
+ * received for longer than the longest window, and at most
+ * MAX_CODES producer codes have a ring; messages of further
+ * codes are only counted in the total.
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public final class ThroughputWindows {
+
+  /** The windows the rates are computed over. */
+  public enum Window {
+    SECOND("1s", 1), MINUTE("1m", 60), FIVE_MINUTES("5m", 300);
+
+    private final String label;
+    private final int seconds;
+    private Window(String label, int seconds) {
+      this.label = label;
+      this.seconds = seconds;
+    }
+
+    public String getLabel() { return label; }
+
+    public int getSeconds() { return seconds; }
+  }
+
+  /** The source of the time the messages are received at. */
+  public interface Clock {
+    long currentTimeMillis();
+  }
+
+  /** the clock of the system */
+  public static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  /** the name the rates of all producer codes are summed under */
+  public static final String TOTAL = "Total";
+
+  /** max number of producer codes that have a ring */
+  public static final int MAX_CODES = 256;
+
+  // the current second and the seconds of the longest window
+  private static final int SLOTS = Window.FIVE_MINUTES.getSeconds() + 1;
+
+  /** The counts of the last seconds of one producer code. */
+  private static final class Ring {
+    final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+    final AtomicLongArray messages = new AtomicLongArray(SLOTS);
+    final AtomicLongArray bytes = new AtomicLongArray(SLOTS);
+    // the last second a message was added in
+    volatile long lastSecond;
+
+    Ring(long second) {
+      lastSecond = second;
+    }
+
+    void add(long second, long countOfBytes) {
+      int slot = (int) (second % SLOTS);
+      long slotSecond = seconds.get(slot);
+      if ( slotSecond < second && seconds.compareAndSet(slot, slotSecond, second) ) {
+        messages.set(slot, 0);
+        bytes.set(slot, 0);
+        lastSecond = second;
+      }
+      messages.incrementAndGet(slot);
+      bytes.addAndGet(slot, countOfBytes);
+    }
+
+    long sum(AtomicLongArray counts, long now, Window window) {
+      long total = 0;
+      for ( long second = now - window.getSeconds(); second < now; second++ ) {
+        int slot = (int) (second % SLOTS);
+        if ( seconds.get(slot) == second ) {
+          total += counts.get(slot);
+        }
+      }
+      return total;
+    }
+  }
+
+  private final Clock clock;
+  private final ConcurrentMap<String,Ring> rings;
+
+  /** Create the windows, timed by the system clock. */
+  public ThroughputWindows() {
+    this(SYSTEM_CLOCK);
+  }
+
+  /** Create the windows.
+   * @param clock the time the messages are received at
+   */
+  public ThroughputWindows(Clock clock) {
+    this.clock = clock;
+    rings = new ConcurrentHashMap<String,Ring>();
+  }
+
+  /** Record a received message.
+   * @param producerCode the code of the message
+   * @param countOfBytes the size of the message
+   */
+  public void record(String producerCode, long countOfBytes) {
+    long second = currentSecond();
+    ringOf(TOTAL, second).add(second, countOfBytes);
+    Ring ring = ringOf(producerCode, second);
+    if ( ring != null ) {
+      ring.add(second, countOfBytes);
+    }
+  }
+
+  /** return the messages per second of the producer code,
+   * or TOTAL, over the window. */
+  public double getMessageRate(String producerCode, Window window) {
+    Ring ring = rings.get(producerCode);
+    if ( ring == null ) { return 0.0; }
+    return (double) ring.sum(ring.messages, currentSecond(), window) / window.getSeconds();
+  }
+
+  /** return the bytes per second of the producer code,
+   * or TOTAL, over the window. */
+  public double getByteRate(String producerCode, Window window) {
+    Ring ring = rings.get(producerCode);
+    if ( ring == null ) { return 0.0; }
+    return (double) ring.sum(ring.bytes, currentSecond(), window) / window.getSeconds();
+  }
+
+  /** return the producer codes that messages have been
+   * received from within the longest window, in order,
+   * preceded by TOTAL if any. */
+  public List<String> getProducerCodes() {
+    removeIdleRings(currentSecond());
+    List<String> codes = new ArrayList<String>(new TreeSet<String>(rings.keySet()));
+    if ( codes.remove(TOTAL) ) {
+      codes.add(0, TOTAL);
+    }
+    return codes;
+  }
+
+  /** return a line per producer code, the total first, with
+   * the message and byte rate of each window, for monitoring. */
+  public String getStatusAsString() {
+    StringBuilder sb = new StringBuilder();
+    for ( String code : getProducerCodes() ) {
+      if ( sb.length() > 0 ) { sb.append("; "); }
+      sb.append(code).append(":");
+      for ( Window window : Window.values() ) {
+        sb.append(" ").append(window.getLabel()).append("=");
+        sb.append(format(getMessageRate(code, window))).append(" msg/s ");
+        sb.append(format(getByteRate(code, window) / 1024)).append(" KB/s");
+      }
+    }
+    return sb.length() == 0 ? "No messages received" : sb.toString();
+  }
+
+  private static String format(double rate) {
+    return Double.toString(Math.round(rate * 10.0) / 10.0);
+  }
+
+  /** return the number of producer codes that have a ring,
+   * including TOTAL. */
+  public int size() {
+    return rings.size();
+  }
+
+  private long currentSecond() {
+    return clock.currentTimeMillis() / 1000L;
+  }
+
+  // return the ring of the producer code, or null if there
+  // are rings for too many codes already
+  private Ring ringOf(String producerCode, long second) {
+    Ring ring = rings.get(producerCode);
+    if ( ring == null ) {
+      if ( rings.size() > MAX_CODES ) {
+        removeIdleRings(second);
+        if ( rings.size() > MAX_CODES ) { return null; }
+      }
+      Ring created = new Ring(second);
+      ring = rings.putIfAbsent(producerCode, created);
+      if ( ring == null ) { ring = created; }
+    }
+    return ring;
+  }
+
+  // remove the rings that have had no messages within
+  // the longest window
+  private void removeIdleRings(long now) {
+    for ( Map.Entry<String,Ring> entry : rings.entrySet() ) {
+      if ( ! TOTAL.equals(entry.getKey()) && entry.getValue().lastSecond < now - SLOTS ) {
+        rings.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Dispatches deliveries fetched by the receiver endpoint's single
+ * polling thread to a fixed pool of processing workers, each
+ * invoking the (thread safe) server request handler.
+ *
+ * Acknowledgement and the handling of messages flagged as
+ * 'not processed' are described in AbstractDispatcher.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+final class WorkerPoolDispatcher extends AbstractDispatcher {
+
+  /** the maximal number of deliveries in flight per worker;
+   * bounds the memory used when storage is slower than the MQ.
+   */
+  private static final int IN_FLIGHT_PER_WORKER = 2;
+
+  private final ServerRequestHandler srh;
+  private final ExecutorService workers;
+
+  WorkerPoolDispatcher(PollingConsumer consumer,
+      ServerRequestHandler srh, AcknowledgementBatcher batcher,
+      Logger log, LatencyHistograms latencies, int notProcessedDelayMs,
+      int workerCount, final String threadNamePrefix) {
+    super(consumer, batcher, log, latencies, notProcessedDelayMs,
+        workerCount * IN_FLIGHT_PER_WORKER, threadNamePrefix + "Recovery");
+    this.srh = srh;
+
+    workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger(1);
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, threadNamePrefix + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  @Override
+  protected void handOver(final InFlight inFlight) {
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        process(inFlight);
+      }
+    });
+  }
+
+  private void process(InFlight inFlight) {
+    boolean processingSuccess = false;
+    try {
+      processingSuccess = srh.receive(started(inFlight));
+    } catch (RuntimeException exc) {
+      String theTrace = ExceptionUtils.getStackTrace(exc);
+      log.error(theTrace);
+    }
+    completed(inFlight, processingSuccess);
+  }
+
+  @Override
+  void shutdown() {
+    workers.shutdown();
+    long maxWaitMs = notProcessedDelayMs + 60000L;
+    try {
+      if ( ! workers.awaitTermination(maxWaitMs, TimeUnit.MILLISECONDS) ) {
+        log.error("Processing workers did not terminate within "+maxWaitMs+" ms.");
+        workers.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    shutdownRecovery(maxWaitMs);
+  }
+
+  @Override
+  String getStatus() {
+    return "Worker pool: in flight "+getInFlightCount()+"/"+getMaxInFlight()+
+        ", unacknowledged "+getUnacknowledgedCount();
+  }
+}
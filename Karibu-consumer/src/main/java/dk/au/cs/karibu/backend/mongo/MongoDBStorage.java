@@ -16,11 +16,13 @@
 
 package dk.au.cs.karibu.backend.mongo; 
  
-import java.util.List;
+import java.util.*;
 
 import org.apache.commons.lang.exception.ExceptionUtils; 
 import org.slf4j.*; 
 
+import org.bson.types.ObjectId;
+
 import com.mongodb.*; 
 
 import dk.au.cs.karibu.backend.*;
@@ -36,7 +38,7 @@ import dk.au.cs.karibu.backend.*;
  * @author Henrik Baerbak Christensen, Aarhus University 
  */ 
 public class MongoDBStorage 
-  implements ProcessingStrategy, StatisticStorageStrategy { 
+  implements BulkProcessingStrategy, RawProcessingStrategy, StatisticStorageStrategy { 
 
   // --*-- Fields --*--
 
@@ -44,7 +46,6 @@ public class MongoDBStorage
   
   private Mongo mongoDB; 
   private DB database; 
-  private DBCollection coll; 
   private Logger log; 
 
   // --*-- Constructors --*--
@@ -120,7 +121,7 @@ public class MongoDBStorage
   @Override
     public void process(String producerCode, BasicDBObject dbo) {   
     // get a collection object to work with 
-    coll = database.getCollection(producerCode); 
+    DBCollection coll = database.getCollection(producerCode); 
     // Insert it into Mongo 
     WriteResult writeResult = coll.insert(dbo); 
     CommandResult err = writeResult.getCachedLastError();
@@ -129,6 +130,99 @@ public class MongoDBStorage
     }
   } 
 
+  /**
+   * {@inheritDoc}
+   * 
+   * Uses an unordered bulk insert, and maps the individual
+   * write errors back to the documents that caused them.
+   */
+  @Override
+  public Map<Integer,MongoException> processBulk(String producerCode,
+      List<BasicDBObject> dbos) {
+    Map<Integer,MongoException> failures = new HashMap<Integer, MongoException>();
+    DBCollection coll = database.getCollection(producerCode);
+    BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+    for ( BasicDBObject dbo : dbos ) {
+      bulk.insert(dbo);
+    }
+    try {
+      bulk.execute();
+    } catch ( BulkWriteException bwe ) {
+      // a write concern error means replication of all is uncertain
+      if ( bwe.getWriteConcernError() != null ) {
+        throw bwe;
+      }
+      for ( BulkWriteError error : bwe.getWriteErrors() ) {
+        failures.put(error.getIndex(), 
+            new MongoException(error.getCode(), error.getMessage()));
+      }
+      log.error("MongoDB bulk insert of "+dbos.size()+" documents into "+
+          producerCode+" failed for "+failures.size()+" of them.");
+    } catch ( MongoInternalException mie ) {
+      // Typically a document over the max BSON size, which
+      // makes the driver reject the whole bulk. Insert the
+      // documents one by one to isolate it.
+      log.error("MongoDB bulk insert into "+producerCode+
+          " rejected, inserting individually: "+mie.getMessage());
+      for ( int i = 0; i < dbos.size(); i++ ) {
+        try {
+          process(producerCode, dbos.get(i));
+        } catch ( MongoException e ) {
+          failures.put(i, e);
+        }
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * The document is inserted from its bytes by the driver's
+   * lazy encoder. As the driver cannot add an _id to it, a
+   * document without one is copied with a new id prepended.
+   */
+  @Override
+  public void processRaw(String producerCode, byte[] buffer, 
+      int offset, int length) {
+    DBCollection coll = database.getCollection(producerCode); 
+    DBObject document = new LazyDBObject(buffer, offset, new LazyDBCallback(coll));
+    if ( ! document.containsField("_id") ) {
+      document = new LazyDBObject(prependObjectId(buffer, offset, length), 
+          new LazyDBCallback(coll));
+    }
+    WriteResult writeResult = coll.insert(new DBObject[] { document }, 
+        coll.getWriteConcern(), new LazyDBEncoder()); 
+    CommandResult err = writeResult.getCachedLastError();
+    if ( ! err.ok() ) {
+      log.error("MongoDB insert failed with result: "+err.toString());
+    }
+  }
+
+  /** Return a copy of the BSON document in the given range
+   * with a new ObjectId as its first element, named _id. */
+  static byte[] prependObjectId(byte[] buffer, int offset, int length) {
+    byte[] id = ObjectId.get().toByteArray();
+    // the element is the type, the name "_id" and the id
+    byte[] element = new byte[5 + id.length];
+    element[0] = 0x07;
+    element[1] = '_';
+    element[2] = 'i';
+    element[3] = 'd';
+    element[4] = 0;
+    System.arraycopy(id, 0, element, 5, id.length);
+
+    int newLength = length + element.length;
+    byte[] document = new byte[newLength];
+    document[0] = (byte) newLength;
+    document[1] = (byte) (newLength >>> 8);
+    document[2] = (byte) (newLength >>> 16);
+    document[3] = (byte) (newLength >>> 24);
+    System.arraycopy(element, 0, document, 4, element.length);
+    System.arraycopy(buffer, offset + 4, document, 4 + element.length, length - 4);
+    return document;
+  }
+
   // Temporary methods - should not hit production code 
   @Deprecated
   public DBCollection getCollection(String collectionName) { 
@@ -138,7 +232,7 @@ public class MongoDBStorage
   @Override
   public void store(BasicDBObject dbo) {
     // get the karibu statistics collection object
-    coll = database.getCollection(KARIBU_STATISTIC_COLLECTION_NAME);
+    DBCollection coll = database.getCollection(KARIBU_STATISTIC_COLLECTION_NAME);
     // Insert it into Mongo 
     WriteResult writeResult = coll.insert(dbo); 
     CommandResult err = writeResult.getCachedLastError();
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend.rabbitmq;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+import dk.au.cs.karibu.backend.Delivery;
+
+/** The in memory buffer between the thread that the MQ client
+ * pushes deliveries on, and the thread that fetches them.
+ *
+ * The buffer is bounded by a count of messages and a total
+ * number of bytes. When either limit is reached, the buffer asks
+ * its flow control to pause the deliveries from the MQ, and to
+ * resume them once the buffer has been drained below half of
+ * both limits. As messages already on their way are still
+ * buffered, the limits may be exceeded by those.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class BoundedDeliveryBuffer {
+
+  /** The role that throttles the deliveries from the MQ. */
+  public interface FlowControl {
+    /** stop the MQ from pushing more deliveries */
+    void pause() throws IOException;
+    /** let the MQ push deliveries again */
+    void resume() throws IOException;
+  }
+
+  private final long maxBytes;
+  private final FlowControl flowControl;
+  private final Logger log;
+
+  // the fields below are guarded by 'this'
+  private int maxMessages;
+  private LinkedList<Delivery> buffer;
+  private long byteCount;
+  private boolean paused;
+  private long pauseCount;
+  private RuntimeException terminationCause;
+
+  public BoundedDeliveryBuffer(int maxMessages, long maxBytes,
+      FlowControl flowControl, Logger log) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.flowControl = flowControl;
+    this.log = log;
+    buffer = new LinkedList<Delivery>();
+    byteCount = 0L;
+    paused = false;
+    pauseCount = 0L;
+    terminationCause = null;
+  }
+
+  /** Add a delivery pushed by the MQ. */
+  public void add(Delivery delivery) {
+    boolean mustPause = false;
+    synchronized (this) {
+      if ( terminationCause != null ) { return; }
+      buffer.addLast(delivery);
+      byteCount += delivery.getPayload().length;
+      if ( ! paused && isFull() ) {
+        paused = true;
+        pauseCount++;
+        mustPause = true;
+      }
+      notifyAll();
+    }
+    if ( mustPause ) {
+      try {
+        flowControl.pause();
+      } catch (IOException e) {
+        String theTrace = ExceptionUtils.getStackTrace(e);
+        log.error("IOException when pausing deliveries: "+theTrace);
+      }
+    }
+  }
+
+  /** Fetch the oldest delivery, waiting for one if the buffer
+   * is empty.
+   * @throws RuntimeException the cause given to terminate(),
+   * once the buffer has been terminated
+   */
+  public Delivery take() throws InterruptedException {
+    Delivery delivery;
+    boolean mustResume = false;
+    synchronized (this) {
+      while ( buffer.isEmpty() && terminationCause == null ) {
+        wait();
+      }
+      if ( terminationCause != null ) {
+        throw terminationCause;
+      }
+      delivery = buffer.removeFirst();
+      byteCount -= delivery.getPayload().length;
+      if ( paused && isDrained() ) {
+        paused = false;
+        mustResume = true;
+      }
+    }
+    if ( mustResume ) {
+      resumeFlow();
+    }
+    return delivery;
+  }
+
+  private void resumeFlow() {
+    try {
+      flowControl.resume();
+    } catch (IOException e) {
+      String theTrace = ExceptionUtils.getStackTrace(e);
+      log.error("IOException when resuming deliveries: "+theTrace);
+    }
+  }
+
+  /** Terminate the buffer, as the MQ will push no more
+   * deliveries; the buffered deliveries are dropped, and the
+   * cause is thrown by take() from now on.
+   */
+  public synchronized void terminate(RuntimeException cause) {
+    terminationCause = cause;
+    clearBuffer();
+    notifyAll();
+  }
+
+  /** Drop every buffered delivery, for instance because the
+   * MQ is asked to redeliver them. */
+  public void clear() {
+    boolean mustResume;
+    synchronized (this) {
+      clearBuffer();
+      mustResume = paused;
+      paused = false;
+    }
+    if ( mustResume ) {
+      resumeFlow();
+    }
+  }
+
+  /** Make the buffer ready for a new channel. */
+  public synchronized void reset() {
+    terminationCause = null;
+    paused = false;
+    clearBuffer();
+  }
+
+  private void clearBuffer() {
+    buffer.clear();
+    byteCount = 0L;
+  }
+
+  private boolean isFull() {
+    return buffer.size() >= maxMessages || byteCount >= maxBytes;
+  }
+
+  private boolean isDrained() {
+    return buffer.size() <= maxMessages / 2 && byteCount <= maxBytes / 2;
+  }
+
+  /** Change the message limit; the new limit applies from
+   * the next delivery added or taken. */
+  public synchronized void setMaxMessages(int maxMessages) {
+    this.maxMessages = maxMessages;
+  }
+
+  public synchronized int getMaxMessages() {
+    return maxMessages;
+  }
+
+  public synchronized int size() {
+    return buffer.size();
+  }
+
+  public synchronized long getByteCount() {
+    return byteCount;
+  }
+
+  public synchronized boolean isPaused() {
+    return paused;
+  }
+
+  public synchronized long getPauseCount() {
+    return pauseCount;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend.rabbitmq;
+
+import java.io.IOException;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.rabbitmq.client.*;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.producer.rabbitmq.*;
+
+/** A polling consumer implementation that uses RabbitMQ as
+ * message system, and buffers the messages pushed by RabbitMQ
+ * in a bounded in memory buffer.
+ *
+ * The buffer is bounded by a count of messages as well as a total
+ * number of bytes. The channel's prefetch count is set to the
+ * message limit; and when the buffer is full, the prefetch count
+ * is lowered to 1 until the buffer is drained, which makes
+ * RabbitMQ hold back further messages as long as any message is
+ * unacknowledged. Thus large payloads cannot exhaust the heap.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class BufferedRabbitMQPollingConsumer extends RabbitMQPollingConsumer
+  implements BufferedPollingConsumer {
+
+  /** default limit of the number of buffered messages */
+  public static final int DEFAULT_MAX_BUFFERED_MESSAGES = 100;
+  /** default limit of the bytes of the buffered messages */
+  public static final long DEFAULT_MAX_BUFFERED_BYTES = 32L * 1024 * 1024;
+
+  private final BoundedDeliveryBuffer buffer;
+
+  public BufferedRabbitMQPollingConsumer(RabbitExchangeConfiguration rec,
+      RabbitQueueConfiguration rqc) {
+    this(rec, rqc, DEFAULT_MAX_BUFFERED_MESSAGES, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  /** Create the consumer.
+   * @param maxBufferedMessages max number of messages buffered
+   * @param maxBufferedBytes max number of bytes buffered
+   */
+  public BufferedRabbitMQPollingConsumer(RabbitExchangeConfiguration rec,
+      RabbitQueueConfiguration rqc, int maxBufferedMessages,
+      long maxBufferedBytes) {
+    super(rec, rqc);
+    buffer = new BoundedDeliveryBuffer(maxBufferedMessages, maxBufferedBytes,
+        new BoundedDeliveryBuffer.FlowControl() {
+          @Override
+          public void pause() throws IOException {
+            theLogger.info("Consumer buffer full, pausing deliveries.");
+            applyPrefetchCount(1);
+          }
+          @Override
+          public void resume() throws IOException {
+            theLogger.info("Consumer buffer drained, resuming deliveries.");
+            applyPrefetchCount(buffer.getMaxMessages());
+          }
+        }, theLogger);
+  }
+
+  @Override
+  public void openChannelAndSetRouting() throws IOException {
+    openChannelAndDeclareQueue();
+    buffer.reset();
+
+    // The prefetch count must be set before consuming
+    applyPrefetchCount(buffer.getMaxMessages());
+    // Tell RabbitMQ to await acknowledgement before removing
+    // msg from the queue.
+    boolean autoAck = false;
+    channel.basicConsume(queueConfiguration.getQueueName(), autoAck,
+        new BufferingConsumer(channel));
+  }
+
+  /** Change the limit of buffered messages, and thus the
+   * prefetch count, of the running consumer. */
+  @Override
+  public void setPrefetchCount(int prefetchCount) {
+    buffer.setMaxMessages(prefetchCount);
+    if ( ! buffer.isPaused() ) {
+      try {
+        applyPrefetchCount(prefetchCount);
+      } catch (IOException e) {
+        String theTrace = ExceptionUtils.getStackTrace(e);
+        theLogger.error("IOException when changing prefetch count: "+theTrace);
+      }
+    }
+  }
+
+  @Override
+  public int getPrefetchCount() {
+    return buffer.getMaxMessages();
+  }
+
+  @Override
+  public Delivery nextDelivery() throws ShutdownSignalException,
+      ConsumerCancelledException, InterruptedException {
+    return buffer.take();
+  }
+
+  @Override
+  public void recover() throws IOException {
+    // the buffered messages are requeued and will be redelivered
+    // under new tags
+    buffer.clear();
+    super.recover();
+  }
+
+  @Override
+  public int getBufferedMessageCount() {
+    return buffer.size();
+  }
+
+  @Override
+  public long getBufferedByteCount() {
+    return buffer.getByteCount();
+  }
+
+  @Override
+  public long getPauseCount() {
+    return buffer.getPauseCount();
+  }
+
+  public String toString() {
+    return "BufferedRabbitMQPollingConsumer";
+  }
+
+  /** The callback consumer that RabbitMQ pushes deliveries to. */
+  private class BufferingConsumer extends DefaultConsumer {
+    BufferingConsumer(Channel channel) {
+      super(channel);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+        AMQP.BasicProperties properties, byte[] body) throws IOException {
+      buffer.add(new Delivery(envelope.getDeliveryTag(), body));
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag,
+        ShutdownSignalException sig) {
+      buffer.terminate(sig);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+      buffer.terminate(new ConsumerCancelledException());
+    }
+  }
+}
@@ -19,6 +19,7 @@ package dk.au.cs.karibu.backend.rabbitmq;
 import java.io.IOException; 
 import java.security.*; 
 import java.util.*; 
+import java.util.concurrent.*;
 
 import org.apache.commons.lang.exception.ExceptionUtils; 
 import org.slf4j.*; 
@@ -30,27 +31,84 @@ import dk.au.cs.karibu.producer.rabbitmq.*;
  
 /** A polling consumer implementation that uses RabbitMQ as 
  * message system. 
+ * 
+ * It uses the QueueingConsumer of the RabbitMQ client library,
+ * whose internal queue is unbounded; consider using
+ * BufferedRabbitMQPollingConsumer instead.
  *  
  * @author Henrik Baerbak Christensen, Aarhus University 
  */ 
 public class RabbitMQPollingConsumer implements PollingConsumer { 
   
-  private RabbitExchangeConfiguration exchangeConfiguration; 
-  private RabbitQueueConfiguration queueConfiguration; 
-  private Logger theLogger; 
-  private Connection connection; 
-  private Channel channel; 
-  private QueueingConsumer consumer; 
+  protected RabbitExchangeConfiguration exchangeConfiguration; 
+  protected RabbitQueueConfiguration queueConfiguration; 
+  protected Logger theLogger; 
+  protected Connection connection; 
+  protected Channel channel; 
+  private ArrivalStampingConsumer consumer; 
+  private volatile int prefetchCount;
+
+  /** default prefetch count */
+  public static final int DEFAULT_PREFETCH_COUNT = 100;
    
   public RabbitMQPollingConsumer(RabbitExchangeConfiguration rec, 
       RabbitQueueConfiguration rqc) { 
     this.exchangeConfiguration = rec; 
     this.queueConfiguration = rqc; 
-    this.theLogger = LoggerFactory.getLogger(RabbitMQPollingConsumer.class); 
+    this.theLogger = LoggerFactory.getLogger(getClass()); 
+    this.prefetchCount = DEFAULT_PREFETCH_COUNT;
   } 
  
   @Override 
   public void openChannelAndSetRouting() throws IOException { 
+    openChannelAndDeclareQueue();
+     
+    consumer = new ArrivalStampingConsumer(channel); 
+    // Tell RabbitMQ to await acknowledgement before removing
+    // msg from the queue. See http://www.rabbitmq.com/tutorials/tutorial-two-java.html
+    boolean autoAck = false;
+    channel.basicConsume(queueConfiguration.getQueueName(), autoAck, consumer); 
+    // Set the prefetch count to limit the amount of msg sent
+    // to the daemons before they are acknowledged. Fixes a
+    // bug that would induce an out-of-memory error in the
+    // daemons during high transfer rates.
+    // See http://www.rabbitmq.com/tutorials/tutorial-two-java.html 
+    // in the 'fair dispatch' section. The value may be tuned
+    // at runtime, see setPrefetchCount().
+    channel.basicQos(prefetchCount);
+  } 
+
+  /** Change the prefetch count; if the channel is open the
+   * new value applies immediately.
+   */
+  public void setPrefetchCount(int prefetchCount) {
+    this.prefetchCount = prefetchCount;
+    try {
+      applyPrefetchCount(prefetchCount);
+    } catch (IOException e) {
+      String trace = ExceptionUtils.getStackTrace(e); 
+      theLogger.error("IOException when changing prefetch count: "+trace); 
+    }
+  }
+
+  public int getPrefetchCount() {
+    return prefetchCount;
+  }
+
+  /** Set the prefetch count of the open channel, if any. It is
+   * set for the channel (global) so it also applies to the
+   * existing consumer. */
+  protected void applyPrefetchCount(int prefetchCount) throws IOException {
+    Channel current = channel;
+    if ( current != null && current.isOpen() ) {
+      current.basicQos(prefetchCount, true);
+    }
+  }
+
+  /** Connect to the MQ, open the channel, and declare and
+   * bind the exchange and queue.
+   */
+  protected void openChannelAndDeclareQueue() throws IOException { 
     theLogger.info("openChannelAndSetRouting: Exchange:"+ exchangeConfiguration + " Queue: "+queueConfiguration ); 
     ConnectionFactory factory = new ConnectionFactory(); 
     factory.setUsername( exchangeConfiguration.getUsername() ); 
@@ -89,20 +147,6 @@ public class RabbitMQPollingConsumer implements PollingConsumer {
         queueConfiguration.getQueueName(), 
         exchangeConfiguration.getExchangeName(), 
         queueConfiguration.getRoutingKey() ); 
-     
-    consumer = new QueueingConsumer(channel); 
-    // Tell RabbitMQ to await acknowledgement before removing
-    // msg from the queue. See http://www.rabbitmq.com/tutorials/tutorial-two-java.html
-    boolean autoAck = false;
-    channel.basicConsume(queueConfiguration.getQueueName(), autoAck, consumer); 
-    // Set the prefetch count to limit the amount of msg sent
-    // to the daemons before they are acknowledged. Fixes a
-    // bug that would induce an out-of-memory error in the
-    // daemons during high transfer rates.
-    // See http://www.rabbitmq.com/tutorials/tutorial-two-java.html 
-    // in the 'fair dispatch' section
-    int prefetchCount = 100; // ISSUE: what is the 'right' value here?
-    channel.basicQos(prefetchCount);
   } 
  
   @Override 
@@ -119,7 +163,8 @@ public class RabbitMQPollingConsumer implements PollingConsumer {
     rabbitDelivery = consumer.nextDelivery(); 
     byte[] payload = rabbitDelivery.getBody();
     Delivery karibuDelivery = 
-        new Delivery( rabbitDelivery.getEnvelope().getDeliveryTag(), payload);
+        new Delivery( rabbitDelivery.getEnvelope().getDeliveryTag(), payload,
+            consumer.nextArrival());
     return karibuDelivery; 
   }
 
@@ -128,6 +173,11 @@ public class RabbitMQPollingConsumer implements PollingConsumer {
     channel.basicAck(delivery.getDeliveryTag(), false);
   }
 
+  @Override
+  public void acknowledgeUpTo(Delivery delivery) throws IOException {
+    channel.basicAck(delivery.getDeliveryTag(), true);
+  }
+
   @Override
   public void recover() throws IOException {
     channel.basicRecover();
@@ -136,4 +186,30 @@ public class RabbitMQPollingConsumer implements PollingConsumer {
   public String toString() {
     return "RabbitMQPollingConsumer";
   }
+
+  /** A QueueingConsumer that remembers when each delivery
+   * arrived, so the time it waits in the queue is part of
+   * its measured latency. RabbitMQ calls handleDelivery from
+   * one thread per channel, so the arrival times are queued
+   * in the same order as the deliveries. */
+  private static class ArrivalStampingConsumer extends QueueingConsumer {
+    private final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+
+    ArrivalStampingConsumer(Channel channel) {
+      super(channel);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+        AMQP.BasicProperties properties, byte[] body) throws IOException {
+      arrivals.add(System.nanoTime());
+      super.handleDelivery(consumerTag, envelope, properties, body);
+    }
+
+    /** the arrival of the delivery just taken from the queue */
+    long nextArrival() {
+      Long arrival = arrivals.poll();
+      return arrival == null ? System.nanoTime() : arrival;
+    }
+  }
 } 
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend.standard;
+
+import java.util.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/** Tunes flow control limits, like the MQ prefetch count and the
+ * insert batch size, at runtime by additive increase /
+ * multiplicative decrease (AIMD) driven by the observed latency
+ * and error rate of the storage.
+ *
+ * The storage round trips are recorded by recordStore(), and at
+ * every adjustment the observations since the last adjustment
+ * are evaluated: if the fraction of documents that failed is
+ * above the max error rate, or the average latency is above the
+ * target, every limit is halved (but not below its minimum);
+ * otherwise every limit is increased by its increment (but not
+ * above its maximum). If nothing was stored, the limits are left
+ * unchanged. Failures are only a sign of congestion when they
+ * recur, so a single failed document in a steady stream does not
+ * halve the limits.
+ *
+ * The limits may be read and overridden at any time, for
+ * instance through JMX; adaptation continues from an overridden
+ * value unless it is disabled.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class AdaptiveFlowController {
+
+  /** A limit that the controller can tune. */
+  public interface Tunable {
+    int getValue();
+    void setValue(int value);
+  }
+
+  /** default time between adjustments */
+  public static final long DEFAULT_ADJUSTMENT_PERIOD_MS = 1000L;
+
+  /** default fraction of failed documents tolerated before
+   * the limits are decreased */
+  public static final double DEFAULT_MAX_ERROR_RATE = 0.01;
+
+  private static class Limit {
+    final Tunable tunable;
+    final int min, max, increment;
+    Limit(Tunable tunable, int min, int max, int increment) {
+      this.tunable = tunable;
+      this.min = min;
+      this.max = max;
+      this.increment = increment;
+    }
+  }
+
+  private final long targetLatencyMs;
+  private final Logger log;
+  private final Map<String,Limit> limits;
+  private boolean enabled;
+  private double maxErrorRate;
+  private Timer adjustmentTimer;
+
+  // observations since the last adjustment, guarded by 'this'
+  private long storeCount;
+  private long documentCount;
+  private long failureCount;
+  private long totalLatencyNanos;
+
+  // the outcome of the last adjustment, guarded by 'this'
+  private double lastAverageLatencyMs;
+  private double lastErrorRate;
+
+  /** Create a controller.
+   * @param targetLatencyMs the maximal acceptable average latency
+   * of a storage round trip
+   * @param enabled true if the limits are to be tuned; if false
+   * they may only be changed by setValue()
+   */
+  public AdaptiveFlowController(long targetLatencyMs, boolean enabled,
+      Logger log) {
+    this.targetLatencyMs = targetLatencyMs;
+    this.enabled = enabled;
+    this.log = log;
+    maxErrorRate = DEFAULT_MAX_ERROR_RATE;
+    limits = new LinkedHashMap<String, Limit>();
+    lastAverageLatencyMs = 0.0;
+    lastErrorRate = 0.0;
+  }
+
+  /** Add a limit to be tuned.
+   * @param name the name of the limit
+   * @param tunable the limit
+   * @param min the lowest value it may be decreased to
+   * @param max the highest value it may be increased to
+   * @param increment the additive increase
+   */
+  public synchronized void addLimit(String name, Tunable tunable,
+      int min, int max, int increment) {
+    limits.put(name, new Limit(tunable, min, max, increment));
+  }
+
+  /** Record a storage round trip.
+   * @param latencyNanos the duration of the round trip
+   * @param documents the number of documents stored
+   * @param failures the number of documents that failed
+   */
+  public synchronized void recordStore(long latencyNanos, int documents,
+      int failures) {
+    storeCount++;
+    documentCount += documents;
+    failureCount += failures;
+    totalLatencyNanos += latencyNanos;
+  }
+
+  /** Evaluate the observations since the last adjustment
+   * and adjust the limits. */
+  public synchronized void adjust() {
+    if ( storeCount == 0 ) { return; }
+    lastAverageLatencyMs = totalLatencyNanos / 1000000.0 / storeCount;
+    lastErrorRate = documentCount == 0 ? 0.0 : (double) failureCount / documentCount;
+    storeCount = 0;
+    documentCount = 0;
+    failureCount = 0;
+    totalLatencyNanos = 0;
+
+    if ( ! enabled ) { return; }
+    boolean congested = lastErrorRate > maxErrorRate || lastAverageLatencyMs > targetLatencyMs;
+    for ( Map.Entry<String,Limit> entry : limits.entrySet() ) {
+      Limit limit = entry.getValue();
+      int current = limit.tunable.getValue();
+      int next;
+      if ( congested ) {
+        next = Math.max(limit.min, current / 2);
+      } else {
+        next = Math.min(limit.max, current + limit.increment);
+      }
+      if ( next != current ) {
+        limit.tunable.setValue(next);
+        if ( congested ) {
+          log.info("Flow control: "+entry.getKey()+" decreased to "+next+
+              " (latency "+Math.round(lastAverageLatencyMs)+" ms, error rate "+lastErrorRate+")");
+        }
+      }
+    }
+  }
+
+  /** Start adjusting the limits periodically. */
+  public synchronized void start(long periodMs) {
+    if ( adjustmentTimer != null ) { return; }
+    adjustmentTimer = new Timer("FlowController", true);
+    adjustmentTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          adjust();
+        } catch (RuntimeException e) {
+          String theTrace = ExceptionUtils.getStackTrace(e);
+          log.error("Exception during flow control adjustment: "+theTrace);
+        }
+      }
+    }, periodMs, periodMs);
+  }
+
+  /** Stop adjusting the limits. */
+  public synchronized void stop() {
+    if ( adjustmentTimer != null ) {
+      adjustmentTimer.cancel();
+      adjustmentTimer = null;
+    }
+  }
+
+  /** return the current value of the named limit, or -1
+   * if there is no such limit. */
+  public synchronized int getValue(String name) {
+    Limit limit = limits.get(name);
+    return limit == null ? -1 : limit.tunable.getValue();
+  }
+
+  /** override the current value of the named limit; ignored
+   * if there is no such limit. */
+  public synchronized void setValue(String name, int value) {
+    Limit limit = limits.get(name);
+    if ( limit == null || value < 1 ) { return; }
+    log.info("Flow control: "+name+" set to "+value);
+    limit.tunable.setValue(value);
+  }
+
+  /** set the fraction of failed documents, between 0.0 and
+   * 1.0, above which the limits are decreased. */
+  public synchronized void setMaxErrorRate(double maxErrorRate) {
+    if ( maxErrorRate < 0.0 || maxErrorRate > 1.0 ) {
+      throw new IllegalArgumentException("The max error rate ("+maxErrorRate+
+          ") must be between 0.0 and 1.0");
+    }
+    this.maxErrorRate = maxErrorRate;
+  }
+
+  public synchronized double getMaxErrorRate() {
+    return maxErrorRate;
+  }
+
+  public synchronized boolean isEnabled() {
+    return enabled;
+  }
+
+  public synchronized void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Flow control ").append(enabled ? "adaptive" : "fixed");
+    sb.append(" (target ").append(targetLatencyMs).append(" ms, last latency ");
+    sb.append(Math.round(lastAverageLatencyMs)).append(" ms, error rate ");
+    sb.append(lastErrorRate).append(")");
+    for ( Map.Entry<String,Limit> entry : limits.entrySet() ) {
+      sb.append(", ").append(entry.getKey()).append(": ");
+      sb.append(entry.getValue().tunable.getValue());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend.standard;
+
+import java.util.*;
+
+import com.mongodb.*;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.serialization.BSONDeserializer;
+
+/** A decorator of a bulk processing strategy that buffers the
+ * documents of concurrent callers, per collection, and hands
+ * them to the bulk strategy as a single list.
+ *
+ * A caller of process() blocks until the batch its document is
+ * part of has been processed, and receives the outcome of its
+ * own document only: if that document failed the exception is
+ * thrown, so the request handler will flag only that message
+ * as 'not processed'. Thus the message is never acknowledged
+ * before its document is stored.
+ *
+ * A batch is flushed when it holds maxDocuments documents or
+ * about maxBytes bytes, when the oldest document in it has
+ * waited maxDelayMs, or when every one of the maxConcurrentCallers
+ * callers is waiting (no more documents can arrive). The flush is
+ * done by the calling thread that triggered it. Batching therefore
+ * only pays off when the receiver endpoint is configured with
+ * several processing workers; maxConcurrentCallers should be the
+ * number of workers.
+ *
+ * As every caller waits for its own document, a batch never
+ * holds more documents than there are concurrent callers: that
+ * is the real limit on the size of a bulk, and maxDocuments is
+ * therefore required not to exceed maxConcurrentCallers. A
+ * smaller maxDocuments, maxBytes, or maxDelayMs cuts batches
+ * earlier.
+ *
+ * Raw BSON documents are not batched but handed directly to
+ * the bulk strategy if it is a RawProcessingStrategy, as they
+ * are typically the large ones where the round trip saved by
+ * batching matters little; otherwise they are decoded and
+ * batched like any other document. A bulk of documents, as from
+ * a batch envelope, is already batched and is handed directly to
+ * the bulk strategy.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class BatchingProcessingStrategy 
+  implements BulkProcessingStrategy, RawProcessingStrategy {
+
+  private final BulkProcessingStrategy bulkStorage;
+  private final int maxBytes;
+  private final long maxDelayMs;
+  private final int maxConcurrentCallers;
+
+  private final Object lock = new Object();
+  // the fields below are guarded by 'lock'
+  private int maxDocuments;
+  private Map<String,Batch> openBatches;
+  private int openDocumentCount;
+
+  /** Create the batching decorator.
+   * @param bulkStorage the delegate that processes the batches
+   * @param maxDocuments max number of documents in a batch
+   * @param maxBytes max (estimated) size of a batch in bytes
+   * @param maxDelayMs max time a document waits for its batch
+   * to be flushed
+   * @param maxConcurrentCallers the number of threads that
+   * may call process() concurrently
+   * @throws IllegalArgumentException if maxDocuments is not
+   * between 1 and maxConcurrentCallers
+   */
+  public BatchingProcessingStrategy(BulkProcessingStrategy bulkStorage,
+      int maxDocuments, int maxBytes, long maxDelayMs,
+      int maxConcurrentCallers) {
+    if ( maxDocuments < 1 || maxDocuments > maxConcurrentCallers ) {
+      throw new IllegalArgumentException("The max number of documents in a batch ("
+          +maxDocuments+") must be between 1 and the number of concurrent callers ("
+          +maxConcurrentCallers+")");
+    }
+    this.bulkStorage = bulkStorage;
+    this.maxDocuments = maxDocuments;
+    this.maxBytes = maxBytes;
+    this.maxDelayMs = maxDelayMs;
+    this.maxConcurrentCallers = maxConcurrentCallers;
+    openBatches = new HashMap<String, Batch>();
+    openDocumentCount = 0;
+  }
+
+  @Override
+  public void process(String producerCode, BasicDBObject dbo) {
+    Batch batch;
+    int index;
+    List<Batch> toFlush = new ArrayList<Batch>(1);
+    synchronized (lock) {
+      batch = openBatches.get(producerCode);
+      if ( batch == null ) {
+        batch = new Batch(producerCode, System.currentTimeMillis() + maxDelayMs);
+        openBatches.put(producerCode, batch);
+      }
+      index = batch.add(dbo, estimateSize(dbo));
+      openDocumentCount++;
+
+      if ( openDocumentCount >= maxConcurrentCallers ) {
+        toFlush.addAll(openBatches.values());
+        for ( Batch b : toFlush ) { close(b); }
+      } else if ( batch.documents.size() >= maxDocuments
+          || batch.byteCount >= maxBytes ) {
+        close(batch);
+        toFlush.add(batch);
+      }
+    }
+    for ( Batch b : toFlush ) {
+      flush(b);
+    }
+
+    awaitOutcome(batch);
+
+    if ( batch.failure != null ) {
+      throw batch.failure;
+    }
+    MongoException documentFailure = batch.documentFailures.get(index);
+    if ( documentFailure != null ) {
+      throw documentFailure;
+    }
+  }
+
+  @Override
+  public Map<Integer, MongoException> processBulk(String producerCode,
+      List<BasicDBObject> documents) {
+    return bulkStorage.processBulk(producerCode, documents);
+  }
+
+  @Override
+  public void processRaw(String producerCode, byte[] buffer, int offset,
+      int length) {
+    if ( bulkStorage instanceof RawProcessingStrategy ) {
+      ((RawProcessingStrategy) bulkStorage).processRaw(producerCode, buffer, offset, length);
+    } else {
+      process(producerCode, 
+          new BSONDeserializer().buildDocumentFromByteRange(buffer, offset, length));
+    }
+  }
+
+  /** Change the max number of documents in a batch; batches
+   * already holding more are flushed on their next document.
+   * A value above the number of concurrent callers is capped
+   * to it, as no batch can grow larger.
+   * @throws IllegalArgumentException if maxDocuments is below 1 */
+  public void setMaxDocuments(int maxDocuments) {
+    if ( maxDocuments < 1 ) {
+      throw new IllegalArgumentException("The max number of documents in a batch ("
+          +maxDocuments+") must be positive");
+    }
+    synchronized (lock) {
+      this.maxDocuments = Math.min(maxDocuments, maxConcurrentCallers);
+    }
+  }
+
+  public int getMaxDocuments() {
+    synchronized (lock) {
+      return maxDocuments;
+    }
+  }
+
+  /** Return the number of threads that may call process()
+   * concurrently, which is the largest batch possible. */
+  public int getMaxConcurrentCallers() {
+    return maxConcurrentCallers;
+  }
+
+  private void awaitOutcome(Batch batch) {
+    boolean interrupted = false;
+    while ( true ) {
+      synchronized (lock) {
+        if ( batch.done ) { break; }
+        if ( batch.open ) {
+          long remaining = batch.deadline - System.currentTimeMillis();
+          if ( remaining <= 0 ) {
+            // the batch is overdue, flush it outside the lock
+            close(batch);
+          } else {
+            interrupted |= waitOnLock(remaining);
+            continue;
+          }
+        } else {
+          // another thread is flushing it
+          interrupted |= waitOnLock(0);
+          continue;
+        }
+      }
+      flush(batch);
+    }
+    if ( interrupted ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // caller must hold 'lock'; returns true if interrupted
+  private boolean waitOnLock(long timeoutMs) {
+    try {
+      lock.wait(timeoutMs);
+      return false;
+    } catch (InterruptedException e) {
+      // the outcome must be awaited anyway, as the document
+      // may be stored by another thread
+      return true;
+    }
+  }
+
+  // caller must hold 'lock'
+  private void close(Batch batch) {
+    batch.open = false;
+    openBatches.remove(batch.producerCode);
+    openDocumentCount -= batch.documents.size();
+  }
+
+  private void flush(Batch batch) {
+    Map<Integer,MongoException> documentFailures = null;
+    RuntimeException failure = null;
+    try {
+      documentFailures =
+          bulkStorage.processBulk(batch.producerCode, batch.documents);
+    } catch (RuntimeException e) {
+      // no document in the batch can be considered processed
+      failure = e;
+    }
+    synchronized (lock) {
+      if ( documentFailures != null ) {
+        batch.documentFailures = documentFailures;
+      }
+      batch.failure = failure;
+      batch.done = true;
+      lock.notifyAll();
+    }
+  }
+
+  /** Estimate the BSON size of a document, close enough to
+   * bound the size of a batch. */
+  static int estimateSize(Object value) {
+    if ( value instanceof DBObject ) {
+      DBObject dbo = (DBObject) value;
+      int size = 5;
+      for ( String key : dbo.keySet() ) {
+        size += key.length() + 2 + estimateSize(dbo.get(key));
+      }
+      return size;
+    }
+    if ( value instanceof String ) {
+      return ((String) value).length() + 5;
+    }
+    if ( value instanceof byte[] ) {
+      return ((byte[]) value).length + 5;
+    }
+    if ( value instanceof Collection ) {
+      int size = 5;
+      for ( Object element : (Collection<?>) value ) {
+        size += 4 + estimateSize(element);
+      }
+      return size;
+    }
+    return 8;
+  }
+
+  private static class Batch {
+    // the fields below are guarded by the strategy's 'lock',
+    // except 'documents' which is not modified once closed
+    final String producerCode;
+    final long deadline;
+    final List<BasicDBObject> documents;
+    int byteCount;
+    boolean open;
+    boolean done;
+    Map<Integer,MongoException> documentFailures;
+    RuntimeException failure;
+
+    Batch(String producerCode, long deadline) {
+      this.producerCode = producerCode;
+      this.deadline = deadline;
+      documents = new ArrayList<BasicDBObject>();
+      byteCount = 0;
+      open = true;
+      done = false;
+      documentFailures = Collections.emptyMap();
+      failure = null;
+    }
+
+    int add(BasicDBObject dbo, int size) {
+      documents.add(dbo);
+      byteCount += size;
+      return documents.size() - 1;
+    }
+  }
+}
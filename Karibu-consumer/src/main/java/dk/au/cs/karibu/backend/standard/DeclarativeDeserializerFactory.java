@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend.standard;
+
+import java.util.*;
+
+import dk.au.cs.karibu.backend.DeserializerFactory;
+import dk.au.cs.karibu.common.FailFast;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.utilities.*;
+
+/** A factory of deserializers for JSON payloads that are
+ * declared in properties instead of being coded as a class per
+ * producer code. For other producer codes, the deserializer is
+ * created by a fallback factory, typically the standard one.
+ *
+ * The properties list the declared producer codes, and for each
+ * the conversions, renames and dropped fields of its documents:
+ *
+ *   producerCodes = EXMRE001,EXMRE002
+ *   EXMRE001.convert.timestamp = date
+ *   EXMRE001.convert.count = long
+ *   EXMRE001.rename.temp = temperature
+ *   EXMRE001.drop = debug,raw
+ *
+ * A field is converted before it is renamed. The conversions
+ * are the names of FieldConversion (date, int, long, double,
+ * string, boolean). The declarations are compiled once, when the
+ * factory is created, and an invalid declaration raises a
+ * RuntimeException then.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public final class DeclarativeDeserializerFactory implements DeserializerFactory {
+
+  public static final String PRODUCER_CODES = "producerCodes";
+
+  private final Map<String,Deserializer> deserializers;
+  private final DeserializerFactory fallback;
+
+  /** Create the factory and compile the declared deserializers.
+   * @param properties the declarations
+   * @param fallback the factory for producer codes that are not
+   * declared; may be null, in which case they have no deserializer
+   */
+  public DeclarativeDeserializerFactory(Properties properties, 
+      DeserializerFactory fallback) {
+    this.fallback = fallback;
+    deserializers = new HashMap<String, Deserializer>();
+    String codes = FailFast.readProperty(properties, PRODUCER_CODES);
+    for ( String code : codes.split(",") ) {
+      code = code.trim();
+      if ( code.length() == 0 ) { continue; }
+      deserializers.put(code, compile(code, properties));
+    }
+  }
+
+  private static Deserializer compile(String producerCode, Properties properties) {
+    String convertPrefix = producerCode+".convert.";
+    String renamePrefix = producerCode+".rename.";
+    Map<String,FieldConversion> conversions = new HashMap<String, FieldConversion>();
+    Map<String,String> renames = new HashMap<String, String>();
+    Set<String> drops = new HashSet<String>();
+
+    for ( String key : properties.stringPropertyNames() ) {
+      String value = properties.getProperty(key).trim();
+      if ( key.startsWith(convertPrefix) ) {
+        String field = key.substring(convertPrefix.length());
+        try {
+          conversions.put(field, FieldConversion.valueOf(value.toUpperCase(Locale.ENGLISH)));
+        } catch (IllegalArgumentException e) {
+          throw new RuntimeException("Invalid deserializer declaration for "+
+              producerCode+": unknown conversion '"+value+"' of field "+field);
+        }
+      } else if ( key.startsWith(renamePrefix) ) {
+        String field = key.substring(renamePrefix.length());
+        if ( value.length() == 0 ) {
+          throw new RuntimeException("Invalid deserializer declaration for "+
+              producerCode+": empty new name of field "+field);
+        }
+        renames.put(field, value);
+      }
+    }
+    String dropList = properties.getProperty(producerCode+".drop");
+    if ( dropList != null ) {
+      for ( String field : dropList.split(",") ) {
+        if ( field.trim().length() > 0 ) {
+          drops.add(field.trim());
+        }
+      }
+    }
+    return new DeclarativeDeserializer(producerCode, conversions, renames, drops);
+  }
+
+  @Override
+  public Deserializer createDeserializer(String producerCode) {
+    Deserializer deserializer = deserializers.get(producerCode);
+    if ( deserializer == null && fallback != null ) {
+      deserializer = fallback.createDeserializer(producerCode);
+    }
+    return deserializer;
+  }
+}
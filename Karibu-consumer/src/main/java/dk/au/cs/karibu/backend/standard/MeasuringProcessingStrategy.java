@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.backend.standard;
+
+import java.util.*;
+
+import com.mongodb.*;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.serialization.BSONDeserializer;
+
+/** A decorator of a processing strategy that reports the
+ * latency and outcome of every call to the storage to an
+ * adaptive flow controller.
+ *
+ * A document over the max BSON size is rejected by MongoDB and
+ * dropped by the request handler; such a failure says nothing
+ * about congestion and is reported as a store that succeeded.
+ *
+ * If the decorated strategy is not a BulkProcessingStrategy,
+ * a bulk is processed one document at a time; if it is not a
+ * RawProcessingStrategy, a raw document is decoded first.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class MeasuringProcessingStrategy 
+  implements BulkProcessingStrategy, RawProcessingStrategy {
+
+  private final ProcessingStrategy delegate;
+  private final AdaptiveFlowController controller;
+
+  public MeasuringProcessingStrategy(ProcessingStrategy delegate,
+      AdaptiveFlowController controller) {
+    this.delegate = delegate;
+    this.controller = controller;
+  }
+
+  @Override
+  public void process(String producerCode, BasicDBObject dbo) {
+    long start = System.nanoTime();
+    try {
+      delegate.process(producerCode, dbo);
+    } catch (RuntimeException e) {
+      controller.recordStore(System.nanoTime() - start, 1, isOversized(e) ? 0 : 1);
+      throw e;
+    }
+    controller.recordStore(System.nanoTime() - start, 1, 0);
+  }
+
+  @Override
+  public void processRaw(String producerCode, byte[] buffer, int offset,
+      int length) {
+    long start = System.nanoTime();
+    try {
+      if ( delegate instanceof RawProcessingStrategy ) {
+        ((RawProcessingStrategy) delegate).processRaw(producerCode, buffer, offset, length);
+      } else {
+        delegate.process(producerCode, 
+            new BSONDeserializer().buildDocumentFromByteRange(buffer, offset, length));
+      }
+    } catch (RuntimeException e) {
+      controller.recordStore(System.nanoTime() - start, 1, isOversized(e) ? 0 : 1);
+      throw e;
+    }
+    controller.recordStore(System.nanoTime() - start, 1, 0);
+  }
+
+  @Override
+  public Map<Integer, MongoException> processBulk(String producerCode,
+      List<BasicDBObject> documents) {
+    long start = System.nanoTime();
+    Map<Integer, MongoException> failures;
+    try {
+      if ( delegate instanceof BulkProcessingStrategy ) {
+        failures = ((BulkProcessingStrategy) delegate).processBulk(producerCode, documents);
+      } else {
+        failures = processOneByOne(producerCode, documents);
+      }
+    } catch (RuntimeException e) {
+      controller.recordStore(System.nanoTime() - start, documents.size(), documents.size());
+      throw e;
+    }
+    int failureCount = 0;
+    for ( MongoException failure : failures.values() ) {
+      if ( ! isOversized(failure) ) { failureCount++; }
+    }
+    controller.recordStore(System.nanoTime() - start, documents.size(), failureCount);
+    return failures;
+  }
+
+  private Map<Integer, MongoException> processOneByOne(String producerCode,
+      List<BasicDBObject> documents) {
+    Map<Integer, MongoException> failures = new HashMap<Integer, MongoException>();
+    for ( int i = 0; i < documents.size(); i++ ) {
+      try {
+        delegate.process(producerCode, documents.get(i));
+      } catch (MongoException e) {
+        failures.put(i, e);
+      }
+    }
+    return failures;
+  }
+
+  /** return true if the failure is a document over the max
+   * BSON size, which the request handler drops by policy. */
+  private static boolean isOversized(RuntimeException failure) {
+    String theMessage = failure.getMessage();
+    return failure instanceof MongoInternalException && theMessage != null &&
+        theMessage.contains("is over Max BSON size");
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend.standard;
+
+import dk.au.cs.karibu.backend.ServerRequestHandler;
+
+/** A table of the producer codes seen in received messages,
+ * that maps the producer code bytes of a message to a
+ * canonical String instance without allocating.
+ *
+ * The 8 bytes of the producer code are packed into a long which
+ * is looked up in an open addressing table. As the same String
+ * instance is returned for every message of a producer, its
+ * hash code is computed once, and map lookups keyed by it
+ * succeed on identity.
+ *
+ * Lookups are lock free; a new producer code is added by
+ * replacing the table with a copy, as new codes are rare. To
+ * protect the heap against garbage producer codes, at most
+ * MAX_CODES codes are held; further codes are decoded into a
+ * new String on every lookup.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public final class ProducerCodeTable {
+
+  /** max number of producer codes held by the table */
+  public static final int MAX_CODES = 4096;
+
+  private static final int CODE_LENGTH = ServerRequestHandler.PRODUCER_CODE_LENGTH;
+
+  private static final class Table {
+    final long[] keys;
+    final String[] codes;
+    final int mask;
+    final int count;
+    Table(int capacity, int count) {
+      keys = new long[capacity];
+      codes = new String[capacity];
+      mask = capacity - 1;
+      this.count = count;
+    }
+  }
+
+  private volatile Table table;
+
+  public ProducerCodeTable() {
+    table = new Table(16, 0);
+  }
+
+  /** Pack the producer code at the start of a message into a
+   * long.
+   * @param message the message, at least PRODUCER_CODE_LENGTH long
+   */
+  public static long pack(byte[] message) {
+    long key = 0L;
+    for ( int i = 0; i < CODE_LENGTH; i++ ) {
+      key = (key << 8) | (message[i] & 0xFF);
+    }
+    return key;
+  }
+
+  /** Return the canonical producer code of a message.
+   * @param message the message, at least PRODUCER_CODE_LENGTH long
+   */
+  public String lookup(byte[] message) {
+    long key = pack(message);
+    Table t = table;
+    String code = find(t, key);
+    if ( code == null ) {
+      code = add(key, message);
+    }
+    return code;
+  }
+
+  /** return the number of producer codes in the table */
+  public int size() {
+    return table.count;
+  }
+
+  private static int indexOf(long key, int mask) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  // a table always has a free slot, so the probe ends
+  private static String find(Table t, long key) {
+    int i = indexOf(key, t.mask);
+    while ( t.codes[i] != null ) {
+      if ( t.keys[i] == key ) { return t.codes[i]; }
+      i = (i + 1) & t.mask;
+    }
+    return null;
+  }
+
+  private synchronized String add(long key, byte[] message) {
+    Table t = table;
+    String code = find(t, key);
+    if ( code != null ) { return code; }
+    code = new String(message, 0, CODE_LENGTH);
+    if ( t.count >= MAX_CODES ) { return code; }
+
+    // keep the load factor at most 1/2
+    int capacity = t.keys.length;
+    if ( (t.count + 1) * 2 > capacity ) { capacity *= 2; }
+    Table copy = new Table(capacity, t.count + 1);
+    for ( int i = 0; i < t.keys.length; i++ ) {
+      if ( t.codes[i] != null ) {
+        insert(copy, t.keys[i], t.codes[i]);
+      }
+    }
+    insert(copy, key, code);
+    table = copy;
+    return code;
+  }
+
+  private static void insert(Table t, long key, String code) {
+    int i = indexOf(key, t.mask);
+    while ( t.codes[i] != null ) {
+      i = (i + 1) & t.mask;
+    }
+    t.keys[i] = key;
+    t.codes[i] = code;
+  }
+}
@@ -16,15 +16,18 @@
  
 package dk.au.cs.karibu.backend.standard; 
  
+import java.io.IOException;
 import java.util.*; 
+import java.util.concurrent.*;
 
 import org.apache.commons.lang.exception.ExceptionUtils; 
+import org.bson.BSONException;
 import org.slf4j.*; 
 
 import com.mongodb.*;
 
 import dk.au.cs.karibu.backend.*;
-import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.serialization.*;
 import dk.au.cs.karibu.testdoubles.*;
 import dk.au.cs.karibu.utilities.DeadLetterDeserializer;
  
@@ -48,30 +51,74 @@ import dk.au.cs.karibu.utilities.DeadLetterDeserializer;
  * only has a single property whose key is 'payload' and the raw
  * binary message as value.
  * 
+ * A compressed payload, see Compression, is decompressed before
+ * it is deserialized, so deserializers never see compressed data;
+ * a payload that fails to decompress is treated as a format error.
+ * 
+ * A payload that is a batch envelope, see BatchEnvelope, is
+ * unpacked and each record deserialized into a document; the
+ * documents are processed as a single bulk if the storage is a
+ * BulkProcessingStrategy. The envelope is processed as a whole:
+ * if any record is ill formed the envelope is treated as a format
+ * error, and if any document fails to be stored the message is
+ * flagged as 'not processed'. A document over the max BSON size
+ * is dropped and logged, like a single message is. As the
+ * documents get their _id when inserted, the documents of an
+ * envelope that were stored before it was flagged are stored
+ * again when it is redelivered; envelopes are thus stored at
+ * least once, and a failed one may leave duplicates.
+ * 
+ * If the deserializer of a producer code is a BSONDeserializer and
+ * the storage is a RawProcessingStrategy, the payload is handed to
+ * the storage as it is, once its BSON framing is validated; thus
+ * it is never decoded into a document. A payload that is not well
+ * framed BSON is treated as a format error.
+ * 
  * Will handle missing deserializers for a given producer code by
  * accepting the message and storing it as binary data in a collection
  * name DEADLETTER_COLLECTION_NAME_PREFIX+producer code (the producer
  * code prefixed with DEADLETTER_COLLECTION_NAME_PREFIX) and otherwise
- * identical to how wrong formatted messages are treated.
+ * identical to how wrong formatted messages are treated. As asking
+ * the deserializer factory may be expensive, a producer code for
+ * which it provided no deserializer is remembered as unknown for
+ * a time to live, during which the factory is not asked again.
+ * 
+ * The request handler is thread safe provided the injected
+ * delegates are, so it may be invoked by several processing
+ * workers concurrently. Note that cached deserializers are
+ * then shared among the workers. The processing is split into
+ * the decode and store stages so a pipelined receiver endpoint
+ * may run them in separate threads.
+ * 
+ * The time spent in each stage is recorded, per producer code,
+ * in the latency histograms of the statistic handler.
  *  
  * @author Henrik Baerbak Christensen, Aarhus University 
  * 
  */ 
-public final class StandardServerRequestHandler implements ServerRequestHandler { 
+public final class StandardServerRequestHandler implements StagedServerRequestHandler { 
    
   public static final String WRONG_FORMAT_COLLECTION_NAME_PREFIX = 
     "WRONGFORMAT"; 
   public static final String DEADLETTER_COLLECTION_NAME_PREFIX = 
     "DEADLETTER"; 
+  /** default time an unknown producer code is remembered */
+  public static final long DEFAULT_UNKNOWN_PRODUCER_CODE_TTL_MS = 60000L;
  
   private ProcessingStrategy storage; 
   private DeserializerFactory factory; 
-  private Map<String,Deserializer> mapCode2Deserializer;  
+  private ConcurrentMap<String,ByteRangeDeserializer> mapCode2Deserializer;  
+  private final ProducerCodeTable codeTable;
+  // producer codes without a deserializer, mapped to the time
+  // (in ms) when the factory may be asked again
+  private ConcurrentMap<String,Long> mapUnknownCode2Expiry;
+  private volatile long unknownProducerCodeTtlMs;
+  private volatile TimestampStrategy timestampStrategy;
+  private final CompressionStatistics decompressionStatistics;
   private Logger log; 
    
-  
-  private String collectionName, producerCode;
   private StatisticHandler statisticHandler;
+  private LatencyHistograms latencies;
  
   /** Create the server side request handler based on the
    * injected deserializer factory and the injected
@@ -96,6 +143,7 @@ public final class StandardServerRequestHandler implements ServerRequestHandler
     this.storage = backendProcesser; 
     this.factory = factory; 
     this.statisticHandler = statistic;
+    latencies = statistic.getLatencyHistograms();
     
     if ( logger == null ) {
       log = LoggerFactory.getLogger(StandardServerRequestHandler.class);
@@ -103,7 +151,12 @@ public final class StandardServerRequestHandler implements ServerRequestHandler
       log = logger;
     }
     mapCode2Deserializer =  
-        new HashMap<String,Deserializer>(); 
+        new ConcurrentHashMap<String,ByteRangeDeserializer>(); 
+    mapUnknownCode2Expiry = new ConcurrentHashMap<String, Long>();
+    codeTable = new ProducerCodeTable();
+    unknownProducerCodeTtlMs = DEFAULT_UNKNOWN_PRODUCER_CODE_TTL_MS;
+    timestampStrategy = new RealTimestampStrategy();
+    decompressionStatistics = new CompressionStatistics();
     log.info("Request handler initialized (storage: "+storage.getClass().getSimpleName() 
         +", factory: "+factory.getClass().getSimpleName() 
         +", statistics: "+statisticHandler.getClass().getSimpleName() 
@@ -124,41 +177,91 @@ public final class StandardServerRequestHandler implements ServerRequestHandler
 
   @Override 
   public boolean receive(byte[] bytes) {
-    // result of the processing - assumed to succeed
-    boolean processingSuccess = true;
-    
-    // Retrieve producer code 
-    producerCode =  
-        new String(Arrays.copyOfRange(bytes, 0, PRODUCER_CODE_LENGTH)); 
+    return store(decode(bytes));
+  }
+
+  @Override
+  public DecodedMessage decode(byte[] bytes) {
+    long start = System.nanoTime();
+    DecodedMessage message = decodeMessage(bytes);
+    latencies.record(LatencyHistograms.Stage.DESERIALIZE, message.getProducerCode(), 
+        System.nanoTime() - start);
+    return message;
+  }
+
+  private DecodedMessage decodeMessage(byte[] bytes) {
+    // Retrieve the canonical producer code, which is also used
+    // as key for the deserializers and the statistics
+    String producerCode = codeTable.lookup(bytes); 
     // assume that the collectionName will be identical to the producer code
-    collectionName = producerCode;
+    String collectionName = producerCode;
      
-    byte payload[] =  
-        Arrays.copyOfRange(bytes, PRODUCER_CODE_LENGTH, bytes.length); 
+    // the payload is read in place, not copied
+    byte[] payload = bytes;
+    int payloadOffset = PRODUCER_CODE_LENGTH;
+    int payloadLength = bytes.length - PRODUCER_CODE_LENGTH; 
     
     // Collect statistics
     statisticHandler.notifyReceive(producerCode, bytes.length);
+
+    // a compressed payload is decompressed into a new buffer
+    if ( Compression.isCompressed(bytes, payloadOffset, payloadLength) ) {
+      try {
+        payload = Compression.decompress(bytes, payloadOffset, payloadLength, 
+            decompressionStatistics);
+        payloadOffset = 0;
+        payloadLength = payload.length;
+      } catch ( IOException e ) {
+        collectionName = WRONG_FORMAT_COLLECTION_NAME_PREFIX + producerCode;
+        log.info("Corrupt compressed payload received from producer "+producerCode+ 
+            ", will store in collection "+collectionName+". "+e.getMessage()); 
+        return new DecodedMessage(producerCode, collectionName, 
+            buildWrongFormatDocument(bytes, payloadOffset, payloadLength));
+      }
+    }
      
-    Deserializer deserializer = null; 
-    // Get the deserializer, optimize by caching the reference 
+    ByteRangeDeserializer deserializer = null; 
+    // Get the deserializer, optimize by caching the reference,
+    // and by remembering the codes that have none
     deserializer = mapCode2Deserializer.get(producerCode); 
+    boolean knownAsUnknown = false;
     if ( deserializer == null ) { 
-      deserializer = factory.createDeserializer(producerCode); 
-      if ( deserializer != null ) { 
-        mapCode2Deserializer.put(producerCode, deserializer); 
-        log.info("Caching the deserializer ("+deserializer+")"); 
+      knownAsUnknown = isRememberedAsUnknown(producerCode);
+    }
+    if ( deserializer == null && ! knownAsUnknown ) { 
+      Deserializer created = factory.createDeserializer(producerCode); 
+      if ( created == null ) {
+        rememberAsUnknown(producerCode);
+      } else { 
+        // existing deserializers are adapted to read the range
+        deserializer = DeserializerAdapter.adapt(created);
+        // another worker may have cached one in the meantime
+        ByteRangeDeserializer cached = 
+            mapCode2Deserializer.putIfAbsent(producerCode, deserializer); 
+        if ( cached == null ) {
+          log.info("Caching the deserializer ("+created+")"); 
+        } else {
+          deserializer = cached;
+        }
       } 
     } 
      
     BasicDBObject dbo = null; 
+    boolean isDeadLetter = deserializer == null;
     // If the deserializer is null, then we have encountered 
     // an unknown producer - store the raw payload in 
     // a collection named DEADLETTER_CODE and suffixed with
     // the producer code.
     if ( deserializer == null ){
       collectionName = StandardServerRequestHandler.DEADLETTER_COLLECTION_NAME_PREFIX + producerCode;
-      log.info("DeadLetter: Unknown producer code ("+ producerCode+"),"+ 
-          " stored binary in collection "+collectionName); 
+      String deadLetterMsg = "DeadLetter: Unknown producer code ("+ producerCode+"),"+ 
+          " stored binary in collection "+collectionName;
+      // only log once per time to live, to keep dead letters cheap
+      if ( knownAsUnknown ) {
+        log.debug(deadLetterMsg);
+      } else {
+        log.info(deadLetterMsg);
+      }
       deserializer = new DeadLetterDeserializer(); 
     } 
      
@@ -167,24 +270,144 @@ public final class StandardServerRequestHandler implements ServerRequestHandler
     // format is wrong we will store the message in a 
     // special collection 
     try { 
-      dbo = deserializer.buildDocumentFromByteArray(payload); 
+      if ( ! isDeadLetter 
+          && BatchEnvelope.isEnvelope(payload, payloadOffset, payloadLength) ) {
+        return decodeEnvelope(producerCode, collectionName, deserializer, 
+            payload, payloadOffset, payloadLength);
+      }
+      if ( deserializer instanceof BSONDeserializer 
+          && storage instanceof RawProcessingStrategy ) {
+        // raw BSON is passed on without building a document
+        BSONDeserializer.validate(payload, payloadOffset, payloadLength);
+        return new DecodedMessage(producerCode, collectionName, 
+            payload, payloadOffset, payloadLength);
+      }
+      dbo = deserializer.buildDocumentFromByteRange(payload, 
+          payloadOffset, payloadLength); 
     } catch ( com.mongodb.util.JSONParseException parseException ){ 
       String theTrace = ExceptionUtils.getStackTrace(parseException);
       collectionName = WRONG_FORMAT_COLLECTION_NAME_PREFIX + producerCode;
       log.info("Illformed JSON received from producer "+producerCode+ 
           ", will store in collection "+collectionName+". "+theTrace); 
-      // we can reuse the serializer used for dead letters 
-      deserializer = new DeadLetterDeserializer(); 
-      dbo = deserializer.buildDocumentFromByteArray(payload); 
+      dbo = buildWrongFormatDocument(payload, payloadOffset, payloadLength);
+    } catch ( BSONException bsonException ){ 
+      collectionName = WRONG_FORMAT_COLLECTION_NAME_PREFIX + producerCode;
+      log.info("Illformed BSON received from producer "+producerCode+ 
+          ", will store in collection "+collectionName+". "+bsonException.getMessage()); 
+      dbo = buildWrongFormatDocument(payload, payloadOffset, payloadLength);
+    } catch ( IOException envelopeException ){ 
+      collectionName = WRONG_FORMAT_COLLECTION_NAME_PREFIX + producerCode;
+      log.info("Illformed envelope received from producer "+producerCode+ 
+          ", will store in collection "+collectionName+". "+envelopeException.getMessage()); 
+      dbo = buildWrongFormatDocument(payload, payloadOffset, payloadLength);
     } catch( RuntimeException otherException ) { 
       String theTrace = ExceptionUtils.getStackTrace(otherException); 
       log.error("Unhandled runtime exception during deserialization. "+theTrace); 
     } 
-        
+
+    return new DecodedMessage(producerCode, collectionName, dbo);
+  }
+
+  /** Deserialize each record of a batch envelope, which may
+   * be compressed individually. */
+  private DecodedMessage decodeEnvelope(String producerCode, String collectionName,
+      ByteRangeDeserializer deserializer, byte[] payload, int payloadOffset, 
+      int payloadLength) throws IOException {
+    int[] ranges = BatchEnvelope.readRecordRanges(payload, payloadOffset, payloadLength);
+    List<BasicDBObject> documents = new ArrayList<BasicDBObject>(ranges.length / 2);
+    for ( int i = 0; i < ranges.length; i += 2 ) {
+      byte[] record = payload;
+      int recordOffset = ranges[i];
+      int recordLength = ranges[i + 1];
+      if ( Compression.isCompressed(record, recordOffset, recordLength) ) {
+        record = Compression.decompress(record, recordOffset, recordLength, 
+            decompressionStatistics);
+        recordOffset = 0;
+        recordLength = record.length;
+      }
+      documents.add(deserializer.buildDocumentFromByteRange(record, 
+          recordOffset, recordLength));
+    }
+    return new DecodedMessage(producerCode, collectionName, documents);
+  }
+
+  private BasicDBObject buildWrongFormatDocument(byte[] payload, 
+      int payloadOffset, int payloadLength) {
+    // we can reuse the serializer used for dead letters 
+    ByteRangeDeserializer deserializer = new DeadLetterDeserializer(); 
+    return deserializer.buildDocumentFromByteRange(payload, 
+        payloadOffset, payloadLength); 
+  }
+
+  private boolean isRememberedAsUnknown(String producerCode) {
+    Long expiry = mapUnknownCode2Expiry.get(producerCode);
+    if ( expiry == null ) { return false; }
+    if ( timestampStrategy.getNow().getTime() < expiry ) { return true; }
+    mapUnknownCode2Expiry.remove(producerCode, expiry);
+    return false;
+  }
+
+  private void rememberAsUnknown(String producerCode) {
+    long ttl = unknownProducerCodeTtlMs;
+    if ( ttl > 0 ) {
+      mapUnknownCode2Expiry.put(producerCode, 
+          timestampStrategy.getNow().getTime() + ttl);
+    }
+  }
+
+  /** Set the time a producer code for which the factory
+   * provided no deserializer is remembered as unknown; 0
+   * means the factory is asked on every message.
+   */
+  public void setUnknownProducerCodeTimeToLive(long ttlMs) {
+    unknownProducerCodeTtlMs = ttlMs;
+  }
+
+  /** Set the source of the current time, used for expiring
+   * unknown producer codes. */
+  public void setTimestampStrategy(TimestampStrategy timestampStrategy) {
+    this.timestampStrategy = timestampStrategy;
+  }
+
+  /** Forget all producer codes remembered as unknown, so the
+   * factory is asked again on their next message, for instance
+   * after deploying new deserializers.
+   * @return the number of codes forgotten
+   */
+  public int invalidateUnknownProducerCodes() {
+    int count = mapUnknownCode2Expiry.size();
+    mapUnknownCode2Expiry.clear();
+    log.info("Forgot "+count+" unknown producer codes.");
+    return count;
+  }
+
+  @Override
+  public boolean store(DecodedMessage message) {
+    long start = System.nanoTime();
+    boolean processingSuccess = storeMessage(message);
+    latencies.record(LatencyHistograms.Stage.STORE, message.getProducerCode(), 
+        System.nanoTime() - start);
+    return processingSuccess;
+  }
+
+  private boolean storeMessage(DecodedMessage message) {
+    // result of the processing - assumed to succeed
+    boolean processingSuccess = true;
+
+    String producerCode = message.getProducerCode();
+    BasicDBObject dbo = message.getDocument();
     // if another runtime exception happened, the dbo may still be null 
-    if ( dbo != null ) {  
+    if ( dbo != null || message.isRaw() || message.isBatch() ) {  
       try {
-        storage.process(collectionName, dbo );
+        if ( message.isRaw() ) {
+          ((RawProcessingStrategy) storage).processRaw(message.getCollectionName(), 
+              message.getRawBuffer(), message.getRawOffset(), message.getRawLength());
+        } else if ( message.isBatch() ) {
+          processingSuccess = storeBatch(producerCode, message.getCollectionName(), 
+              message.getDocuments());
+        } else {
+          storage.process(message.getCollectionName(), dbo );
+        }
       } catch ( MongoInternalException mie ) {
         processingSuccess = false;
         String theTrace = ExceptionUtils.getStackTrace(mie);
@@ -225,7 +448,56 @@ public final class StandardServerRequestHandler implements ServerRequestHandler
 
     return processingSuccess;
   } 
+
+  /** Store the documents of a batch envelope, as a bulk if
+   * possible, otherwise one by one. Documents over the max BSON
+   * size are dropped, as single ones are; the other documents
+   * are stored even if some fail.
+   * @return true iff all documents were processed
+   */
+  private boolean storeBatch(String producerCode, String collectionName,
+      List<BasicDBObject> documents) {
+    if ( documents.isEmpty() ) { return true; }
+    Collection<MongoException> failures;
+    if ( storage instanceof BulkProcessingStrategy ) {
+      failures = ((BulkProcessingStrategy) storage).
+          processBulk(collectionName, documents).values();
+    } else {
+      failures = new ArrayList<MongoException>();
+      for ( BasicDBObject document : documents ) {
+        try {
+          storage.process(collectionName, document);
+        } catch ( MongoException e ) {
+          failures.add(e);
+        }
+      }
+    }
+    int failureCount = 0;
+    for ( MongoException failure : failures ) {
+      String theMessage = failure.getMessage();
+      if ( failure instanceof MongoInternalException && theMessage != null &&
+          theMessage.contains("is over Max BSON size") ) {
+        log.error("Mongo Internal exception during storage on producer code: "+
+            producerCode+ " / Message size is over MongoDB limit - the document will be dropped!");
+      } else {
+        failureCount++;
+        log.error("Mongo exception during storage on producer code: "+
+            producerCode+ " / "+theMessage);
+      }
+    }
+    if ( failureCount > 0 ) {
+      log.error(failureCount+" of "+documents.size()+
+          " documents in envelope failed on producer code: "+producerCode);
+    }
+    return failureCount == 0;
+  }
  
+  /** return the ratio and CPU time of the decompression of
+   * compressed payloads. */
+  public CompressionStatistics getDecompressionStatistics() {
+    return decompressionStatistics;
+  }
+
   public StatisticHandler getStatistic() {
     return statisticHandler;
   }
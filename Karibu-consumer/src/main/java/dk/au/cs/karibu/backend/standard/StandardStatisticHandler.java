@@ -18,59 +18,147 @@ package dk.au.cs.karibu.backend.standard;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.mongodb.BasicDBObject;
 
 import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.common.Histogram;
 
 /* The standard implementation of the StatisticsHandler
  * role. Must be configured with proper storage and
  * strategy to create time stamps.
+ * 
+ * It is thread safe, as messages may be received by
+ * several processing workers while statistics are
+ * flushed by a timer and read by the JMX monitor.
+ * 
+ * notifyReceive() takes no locks: the statistics of the
+ * current chunk are held in an epoch of striped counters,
+ * and a flush swaps in a fresh epoch and waits until the
+ * notifications that started on the old one have ended,
+ * before the old one is stored. Thus the flushed numbers
+ * of a chunk are consistent, and no notification is lost.
+ * 
+ * The latency histograms of the stages of the processing are
+ * flushed with the chunk, as a list under 'StageLatencyList'.
+ * 
+ * The payload sizes of each producer code are recorded in a
+ * histogram, and flushed with its statistics as percentiles
+ * and as a list of counts per power of two ('SizeBuckets'),
+ * along with the count of payloads larger than half of the
+ * max BSON document size ('LargeCount'), as such producers
+ * are at risk of having their messages dropped.
+ * 
+ * Every notification is also recorded in the rolling windows
+ * of the throughput, which are not reset by a flush.
  */
 
 public class StandardStatisticHandler implements StatisticHandler {
 
-  private class ProducerCodeStat {
-    public int countMsg;
-    public long totalSize;
+  /** payloads above this size are counted as large; it is half
+   * of the max size of a MongoDB document. */
+  public static final long LARGE_PAYLOAD_BYTES = 8L * 1024 * 1024;
+
+  // the smallest power of two a size bucket is reported for
+  private static final int SMALLEST_SIZE_BUCKET_BITS = 4;
+
+  private static class ProducerCodeStat {
+    final StripedCounter countMsg = new StripedCounter();
+    final StripedCounter totalSize = new StripedCounter();
+    final StripedCounter largeCount = new StripedCounter();
+    final Histogram sizes = new Histogram();
+  }
+
+  private static class MaxChunk {
+    final String producerCode;
+    final long size;
+    MaxChunk(String producerCode, long size) {
+      this.producerCode = producerCode;
+      this.size = size;
+    }
+  }
+
+  /** The statistics of one chunk of time. */
+  private static class Epoch {
+    final Date startTimestamp;
+    final String daemonIP;
+    final StripedCounter totalCountMsg = new StripedCounter();
+    final StripedCounter totalBytesSent = new StripedCounter();
+    final AtomicReference<MaxChunk> maxChunk = 
+        new AtomicReference<MaxChunk>(new MaxChunk("", 0L));
+    final ConcurrentMap<String,ProducerCodeStat> codeMap = 
+        new ConcurrentHashMap<String,ProducerCodeStat>(50);
+    // notifications that have started and ended on this epoch
+    final StripedCounter entered = new StripedCounter();
+    final StripedCounter exited = new StripedCounter();
+
+    Epoch(Date startTimestamp, String daemonIP) {
+      this.startTimestamp = startTimestamp;
+      this.daemonIP = daemonIP;
+    }
+
+    boolean isQuiescent() {
+      // exits are read before entries, cell by cell
+      return exited.balances(entered);
+    }
   }
 
   private StatisticStorageStrategy storage;
   private TimestampStrategy timestampStrategy;
 
-  private long maxChunkSize;
-  private long totalBytesSent;
-  private long totalCountMsg;
-  private String maxChunkProducerCode;
-  
-  private Date startTimestamp, endTimestamp;
-
-  private Map<String,ProducerCodeStat> codeMap;
-  
-  private String daemonIP;
+  private volatile Epoch current;
+  private final LatencyHistograms latencies;
+  private final ThroughputWindows throughput;
+  private volatile Date endTimestamp;
   
   public StandardStatisticHandler(StatisticStorageStrategy storage, TimestampStrategy timestampStrategy) {
     this.storage = storage;
     this.timestampStrategy = timestampStrategy;
+    latencies = new LatencyHistograms();
+    throughput = new ThroughputWindows();
     
-    startNewRecording();
+    current = startNewRecording(timestampStrategy.getNow());
   }
 
   @Override
   public void notifyReceive(String producerCode, long countOfBytes) {
-    totalCountMsg++;
-    totalBytesSent += countOfBytes;
-    if ( countOfBytes >= maxChunkSize ) {
-      maxChunkProducerCode = producerCode;
-      maxChunkSize = countOfBytes;
+    throughput.record(producerCode, countOfBytes);
+    Epoch epoch = current;
+    epoch.entered.increment();
+    // a flush may have swapped the epoch before we entered it
+    while ( epoch != current ) {
+      epoch.exited.increment();
+      epoch = current;
+      epoch.entered.increment();
     }
-    ProducerCodeStat pcs = codeMap.get(producerCode);
-    if ( pcs == null ) {
-      pcs = new ProducerCodeStat();
-      codeMap.put(producerCode, pcs);
+    try {
+      epoch.totalCountMsg.increment();
+      epoch.totalBytesSent.add(countOfBytes);
+      MaxChunk max = epoch.maxChunk.get();
+      while ( countOfBytes > max.size || 
+          ( countOfBytes == max.size && ! producerCode.equals(max.producerCode) ) ) {
+        if ( epoch.maxChunk.compareAndSet(max, new MaxChunk(producerCode, countOfBytes)) ) {
+          break;
+        }
+        max = epoch.maxChunk.get();
+      }
+      ProducerCodeStat pcs = epoch.codeMap.get(producerCode);
+      if ( pcs == null ) {
+        ProducerCodeStat created = new ProducerCodeStat();
+        pcs = epoch.codeMap.putIfAbsent(producerCode, created);
+        if ( pcs == null ) { pcs = created; }
+      }
+      pcs.countMsg.increment();
+      pcs.totalSize.add(countOfBytes);
+      pcs.sizes.record(countOfBytes);
+      if ( countOfBytes > LARGE_PAYLOAD_BYTES ) {
+        pcs.largeCount.increment();
+      }
+    } finally {
+      epoch.exited.increment();
     }
-    pcs.countMsg++;
-    pcs.totalSize += countOfBytes;
   }
 
   @Override
@@ -78,47 +166,67 @@ public class StandardStatisticHandler implements StatisticHandler {
     // Create total statistics
     BasicDBObject dbo;
     
-    dbo = buildBSONRepresentation();
-    
-    // and reset the timestamp
-    startNewRecording();
+    synchronized (this) {
+      // swap in a new epoch starting when the old one ends
+      Date now = timestampStrategy.getNow();
+      Epoch old = current;
+      current = startNewRecording(now);
+      while ( ! old.isQuiescent() ) {
+        Thread.yield();
+      }
+      endTimestamp = now;
+      dbo = buildBSONRepresentation(old, now);
+      dbo.put("StageLatencyList", latencies.drain());
+    }
     
     storage.store( dbo );  
   }
 
   public String toString() {
-    return buildBSONRepresentation().toString();
+    BasicDBObject dbo = buildBSONRepresentation(current, timestampStrategy.getNow());
+    dbo.put("StageLatencyList", latencies.toBSON());
+    return dbo.toString();
   }
   
-  private BasicDBObject buildBSONRepresentation() {
+  private BasicDBObject buildBSONRepresentation(Epoch epoch, Date end) {
     BasicDBObject dbo;
     dbo = new BasicDBObject();
     
-    dbo.put("DaemonIP", daemonIP);
+    dbo.put("DaemonIP", epoch.daemonIP);
     
-    dbo.put("MaxChunkProducerCode", maxChunkProducerCode);
-    dbo.put("MaxChunkSize",  maxChunkSize);
+    MaxChunk max = epoch.maxChunk.get();
+    dbo.put("MaxChunkProducerCode", max.producerCode);
+    dbo.put("MaxChunkSize",  max.size);
     
-    dbo.put("TotalBytesSent", totalBytesSent);
-    dbo.put("TotalCountMsg", totalCountMsg);
+    dbo.put("TotalBytesSent", epoch.totalBytesSent.sum());
+    dbo.put("TotalCountMsg", epoch.totalCountMsg.sum());
     
     // Statistics on each producer code
     ArrayList<BasicDBObject> listStatOnEachCode = new ArrayList<BasicDBObject>();
-    for( String key : codeMap.keySet() ) {
-      ProducerCodeStat pcs = codeMap.get(key);
-      BasicDBObject item = fillProducerStats( key, pcs.countMsg, pcs.totalSize );
+    for( Map.Entry<String,ProducerCodeStat> entry : codesInHashOrder(epoch).entrySet() ) {
+      ProducerCodeStat pcs = entry.getValue();
+      BasicDBObject item = fillProducerStats( entry.getKey(), pcs.countMsg.sum(), 
+          pcs.totalSize.sum() );
+      fillSizeStats(item, pcs);
       listStatOnEachCode.add(item);
     }
     dbo.put("CodeStatList", listStatOnEachCode);
     // time stamps
-    dbo.put("StartTimestamp", startTimestamp);
-    endTimestamp = timestampStrategy.getNow();
-    dbo.put("EndTimestamp", endTimestamp);
+    dbo.put("StartTimestamp", epoch.startTimestamp);
+    dbo.put("EndTimestamp", end);
     
-    dbo.put("ChunkTimeInMs", endTimestamp.getTime() - startTimestamp.getTime());
+    dbo.put("ChunkTimeInMs", end.getTime() - epoch.startTimestamp.getTime());
     return dbo;
   }
 
+  // the producer codes in the order of a HashMap, as they
+  // have always been listed
+  private Map<String,ProducerCodeStat> codesInHashOrder(Epoch epoch) {
+    Map<String,ProducerCodeStat> codes = new HashMap<String,ProducerCodeStat>(50);
+    codes.putAll(epoch.codeMap);
+    return codes;
+  }
+
   private BasicDBObject fillProducerStats(String producerCode, 
       long countOfMsg, long totalSizeBytes) {
     BasicDBObject valueItem;
@@ -129,46 +237,75 @@ public class StandardStatisticHandler implements StatisticHandler {
     return valueItem;
   }
 
-  private void startNewRecording() {
-    maxChunkSize = 0L;
-    maxChunkProducerCode = "";
-    
-    totalBytesSent = 0L;
-    totalCountMsg = 0L;
-    
+  private void fillSizeStats(BasicDBObject item, ProducerCodeStat pcs) {
+    Histogram sizes = pcs.sizes;
+    item.put("SizeP50Bytes", sizes.getValueAtPercentile(50));
+    item.put("SizeP90Bytes", sizes.getValueAtPercentile(90));
+    item.put("SizeP99Bytes", sizes.getValueAtPercentile(99));
+    item.put("SizeMaxBytes", sizes.getMax());
+    item.put("LargeCount", pcs.largeCount.sum());
+    // the count of sizes below each power of two, from 16
+    // bytes, leaving out empty buckets
+    ArrayList<BasicDBObject> buckets = new ArrayList<BasicDBObject>();
+    long total = sizes.getCount();
+    long below = 0;
+    for ( int bits = SMALLEST_SIZE_BUCKET_BITS; bits < 63 && below < total; bits++ ) {
+      long limit = 1L << bits;
+      long count = sizes.getCountAtOrBelow(limit - 1);
+      if ( count > below ) {
+        BasicDBObject bucket = new BasicDBObject();
+        bucket.put("BelowBytes", limit);
+        bucket.put("Count", count - below);
+        buckets.add(bucket);
+        below = count;
+      }
+    }
+    item.put("SizeBuckets", buckets);
+  }
+
+  private Epoch startNewRecording(Date startTimestamp) {
+    String daemonIP;
     try {
       daemonIP = Inet4Address.getLocalHost().getCanonicalHostName();
     } catch (UnknownHostException e) {
       daemonIP = "Undefined";
     }
-    
-    codeMap = new HashMap<String,ProducerCodeStat>(50);
-    startTimestamp = timestampStrategy.getNow();
+    return new Epoch(startTimestamp, daemonIP);
+  }
+
+  @Override
+  public LatencyHistograms getLatencyHistograms() {
+    return latencies;
+  }
+
+  @Override
+  public ThroughputWindows getThroughputWindows() {
+    return throughput;
   }
 
   @Override
   public long getMaxChunkSize() {
-    return maxChunkSize;
+    return current.maxChunk.get().size;
   }
 
   @Override
   public long getTotalBytesSent() {
-    return totalBytesSent;
+    return current.totalBytesSent.sum();
   }
 
   @Override
   public long getTotalCountMsg() {
-    return totalCountMsg;
+    return current.totalCountMsg.sum();
   }
 
   @Override
   public String getMaxChunkProducerCode() {
-    return maxChunkProducerCode;
+    return current.maxChunk.get().producerCode;
   }
 
   @Override
   public Date getStartTimestamp() {
-    return startTimestamp;
+    return current.startTimestamp;
   }
 
   @Override
@@ -178,7 +315,7 @@ public class StandardStatisticHandler implements StatisticHandler {
 
   @Override
   public String getDaemonIP() {
-    return daemonIP;
+    return current.daemonIP;
   }
 
   /** return a human readable string containing information 
@@ -186,13 +323,31 @@ public class StandardStatisticHandler implements StatisticHandler {
    */ 
   @Override
   public String getStatusAsString() { 
+    Epoch epoch = current;
     String result = new String(); 
-    result += "Total count: "+ getTotalCountMsg()+""; 
-    result += " Total KB: "+ (getTotalBytesSent()/1024)+""; 
-    for ( String key : codeMap.keySet() ) { 
-      result += "  "+ key+ " : "+ codeMap.get(key).countMsg; 
+    result += "Total count: "+ epoch.totalCountMsg.sum()+""; 
+    result += " Total KB: "+ (epoch.totalBytesSent.sum()/1024)+""; 
+    for ( Map.Entry<String,ProducerCodeStat> entry : codesInHashOrder(epoch).entrySet() ) { 
+      result += "  "+ entry.getKey()+ " : "+ entry.getValue().countMsg.sum(); 
     } 
     return result; 
   }
 
+  /** return a line per producer code with the percentiles of
+   * its payload sizes in bytes, and the count of large ones.
+   */
+  @Override
+  public String getPayloadSizeStatus() {
+    Epoch epoch = current;
+    StringBuilder sb = new StringBuilder();
+    Map<String,ProducerCodeStat> codes = new TreeMap<String,ProducerCodeStat>(epoch.codeMap);
+    for ( Map.Entry<String,ProducerCodeStat> entry : codes.entrySet() ) {
+      if ( sb.length() > 0 ) { sb.append("; "); }
+      sb.append(entry.getKey()).append(": ");
+      sb.append(entry.getValue().sizes.toString(1, "B"));
+      sb.append(" large=").append(entry.getValue().largeCount.sum());
+    }
+    return sb.length() == 0 ? "No payloads received" : sb.toString();
+  }
+
 }
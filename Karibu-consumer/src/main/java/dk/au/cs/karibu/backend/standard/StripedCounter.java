@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.backend.standard;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A counter that many threads may add to without contending,
+ * in the style of Java 8's LongAdder: every thread adds to one
+ * of several cells, chosen by its thread id, and the sum is
+ * found by adding up the cells. The cells are spread over an
+ * array so that two of them do not share a cache line.
+ *
+ * The sum is exact when no adds are in progress.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+class StripedCounter {
+
+  // longs between two cells, a 64 byte cache line
+  private static final int SPACING = 8;
+  private static final int STRIPES;
+  static {
+    int stripes = 1;
+    int processors = Runtime.getRuntime().availableProcessors();
+    while ( stripes < processors && stripes < 64 ) { stripes <<= 1; }
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells;
+
+  StripedCounter() {
+    cells = new AtomicLongArray(STRIPES * SPACING);
+  }
+
+  void add(long value) {
+    cells.addAndGet(cellOfCurrentThread(), value);
+  }
+
+  void increment() {
+    add(1);
+  }
+
+  long sum() {
+    long sum = 0;
+    for ( int i = 0; i < STRIPES; i++ ) {
+      sum += cells.get(i * SPACING);
+    }
+    return sum;
+  }
+
+  /** return true if every cell of this counter equals the
+   * same cell of the other, that is, the threads have added
+   * the same to both. */
+  boolean balances(StripedCounter other) {
+    for ( int i = 0; i < STRIPES; i++ ) {
+      if ( cells.get(i * SPACING) != other.cells.get(i * SPACING) ) { return false; }
+    }
+    return true;
+  }
+
+  private static int cellOfCurrentThread() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & (STRIPES - 1)) * SPACING;
+  }
+}
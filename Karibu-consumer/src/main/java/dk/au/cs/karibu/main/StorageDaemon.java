@@ -16,13 +16,16 @@
 
 package dk.au.cs.karibu.main; 
 
+import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.*;
 
+import org.apache.commons.lang.exception.ExceptionUtils;
 import org.slf4j.*;
 
 import dk.au.cs.karibu.backend.*;
 import dk.au.cs.karibu.backend.standard.*;
+import dk.au.cs.karibu.monitor.MetricsHttpServer;
 import dk.au.cs.karibu.utilities.PropertyReader;
 
 /** Main program for the default Karibu backend
@@ -41,6 +44,16 @@ import dk.au.cs.karibu.utilities.PropertyReader;
  */ 
 public class StorageDaemon {
   
+  /** the property of the optional daemon properties that
+   * defines the interval between flushes of the statistics */
+  public static final String STATISTIC_FLUSH_INTERVAL_PROPERTY = "statisticFlushIntervalInSeconds";
+  /** default interval between flushes of the statistics */
+  public static final long DEFAULT_STATISTIC_FLUSH_INTERVAL_IN_SECONDS = 3600L;
+  /** the property of the optional daemon properties that
+   * defines the port of the HTTP metrics endpoint; if not
+   * defined, no metrics are served over HTTP */
+  public static final String METRICS_HTTP_PORT_PROPERTY = "metricsHttpPort";
+
 	/**
 	 * @param args 
 	 * @throws InterruptedException
@@ -54,7 +67,8 @@ public class StorageDaemon {
           "1st parameter defines if output is to MongoDB, or monitored to MongoDB." +
           "The <resource root folder> should point to the " +
           "root folder containing three properties file to be used " +
-          "for configuring the exchange, queue, and mongo properties." +
+          "for configuring the exchange, queue, and mongo properties," +
+          " and optionally the deserializers and daemon properties." +
           " Example: StorageDaemon mongo resource/hbc-lab." +
           " NB: Use the unix convention of using /."
           );
@@ -87,6 +101,12 @@ public class StorageDaemon {
     Properties queueProperties = rr.readPropertiesFailFast("queue");
 
     Properties mongoProperties = rr.readPropertiesFailFast("mongo");
+    // optional declarations of deserializers
+    Properties deserializerProperties = rr.readPropertiesIfPresent("deserializers");
+    // optional settings of the daemon itself
+    Properties daemonProperties = rr.readPropertiesIfPresent("daemon");
+    long flushIntervalInSeconds = readStatisticFlushInterval(daemonProperties);
+    int metricsPort = readMetricsHttpPort(daemonProperties);
     
     // Create the builder object and configure it according to
     // the given parameters on the command line
@@ -100,6 +120,9 @@ public class StorageDaemon {
     if ( useMonitoring ) {
       theBuilder = theBuilder.monitorAndOutputStatisticsInInterval(50);
     }
+    if ( deserializerProperties != null ) {
+      theBuilder = theBuilder.deserializerProperties(deserializerProperties);
+    }
 
     // Let the builder create the message end point
     MessageReceiverEndpoint messageReceiverEndpoint;
@@ -107,11 +130,25 @@ public class StorageDaemon {
         build();
     
     // Create the timer for pushing stats into the DB
+    logger.info("Statistics flushed every "+flushIntervalInSeconds+" seconds.");
     Timer statTimer = new Timer();
     statTimer.schedule( new FlushStatisticsTask(messageReceiverEndpoint), 
-        3600 * 1000L, 3600 * 1000L);
+        flushIntervalInSeconds * 1000L, flushIntervalInSeconds * 1000L);
     // No need to install shutdown hook, as the timer
     // will be removed when JVM is shut down.
+
+    // Serve the metrics over HTTP if a port is configured
+    if ( metricsPort > 0 ) {
+      MetricsHttpServer metrics = new MetricsHttpServer(messageReceiverEndpoint,
+          metricsPort, MetricsHttpServer.DEFAULT_REFRESH_INTERVAL_MS, logger);
+      try {
+        metrics.start();
+      } catch (IOException e) {
+        String theTrace = ExceptionUtils.getStackTrace(e);
+        logger.error("Metrics HTTP endpoint could not start on port "+
+            metricsPort+": "+theTrace);
+      }
+    }
         
     // and finally the daemon to handle polling from the
     // queue and processing it.
@@ -121,6 +158,54 @@ public class StorageDaemon {
 	  daemon.startAndJoin();
 	} 
 
+  /** Read the interval between flushes of the statistics.
+   * @param daemonProperties the daemon properties, or null
+   * if there are none
+   * @return the interval in seconds
+   */
+  static long readStatisticFlushInterval(Properties daemonProperties) {
+    if ( daemonProperties == null ) {
+      return DEFAULT_STATISTIC_FLUSH_INTERVAL_IN_SECONDS;
+    }
+    String value = daemonProperties.getProperty(STATISTIC_FLUSH_INTERVAL_PROPERTY);
+    if ( value == null ) {
+      return DEFAULT_STATISTIC_FLUSH_INTERVAL_IN_SECONDS;
+    }
+    long interval;
+    try {
+      interval = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      interval = 0;
+    }
+    if ( interval < 1 ) {
+      throw new RuntimeException("StorageDaemon configuration error: "+
+          STATISTIC_FLUSH_INTERVAL_PROPERTY+" must be a positive number of seconds, was: "+value);
+    }
+    return interval;
+  }
+
+  /** Read the port of the HTTP metrics endpoint.
+   * @param daemonProperties the daemon properties, or null
+   * if there are none
+   * @return the port, or -1 if no metrics are to be served
+   */
+  static int readMetricsHttpPort(Properties daemonProperties) {
+    if ( daemonProperties == null ) { return -1; }
+    String value = daemonProperties.getProperty(METRICS_HTTP_PORT_PROPERTY);
+    if ( value == null ) { return -1; }
+    int port;
+    try {
+      port = Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      port = 0;
+    }
+    if ( port < 1 || port > 65535 ) {
+      throw new RuntimeException("StorageDaemon configuration error: "+
+          METRICS_HTTP_PORT_PROPERTY+" must be a port number between 1 and 65535, was: "+value);
+    }
+    return port;
+  }
+
 } 
 
 class FlushStatisticsTask extends TimerTask {
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.monitor;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.sun.net.httpserver.*;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.backend.LatencyHistograms.Stage;
+import dk.au.cs.karibu.backend.ThroughputWindows.Window;
+import dk.au.cs.karibu.serialization.CompressionStatistics;
+
+/** An embedded HTTP listener, using the JDK's built in server,
+ * that exposes the metrics of a message receiver endpoint in
+ * the Prometheus text exposition format, for monitoring
+ * systems that cannot scrape JMX.
+ * 
+ * The metrics are rendered by a timer into a snapshot at a
+ * fixed interval, and a scrape just writes the latest
+ * snapshot; thus scrapes never touch the statistics that
+ * the processing updates, however often they come. The
+ * metrics are served on /metrics, by a single thread.
+ * 
+ * The chunk metrics are those of the statistics since the
+ * last flush; the rates and latencies are labeled with the
+ * producer code. The rates of all codes together are separate
+ * metrics, so summing the labeled series does not count any
+ * message twice. Only the producer codes that ThroughputWindows
+ * keeps rates for, which are bounded in number and recently
+ * active, are labeled, so garbage codes cannot create unbounded
+ * series.
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class MetricsHttpServer {
+
+  /** the path the metrics are served on */
+  public static final String CONTEXT_PATH = "/metrics";
+  /** default time between renderings of the snapshot */
+  public static final long DEFAULT_REFRESH_INTERVAL_MS = 5000L;
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final MessageReceiverEndpoint mre;
+  private final MonitoringMBean monitor;
+  private final int port;
+  private final long refreshIntervalMs;
+  private final Logger log;
+
+  private volatile byte[] snapshot;
+  private HttpServer server;
+  private ExecutorService serverThread;
+  private Timer refreshTimer;
+
+  /** Create the listener; it is not started.
+   * @param mre the endpoint to expose the metrics of
+   * @param port the port to listen on; 0 picks a free port
+   * @param refreshIntervalMs the time between renderings
+   * of the snapshot
+   * @param log the logger
+   */
+  public MetricsHttpServer(MessageReceiverEndpoint mre, int port,
+      long refreshIntervalMs, Logger log) {
+    this.mre = mre;
+    this.monitor = new Monitoring(mre);
+    this.port = port;
+    this.refreshIntervalMs = refreshIntervalMs;
+    this.log = log;
+    snapshot = new byte[0];
+  }
+
+  /** Render the first snapshot, and start listening and
+   * refreshing the snapshot. */
+  public synchronized void start() throws IOException {
+    if ( server != null ) { return; }
+    refresh();
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(CONTEXT_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    serverThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MetricsHttpServer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    server.setExecutor(serverThread);
+    server.start();
+
+    refreshTimer = new Timer("MetricsSnapshot", true);
+    refreshTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          String theTrace = ExceptionUtils.getStackTrace(e);
+          log.error("Exception when rendering metrics: "+theTrace);
+        }
+      }
+    }, refreshIntervalMs, refreshIntervalMs);
+    log.info("Metrics served on port "+getPort()+CONTEXT_PATH+
+        ", refreshed every "+refreshIntervalMs+" ms");
+  }
+
+  /** Stop listening and refreshing. */
+  public synchronized void stop() {
+    if ( server == null ) { return; }
+    refreshTimer.cancel();
+    server.stop(0);
+    serverThread.shutdown();
+    server = null;
+  }
+
+  /** return the port listened on, or -1 if not started. */
+  public synchronized int getPort() {
+    return server == null ? -1 : server.getAddress().getPort();
+  }
+
+  /** Render the metrics into a new snapshot. */
+  public void refresh() {
+    try {
+      snapshot = render().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // UTF-8 is always supported
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** return the latest snapshot of the metrics. */
+  public byte[] getSnapshot() {
+    return snapshot;
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod();
+      if ( ! "GET".equals(method) && ! "HEAD".equals(method) ) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = snapshot;
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      if ( "HEAD".equals(method) ) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private String render() {
+    StringBuilder sb = new StringBuilder();
+    StatisticHandler statistic = mre.getStatistic();
+
+    header(sb, "karibu_chunk_messages", "gauge", 
+        "Messages received since the statistics were last flushed.");
+    sample(sb, "karibu_chunk_messages", "", statistic.getTotalCountMsg());
+    header(sb, "karibu_chunk_bytes", "gauge", 
+        "Bytes received since the statistics were last flushed.");
+    sample(sb, "karibu_chunk_bytes", "", statistic.getTotalBytesSent());
+    header(sb, "karibu_chunk_max_message_bytes", "gauge", 
+        "Size of the largest message since the statistics were last flushed.");
+    sample(sb, "karibu_chunk_max_message_bytes", "", statistic.getMaxChunkSize());
+
+    List<String> codes = statistic.getThroughputWindows().getProducerCodes();
+    renderThroughput(sb, statistic.getThroughputWindows(), codes);
+    renderLatencies(sb, statistic.getLatencyHistograms(), new HashSet<String>(codes));
+
+    header(sb, "karibu_consumer_buffer_messages", "gauge", 
+        "Messages buffered by the polling consumer, -1 if it does not buffer.");
+    sample(sb, "karibu_consumer_buffer_messages", "", mre.getConsumerBufferDepth());
+    header(sb, "karibu_in_flight_messages", "gauge", 
+        "Messages handed to the processing threads, -1 if single threaded.");
+    sample(sb, "karibu_in_flight_messages", "", mre.getInFlightCount());
+    header(sb, "karibu_max_in_flight_messages", "gauge", 
+        "Max messages handed to the processing threads, -1 if single threaded.");
+    sample(sb, "karibu_max_in_flight_messages", "", mre.getMaxInFlight());
+    header(sb, "karibu_flow_control_limit", "gauge", 
+        "Current flow control limits, -1 if not defined.");
+    sample(sb, "karibu_flow_control_limit", label("limit", "prefetch"), monitor.getPrefetchCount());
+    sample(sb, "karibu_flow_control_limit", label("limit", "insertBatch"), monitor.getInsertBatchSize());
+
+    CompressionStatistics compression = mre.getDecompressionStatistics();
+    header(sb, "karibu_decompressed_messages_total", "counter", 
+        "Compressed messages received.");
+    sample(sb, "karibu_decompressed_messages_total", "", compression.getCompressedCount());
+    header(sb, "karibu_decompressed_bytes_total", "counter", 
+        "Bytes of the compressed messages after decompression.");
+    sample(sb, "karibu_decompressed_bytes_total", "", compression.getOriginalBytes());
+    return sb.toString();
+  }
+
+  private void renderThroughput(StringBuilder sb, ThroughputWindows throughput,
+      List<String> codes) {
+    String total = ThroughputWindows.TOTAL;
+    header(sb, "karibu_total_messages_per_second", "gauge", 
+        "Messages of all producer codes received per second over the window.");
+    for ( Window window : Window.values() ) {
+      sample(sb, "karibu_total_messages_per_second", label("window", window.getLabel()), 
+          throughput.getMessageRate(total, window));
+    }
+    header(sb, "karibu_total_bytes_per_second", "gauge", 
+        "Bytes of all producer codes received per second over the window.");
+    for ( Window window : Window.values() ) {
+      sample(sb, "karibu_total_bytes_per_second", label("window", window.getLabel()), 
+          throughput.getByteRate(total, window));
+    }
+
+    header(sb, "karibu_messages_per_second", "gauge", 
+        "Messages received per second over the window.");
+    for ( String code : codes ) {
+      if ( total.equals(code) ) { continue; }
+      for ( Window window : Window.values() ) {
+        sample(sb, "karibu_messages_per_second", rateLabels(code, window), 
+            throughput.getMessageRate(code, window));
+      }
+    }
+    header(sb, "karibu_bytes_per_second", "gauge", 
+        "Bytes received per second over the window.");
+    for ( String code : codes ) {
+      if ( total.equals(code) ) { continue; }
+      for ( Window window : Window.values() ) {
+        sample(sb, "karibu_bytes_per_second", rateLabels(code, window), 
+            throughput.getByteRate(code, window));
+      }
+    }
+  }
+
+  private void renderLatencies(StringBuilder sb, LatencyHistograms latencies,
+      Set<String> codes) {
+    List<BasicDBObject> items = latencies.toBSON();
+    header(sb, "karibu_stage_latency_seconds", "summary", 
+        "Latency of the stages of processing since the statistics were last flushed.");
+    for ( BasicDBObject item : items ) {
+      String code = item.getString("ProducerCode");
+      if ( ! codes.contains(code) ) { continue; }
+      for ( Stage stage : Stage.values() ) {
+        BasicDBObject percentiles = (BasicDBObject) item.get(stage.getLabel());
+        String labels = label("producer_code", code)+","+label("stage", stage.getLabel());
+        sample(sb, "karibu_stage_latency_seconds", labels+","+label("quantile", "0.5"),
+            percentiles.getDouble("P50Ms") / 1000);
+        sample(sb, "karibu_stage_latency_seconds", labels+","+label("quantile", "0.99"),
+            percentiles.getDouble("P99Ms") / 1000);
+        sample(sb, "karibu_stage_latency_seconds", labels+","+label("quantile", "0.999"),
+            percentiles.getDouble("P999Ms") / 1000);
+        sample(sb, "karibu_stage_latency_seconds", labels+","+label("quantile", "1"),
+            percentiles.getDouble("MaxMs") / 1000);
+        sample(sb, "karibu_stage_latency_seconds_sum", labels, 
+            percentiles.getDouble("SumMs") / 1000);
+        sample(sb, "karibu_stage_latency_seconds_count", labels, 
+            percentiles.getLong("Count"));
+      }
+    }
+  }
+
+  private static String rateLabels(String code, Window window) {
+    return label("producer_code", code)+","+label("window", window.getLabel());
+  }
+
+  private static void header(StringBuilder sb, String name, String type, String help) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder sb, String name, String labels, double value) {
+    sb.append(name);
+    if ( labels.length() > 0 ) {
+      sb.append('{').append(labels).append('}');
+    }
+    sb.append(' ');
+    if ( value == Math.rint(value) && Math.abs(value) < 1e15 ) {
+      sb.append((long) value);
+    } else {
+      sb.append(value);
+    }
+    sb.append('\n');
+  }
+
+  private static String label(String name, String value) {
+    String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    return name+"=\""+escaped+"\"";
+  }
+}
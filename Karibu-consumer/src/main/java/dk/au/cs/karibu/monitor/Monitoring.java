@@ -16,7 +16,8 @@
  
 package dk.au.cs.karibu.monitor; 
  
-import dk.au.cs.karibu.backend.MessageReceiverEndpoint;
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.backend.standard.AdaptiveFlowController;
  
 /** Implementation of the JMX storage daemon monitoring.
  *  
@@ -42,10 +43,90 @@ public class Monitoring implements MonitoringMBean {
     messageReceiverEndpoint.stopReceiving(); 
   } 
  
+  @Override
+  public int doInvalidateUnknownProducerCodes() {
+    return messageReceiverEndpoint.invalidateUnknownProducerCodes();
+  }
+
   @Override 
   public String getRequestHandlerStatus() { 
     String status = messageReceiverEndpoint.getStatistic().getStatusAsString();
     return status; 
   } 
+
+  @Override
+  public String getStageStatus() {
+    return messageReceiverEndpoint.getStageStatus();
+  }
+
+  @Override
+  public String getLatencyStatus() {
+    return messageReceiverEndpoint.getLatencyStatus();
+  }
+
+  @Override
+  public String getPayloadSizeStatus() {
+    return messageReceiverEndpoint.getStatistic().getPayloadSizeStatus();
+  }
+
+  @Override
+  public String getThroughputStatus() {
+    return messageReceiverEndpoint.getThroughputStatus();
+  }
+
+  @Override
+  public double getMessagesPerSecondLastMinute() {
+    return messageReceiverEndpoint.getStatistic().getThroughputWindows().
+        getMessageRate(ThroughputWindows.TOTAL, ThroughputWindows.Window.MINUTE);
+  }
+
+  @Override
+  public int getConsumerBufferDepth() {
+    return messageReceiverEndpoint.getConsumerBufferDepth();
+  }
+
+  @Override
+  public String getDecompressionStatus() {
+    return messageReceiverEndpoint.getDecompressionStatistics().toString();
+  }
+
+  @Override
+  public String getFlowControlStatus() {
+    AdaptiveFlowController controller = messageReceiverEndpoint.getFlowController();
+    if ( controller == null ) { return "Flow control fixed"; }
+    return controller.toString();
+  }
+
+  @Override
+  public boolean isAdaptiveFlowControlEnabled() {
+    AdaptiveFlowController controller = messageReceiverEndpoint.getFlowController();
+    return controller != null && controller.isEnabled();
+  }
+
+  @Override
+  public void setAdaptiveFlowControlEnabled(boolean enabled) {
+    AdaptiveFlowController controller = messageReceiverEndpoint.getFlowController();
+    if ( controller != null ) { controller.setEnabled(enabled); }
+  }
+
+  @Override
+  public int getPrefetchCount() {
+    return messageReceiverEndpoint.getFlowControlLimit(MessageReceiverEndpointFactory.PREFETCH_COUNT);
+  }
+
+  @Override
+  public void setPrefetchCount(int prefetchCount) {
+    messageReceiverEndpoint.setFlowControlLimit(MessageReceiverEndpointFactory.PREFETCH_COUNT, prefetchCount);
+  }
+
+  @Override
+  public int getInsertBatchSize() {
+    return messageReceiverEndpoint.getFlowControlLimit(MessageReceiverEndpointFactory.INSERT_BATCH_SIZE);
+  }
+
+  @Override
+  public void setInsertBatchSize(int batchSize) {
+    messageReceiverEndpoint.setFlowControlLimit(MessageReceiverEndpointFactory.INSERT_BATCH_SIZE, batchSize);
+  }
  
 } 
@@ -27,6 +27,36 @@ public interface MonitoringMBean {
   public long getProcessedMessageCount(); 
    
   public String getRequestHandlerStatus(); 
+
+  public String getStageStatus();
+
+  public String getLatencyStatus();
+
+  public String getPayloadSizeStatus();
+
+  public String getThroughputStatus();
+
+  public double getMessagesPerSecondLastMinute();
+
+  public int getConsumerBufferDepth();
+
+  public String getDecompressionStatus();
+
+  public String getFlowControlStatus();
+
+  public boolean isAdaptiveFlowControlEnabled();
+
+  public void setAdaptiveFlowControlEnabled(boolean enabled);
+
+  public int getPrefetchCount();
+
+  public void setPrefetchCount(int prefetchCount);
+
+  public int getInsertBatchSize();
+
+  public void setInsertBatchSize(int batchSize);
    
+  public int doInvalidateUnknownProducerCodes();
+
   public void doShutDown(); 
 } 
@@ -15,6 +15,8 @@
  */ 
 package dk.au.cs.karibu.testdoubles;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.mongodb.BasicDBObject;
 
 import dk.au.cs.karibu.backend.ProcessingStrategy;
@@ -29,7 +31,7 @@ import dk.au.cs.karibu.backend.ProcessingStrategy;
 public class MonitoringStorageDecorator implements ProcessingStrategy {
 
   private ProcessingStrategy decoratee;
-  private long myCount;
+  private AtomicLong myCount;
   private int intervalBetweenOutput;
   
   public MonitoringStorageDecorator(ProcessingStrategy inner, int outputInterval) {
@@ -37,15 +39,15 @@ public class MonitoringStorageDecorator implements ProcessingStrategy {
     System.out.println( "*** Monitoring Storage Started with interval "+
         intervalBetweenOutput+" ***");
     decoratee = inner;
-    myCount = 0L;
+    myCount = new AtomicLong();
   }
 
   @Override
   public void process(String collectionName, BasicDBObject dbo) {
     decoratee.process(collectionName, dbo);
-    myCount++;
-    if ( myCount % intervalBetweenOutput == 0 ) {
-      System.out.println("Msg # "+myCount+ " [for collection "+collectionName+"]");
+    long count = myCount.incrementAndGet();
+    if ( count % intervalBetweenOutput == 0 ) {
+      System.out.println("Msg # "+count+ " [for collection "+collectionName+"]");
     }
   }  
   public String toString() {
@@ -17,10 +17,13 @@ package dk.au.cs.karibu.testdoubles;
 
 import java.util.Date;
 
-import dk.au.cs.karibu.backend.StatisticHandler;
+import dk.au.cs.karibu.backend.*;
 
 public class NullStatisticHandler implements StatisticHandler {
 
+  private final LatencyHistograms latencies = new LatencyHistograms();
+  private final ThroughputWindows throughput = new ThroughputWindows();
+
   @Override
   public void notifyReceive(String producerCode, long countOfBytes) {
   }
@@ -58,6 +61,21 @@ public class NullStatisticHandler implements StatisticHandler {
     return "NullStatisticsHandler does not provide any real data";
   }
 
+  @Override
+  public String getPayloadSizeStatus() {
+    return "NullStatisticsHandler does not provide any real data";
+  }
+
+  @Override
+  public LatencyHistograms getLatencyHistograms() {
+    return latencies;
+  }
+
+  @Override
+  public ThroughputWindows getThroughputWindows() {
+    return throughput;
+  }
+
   @Override
   public String getDaemonIP() {
     return "NullStatisticsHandler has no IP";
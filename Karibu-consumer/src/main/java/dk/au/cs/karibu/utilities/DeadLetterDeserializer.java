@@ -16,12 +16,14 @@
  
 package dk.au.cs.karibu.utilities; 
  
+import java.util.Arrays;
+
 import org.bson.types.Binary; 
  
 
 import com.mongodb.BasicDBObject; 
 
-import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.serialization.*;
  
 /** The deserializer used when Karibu encounters a project code
  * that is not known. It creates a document with a single entry
@@ -30,7 +32,7 @@ import dk.au.cs.karibu.serialization.Deserializer;
  * @author Henrik Baerbak Christensen, Aarhus University
  *
  */
-public class DeadLetterDeserializer implements Deserializer { 
+public class DeadLetterDeserializer implements Deserializer, ByteRangeDeserializer { 
    
   @Override 
   public BasicDBObject buildDocumentFromByteArray(byte[] payload) { 
@@ -39,5 +41,11 @@ public class DeadLetterDeserializer implements Deserializer {
     root.put("payload", xys); 
     return root; 
   } 
+
+  @Override
+  public BasicDBObject buildDocumentFromByteRange(byte[] buffer, int offset, int length) {
+    // the document keeps the payload, so it must be copied
+    return buildDocumentFromByteArray(Arrays.copyOfRange(buffer, offset, offset + length));
+  }
  
 } 
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.utilities;
+
+import java.util.*;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSONParseException;
+
+/** A JSON deserializer whose handling of the top level fields
+ * is declared instead of coded: a field may be converted to
+ * another type, renamed, or dropped. Other fields are stored as
+ * parsed.
+ *
+ * The declarations are compiled into a table from field name
+ * to the rule for it, which is applied to each field while the
+ * payload is parsed, so no field is put in the document twice.
+ * A value that cannot be converted raises a JSONParseException,
+ * so the message is stored in the WRONGFORMAT collection.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class DeclarativeDeserializer extends StreamingJSONDeserializer {
+
+  /** The compiled rule of a field. */
+  private static final class FieldRule {
+    // null if the field is dropped
+    final String targetName;
+    // null if the value is not converted
+    final FieldConversion conversion;
+    FieldRule(String targetName, FieldConversion conversion) {
+      this.targetName = targetName;
+      this.conversion = conversion;
+    }
+  }
+
+  private final String name;
+  private final Map<String,FieldRule> rules;
+
+  /** Compile a deserializer.
+   * @param name the name of the deserializer, typically the
+   * producer code
+   * @param conversions the conversion of each converted field
+   * @param renames the new name of each renamed field
+   * @param drops the names of the dropped fields
+   */
+  public DeclarativeDeserializer(String name, 
+      Map<String,FieldConversion> conversions,
+      Map<String,String> renames, Set<String> drops) {
+    this.name = name;
+    rules = new HashMap<String, FieldRule>();
+    Set<String> fields = new HashSet<String>();
+    fields.addAll(conversions.keySet());
+    fields.addAll(renames.keySet());
+    fields.addAll(drops);
+    for ( String field : fields ) {
+      String target = renames.containsKey(field) ? renames.get(field) : field;
+      if ( drops.contains(field) ) { target = null; }
+      rules.put(field, new FieldRule(target, conversions.get(field)));
+    }
+  }
+
+  @Override
+  protected void putTopLevelField(BasicDBObject dbo, String fieldName, Object value) {
+    FieldRule rule = rules.get(fieldName);
+    if ( rule == null ) {
+      dbo.put(fieldName, value);
+      return;
+    }
+    if ( rule.targetName == null ) { return; }
+    Object converted = value;
+    if ( rule.conversion != null ) {
+      try {
+        converted = rule.conversion.convert(value);
+      } catch (IllegalArgumentException e) {
+        throw new JSONParseException("Field '"+fieldName+"' of "+name+
+            " is not "+rule.conversion+": "+e.getMessage(), 0, e);
+      }
+    }
+    dbo.put(rule.targetName, converted);
+  }
+
+  public String toString() {
+    return "DeclarativeDeserializer("+name+")";
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.utilities;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/** The type conversions that a declarative deserializer may
+ * apply to the value of a field.
+ *
+ * A null value is never converted; a value that cannot be
+ * converted, or only with loss, like 2.5 or 2^40 to an int,
+ * raises an IllegalArgumentException.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public enum FieldConversion {
+
+  /** an ISO 8601 time stamp, like 2013-06-01T07:30:00Z, or a
+   * number of milliseconds since the epoch, to a Date */
+  DATE {
+    @Override
+    Object convertNonNull(Object value) {
+      if ( value instanceof Date ) { return value; }
+      if ( value instanceof Number ) { return new Date(((Number) value).longValue()); }
+      return new Date(parseISO8601(value.toString()));
+    }
+  },
+  INT {
+    @Override
+    Object convertNonNull(Object value) {
+      if ( value instanceof Number ) {
+        return (int) integralValue((Number) value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+      }
+      return Integer.valueOf(value.toString().trim());
+    }
+  },
+  LONG {
+    @Override
+    Object convertNonNull(Object value) {
+      if ( value instanceof Number ) {
+        return integralValue((Number) value, Long.MIN_VALUE, Long.MAX_VALUE);
+      }
+      return Long.valueOf(value.toString().trim());
+    }
+  },
+  DOUBLE {
+    @Override
+    Object convertNonNull(Object value) {
+      if ( value instanceof Number ) { return ((Number) value).doubleValue(); }
+      return Double.valueOf(value.toString().trim());
+    }
+  },
+  STRING {
+    @Override
+    Object convertNonNull(Object value) {
+      return value.toString();
+    }
+  },
+  BOOLEAN {
+    @Override
+    Object convertNonNull(Object value) {
+      if ( value instanceof Boolean ) { return value; }
+      if ( value instanceof Number ) { return ((Number) value).doubleValue() != 0.0; }
+      String s = value.toString().trim();
+      if ( s.equalsIgnoreCase("true") ) { return Boolean.TRUE; }
+      if ( s.equalsIgnoreCase("false") ) { return Boolean.FALSE; }
+      throw new IllegalArgumentException("Not a boolean: "+s);
+    }
+  };
+
+  /** Convert a value.
+   * @throws IllegalArgumentException if the value cannot
+   * be converted
+   */
+  public Object convert(Object value) {
+    if ( value == null ) { return null; }
+    return convertNonNull(value);
+  }
+
+  abstract Object convertNonNull(Object value);
+
+  /** The value of a number, if it is integral and within the
+   * range [min, max].
+   * @throws IllegalArgumentException if it is not
+   */
+  static long integralValue(Number n, long min, long max) {
+    long value;
+    if ( n instanceof Long || n instanceof Integer 
+        || n instanceof Short || n instanceof Byte ) {
+      value = n.longValue();
+    } else {
+      try {
+        BigDecimal exact = n instanceof BigDecimal ? (BigDecimal) n : new BigDecimal(n.toString());
+        value = exact.longValueExact();
+      } catch (NumberFormatException e) {
+        // NaN and infinity
+        throw notIntegral(n);
+      } catch (ArithmeticException e) {
+        // a fraction, or beyond the range of a long
+        throw notIntegral(n);
+      }
+    }
+    if ( value < min || value > max ) { throw notIntegral(n); }
+    return value;
+  }
+
+  private static IllegalArgumentException notIntegral(Number n) {
+    return new IllegalArgumentException("Not convertible without loss: "+n);
+  }
+
+  /** Parse an ISO 8601 date (yyyy-MM-dd) or time stamp
+   * (yyyy-MM-ddTHH:mm[:ss[.SSS]] followed by Z or an offset like
+   * +02:00; UTC if none) into milliseconds since the epoch.
+   * @throws IllegalArgumentException if the format is wrong
+   */
+  static long parseISO8601(String s) {
+    int length = s.length();
+    if ( length < 10 || s.charAt(4) != '-' || s.charAt(7) != '-' ) {
+      throw invalid(s);
+    }
+    int year = digits(s, 0, 4);
+    int month = digits(s, 5, 2);
+    int day = digits(s, 8, 2);
+    if ( month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ) {
+      throw invalid(s);
+    }
+    long millis = daysFromCivil(year, month, day) * 86400000L;
+    if ( length == 10 ) { return millis; }
+
+    if ( length < 16 || (s.charAt(10) != 'T' && s.charAt(10) != ' ') 
+        || s.charAt(13) != ':' ) {
+      throw invalid(s);
+    }
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    int second = 0;
+    int fractionMillis = 0;
+    int pos = 16;
+    if ( pos < length && s.charAt(pos) == ':' ) {
+      second = digits(s, pos + 1, 2);
+      pos += 3;
+      if ( pos < length && s.charAt(pos) == '.' ) {
+        pos++;
+        int scale = 100;
+        int fractionStart = pos;
+        while ( pos < length && Character.isDigit(s.charAt(pos)) ) {
+          fractionMillis += (s.charAt(pos) - '0') * scale;
+          scale /= 10;
+          pos++;
+        }
+        if ( pos == fractionStart ) { throw invalid(s); }
+      }
+    }
+    if ( hour > 23 || minute > 59 || second > 60 ) { throw invalid(s); }
+    millis += ((hour * 60L + minute) * 60L + second) * 1000L + fractionMillis;
+
+    if ( pos == length ) { return millis; }
+    char zone = s.charAt(pos);
+    if ( zone == 'Z' && pos + 1 == length ) { return millis; }
+    if ( zone != '+' && zone != '-' ) { throw invalid(s); }
+    int offsetHours = digits(s, pos + 1, 2);
+    int offsetMinutes = 0;
+    pos += 3;
+    if ( pos < length && s.charAt(pos) == ':' ) { pos++; }
+    if ( pos < length ) {
+      offsetMinutes = digits(s, pos, 2);
+      pos += 2;
+    }
+    if ( pos != length ) { throw invalid(s); }
+    long offsetMillis = (offsetHours * 60L + offsetMinutes) * 60000L;
+    return zone == '+' ? millis - offsetMillis : millis + offsetMillis;
+  }
+
+  private static int digits(String s, int from, int count) {
+    if ( from + count > s.length() ) { throw invalid(s); }
+    int value = 0;
+    for ( int i = from; i < from + count; i++ ) {
+      char c = s.charAt(i);
+      if ( c < '0' || c > '9' ) { throw invalid(s); }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static final int[] DAYS_IN_MONTH = 
+    { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+  private static int daysInMonth(int year, int month) {
+    boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    return month == 2 && leap ? 29 : DAYS_IN_MONTH[month - 1];
+  }
+
+  // days since 1970-01-01 of a date in the proleptic Gregorian calendar
+  private static long daysFromCivil(int year, int month, int day) {
+    long y = month <= 2 ? year - 1 : year;
+    long era = (y >= 0 ? y : y - 399) / 400;
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static IllegalArgumentException invalid(String s) {
+    return new IllegalArgumentException("Not an ISO 8601 time stamp: "+s);
+  }
+}
@@ -15,7 +15,7 @@
  */ 
 package dk.au.cs.karibu.utilities;
 
-import java.io.FileInputStream;
+import java.io.*;
 import java.util.Properties;
 
 import org.slf4j.*;
@@ -61,4 +61,19 @@ public class PropertyReader {
     return properties;
   }
 
+  /** Read a given property file if it exists, and fail fast
+   * (terminate execution) if it exists but the load failed.
+   * @param filenamePrefix the prefix of the property file name,
+   * '.properties' are automatically appended.
+   * @return the property set in the file, or null if there
+   * is no such file.
+   */
+  public Properties readPropertiesIfPresent(String filenamePrefix) {
+    String filename = resourceFolder + filenamePrefix +".properties";
+    if ( ! new File(filename).exists() ) {
+      return null;
+    }
+    return readPropertiesFailFast(filenamePrefix);
+  }
+
 }
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.utilities;
+
+import com.mongodb.*;
+import com.mongodb.util.JSONParseException;
+
+import dk.au.cs.karibu.serialization.*;
+
+/** A deserializer for JSON payloads that parses the UTF-8 bytes
+ * directly into a MongoDB document in a single pass, without
+ * decoding the payload into a String first and without the
+ * intermediate objects of com.mongodb.util.JSON.
+ *
+ * Objects become BasicDBObjects and arrays BasicDBLists; numbers
+ * without fraction or exponent become Integer, or Long if they do
+ * not fit, other numbers Double. Like com.mongodb.util.JSON it
+ * accepts single quoted strings and unquoted field names, but the
+ * MongoDB extended JSON forms, like { "$date": ... }, are kept as
+ * plain documents. Field names are interned, so the documents of
+ * a producer share their field name Strings.
+ *
+ * Subclass it and override putTopLevelField() to convert the
+ * fields of the document while parsing, or completeDocument() to
+ * convert fields of the parsed document. Ill formed
+ * JSON raises a JSONParseException, so the message is stored in
+ * the WRONGFORMAT collection as with com.mongodb.util.JSON.
+ *
+ * It is thread safe, as all parsing state is local to a call.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class StreamingJSONDeserializer implements Deserializer, ByteRangeDeserializer {
+
+  private static final int FIELD_NAME_CACHE_SIZE = 512;
+  private static final int MAX_INTERNED_LENGTH = 64;
+
+  // Interned field names indexed by hash; a slot may be
+  // overwritten by another name with the same index. Races are
+  // benign as Strings are immutable.
+  private final String[] fieldNameCache = new String[FIELD_NAME_CACHE_SIZE];
+
+  @Override
+  public final BasicDBObject buildDocumentFromByteArray(byte[] payload) {
+    return buildDocumentFromByteRange(payload, 0, payload.length);
+  }
+
+  @Override
+  public final BasicDBObject buildDocumentFromByteRange(byte[] buffer, int offset, int length) {
+    Parser parser = new Parser(buffer, offset, offset + length);
+    parser.skipWhitespace();
+    if ( parser.peek() != '{' ) {
+      throw parser.error();
+    }
+    BasicDBObject dbo = parser.parseObject(true);
+    parser.skipWhitespace();
+    if ( parser.pos < parser.end ) {
+      throw parser.error();
+    }
+    return completeDocument(dbo);
+  }
+
+  /** Put a field of the top level document, as it is parsed;
+   * override to convert, rename or drop fields. Fields of nested
+   * documents are put directly.
+   * @param dbo the document being parsed
+   * @param name the name of the field
+   * @param value the parsed value of the field
+   */
+  protected void putTopLevelField(BasicDBObject dbo, String name, Object value) {
+    dbo.put(name, value);
+  }
+
+  /** Convert fields of the parsed document, if required.
+   * @param dbo the document as parsed from the JSON
+   * @return the document to store
+   */
+  protected BasicDBObject completeDocument(BasicDBObject dbo) {
+    return dbo;
+  }
+
+  /** The parsing state of a single payload. */
+  private final class Parser {
+    final byte[] buf;
+    final int start, end;
+    int pos;
+    char[] chars;
+
+    Parser(byte[] buf, int start, int end) {
+      this.buf = buf;
+      this.start = start;
+      this.end = end;
+      this.pos = start;
+      this.chars = null;
+    }
+
+    JSONParseException error() {
+      String json = decodeRange(buf, start, end - start);
+      return new JSONParseException(json, pos - start);
+    }
+
+    int peek() {
+      if ( pos >= end ) { throw error(); }
+      return buf[pos] & 0xFF;
+    }
+
+    void skipWhitespace() {
+      while ( pos < end ) {
+        byte b = buf[pos];
+        if ( b == ' ' || b == '\n' || b == '\r' || b == '\t' ) {
+          pos++;
+        } else {
+          return;
+        }
+      }
+    }
+
+    void expect(char c) {
+      skipWhitespace();
+      if ( peek() != c ) { throw error(); }
+      pos++;
+    }
+
+    BasicDBObject parseObject(boolean isTopLevel) {
+      pos++; // the '{'
+      BasicDBObject dbo = new BasicDBObject();
+      skipWhitespace();
+      if ( peek() == '}' ) {
+        pos++;
+        return dbo;
+      }
+      while ( true ) {
+        skipWhitespace();
+        String name = parseFieldName();
+        expect(':');
+        if ( isTopLevel ) {
+          putTopLevelField(dbo, name, parseValue());
+        } else {
+          dbo.put(name, parseValue());
+        }
+        skipWhitespace();
+        int c = peek();
+        pos++;
+        if ( c == '}' ) { return dbo; }
+        if ( c != ',' ) { pos--; throw error(); }
+      }
+    }
+
+    BasicDBList parseArray() {
+      pos++; // the '['
+      BasicDBList list = new BasicDBList();
+      skipWhitespace();
+      if ( peek() == ']' ) {
+        pos++;
+        return list;
+      }
+      while ( true ) {
+        list.add(parseValue());
+        skipWhitespace();
+        int c = peek();
+        pos++;
+        if ( c == ']' ) { return list; }
+        if ( c != ',' ) { pos--; throw error(); }
+      }
+    }
+
+    Object parseValue() {
+      skipWhitespace();
+      int c = peek();
+      switch ( c ) {
+      case '{': return parseObject(false);
+      case '[': return parseArray();
+      case '"':
+      case '\'': return parseString(false);
+      case 't': parseLiteral("true"); return Boolean.TRUE;
+      case 'f': parseLiteral("false"); return Boolean.FALSE;
+      case 'n': parseLiteral("null"); return null;
+      default: return parseNumber();
+      }
+    }
+
+    void parseLiteral(String literal) {
+      if ( end - pos < literal.length() ) { throw error(); }
+      for ( int i = 0; i < literal.length(); i++ ) {
+        if ( buf[pos + i] != literal.charAt(i) ) { throw error(); }
+      }
+      pos += literal.length();
+    }
+
+    Object parseNumber() {
+      int numberStart = pos;
+      boolean negative = false;
+      if ( buf[pos] == '-' || buf[pos] == '+' ) {
+        negative = buf[pos] == '-';
+        pos++;
+      }
+      long value = 0L;
+      boolean isIntegral = true;
+      int digits = 0;
+      while ( pos < end && buf[pos] >= '0' && buf[pos] <= '9' ) {
+        int digit = buf[pos] - '0';
+        // accumulate negatively, to reach Long.MIN_VALUE
+        if ( value < (Long.MIN_VALUE + digit) / 10 ) {
+          isIntegral = false;
+        }
+        value = value * 10 - digit;
+        digits++;
+        pos++;
+      }
+      if ( digits == 0 ) { throw error(); }
+      while ( pos < end ) {
+        byte b = buf[pos];
+        if ( b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-'
+            || (b >= '0' && b <= '9') ) {
+          isIntegral = false;
+          pos++;
+        } else {
+          break;
+        }
+      }
+      if ( ! isIntegral ) {
+        String number = decodeRange(buf, numberStart, pos - numberStart);
+        try {
+          return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+          throw error();
+        }
+      }
+      if ( ! negative ) {
+        if ( value == Long.MIN_VALUE ) {
+          return Double.valueOf(-(double) value);
+        }
+        value = -value;
+      }
+      if ( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ) {
+        return Integer.valueOf((int) value);
+      }
+      return Long.valueOf(value);
+    }
+
+    String parseFieldName() {
+      int c = peek();
+      if ( c == '"' || c == '\'' ) {
+        return parseString(true);
+      }
+      // an unquoted field name
+      int nameStart = pos;
+      boolean isAscii = true;
+      while ( pos < end ) {
+        byte b = buf[pos];
+        if ( b == ':' || b == ' ' || b == '\t' || b == '\n' || b == '\r' ) { break; }
+        isAscii &= b >= 0;
+        pos++;
+      }
+      if ( pos == nameStart ) { throw error(); }
+      if ( ! isAscii ) {
+        return decodeRange(buf, nameStart, pos - nameStart);
+      }
+      return intern(nameStart, pos);
+    }
+
+    String parseString(boolean isFieldName) {
+      byte quote = buf[pos];
+      pos++;
+      int stringStart = pos;
+      // fast path: ASCII without escapes
+      while ( pos < end ) {
+        byte b = buf[pos];
+        if ( b == quote ) {
+          pos++;
+          return isFieldName ? intern(stringStart, pos - 1) 
+              : decodeAscii(stringStart, pos - 1);
+        }
+        if ( b == '\\' || b < 0 ) { break; }
+        pos++;
+      }
+      if ( pos >= end ) { throw error(); }
+      return parseStringSlowly(quote, stringStart);
+    }
+
+    // decodes escapes and UTF-8 multi byte sequences
+    String parseStringSlowly(byte quote, int stringStart) {
+      int count = pos - stringStart;
+      ensureChars(count + 16);
+      for ( int i = 0; i < count; i++ ) {
+        chars[i] = (char) buf[stringStart + i];
+      }
+      while ( true ) {
+        if ( pos >= end ) { throw error(); }
+        int b = buf[pos] & 0xFF;
+        if ( b == quote ) {
+          pos++;
+          return new String(chars, 0, count);
+        }
+        ensureChars(count + 2);
+        if ( b == '\\' ) {
+          pos++;
+          if ( pos >= end ) { throw error(); }
+          int e = buf[pos++];
+          switch ( e ) {
+          case 'n': chars[count++] = '\n'; break;
+          case 't': chars[count++] = '\t'; break;
+          case 'r': chars[count++] = '\r'; break;
+          case 'b': chars[count++] = '\b'; break;
+          case 'f': chars[count++] = '\f'; break;
+          case 'u':
+            if ( end - pos < 4 ) { throw error(); }
+            int code = 0;
+            for ( int i = 0; i < 4; i++ ) {
+              int digit = Character.digit(buf[pos++], 16);
+              if ( digit < 0 ) { throw error(); }
+              code = code * 16 + digit;
+            }
+            chars[count++] = (char) code;
+            break;
+          default: chars[count++] = (char) e;
+          }
+        } else if ( b < 0x80 ) {
+          chars[count++] = (char) b;
+          pos++;
+        } else {
+          int codePoint = decodeUTF8Sequence(b);
+          count += Character.toChars(codePoint, chars, count);
+        }
+      }
+    }
+
+    int decodeUTF8Sequence(int first) {
+      int extra;
+      int codePoint;
+      if ( (first & 0xE0) == 0xC0 ) {
+        extra = 1; codePoint = first & 0x1F;
+      } else if ( (first & 0xF0) == 0xE0 ) {
+        extra = 2; codePoint = first & 0x0F;
+      } else if ( (first & 0xF8) == 0xF0 ) {
+        extra = 3; codePoint = first & 0x07;
+      } else {
+        throw error();
+      }
+      if ( end - pos <= extra ) { throw error(); }
+      pos++;
+      for ( int i = 0; i < extra; i++ ) {
+        int b = buf[pos++] & 0xFF;
+        if ( (b & 0xC0) != 0x80 ) { throw error(); }
+        codePoint = (codePoint << 6) | (b & 0x3F);
+      }
+      if ( codePoint > Character.MAX_CODE_POINT ) { throw error(); }
+      return codePoint;
+    }
+
+    void ensureChars(int capacity) {
+      if ( chars == null || chars.length < capacity ) {
+        char[] larger = new char[Math.max(capacity, chars == null ? 64 : chars.length * 2)];
+        if ( chars != null ) {
+          System.arraycopy(chars, 0, larger, 0, chars.length);
+        }
+        chars = larger;
+      }
+    }
+
+    String decodeAscii(int from, int to) {
+      ensureChars(to - from);
+      for ( int i = from; i < to; i++ ) {
+        chars[i - from] = (char) buf[i];
+      }
+      return new String(chars, 0, to - from);
+    }
+
+    // return the cached String of an ASCII field name, or cache it
+    String intern(int from, int to) {
+      int length = to - from;
+      if ( length > MAX_INTERNED_LENGTH ) {
+        return decodeAscii(from, to);
+      }
+      int hash = 0;
+      for ( int i = from; i < to; i++ ) {
+        hash = 31 * hash + buf[i];
+      }
+      int index = (hash ^ (hash >>> 16)) & (FIELD_NAME_CACHE_SIZE - 1);
+      String cached = fieldNameCache[index];
+      if ( cached != null && matches(cached, from, length) ) {
+        return cached;
+      }
+      String name = decodeAscii(from, to);
+      fieldNameCache[index] = name;
+      return name;
+    }
+
+    boolean matches(String s, int from, int length) {
+      if ( s.length() != length ) { return false; }
+      for ( int i = 0; i < length; i++ ) {
+        if ( s.charAt(i) != buf[from + i] ) { return false; }
+      }
+      return true;
+    }
+  }
+
+  private static String decodeRange(byte[] buffer, int offset, int length) {
+    try {
+      return new String(buffer, offset, length, "UTF-8");
+    } catch (java.io.UnsupportedEncodingException e) {
+      // UTF-8 is always supported
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.common;
+
+import java.util.concurrent.atomic.*;
+
+/** A histogram of non negative values, like latencies in
+ * nanoseconds or sizes in bytes, from which percentiles can
+ * be read.
+ *
+ * Values below 16 are counted exactly; larger values are
+ * counted in buckets of which there are 8 per power of two,
+ * so a percentile is reported with an error of at most 12.5%
+ * (it is the upper bound of its bucket, but never above the
+ * max). Recording is lock free and takes constant time and no
+ * allocation, so it may be done on every message.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class Histogram {
+
+  private static final int EXACT_LIMIT = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // bit 4 up to bit 62 of the value
+  private static final int BUCKET_COUNT = EXACT_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong max;
+
+  public Histogram() {
+    counts = new AtomicLongArray(BUCKET_COUNT);
+    count = new AtomicLong();
+    sum = new AtomicLong();
+    max = new AtomicLong();
+  }
+
+  /** Record a value; negative values are recorded as 0. */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(bucketOf(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    long currentMax = max.get();
+    while ( v > currentMax && ! max.compareAndSet(currentMax, v) ) {
+      currentMax = max.get();
+    }
+  }
+
+  /** return the number of values recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** return the sum of the values recorded. */
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /** return the mean of the values, or 0 if none. */
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double) sum.get() / n;
+  }
+
+  /** Return the number of recorded values in the bucket of
+   * the given value or below it; exact if the value is one
+   * below a power of two, as those end a bucket.
+   */
+  public long getCountAtOrBelow(long value) {
+    int last = bucketOf(Math.max(0, value));
+    long n = 0;
+    for ( int i = 0; i <= last; i++ ) {
+      n += counts.get(i);
+    }
+    return n;
+  }
+
+  /** Return the value below or at which the given
+   * percentage of the recorded values are.
+   * @param percentile between 0 and 100
+   * @return the value, or 0 if no values are recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long n = 0;
+    long[] snapshot = new long[BUCKET_COUNT];
+    for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if ( n == 0 ) { return 0; }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+      seen += snapshot[i];
+      if ( seen >= rank ) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Forget all recorded values. Values recorded concurrently
+   * may be partially forgotten. */
+  public void reset() {
+    for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /** Return the percentiles 50, 90, 99, 99.9 and the max,
+   * with the values divided by the given unit and suffixed
+   * with its name, e.g. 1000000 and "ms" for nanoseconds. */
+  public String toString(long unit, String unitName) {
+    return "n="+getCount()+
+        " p50="+format(getValueAtPercentile(50), unit)+unitName+
+        " p90="+format(getValueAtPercentile(90), unit)+unitName+
+        " p99="+format(getValueAtPercentile(99), unit)+unitName+
+        " p99.9="+format(getValueAtPercentile(99.9), unit)+unitName+
+        " max="+format(getMax(), unit)+unitName;
+  }
+
+  public String toString() {
+    return toString(1, "");
+  }
+
+  private static String format(long value, long unit) {
+    if ( unit == 1 ) { return Long.toString(value); }
+    return Double.toString(Math.round(value * 10.0 / unit) / 10.0);
+  }
+
+  static int bucketOf(long value) {
+    if ( value < EXACT_LIMIT ) { return (int) value; }
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    int shift = msb - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return EXACT_LIMIT + (msb - 4) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBoundOf(int bucket) {
+    if ( bucket < EXACT_LIMIT ) { return bucket; }
+    int msb = (bucket - EXACT_LIMIT) / SUB_BUCKETS + 4;
+    int sub = (bucket - EXACT_LIMIT) % SUB_BUCKETS;
+    int shift = msb - SUB_BUCKET_BITS;
+    // the top bucket reaches Long.MAX_VALUE
+    if ( msb == 62 && sub == SUB_BUCKETS - 1 ) { return Long.MAX_VALUE; }
+    return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.producer; 
+ 
+import java.io.*; 
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+ 
+/** A client request handler that sends asynchronously: 
+ * sendAsync() puts the data object on a bounded queue and
+ * returns a Future at once, and a background thread takes
+ * the objects in order and sends them through the decorated
+ * handler, which serializes, publishes and, for the
+ * StandardClientRequestHandler, reconnects. Thus the calling
+ * thread never waits for the network or for reconnect delays.
+ * 
+ * The future completes when the decorated handler's send
+ * returns, or fails with its exception. When the queue is full,
+ * the overflow policy decides: BLOCK waits for room, DROP_OLDEST
+ * fails the oldest queued send to make room, and FAIL fails the
+ * new send at once.
+ * 
+ * The plain send() waits for the future, so this handler
+ * may replace a synchronous one. A send that is queued while
+ * the handler is being closed is either sent or failed, it
+ * never stays pending.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ * @param <T> generic type of the data chunk to send
+ */ 
+public class AsyncClientRequestHandler<T> implements ClientRequestHandler<T> { 
+
+  /** What to do with a send when the queue is full. */
+  public enum OverflowPolicy { BLOCK, DROP_OLDEST, FAIL }
+
+  /** default max number of queued sends */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  private final ClientRequestHandler<T> delegate;
+  private final OverflowPolicy overflowPolicy;
+  private final BlockingQueue<PendingSend> queue;
+  private final Thread sender;
+  private volatile boolean closed;
+
+  private final AtomicLong sentCount;
+  private final AtomicLong failedCount;
+  private final AtomicLong droppedCount;
+
+  public AsyncClientRequestHandler(ClientRequestHandler<T> delegate) {
+    this(delegate, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+  }
+
+  /** Create the handler and start its sender thread.
+   * @param delegate the handler that does the sending
+   * @param queueCapacity max number of queued sends
+   * @param overflowPolicy what to do when the queue is full
+   */
+  public AsyncClientRequestHandler(ClientRequestHandler<T> delegate, 
+      int queueCapacity, OverflowPolicy overflowPolicy) {
+    this.delegate = delegate;
+    this.overflowPolicy = overflowPolicy;
+    queue = new LinkedBlockingQueue<PendingSend>(queueCapacity);
+    sentCount = new AtomicLong();
+    failedCount = new AtomicLong();
+    droppedCount = new AtomicLong();
+    closed = false;
+    sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        sendQueued();
+      }
+    }, "AsyncClientRequestHandler");
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /** Queue one piece of data for sending, see send().
+   * @return a future that completes when the data has been
+   * sent, or fails with the IOException of the send, or 
+   * if the send was dropped or rejected by the overflow policy.
+   */
+  public Future<Void> sendAsync(T dataObjectToSend, String topic) {
+    PendingSend pending = new PendingSend(dataObjectToSend, topic);
+    if ( closed ) {
+      pending.fail(new IOException("The handler is closed"));
+      return pending;
+    }
+    switch ( overflowPolicy ) {
+    case BLOCK:
+      try {
+        queue.put(pending);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        pending.fail(new InterruptedIOException("Interrupted while awaiting room in the queue"));
+      }
+      break;
+    case DROP_OLDEST:
+      while ( ! queue.offer(pending) ) {
+        PendingSend oldest = queue.poll();
+        if ( oldest != null ) {
+          droppedCount.incrementAndGet();
+          oldest.fail(new IOException("Dropped as the send queue was full"));
+        }
+      }
+      break;
+    case FAIL:
+      if ( ! queue.offer(pending) ) {
+        droppedCount.incrementAndGet();
+        pending.fail(new IOException("Rejected as the send queue is full"));
+      }
+      break;
+    }
+    // a close that began meanwhile may already have drained the
+    // queue, and the sender may have ended; then nobody else
+    // would ever complete the send
+    if ( closed && queue.remove(pending) ) {
+      pending.fail(new IOException("The handler was closed before the send"));
+    }
+    return pending;
+  }
+
+  @Override
+  public void send(T dataObjectToSend, String topic) throws IOException { 
+    try {
+      sendAsync(dataObjectToSend, topic).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while awaiting the send");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof IOException ) { throw (IOException) cause; }
+      if ( cause instanceof RuntimeException ) { throw (RuntimeException) cause; }
+      throw new IOException("Send failed: "+cause);
+    }
+  }
+
+  private void sendQueued() {
+    while ( ! closed || ! queue.isEmpty() ) {
+      try {
+        PendingSend pending = queue.poll(100, TimeUnit.MILLISECONDS);
+        if ( pending != null ) { pending.run(); }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Stop accepting sends, and wait until the queued
+   * ones are sent.
+   * @param timeoutMs max time to wait; the sends still
+   * queued then fail
+   */
+  public void close(long timeoutMs) throws InterruptedException {
+    closed = true;
+    sender.join(timeoutMs);
+    if ( sender.isAlive() ) { sender.interrupt(); }
+    PendingSend pending;
+    while ( (pending = queue.poll()) != null ) {
+      pending.fail(new IOException("The handler was closed before the send"));
+    }
+  }
+
+  /** return the number of queued sends. */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /** return the number of sends dropped or rejected
+   * by the overflow policy. */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public String toString() {
+    return "AsyncClientRequestHandler ("+overflowPolicy+", queued: "+queue.size()+
+        ", sent: "+sentCount.get()+", failed: "+failedCount.get()+
+        ", dropped: "+droppedCount.get()+")";
+  }
+
+  /** A queued send and its future. */
+  private class PendingSend extends FutureTask<Void> {
+    PendingSend(final T dataObjectToSend, final String topic) {
+      super(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          try {
+            delegate.send(dataObjectToSend, topic);
+          } catch (IOException e) {
+            failedCount.incrementAndGet();
+            throw e;
+          } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            throw e;
+          }
+          sentCount.incrementAndGet();
+          return null;
+        }
+      });
+    }
+
+    void fail(Exception cause) {
+      setException(cause);
+    }
+  }
+} 
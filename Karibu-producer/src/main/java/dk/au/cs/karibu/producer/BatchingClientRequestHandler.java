@@ -0,0 +1,349 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.producer; 
+ 
+import java.io.*; 
+import java.util.*;
+
+import org.slf4j.*; 
+
+import dk.au.cs.karibu.serialization.*;
+ 
+/** A client request handler that packs the serialized data
+ * objects into batch envelopes, see BatchEnvelope, and sends
+ * one message per envelope instead of one per data object;
+ * which saves the broker's per message overhead for producers
+ * of many small data objects, like 1 Hz sensors. The consumer
+ * unpacks the envelope and stores its records as separate
+ * documents.
+ * 
+ * There is an open envelope per topic. It is closed when it
+ * holds maxRecords records or maxBytes bytes, as part of the
+ * send() that filled it, or when its first record has lingered
+ * for lingerMs; the latter is done by a timer thread. Closed
+ * envelopes are sent in order, by one thread at a time and
+ * without holding the lock of the handler, so other producer
+ * threads are not blocked by a slow send. Call flush() to send
+ * all envelopes, and close() before discarding the handler.
+ * 
+ * The envelopes are sent by a StandardClientRequestHandler and
+ * thus with its fail-over semantics. If that fails, the closed
+ * envelope is kept as it is, the failure is logged, and it is
+ * sent again by the next send(), by the timer after lingerMs,
+ * or by flush(), which reports the failure. At most 
+ * maxUnsentEnvelopes closed envelopes are kept; when that
+ * many are waiting, send() throws an IOException and does not
+ * queue the data object. Thus an IOException from send() 
+ * always means that the data object was NOT queued, and may
+ * be sent again; otherwise it is not lost, but it may be
+ * delayed by failures.
+ * 
+ * The handler is thread safe.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ * @param <T> generic type of the data chunk to send
+ */ 
+public class BatchingClientRequestHandler<T> implements ClientRequestHandler<T> { 
+
+  /** default max number of closed envelopes waiting to be sent */
+  public static final int DEFAULT_MAX_UNSENT_ENVELOPES = 64;
+
+  private final Serializer<T> serializer;
+  private final StandardClientRequestHandler<byte[]> envelopeSender;
+  private final int maxRecords;
+  private final int maxBytes;
+  private final long lingerMs;
+  private final Logger theLogger;
+
+  // the fields below are guarded by 'this'
+  private final Map<String,Envelope> openEnvelopes;
+  private final LinkedList<ClosedEnvelope> unsentEnvelopes;
+  private int maxUnsentEnvelopes;
+  // true while a thread sends the closed envelopes
+  private boolean sending;
+  private boolean closed;
+  private Timer lingerTimer;
+
+  /** Configure a batching client request handler with the
+   * default fail-over of StandardClientRequestHandler.
+   *  
+   * @param producerCode Identity of the sender encoded as a character string 
+   * @param connector the message producer to use 
+   * @param theSerializer the serializer that can create the on the wire format 
+   * @param maxRecords the max number of records in an envelope
+   * @param maxBytes the max size of an envelope in bytes; 
+   * an envelope is sent once it reaches it
+   * @param lingerMs the max time a record waits for its
+   * envelope to be sent
+   */ 
+  public BatchingClientRequestHandler(String producerCode, ChannelConnector connector, 
+      Serializer<T> theSerializer, int maxRecords, int maxBytes, long lingerMs) { 
+    this(producerCode, connector, theSerializer, maxRecords, maxBytes, lingerMs,
+        5000, 5, LoggerFactory.getLogger(BatchingClientRequestHandler.class) ); 
+  } 
+
+  /** Configure a batching client request handler.
+   *  
+   * @param producerCode Identity of the sender encoded as a character string 
+   * @param connector the message producer to use 
+   * @param theSerializer the serializer that can create the on the wire format 
+   * @param maxRecords the max number of records in an envelope
+   * @param maxBytes the max size of an envelope in bytes; 
+   * an envelope is sent once it reaches it
+   * @param lingerMs the max time a record waits for its
+   * envelope to be sent
+   * @param timeoutMSBeforeReconnect time in ms before trying to reconnect and send 
+   * @param noReconnectsBeforeFailing the number of times reconnections are attempted in 'send' 
+   * before giving up. 
+   * @param theLogger the logging mechanism to use  
+   */ 
+  public BatchingClientRequestHandler(String producerCode, ChannelConnector connector, 
+      Serializer<T> theSerializer, int maxRecords, int maxBytes, long lingerMs,
+      int timeoutMSBeforeReconnect, int noReconnectsBeforeFailing, Logger theLogger) { 
+    this.serializer = theSerializer;
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.lingerMs = lingerMs;
+    this.theLogger = theLogger;
+    envelopeSender = new StandardClientRequestHandler<byte[]>(producerCode, 
+        connector, new Serializer<byte[]>() {
+          @Override
+          public byte[] serialize(byte[] envelope) {
+            return envelope;
+          }
+        }, timeoutMSBeforeReconnect, noReconnectsBeforeFailing, theLogger);
+    openEnvelopes = new LinkedHashMap<String, Envelope>();
+    unsentEnvelopes = new LinkedList<ClosedEnvelope>();
+    maxUnsentEnvelopes = DEFAULT_MAX_UNSENT_ENVELOPES;
+    sending = false;
+    closed = false;
+    lingerTimer = null;
+  } 
+
+  /** Set the max number of closed envelopes kept while they
+   * cannot be sent; when reached, send() fails. */
+  public synchronized void setMaxUnsentEnvelopes(int maxUnsentEnvelopes) {
+    this.maxUnsentEnvelopes = maxUnsentEnvelopes;
+  }
+
+  /** Queue a data object for sending in the envelope of
+   * its topic.
+   * @throws IOException if too many envelopes are waiting
+   * to be sent; the data object is then NOT queued
+   */
+  @Override
+  public void send(T dataObjectToSend, String topic) throws IOException { 
+    byte[] record = serializer.serialize( dataObjectToSend ); 
+    boolean filled;
+    synchronized (this) {
+      if ( unsentEnvelopes.size() >= maxUnsentEnvelopes ) {
+        throw new IOException("Envelope backlog full: "+unsentEnvelopes.size()+
+            " envelopes are waiting to be sent");
+      }
+      Envelope envelope = openEnvelopes.get(topic);
+      if ( envelope == null ) {
+        envelope = new Envelope(System.currentTimeMillis() + lingerMs);
+        openEnvelopes.put(topic, envelope);
+        scheduleLingerTimer(lingerMs);
+      }
+      envelope.batch.add(record);
+
+      filled = envelope.batch.getRecordCount() >= maxRecords 
+          || envelope.batch.size() >= maxBytes;
+      if ( filled ) {
+        closeEnvelope(topic);
+      }
+    }
+    // retry failed envelopes as well
+    if ( filled || hasUnsentEnvelopes() ) {
+      sendClosedEnvelopes();
+    }
+  } 
+
+  /** Send all envelopes, regardless of their size and age.
+   * @throws IOException if an envelope could not be sent;
+   * the unsent envelopes are kept. 
+   */
+  public void flush() throws IOException {
+    synchronized (this) {
+      List<String> topics = new ArrayList<String>(openEnvelopes.keySet());
+      for ( String topic : topics ) {
+        closeEnvelope(topic);
+      }
+    }
+    while ( true ) {
+      synchronized (this) {
+        // let another sending thread finish first
+        while ( sending ) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing envelopes");
+          }
+        }
+        if ( unsentEnvelopes.isEmpty() ) { return; }
+      }
+      IOException failure = sendClosedEnvelopes();
+      if ( failure != null ) { throw failure; }
+    }
+  }
+
+  /** Send all envelopes and stop the linger timer. */
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+    }
+    try {
+      flush();
+    } finally {
+      synchronized (this) {
+        if ( lingerTimer != null ) {
+          lingerTimer.cancel();
+          lingerTimer = null;
+        }
+      }
+    }
+  }
+
+  // caller must hold the lock
+  private void closeEnvelope(String topic) {
+    Envelope envelope = openEnvelopes.remove(topic);
+    unsentEnvelopes.addLast(new ClosedEnvelope(topic, envelope.batch.toByteArray(),
+        envelope.batch.getRecordCount()));
+  }
+
+  private synchronized boolean hasUnsentEnvelopes() {
+    return ! unsentEnvelopes.isEmpty();
+  }
+
+  // Send the closed envelopes in order, unless another thread
+  // is doing it. The lock is not held while sending. Return
+  // the failure that stopped the sending, or null.
+  private IOException sendClosedEnvelopes() {
+    synchronized (this) {
+      if ( sending ) { return null; }
+      sending = true;
+    }
+    boolean done = false;
+    try {
+      while ( true ) {
+        ClosedEnvelope next;
+        synchronized (this) {
+          next = unsentEnvelopes.peekFirst();
+          if ( next == null ) {
+            sending = false;
+            done = true;
+            notifyAll();
+            return null;
+          }
+        }
+        try {
+          envelopeSender.send(next.envelope, next.topic);
+        } catch (IOException e) {
+          theLogger.error(e.getClass().getSimpleName()+" when sending envelope on topic "+
+              next.topic+", will retry/Msg="+e.getMessage());
+          synchronized (this) {
+            if ( ! closed ) { scheduleLingerTimer(lingerMs); }
+          }
+          return e;
+        }
+        synchronized (this) {
+          unsentEnvelopes.removeFirst();
+        }
+      }
+    } finally {
+      if ( ! done ) {
+        synchronized (this) {
+          sending = false;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  // caller must hold the lock
+  private void scheduleLingerTimer(long delayMs) {
+    if ( lingerTimer == null ) {
+      lingerTimer = new Timer("EnvelopeLinger", true);
+    }
+    lingerTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        sendLingeringEnvelopes();
+      }
+    }, delayMs);
+  }
+
+  private void sendLingeringEnvelopes() {
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      List<String> topics = new ArrayList<String>(openEnvelopes.keySet());
+      for ( String topic : topics ) {
+        if ( openEnvelopes.get(topic).deadline <= now ) {
+          closeEnvelope(topic);
+        }
+      }
+    }
+    try {
+      // a failure is logged and rescheduled
+      sendClosedEnvelopes();
+    } catch (RuntimeException e) {
+      theLogger.error(e.getClass().getSimpleName()+" when sending lingering envelopes/Msg="+
+          e.getMessage());
+    }
+  }
+
+  /** return the number of records waiting to be sent. */
+  public synchronized int getPendingRecordCount() {
+    int count = 0;
+    for ( Envelope envelope : openEnvelopes.values() ) {
+      count += envelope.batch.getRecordCount();
+    }
+    for ( ClosedEnvelope envelope : unsentEnvelopes ) {
+      count += envelope.recordCount;
+    }
+    return count;
+  }
+
+  /** return the number of closed envelopes waiting to be
+   * sent. */
+  public synchronized int getUnsentEnvelopeCount() {
+    return unsentEnvelopes.size();
+  }
+
+  private static class Envelope {
+    final long deadline;
+    final BatchEnvelope batch;
+    Envelope(long deadline) {
+      this.deadline = deadline;
+      batch = new BatchEnvelope();
+    }
+  }
+
+  private static class ClosedEnvelope {
+    final String topic;
+    final byte[] envelope;
+    final int recordCount;
+    ClosedEnvelope(String topic, byte[] envelope, int recordCount) {
+      this.topic = topic;
+      this.envelope = envelope;
+      this.recordCount = recordCount;
+    }
+  }
+}
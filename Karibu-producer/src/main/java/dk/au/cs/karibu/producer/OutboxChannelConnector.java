@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.producer; 
+ 
+import java.io.*; 
+import java.util.*;
+
+import org.slf4j.*; 
+ 
+/** A decorator of a channel connector that stores and
+ * forwards: send() appends the payload to an outbox on the
+ * local disk and returns at once, and a background drainer
+ * forwards the payloads, in order, to the decorated connector
+ * whenever it can be reached. Thus a client keeps producing
+ * during an outage of the broker, instead of blocking in the
+ * reconnect attempts of the client request handler.
+ * 
+ * The outbox is a log of memory mapped segment files in a
+ * given directory. A segment is deleted when all its payloads
+ * are forwarded, and send() fails with an IOException when
+ * maxSegments segments are full, which bounds the disk usage.
+ * 
+ * The outbox survives a crash of the client: when created on
+ * an existing directory the segments are recovered, and their
+ * payloads that were not yet forwarded are forwarded when the
+ * connection is opened. Each payload has a crc, so a payload
+ * torn by the crash is detected, and it and the rest of its
+ * segment are discarded. A payload that was sent just before
+ * the crash may be forwarded again, so delivery is at least
+ * once. As the segments are only forced to disk when full and
+ * on closeConnection(), a crash of the operating system may
+ * lose the most recent payloads.
+ * 
+ * openConnection() starts the drainer and closeConnection()
+ * stops it; the decorated connector is opened and reopened by
+ * the drainer, which waits retryDelayMs after a failed attempt.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ */ 
+public class OutboxChannelConnector implements ChannelConnector { 
+
+  /** default size of a segment file */
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+  /** default max number of segment files */
+  public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+  private static final String SEGMENT_PREFIX = "outbox-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final ChannelConnector connector;
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final long retryDelayMs;
+  private final Logger theLogger;
+
+  // the fields below are guarded by 'this'
+  private final LinkedList<OutboxSegment> segments;
+  private long nextSegmentNumber;
+  private Thread drainer;
+  private boolean running;
+  private long forwardedCount;
+
+  public OutboxChannelConnector(ChannelConnector connector, File directory) 
+      throws IOException {
+    this(connector, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, 5000,
+        LoggerFactory.getLogger(OutboxChannelConnector.class));
+  }
+
+  /** Create the outbox, recovering the segments found in the
+   * directory.
+   * @param connector the connector to forward to
+   * @param directory the directory of the segment files
+   * @param segmentSize the size in bytes of a segment file; it 
+   * limits the size of a payload
+   * @param maxSegments max number of segment files
+   * @param retryDelayMs time to wait after a failed forward
+   * @param theLogger the logging mechanism to use
+   */
+  public OutboxChannelConnector(ChannelConnector connector, File directory,
+      int segmentSize, int maxSegments, long retryDelayMs, Logger theLogger) 
+      throws IOException {
+    this.connector = connector;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    this.retryDelayMs = retryDelayMs;
+    this.theLogger = theLogger;
+    segments = new LinkedList<OutboxSegment>();
+    if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+      throw new IOException("Cannot create outbox directory "+directory);
+    }
+    recover();
+  }
+
+  private void recover() throws IOException {
+    SortedMap<Long,File> files = new TreeMap<Long, File>();
+    File[] listed = directory.listFiles();
+    for ( File file : listed == null ? new File[0] : listed ) {
+      String name = file.getName();
+      if ( name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) ) {
+        try {
+          files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), 
+              name.length() - SEGMENT_SUFFIX.length())), file);
+        } catch (NumberFormatException e) {
+          theLogger.info("Ignoring unknown file in outbox: "+name);
+        }
+      }
+    }
+    nextSegmentNumber = files.isEmpty() ? 0 : files.lastKey() + 1;
+    for ( Map.Entry<Long,File> entry : files.entrySet() ) {
+      segments.add(OutboxSegment.recover(entry.getValue(), entry.getKey()));
+    }
+    if ( getPendingCount() > 0 ) {
+      theLogger.info("Recovered "+getPendingCount()+" pending payloads from outbox "+directory);
+    }
+  }
+
+  public synchronized void send(byte[] bytes, String topic) throws IOException { 
+    byte[] topicBytes = topic.getBytes("UTF-8");
+    OutboxSegment tail = segments.isEmpty() ? null : segments.getLast();
+    if ( tail == null || ! tail.append(topicBytes, bytes) ) {
+      if ( 2 + topicBytes.length + bytes.length > 
+           segmentSize - OutboxSegment.RECORD_HEADER_LENGTH ) {
+        throw new IOException("Payload of "+bytes.length+
+            " bytes does not fit in an outbox segment of "+segmentSize+" bytes");
+      }
+      if ( segments.size() >= maxSegments ) {
+        throw new IOException("Outbox full: "+getPendingCount()+" payloads in "+
+            segments.size()+" segments are pending");
+      }
+      if ( tail != null ) { tail.force(); }
+      tail = OutboxSegment.create(new File(directory, segmentName(nextSegmentNumber)), 
+          nextSegmentNumber, segmentSize);
+      nextSegmentNumber++;
+      segments.add(tail);
+      tail.append(topicBytes, bytes);
+    }
+    notifyAll();
+  } 
+
+  private static String segmentName(long number) {
+    return SEGMENT_PREFIX + String.format("%016d", number) + SEGMENT_SUFFIX;
+  }
+ 
+  @Override 
+  public synchronized void openConnection() throws IOException {     
+    if ( running ) { return; }
+    running = true;
+    drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "OutboxDrainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  } 
+ 
+  @Override 
+  public void closeConnection() throws IOException { 
+    Thread stopped;
+    synchronized (this) {
+      running = false;
+      stopped = drainer;
+      drainer = null;
+      notifyAll();
+      for ( OutboxSegment segment : segments ) {
+        segment.force();
+      }
+    }
+    if ( stopped != null ) {
+      try {
+        stopped.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if ( connector.isOpen() ) { connector.closeConnection(); }
+  } 
+ 
+  @Override 
+  public synchronized boolean isOpen() { 
+    return running; 
+  } 
+
+  private void drain() {
+    boolean reconnect = false;
+    while ( true ) {
+      byte[][] record;
+      synchronized (this) {
+        record = nextRecord();
+        while ( running && record == null ) {
+          waitQuietly(0);
+          record = nextRecord();
+        }
+        if ( ! running ) { return; }
+      }
+      try {
+        if ( reconnect || ! connector.isOpen() ) { connector.openConnection(); }
+        connector.send(record[1], new String(record[0], "UTF-8"));
+        reconnect = false;
+        synchronized (this) {
+          segments.getFirst().markForwarded();
+          forwardedCount++;
+          notifyAll();
+        }
+      } catch (Exception e) {
+        // IOExceptions as well as rabbit's AlreadyClosedException
+        theLogger.info("Forwarding from outbox failed, retry in "+retryDelayMs+
+            " ms/"+e.getClass().getSimpleName()+"/Msg="+e.getMessage());
+        reconnect = true;
+        synchronized (this) {
+          if ( running ) { waitQuietly(retryDelayMs); }
+        }
+      }
+    }
+  }
+
+  // caller must hold the lock; return the oldest pending
+  // record, deleting the segments that are forwarded
+  private byte[][] nextRecord() {
+    while ( ! segments.isEmpty() ) {
+      OutboxSegment head = segments.getFirst();
+      byte[][] record = head.peek();
+      if ( record != null || segments.size() == 1 ) { return record; }
+      segments.removeFirst();
+      head.delete();
+    }
+    return null;
+  }
+
+  // caller must hold the lock
+  private void waitQuietly(long timeoutMs) {
+    try {
+      wait(timeoutMs);
+    } catch (InterruptedException e) {
+      running = false;
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Wait until all payloads are forwarded.
+   * @param timeoutMs max time to wait
+   * @return true if all were forwarded, false on timeout
+   */
+  public synchronized boolean waitUntilDrained(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while ( getPendingCount() > 0 ) {
+      long remaining = deadline - System.currentTimeMillis();
+      if ( remaining <= 0 ) { return false; }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /** return the number of payloads not yet forwarded. */
+  public synchronized int getPendingCount() {
+    int count = 0;
+    for ( OutboxSegment segment : segments ) {
+      count += segment.getPendingCount();
+    }
+    return count;
+  }
+
+  /** return the number of payloads forwarded since creation. */
+  public synchronized long getForwardedCount() {
+    return forwardedCount;
+  }
+
+  /** return the number of segment files. */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  public synchronized String toString() {
+    return "OutboxChannelConnector (pending: "+getPendingCount()+" in "+segments.size()+
+        " of "+maxSegments+" segments, forwarded: "+forwardedCount+", "+connector+")";
+  }
+} 
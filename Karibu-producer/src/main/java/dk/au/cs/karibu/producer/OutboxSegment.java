@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.producer; 
+ 
+import java.io.*; 
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+ 
+/** A segment of the outbox: a memory mapped file of
+ * records, each being
+ * 
+ * [length int32][crc32 int32][topic length int16][topic][payload]
+ * 
+ * where the length counts the bytes after the crc, and the
+ * crc covers them. The length is written last, so a record is
+ * not visible until it is complete; a zero length marks the end
+ * of the segment. A record that has been forwarded gets its
+ * length negated, so it is skipped when the segment is
+ * recovered after a restart.
+ * 
+ * Not thread safe; the outbox guards its segments.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ */ 
+class OutboxSegment { 
+
+  static final int RECORD_HEADER_LENGTH = 8;
+
+  private final long number;
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private int writePosition;
+  private int readPosition;
+  private int pendingCount;
+
+  private OutboxSegment(long number, File file, int capacity) throws IOException {
+    this.number = number;
+    this.file = file;
+    this.capacity = capacity;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(capacity);
+      // the mapping stays valid after the file is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Create a new, empty segment. */
+  static OutboxSegment create(File file, long number, int capacity) throws IOException {
+    return new OutboxSegment(number, file, capacity);
+  }
+
+  /** Open an existing segment and find its pending records;
+   * the segment ends at the first record that is incomplete
+   * or fails its crc check, and the rest is cleared. */
+  static OutboxSegment recover(File file, long number) throws IOException {
+    OutboxSegment segment = new OutboxSegment(number, file, (int) file.length());
+    segment.scan();
+    return segment;
+  }
+
+  private void scan() {
+    int pos = 0;
+    readPosition = -1;
+    while ( pos + RECORD_HEADER_LENGTH <= capacity ) {
+      int length = buffer.getInt(pos);
+      int size = Math.abs(length);
+      if ( length == 0 || size < 2 || size > capacity - pos - RECORD_HEADER_LENGTH ) { break; }
+      if ( length > 0 ) {
+        if ( crcOf(pos, size) != buffer.getInt(pos + 4) ) { break; }
+        if ( readPosition < 0 ) { readPosition = pos; }
+        pendingCount++;
+      }
+      pos += RECORD_HEADER_LENGTH + size;
+    }
+    writePosition = pos;
+    if ( readPosition < 0 ) { readPosition = writePosition; }
+    for ( int i = writePosition; i < capacity; i++ ) {
+      buffer.put(i, (byte) 0);
+    }
+  }
+
+  /** Append a record. 
+   * @return false if the record does not fit in the segment
+   */
+  boolean append(byte[] topic, byte[] payload) {
+    int size = 2 + topic.length + payload.length;
+    if ( size > capacity - writePosition - RECORD_HEADER_LENGTH ) { return false; }
+    ByteBuffer body = buffer.duplicate();
+    body.position(writePosition + RECORD_HEADER_LENGTH);
+    body.putShort((short) topic.length);
+    body.put(topic);
+    body.put(payload);
+    buffer.putInt(writePosition + 4, crcOf(writePosition, size));
+    buffer.putInt(writePosition, size);
+    writePosition += RECORD_HEADER_LENGTH + size;
+    pendingCount++;
+    return true;
+  }
+
+  /** return the topic and payload of the oldest pending
+   * record, or null if there is none. */
+  byte[][] peek() {
+    while ( readPosition < writePosition ) {
+      int length = buffer.getInt(readPosition);
+      if ( length > 0 ) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(readPosition + RECORD_HEADER_LENGTH);
+        byte[] topic = new byte[body.getShort()];
+        body.get(topic);
+        byte[] payload = new byte[length - 2 - topic.length];
+        body.get(payload);
+        return new byte[][] { topic, payload };
+      }
+      readPosition += RECORD_HEADER_LENGTH - length;
+    }
+    return null;
+  }
+
+  /** Mark the record returned by peek() as forwarded. */
+  void markForwarded() {
+    int length = buffer.getInt(readPosition);
+    buffer.putInt(readPosition, -length);
+    readPosition += RECORD_HEADER_LENGTH + length;
+    pendingCount--;
+  }
+
+  // the crc32 of the bytes after the header of the record at pos
+  private int crcOf(int pos, int size) {
+    byte[] bytes = new byte[size];
+    ByteBuffer body = buffer.duplicate();
+    body.position(pos + RECORD_HEADER_LENGTH);
+    body.get(bytes);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  /** Write the changes to the file. */
+  void force() {
+    buffer.force();
+  }
+
+  void delete() {
+    if ( ! file.delete() ) {
+      file.deleteOnExit();
+    }
+  }
+
+  long getNumber() {
+    return number;
+  }
+
+  int getPendingCount() {
+    return pendingCount;
+  }
+
+  /** return true if all records are forwarded */
+  boolean isEmpty() {
+    return pendingCount == 0;
+  }
+} 
@@ -24,7 +24,7 @@ import org.slf4j.*;
 
 import com.rabbitmq.client.AlreadyClosedException; 
 
-import dk.au.cs.karibu.serialization.Serializer;
+import dk.au.cs.karibu.serialization.*;
  
 /** A standard implementation of the client request 
  * handler. Individual clients parameterize this with 
@@ -60,6 +60,17 @@ import dk.au.cs.karibu.serialization.Serializer;
  * (identified by multiple 'producer codes') then 
  * one instance of this class must be defined for each message type 
  * 
+ * A handler keeps no state between sends, so it may be
+ * used by many threads if its connector is thread safe.
+ * RabbitChannelConnector is not, but a single
+ * PooledRabbitChannelConnector may be shared by all the
+ * handlers of a client.
+ * 
+ * If the serializer is a BufferedSerializer, it writes the
+ * data object directly after the producer code in a buffer
+ * that each thread reuses, and only the final payload array
+ * is allocated per send.
+ * 
  *  
  * Review the other constructors for more specialized 
  * behavior (no fail-over, different time-out). 
@@ -72,6 +83,10 @@ public class StandardClientRequestHandler<T> implements ClientRequestHandler<T>
  
   private ChannelConnector connector; 
   private String dataTypeID; 
+  private byte[] payloadHeader;
+  private ThreadLocal<SerializationBuffer> buffers;
+  /** max capacity of a buffer kept for the next send */ 
+  private static final int MAX_REUSED_BUFFER_CAPACITY = 64 * 1024;
   private Serializer<T> serializer; 
   private Logger theLogger; 
   /** the delay in ms before a retry is made to the server side */ 
@@ -132,6 +147,8 @@ public class StandardClientRequestHandler<T> implements ClientRequestHandler<T>
       int noReconnectsBeforeFailing, Logger theLogger) { 
     this.theLogger = theLogger; 
     this.dataTypeID = producerCode; 
+    payloadHeader = producerCode.getBytes(); 
+    buffers = new ThreadLocal<SerializationBuffer>();
     this.connector = connector; 
     serializer = theSerializer; 
     retryDelayInMs = timeoutMSBeforeReconnect; 
@@ -141,8 +158,10 @@ public class StandardClientRequestHandler<T> implements ClientRequestHandler<T>
  
  
   public void send(T dataObjectToSend, String topic) throws IOException { 
-    byte[] payloadHeader = dataTypeID.getBytes(); 
-        
+    if ( serializer instanceof BufferedSerializer ) {
+      sendOverConnector(topic, serializeIntoBuffer(dataObjectToSend));
+      return;
+    }
     byte[] payloadBody = serializer.serialize( dataObjectToSend ); 
      
     byte[] payload = new byte[ payloadHeader.length + payloadBody.length]; 
@@ -152,6 +171,22 @@ public class StandardClientRequestHandler<T> implements ClientRequestHandler<T>
      
     sendOverConnector(topic, payload);  
   } 
+
+  @SuppressWarnings("unchecked")
+  private byte[] serializeIntoBuffer(T dataObjectToSend) {
+    SerializationBuffer buffer = buffers.get();
+    if ( buffer == null ) {
+      buffer = new SerializationBuffer();
+      buffer.write(payloadHeader);
+      buffers.set(buffer);
+    }
+    buffer.truncate(payloadHeader.length);
+    ((BufferedSerializer<T>) serializer).serialize(dataObjectToSend, buffer);
+    byte[] payload = buffer.toByteArray();
+    // do not hold on to the buffer of an exceptionally large payload
+    if ( buffer.capacity() > MAX_REUSED_BUFFER_CAPACITY ) { buffers.remove(); }
+    return payload;
+  }
  
   /** send the payload over the connector, potentially with 
    * reconnection attempts. 
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.producer.rabbitmq; 
+ 
+import java.io.*; 
+import java.util.*;
+
+import com.rabbitmq.client.*; 
+
+import dk.au.cs.karibu.common.Histogram;
+ 
+/** A rabbit mq based connector that uses publisher confirms,
+ * so every message is known to be accepted by the broker.
+ * 
+ * Confirms are tracked asynchronously: send() returns once the
+ * message is published, and up to maxOutstanding messages may
+ * await their confirm; send() blocks while the window is full.
+ * A message that the broker nacks is published again, and so
+ * are the messages still unconfirmed when the connection is
+ * reopened, e.g. after the client request handler failed over;
+ * thus messages are delivered at least once. If publishing them
+ * again fails, openConnection() throws and the messages not yet
+ * published are kept for the next reopening. 
+ * 
+ * The latency from publish to confirm is recorded in a
+ * histogram, so its percentiles can be reported.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ */ 
+public class ConfirmingRabbitChannelConnector extends RabbitChannelConnector { 
+
+  /** default max number of messages awaiting confirms */
+  public static final int DEFAULT_MAX_OUTSTANDING = 1000;
+
+  private final int maxOutstanding;
+  private final Histogram confirmLatency;
+
+  private final Object lock = new Object();
+  // the fields below are guarded by 'lock'
+  // unconfirmed messages on the current channel by sequence number
+  private final SortedMap<Long,Publish> outstanding;
+  // messages to publish again on the next channel, in order
+  private final LinkedList<Publish> unsent;
+  private long confirmedCount;
+  private long nackedCount;
+
+  public ConfirmingRabbitChannelConnector(RabbitExchangeConfiguration exchangeConfiguration) 
+      throws IOException {
+    this(exchangeConfiguration, DEFAULT_MAX_OUTSTANDING);
+  }
+
+  /** Declare a message producer 
+   *  
+   * @param exchangeConfiguration configuration of the exchange to send to 
+   * @param maxOutstanding max number of messages awaiting confirms
+   * @throws IOException 
+   */ 
+  public ConfirmingRabbitChannelConnector(RabbitExchangeConfiguration exchangeConfiguration,
+      int maxOutstanding) throws IOException { 
+    super(exchangeConfiguration);
+    this.maxOutstanding = maxOutstanding;
+    confirmLatency = new Histogram();
+    outstanding = new TreeMap<Long, Publish>();
+    unsent = new LinkedList<Publish>();
+  }
+
+  @Override 
+  public void openConnection() throws IOException {     
+    super.openConnection();
+    enableConfirms();
+  }
+
+  /** Put the newly opened channel in confirm mode, and publish
+   * the messages that were not confirmed on the previous one. */
+  protected void enableConfirms() throws IOException {
+    final Channel confirmChannel = channel;
+    confirmChannel.confirmSelect();
+    confirmChannel.addConfirmListener(new ConfirmListener() {
+      @Override
+      public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+        confirm(confirmChannel, deliveryTag, multiple, true);
+      }
+      @Override
+      public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+        confirm(confirmChannel, deliveryTag, multiple, false);
+      }
+    });
+    confirmChannel.addShutdownListener(new ShutdownListener() {
+      @Override
+      public void shutdownCompleted(ShutdownSignalException cause) {
+        // wake senders waiting for the window
+        synchronized (lock) { lock.notifyAll(); }
+      }
+    });
+    synchronized (lock) {
+      // the unconfirmed messages go before those already unsent
+      unsent.addAll(0, outstanding.values());
+      outstanding.clear();
+      if ( ! unsent.isEmpty() ) {
+        theLogger.info("Publishing "+unsent.size()+" unconfirmed messages again.");
+      }
+      // a message is only removed once published, so if a publish
+      // fails, it and those behind it are kept for the next channel
+      while ( ! unsent.isEmpty() ) {
+        publish(unsent.getFirst());
+        unsent.removeFirst();
+      }
+    }
+  }
+
+  @Override
+  public void send(byte[] payload, String topic) throws IOException { 
+    synchronized (lock) {
+      while ( outstanding.size() >= maxOutstanding ) {
+        if ( channel == null || ! channel.isOpen() ) {
+          throw new AlreadyClosedException("Channel closed with "+outstanding.size()+
+              " unconfirmed messages", channel);
+        }
+        try {
+          lock.wait(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while awaiting confirms");
+        }
+      }
+      publish(new Publish(payload, topic));
+    }
+  } 
+
+  // caller must hold 'lock'; a message whose publish fails
+  // is not tracked, as the caller is told
+  private void publish(Publish p) throws IOException {
+    long seqNo = channel.getNextPublishSeqNo();
+    p.publishedAt = System.nanoTime();
+    outstanding.put(seqNo, p);
+    boolean published = false;
+    try {
+      super.send(p.payload, p.topic);
+      published = true;
+    } finally {
+      if ( ! published ) { outstanding.remove(seqNo); }
+    }
+  }
+
+  private void confirm(Channel confirmChannel, long deliveryTag, boolean multiple,
+      boolean ack) {
+    synchronized (lock) {
+      // the messages of an old channel have been published again
+      if ( confirmChannel != channel ) { return; }
+      List<Long> seqNos;
+      if ( multiple ) {
+        seqNos = new ArrayList<Long>(outstanding.headMap(deliveryTag + 1).keySet());
+      } else {
+        seqNos = Collections.singletonList(deliveryTag);
+      }
+      long now = System.nanoTime();
+      for ( Long seqNo : seqNos ) {
+        Publish p = outstanding.remove(seqNo);
+        if ( p == null ) { continue; }
+        if ( ack ) {
+          confirmedCount++;
+          confirmLatency.record(now - p.publishedAt);
+        } else {
+          nackedCount++;
+          republish(p);
+        }
+      }
+      lock.notifyAll();
+    }
+  }
+
+  // caller must hold 'lock'
+  private void republish(Publish p) {
+    try {
+      publish(p);
+    } catch (Exception e) {
+      theLogger.error("Publishing nacked message failed, will retry on reconnect/Msg="+
+          e.getMessage());
+      unsent.add(p);
+    }
+  }
+
+  /** Wait until all messages are confirmed.
+   * @param timeoutMs max time to wait
+   * @return true if all were confirmed, false on timeout
+   */
+  public boolean waitForConfirms(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (lock) {
+      while ( ! outstanding.isEmpty() || ! unsent.isEmpty() ) {
+        long remaining = deadline - System.currentTimeMillis();
+        if ( remaining <= 0 ) { return false; }
+        lock.wait(remaining);
+      }
+      return true;
+    }
+  }
+
+  /** return the number of messages awaiting their confirm. */
+  public int getOutstandingCount() {
+    synchronized (lock) {
+      return outstanding.size() + unsent.size();
+    }
+  }
+
+  public long getConfirmedCount() {
+    synchronized (lock) {
+      return confirmedCount;
+    }
+  }
+
+  public long getNackedCount() {
+    synchronized (lock) {
+      return nackedCount;
+    }
+  }
+
+  /** return the histogram of the latency, in ns, from
+   * publish to confirm. */
+  public Histogram getConfirmLatency() {
+    return confirmLatency;
+  }
+
+  public String toString() {
+    return "ConfirmingRabbitChannelConnector (confirmed: "+getConfirmedCount()+
+        ", nacked: "+getNackedCount()+", outstanding: "+getOutstandingCount()+
+        ", confirm latency "+confirmLatency.toString(1000000L, "ms")+")";
+  }
+
+  private static class Publish {
+    final byte[] payload;
+    final String topic;
+    long publishedAt;
+    Publish(byte[] payload, String topic) {
+      this.payload = payload;
+      this.topic = topic;
+    }
+  }
+} 
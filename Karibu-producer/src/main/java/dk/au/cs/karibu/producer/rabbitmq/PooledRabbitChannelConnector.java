@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.producer.rabbitmq; 
+ 
+import java.io.*; 
+import java.util.*;
+
+import org.slf4j.*; 
+
+import com.rabbitmq.client.*; 
+
+import dk.au.cs.karibu.producer.ChannelConnector;
+ 
+/** A rabbit mq based connector that may be shared by many
+ * client request handlers, for instance one per producer
+ * code, that send from many threads.
+ * 
+ * One connection to the broker is shared, and every send
+ * leases a channel from a pool of at most maxChannels
+ * channels, as a channel must not be used by two threads
+ * at a time; a send blocks while all channels are leased.
+ * The most recently returned channel is leased first, so a
+ * thread that sends repeatedly tends to reuse its channel.
+ * 
+ * openConnection() only connects anew if the shared
+ * connection is not open, so the handlers that fail over
+ * at the same time do not trash each other's connection.
+ * A channel that fails is discarded, and a new one is
+ * created by a later send.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ */ 
+public class PooledRabbitChannelConnector implements ChannelConnector { 
+
+  /** default max number of channels in the pool */
+  public static final int DEFAULT_MAX_CHANNELS = 16;
+
+  private final RabbitExchangeConfiguration exchangeConfiguration; 
+  private final int maxChannels;
+  private final Logger theLogger;
+
+  // the fields below are guarded by 'this'
+  private Connection connection; 
+  private final LinkedList<Channel> idleChannels;
+  // channels of the current connection, leased or idle
+  private int channelCount;
+  private long leaseWaitCount;
+
+  public PooledRabbitChannelConnector(RabbitExchangeConfiguration exchangeConfiguration) {
+    this(exchangeConfiguration, DEFAULT_MAX_CHANNELS);
+  }
+
+  /** Declare a shared message producer 
+   *  
+   * @param exchangeConfiguration configuration of the exchange to send to 
+   * @param maxChannels max number of channels, and thus of
+   * concurrent sends
+   */ 
+  public PooledRabbitChannelConnector(RabbitExchangeConfiguration exchangeConfiguration,
+      int maxChannels) { 
+    theLogger = LoggerFactory.getLogger(PooledRabbitChannelConnector.class); 
+    this.exchangeConfiguration = exchangeConfiguration; 
+    this.maxChannels = maxChannels;
+    idleChannels = new LinkedList<Channel>();
+    connection = null;
+    channelCount = 0;
+  } 
+     
+  public void send(byte[] payload, String topic) throws IOException { 
+    Channel channel = lease();
+    boolean sent = false;
+    try {
+      channel.basicPublish(exchangeConfiguration.getExchangeName(), topic,  
+          MessageProperties.PERSISTENT_BASIC, payload);  
+      sent = true;
+    } finally {
+      release(channel, sent);
+    }
+  } 
+
+  private synchronized Channel lease() throws IOException {
+    while ( true ) {
+      if ( connection == null || ! connection.isOpen() ) {
+        throw new AlreadyClosedException("The shared connection is not open", connection);
+      }
+      Channel channel = idleChannels.poll();
+      if ( channel != null ) {
+        if ( channel.isOpen() ) { return channel; }
+        channelCount--;
+      } else if ( channelCount < maxChannels ) {
+        channel = connection.createChannel();
+        channelCount++;
+        return channel;
+      } else {
+        leaseWaitCount++;
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while awaiting a channel");
+        }
+      }
+    }
+  }
+
+  private synchronized void release(Channel channel, boolean healthy) {
+    // a channel of an old connection is just dropped
+    if ( channel.getConnection() == connection ) {
+      if ( healthy && channel.isOpen() ) {
+        idleChannels.addFirst(channel);
+      } else {
+        channelCount--;
+        closeQuietly(channel);
+      }
+    }
+    notifyAll();
+  }
+ 
+  @Override 
+  public synchronized void openConnection() throws IOException {     
+    if ( isOpen() ) { return; }
+    theLogger.info("openConnection: "+ exchangeConfiguration); 
+    discardConnection();
+    Connection newConnection = createConnection(); 
+ 
+    Channel channel = newConnection.createChannel(); 
+    channel.exchangeDeclare( 
+        exchangeConfiguration.getExchangeName(), 
+        exchangeConfiguration.getExchangeType(), 
+        exchangeConfiguration.isExchangeDurable() ); 
+    connection = newConnection;
+    idleChannels.add(channel);
+    channelCount = 1;
+    notifyAll();
+  } 
+
+  /** Create the connection to share. */
+  protected Connection createConnection() throws IOException {
+    return RabbitChannelConnector.createConnection(exchangeConfiguration, theLogger);
+  }
+ 
+  @Override 
+  public synchronized void closeConnection() throws IOException { 
+    for ( Channel channel : idleChannels ) {
+      closeQuietly(channel);
+    }
+    idleChannels.clear();
+    channelCount = 0;
+    if ( connection != null ) {
+      Connection open = connection;
+      connection = null;
+      notifyAll();
+      open.close();
+    }
+  } 
+
+  // caller must hold the lock
+  private void discardConnection() {
+    if ( connection != null ) {
+      try {
+        closeConnection();
+      } catch (Exception e) {
+        theLogger.info("Closing the failed connection: "+e.getMessage());
+      }
+    }
+  }
+
+  private void closeQuietly(Channel channel) {
+    try {
+      if ( channel.isOpen() ) { channel.close(); }
+    } catch (Exception e) {
+      theLogger.info("Closing a failed channel: "+e.getMessage());
+    }
+  }
+ 
+  @Override 
+  public synchronized boolean isOpen() { 
+    return connection != null && connection.isOpen(); 
+  } 
+
+  /** return the number of channels, leased or idle. */
+  public synchronized int getChannelCount() {
+    return channelCount;
+  }
+
+  /** return the number of channels not leased. */
+  public synchronized int getIdleChannelCount() {
+    return idleChannels.size();
+  }
+
+  /** return the number of times a send had to wait
+   * for a channel. */
+  public synchronized long getLeaseWaitCount() {
+    return leaseWaitCount;
+  }
+
+  public synchronized String toString() {
+    return "PooledRabbitChannelConnector (channels: "+channelCount+" of "+maxChannels+
+        ", idle: "+idleChannels.size()+", lease waits: "+leaseWaitCount+")";
+  }
+} 
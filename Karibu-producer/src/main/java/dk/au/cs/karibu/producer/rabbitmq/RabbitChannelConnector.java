@@ -34,10 +34,10 @@ import dk.au.cs.karibu.producer.ChannelConnector;
  */ 
 public class RabbitChannelConnector implements ChannelConnector { 
  
-  private Channel channel; 
+  protected Channel channel; 
   private Connection connection; 
-  private RabbitExchangeConfiguration exchangeConfiguration; 
-  private Logger theLogger;
+  protected RabbitExchangeConfiguration exchangeConfiguration; 
+  protected Logger theLogger;
   
   /** Declare a message producer 
    *  
@@ -59,6 +59,21 @@ public class RabbitChannelConnector implements ChannelConnector {
   @Override 
   public void openConnection() throws IOException {     
     theLogger.info("openConnection: "+ exchangeConfiguration); 
+    connection = createConnection(exchangeConfiguration, theLogger); 
+ 
+    channel = connection.createChannel(); 
+    channel.exchangeDeclare( 
+        exchangeConfiguration.getExchangeName(), 
+        exchangeConfiguration.getExchangeType(), 
+        exchangeConfiguration.isExchangeDurable() ); 
+ 
+    // The queue and the binding between queue and exchange is defined by the server side! 
+  } 
+ 
+  /** Create a connection to the broker(s) of the given
+   * exchange configuration. */
+  static Connection createConnection(RabbitExchangeConfiguration exchangeConfiguration,
+      Logger theLogger) throws IOException { 
     ConnectionFactory factory = new ConnectionFactory(); 
     factory.setUsername( exchangeConfiguration.getUsername() ); 
     factory.setPassword( exchangeConfiguration.getPassword() ); 
@@ -71,15 +86,7 @@ public class RabbitChannelConnector implements ChannelConnector {
         theLogger.error("NoSuchAlgorithmException: "+e.getLocalizedMessage()); 
       } 
     } 
-    connection = factory.newConnection( exchangeConfiguration.getServerAddressList() ); 
- 
-    channel = connection.createChannel(); 
-    channel.exchangeDeclare( 
-        exchangeConfiguration.getExchangeName(), 
-        exchangeConfiguration.getExchangeType(), 
-        exchangeConfiguration.isExchangeDurable() ); 
- 
-    // The queue and the binding between queue and exchange is defined by the server side! 
+    return factory.newConnection( exchangeConfiguration.getServerAddressList() ); 
   } 
  
   @Override 
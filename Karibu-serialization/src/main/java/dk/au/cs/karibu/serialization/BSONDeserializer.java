@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.util.Arrays;
+
+import org.bson.*;
+
+import com.mongodb.BasicDBObject; 
+ 
+/** A deserializer for payloads that are BSON documents
+ * already, as made by a BSONSerializer.
+ * 
+ * If the consumer's processing strategy can process raw BSON,
+ * the consumer only validates the framing of the payload, see
+ * validate(), and hands the bytes over unchanged; otherwise the
+ * payload is decoded into a MongoDB document by this
+ * deserializer, like any other.
+ * 
+ * The validation walks the elements of the document and its
+ * embedded documents and arrays, and checks that every length
+ * prefix and terminator is consistent with the size of the
+ * payload, without decoding any values. It does not check that
+ * strings are proper UTF-8 or that field names are unique.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public class BSONDeserializer implements Deserializer, ByteRangeDeserializer { 
+
+  /** the max depth of embedded documents, as in MongoDB */
+  public static final int MAX_NESTING_DEPTH = 100;
+
+  // the smallest document: the length and the terminator
+  private static final int MIN_DOCUMENT_LENGTH = 5;
+
+  @Override
+  public BasicDBObject buildDocumentFromByteArray(byte[] payload) {
+    return buildDocumentFromByteRange(payload, 0, payload.length);
+  }
+
+  @Override
+  public BasicDBObject buildDocumentFromByteRange(byte[] buffer, int offset, int length) {
+    validate(buffer, offset, length);
+    byte[] payload = buffer;
+    if ( offset != 0 || length != buffer.length ) {
+      payload = Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+    BSONObject decoded = new BasicBSONDecoder().readObject(payload);
+    return new BasicDBObject(decoded.toMap());
+  }
+
+  /** Validate the framing of a BSON document.
+   * @param buffer the array holding the document
+   * @param offset the index of the first byte of the document
+   * @param length the number of bytes of the document
+   * @throws BSONException if the range does not hold exactly
+   * one well framed document
+   */
+  public static void validate(byte[] buffer, int offset, int length) {
+    if ( offset < 0 || length < 0 || offset + length > buffer.length ) {
+      throw new BSONException("BSON range ["+offset+","+(offset+length)+
+          ") is outside the buffer of "+buffer.length+" bytes");
+    }
+    int end = validateDocument(buffer, offset, offset + length, 0);
+    if ( end != offset + length ) {
+      throw new BSONException("BSON document of "+(end - offset)+
+          " bytes does not fill the payload of "+length+" bytes");
+    }
+  }
+
+  // validate the document starting at pos, which must end
+  // at or before limit; return the index just after it
+  private static int validateDocument(byte[] buffer, int pos, int limit, int depth) {
+    if ( depth > MAX_NESTING_DEPTH ) {
+      throw new BSONException("BSON documents nested deeper than "+MAX_NESTING_DEPTH);
+    }
+    int documentLength = readLength(buffer, pos, limit);
+    if ( documentLength < MIN_DOCUMENT_LENGTH ) {
+      throw new BSONException("BSON document length "+documentLength+" at "+pos+" is too short");
+    }
+    int end = skip(pos, documentLength, limit);
+    int last = end - 1;
+    int p = pos + 4;
+    while ( p < last ) {
+      byte type = buffer[p++];
+      p = skipCString(buffer, p, last);
+      p = skipValue(buffer, type, p, last, depth);
+    }
+    if ( p != last || buffer[last] != 0 ) {
+      throw new BSONException("BSON document at "+pos+" is not terminated at "+last);
+    }
+    return end;
+  }
+
+  // skip the value of the given type starting at pos, which
+  // must end at or before limit; return the index just after it
+  private static int skipValue(byte[] buffer, byte type, int pos, int limit, int depth) {
+    switch ( type ) {
+    case 0x06: // undefined
+    case 0x0A: // null
+    case (byte) 0xFF: // min key
+    case 0x7F: // max key
+      return pos;
+    case 0x08: // boolean
+      return skip(pos, 1, limit);
+    case 0x10: // int32
+      return skip(pos, 4, limit);
+    case 0x01: // double
+    case 0x09: // UTC datetime
+    case 0x11: // timestamp
+    case 0x12: // int64
+      return skip(pos, 8, limit);
+    case 0x07: // object id
+      return skip(pos, 12, limit);
+    case 0x13: // decimal128
+      return skip(pos, 16, limit);
+    case 0x02: // string
+    case 0x0D: // javascript
+    case 0x0E: // symbol
+      return skipString(buffer, pos, limit);
+    case 0x03: // document
+    case 0x04: // array
+      return validateDocument(buffer, pos, limit, depth + 1);
+    case 0x05: { // binary: length, subtype and bytes
+      int length = readLength(buffer, pos, limit);
+      return skip(skip(pos, 5, limit), length, limit);
+    }
+    case 0x0B: // regular expression: pattern and options
+      return skipCString(buffer, skipCString(buffer, pos, limit), limit);
+    case 0x0C: // db pointer: namespace and object id
+      return skip(skipString(buffer, pos, limit), 12, limit);
+    case 0x0F: { // javascript with scope: length, code and scope
+      int end = skip(pos, readLength(buffer, pos, limit), limit);
+      int p = skipString(buffer, pos + 4, end);
+      if ( validateDocument(buffer, p, end, depth + 1) != end ) {
+        throw new BSONException("BSON code with scope at "+pos+" has a wrong length");
+      }
+      return end;
+    }
+    default:
+      throw new BSONException("BSON element at "+(pos - 1)+" has unknown type "+type);
+    }
+  }
+
+  private static int skip(int pos, int count, int limit) {
+    if ( count < 0 || count > limit - pos ) {
+      throw new BSONException("BSON value at "+pos+" of "+count+
+          " bytes overruns its document");
+    }
+    return pos + count;
+  }
+
+  // a string is its length (including the terminator), the
+  // UTF-8 bytes and a terminating zero
+  private static int skipString(byte[] buffer, int pos, int limit) {
+    int length = readLength(buffer, pos, limit);
+    int end = skip(pos + 4, length, limit);
+    if ( length < 1 || buffer[end - 1] != 0 ) {
+      throw new BSONException("BSON string at "+pos+" is not terminated");
+    }
+    return end;
+  }
+
+  private static int skipCString(byte[] buffer, int pos, int limit) {
+    for ( int p = pos; p < limit; p++ ) {
+      if ( buffer[p] == 0 ) { return p + 1; }
+    }
+    throw new BSONException("BSON name at "+pos+" is not terminated");
+  }
+
+  // read a little endian int32
+  private static int readLength(byte[] buffer, int pos, int limit) {
+    skip(pos, 4, limit);
+    return (buffer[pos] & 0xFF) 
+        | (buffer[pos + 1] & 0xFF) << 8
+        | (buffer[pos + 2] & 0xFF) << 16
+        | (buffer[pos + 3] & 0xFF) << 24;
+  }
+
+  public String toString() {
+    return "BSONDeserializer";
+  }
+} 
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import org.bson.*;
+ 
+/** A serializer that sends a domain object as a BSON
+ * document, which a consumer configured with a
+ * BSONDeserializer for the producer code may store without
+ * decoding it.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ * @param <T> 
+ */ 
+public abstract class BSONSerializer<T> implements Serializer<T> { 
+
+  @Override
+  public byte[] serialize(T myData) {
+    BSONEncoder encoder = new BasicBSONEncoder();
+    return encoder.encode(buildDocument(myData));
+  }
+
+  /** Given an instance of a datastructure, return
+   * the BSON document to send.
+   * @param myData
+   * @return the document
+   */
+  protected abstract BSONObject buildDocument(T myData);
+} 
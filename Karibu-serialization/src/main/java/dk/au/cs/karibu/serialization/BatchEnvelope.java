@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.io.*;
+ 
+/** An envelope that packs many serialized records, from the
+ * same producer, into a single payload. The envelope is a
+ * header of the magic bytes 0xFF 'K' 'B', the format version
+ * and the record count as a big endian int32, followed by each
+ * record as its length, a big endian int32, and its bytes.
+ * 
+ * As for Compression, JSON and BSON payloads are never
+ * mistaken for envelopes.
+ * 
+ * An instance is used to build an envelope and is not thread
+ * safe; the static methods read one.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public final class BatchEnvelope { 
+
+  /** the length of the envelope header */
+  public static final int HEADER_LENGTH = 8;
+
+  private static final byte[] MAGIC = { (byte) 0xFF, 'K', 'B' };
+  private static final byte VERSION = 1;
+
+  private ByteArrayOutputStream out;
+  private int recordCount;
+
+  public BatchEnvelope() {
+    out = new ByteArrayOutputStream();
+    out.write(MAGIC, 0, MAGIC.length);
+    out.write(VERSION);
+    writeInt(0);
+    recordCount = 0;
+  }
+
+  /** Add a serialized record to the envelope. */
+  public void add(byte[] record) {
+    writeInt(record.length);
+    out.write(record, 0, record.length);
+    recordCount++;
+  }
+
+  public int getRecordCount() {
+    return recordCount;
+  }
+
+  /** return the size of the envelope in bytes. */
+  public int size() {
+    return out.size();
+  }
+
+  /** return the envelope as a payload. */
+  public byte[] toByteArray() {
+    byte[] envelope = out.toByteArray();
+    putInt(envelope, 4, recordCount);
+    return envelope;
+  }
+
+  private void writeInt(int value) {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  /** return true if the range starts with an envelope
+   * header. */
+  public static boolean isEnvelope(byte[] buffer, int offset, int length) {
+    return length >= HEADER_LENGTH 
+        && buffer[offset] == MAGIC[0] 
+        && buffer[offset + 1] == MAGIC[1]
+        && buffer[offset + 2] == MAGIC[2];
+  }
+
+  /** Find the records of an envelope.
+   * @param buffer the array holding the envelope
+   * @param offset the index of the envelope header
+   * @param length the number of bytes of the envelope
+   * @return the offset and length of each record, in this
+   * order, so record i is at index 2*i and 2*i+1
+   * @throws IOException if the envelope is not well formed
+   */
+  public static int[] readRecordRanges(byte[] buffer, int offset, int length)
+      throws IOException {
+    if ( buffer[offset + 3] != VERSION ) {
+      throw new IOException("Unknown envelope version "+buffer[offset + 3]);
+    }
+    int count = getInt(buffer, offset + 4);
+    int end = offset + length;
+    // every record takes at least its length
+    if ( count < 0 || count > (length - HEADER_LENGTH) / 4 ) {
+      throw new IOException("Envelope of "+length+" bytes claims "+count+" records");
+    }
+    int[] ranges = new int[2 * count];
+    int p = offset + HEADER_LENGTH;
+    for ( int i = 0; i < count; i++ ) {
+      if ( end - p < 4 ) {
+        throw new IOException("Envelope is truncated at record "+i);
+      }
+      int recordLength = getInt(buffer, p);
+      p += 4;
+      if ( recordLength < 0 || recordLength > end - p ) {
+        throw new IOException("Envelope record "+i+" of "+recordLength+
+            " bytes overruns the envelope");
+      }
+      ranges[2 * i] = p;
+      ranges[2 * i + 1] = recordLength;
+      p += recordLength;
+    }
+    if ( p != end ) {
+      throw new IOException("Envelope has "+(end - p)+" bytes after its records");
+    }
+    return ranges;
+  }
+
+  private static int getInt(byte[] buffer, int pos) {
+    return (buffer[pos] & 0xFF) << 24
+        | (buffer[pos + 1] & 0xFF) << 16
+        | (buffer[pos + 2] & 0xFF) << 8
+        | (buffer[pos + 3] & 0xFF);
+  }
+
+  private static void putInt(byte[] buffer, int pos, int value) {
+    buffer[pos] = (byte) (value >>> 24);
+    buffer[pos + 1] = (byte) (value >>> 16);
+    buffer[pos + 2] = (byte) (value >>> 8);
+    buffer[pos + 3] = (byte) value;
+  }
+} 
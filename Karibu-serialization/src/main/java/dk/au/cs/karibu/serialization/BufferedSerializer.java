@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+ 
+/** A serializer that can write the serialized form of a data
+ * structure directly into a buffer supplied by the caller,
+ * after the bytes already there, for instance a header.
+ * The caller may reuse the buffer for the next payload, so
+ * no intermediate arrays are allocated per payload.
+ * 
+ * The bytes written must be the same as those returned by
+ * serialize().
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ * @param <T> 
+ */ 
+public interface BufferedSerializer<T> extends Serializer<T> { 
+ 
+  /** Given an instance of a datastructure, append it in
+   * serialized form to the buffer.
+   * @param myData 
+   * @param buffer the buffer to append to
+   * @throws IllegalArgumentException if myData cannot be
+   * serialized; the buffer may then hold a partial payload
+   * and must not be sent.
+   */ 
+  public void serialize(T myData, SerializationBuffer buffer); 
+} 
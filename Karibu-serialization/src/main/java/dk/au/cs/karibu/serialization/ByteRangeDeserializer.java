@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+ 
+import com.mongodb.BasicDBObject; 
+ 
+/** A deserializer that reads the payload directly from the
+ * buffer the message was received in, instead of from a copy
+ * of it, which saves an allocation and copy per message.
+ * 
+ * The consumer uses this interface if the deserializer
+ * implements it, and otherwise wraps the Deserializer in a
+ * DeserializerAdapter. The same thread safety requirements
+ * as for Deserializer apply.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public interface ByteRangeDeserializer { 
+ 
+  /** Given a range of a byte array holding the payload,
+   * convert it into a MongoDB document. The buffer is owned
+   * by the caller and may be reused once the method returns,
+   * so it must neither be modified nor referenced by the
+   * returned document; copy the bytes that must be kept.
+   * @param buffer the array holding the payload
+   * @param offset the index of the first byte of the payload
+   * @param length the number of bytes of the payload
+   * @return the mongoDB document that can be stored. 
+   */ 
+  public BasicDBObject buildDocumentFromByteRange(byte[] buffer, int offset, int length); 
+   
+} 
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+ 
+/** A decorator of a serializer that compresses the payloads,
+ * see Compression, which the consumer detects and decompresses
+ * before they are deserialized. Thus the deserializer need
+ * not know about compression.
+ * 
+ * Payloads smaller than the minimum size, or that do not get
+ * smaller by compression, are sent as they are.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ * @param <T> 
+ */ 
+public class CompressingSerializer<T> implements Serializer<T> { 
+
+  /** default size below which payloads are not compressed */
+  public static final int DEFAULT_MIN_SIZE = 256;
+
+  private final Serializer<T> serializer;
+  private final CompressionCodec codec;
+  private final int minSize;
+  private final CompressionStatistics statistics;
+
+  /** Compress with Deflate payloads of at least
+   * DEFAULT_MIN_SIZE bytes. */
+  public CompressingSerializer(Serializer<T> serializer) {
+    this(serializer, new DeflateCodec(), DEFAULT_MIN_SIZE);
+  }
+
+  /** Create the compressing serializer.
+   * @param serializer the serializer of the payloads
+   * @param codec the codec to compress with; it must be
+   * registered with Compression at the consumer
+   * @param minSize the size in bytes below which payloads
+   * are not compressed
+   */
+  public CompressingSerializer(Serializer<T> serializer, 
+      CompressionCodec codec, int minSize) {
+    this.serializer = serializer;
+    this.codec = codec;
+    this.minSize = minSize;
+    statistics = new CompressionStatistics();
+  }
+
+  @Override
+  public byte[] serialize(T myData) {
+    byte[] payload = serializer.serialize(myData);
+    if ( payload.length < minSize ) {
+      statistics.recordUncompressed();
+      return payload;
+    }
+    long start = CompressionStatistics.now();
+    byte[] compressed = Compression.compress(codec, payload);
+    if ( compressed.length >= payload.length ) {
+      statistics.recordUncompressed(start);
+      return payload;
+    }
+    statistics.recordCompressed(payload.length, compressed.length, start);
+    return compressed;
+  }
+
+  /** return the ratio and CPU time of the compression. */
+  public CompressionStatistics getStatistics() {
+    return statistics;
+  }
+} 
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.io.IOException;
+import java.util.concurrent.*;
+ 
+/** The framing of compressed payloads. A compressed payload
+ * starts with a header of the magic bytes 0xFF 'K' 'Z', the id
+ * of the codec and the original length as a big endian int32,
+ * followed by the compressed bytes.
+ * 
+ * The magic byte 0xFF never starts UTF-8 text, so JSON payloads
+ * are never mistaken for compressed ones. A BSON document starts
+ * with its length as a little endian int32, and may well start
+ * with the magic bytes: FF 4B 5A 00 is a length of 5,917,695
+ * bytes. A header therefore also requires a codec id between 1
+ * and 127 as its fourth byte, as a BSON document starting with
+ * such is at least 0x015A4BFF (22,694,911) bytes long, more than
+ * MongoDB allows. Producers using other binary formats must
+ * ensure their payloads do not start with a header.
+ * 
+ * The codecs are found by their id among the registered ones;
+ * DeflateCodec is always registered.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public final class Compression { 
+
+  /** the length of the compression header */
+  public static final int HEADER_LENGTH = 8;
+  /** the max original length accepted when decompressing; it
+   * is the max size of a MongoDB document */
+  public static final int MAX_ORIGINAL_LENGTH = 16 * 1024 * 1024;
+
+  private static final byte[] MAGIC = { (byte) 0xFF, 'K', 'Z' };
+
+  private static final ConcurrentMap<Byte,CompressionCodec> codecs = 
+      new ConcurrentHashMap<Byte, CompressionCodec>();
+  static {
+    register(new DeflateCodec());
+  }
+
+  private Compression() {}
+
+  /** Register a codec for decompression, replacing any
+   * registered with the same id.
+   * @throws IllegalArgumentException if the id of the codec
+   * is not between 1 and 127 */
+  public static void register(CompressionCodec codec) {
+    if ( ! isCodecId(codec.getId()) ) {
+      throw new IllegalArgumentException("The id of compression codec "+
+          codec.getClass().getSimpleName()+" ("+codec.getId()+") must be between 1 and 127");
+    }
+    codecs.put(codec.getId(), codec);
+  }
+
+  /** return the codec with the given id, or null if none
+   * is registered. */
+  public static CompressionCodec getCodec(byte id) {
+    return codecs.get(id);
+  }
+
+  /** return true if the range starts with a compression
+   * header: the magic bytes followed by a codec id. */
+  public static boolean isCompressed(byte[] buffer, int offset, int length) {
+    return length >= HEADER_LENGTH 
+        && buffer[offset] == MAGIC[0] 
+        && buffer[offset + 1] == MAGIC[1]
+        && buffer[offset + 2] == MAGIC[2]
+        && isCodecId(buffer[offset + 3]);
+  }
+
+  private static boolean isCodecId(byte id) {
+    return id >= 1;
+  }
+
+  /** Compress a payload and prepend the compression header.
+   * @param codec the codec to compress with
+   * @param payload the payload to compress
+   * @return the compressed payload with header
+   */
+  public static byte[] compress(CompressionCodec codec, byte[] payload) {
+    byte[] compressed = codec.compress(payload, 0, payload.length);
+    byte[] framed = new byte[HEADER_LENGTH + compressed.length];
+    System.arraycopy(MAGIC, 0, framed, 0, MAGIC.length);
+    framed[3] = codec.getId();
+    framed[4] = (byte) (payload.length >>> 24);
+    framed[5] = (byte) (payload.length >>> 16);
+    framed[6] = (byte) (payload.length >>> 8);
+    framed[7] = (byte) payload.length;
+    System.arraycopy(compressed, 0, framed, HEADER_LENGTH, compressed.length);
+    return framed;
+  }
+
+  /** Decompress a range holding a compressed payload with
+   * header.
+   * @param buffer the array holding the compressed payload
+   * @param offset the index of the compression header
+   * @param length the number of bytes of header and payload
+   * @param statistics the statistics to record the 
+   * decompression in
+   * @return the original payload
+   * @throws IOException if the codec is unknown or the
+   * payload is corrupt
+   */
+  public static byte[] decompress(byte[] buffer, int offset, int length,
+      CompressionStatistics statistics) throws IOException {
+    long start = CompressionStatistics.now();
+    CompressionCodec codec = getCodec(buffer[offset + 3]);
+    if ( codec == null ) {
+      throw new IOException("Unknown compression codec "+buffer[offset + 3]);
+    }
+    int originalLength = (buffer[offset + 4] & 0xFF) << 24
+        | (buffer[offset + 5] & 0xFF) << 16
+        | (buffer[offset + 6] & 0xFF) << 8
+        | (buffer[offset + 7] & 0xFF);
+    if ( originalLength < 0 || originalLength > MAX_ORIGINAL_LENGTH ) {
+      throw new IOException("Compressed payload claims an original length of "+
+          originalLength+" bytes");
+    }
+    byte[] payload = codec.decompress(buffer, offset + HEADER_LENGTH, 
+        length - HEADER_LENGTH, originalLength);
+    statistics.recordCompressed(originalLength, length, start);
+    return payload;
+  }
+} 
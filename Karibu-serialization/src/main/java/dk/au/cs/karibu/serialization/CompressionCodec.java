@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.io.IOException;
+ 
+/** A compression algorithm for payloads. Each codec has a
+ * unique id, which is sent in the compression header so the
+ * consumer can select the codec to decompress with.
+ * 
+ * Implementations must be thread safe.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public interface CompressionCodec { 
+
+  /** return the id of the codec, a value between 1 and 127. */
+  public byte getId();
+
+  /** Compress a range of a byte array.
+   * @param data the array holding the bytes to compress
+   * @param offset the index of the first byte to compress
+   * @param length the number of bytes to compress
+   * @return the compressed bytes
+   */
+  public byte[] compress(byte[] data, int offset, int length);
+
+  /** Decompress a range of a byte array.
+   * @param data the array holding the compressed bytes
+   * @param offset the index of the first compressed byte
+   * @param length the number of compressed bytes
+   * @param originalLength the number of bytes the data
+   * decompresses to
+   * @return the decompressed bytes
+   * @throws IOException if the data is corrupt or does not
+   * decompress to originalLength bytes
+   */
+  public byte[] decompress(byte[] data, int offset, int length, 
+      int originalLength) throws IOException;
+} 
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.AtomicLong;
+ 
+/** Counts of the payloads compressed or decompressed, their
+ * sizes before and after, and the CPU time spent on it,
+ * including attempts that did not make a payload smaller.
+ * 
+ * The CPU time is the thread CPU time if the JVM supports
+ * measuring it, and otherwise the elapsed time.
+ * 
+ * It is thread safe, and recording takes no locks as it is
+ * done by every processing worker. The counts are read one
+ * by one, so a reading may include part of a recording.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public class CompressionStatistics { 
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private static final boolean cpuTimeSupported = 
+      threads.isCurrentThreadCpuTimeSupported();
+
+  private final AtomicLong compressedCount = new AtomicLong();
+  private final AtomicLong uncompressedCount = new AtomicLong();
+  private final AtomicLong originalBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong cpuTimeNanos = new AtomicLong();
+
+  /** return the CPU time of the current thread in ns, to
+   * be passed to recordCompressed() later. */
+  public static long now() {
+    return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  /** Record a compressed payload.
+   * @param originalLength the size before compression
+   * @param compressedLength the size after compression
+   * @param start the value of now() when the compression
+   * started
+   */
+  public void recordCompressed(int originalLength, 
+      int compressedLength, long start) {
+    long elapsed = now() - start;
+    compressedCount.incrementAndGet();
+    originalBytes.addAndGet(originalLength);
+    compressedBytes.addAndGet(compressedLength);
+    cpuTimeNanos.addAndGet(elapsed);
+  }
+
+  /** Record a payload that was sent as it is, as it was
+   * too small to attempt compression. */
+  public void recordUncompressed() {
+    uncompressedCount.incrementAndGet();
+  }
+
+  /** Record a payload that was sent as it is, as it did not
+   * get smaller by compression; the CPU time spent on the
+   * attempt is counted.
+   * @param start the value of now() when the compression
+   * started
+   */
+  public void recordUncompressed(long start) {
+    long elapsed = now() - start;
+    uncompressedCount.incrementAndGet();
+    cpuTimeNanos.addAndGet(elapsed);
+  }
+
+  /** Add the counts of another statistics to this. */
+  public void add(CompressionStatistics other) {
+    compressedCount.addAndGet(other.getCompressedCount());
+    uncompressedCount.addAndGet(other.getUncompressedCount());
+    originalBytes.addAndGet(other.getOriginalBytes());
+    compressedBytes.addAndGet(other.getCompressedBytes());
+    cpuTimeNanos.addAndGet(other.getCpuTimeNanos());
+  }
+
+  public long getCompressedCount() {
+    return compressedCount.get();
+  }
+
+  public long getUncompressedCount() {
+    return uncompressedCount.get();
+  }
+
+  public long getOriginalBytes() {
+    return originalBytes.get();
+  }
+
+  public long getCompressedBytes() {
+    return compressedBytes.get();
+  }
+
+  public long getCpuTimeNanos() {
+    return cpuTimeNanos.get();
+  }
+
+  /** return the compressed size relative to the original
+   * size of the compressed payloads, or 1 if none is. */
+  public double getRatio() {
+    long original = originalBytes.get();
+    return original == 0 ? 1.0 : (double) compressedBytes.get() / original;
+  }
+
+  public String toString() {
+    return "Compressed: "+compressedCount.get()+" msg, uncompressed: "+uncompressedCount.get()+
+        " msg, bytes: "+originalBytes.get()+" -> "+compressedBytes.get()+
+        " (ratio "+Math.round(getRatio() * 1000) / 1000.0+"), cpu: "+
+        cpuTimeNanos.get() / 1000000+" ms";
+  }
+}
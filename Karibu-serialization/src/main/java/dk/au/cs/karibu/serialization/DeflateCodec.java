@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.*;
+ 
+/** The Deflate (zlib) compression codec of the JDK.
+ * 
+ * The compression level trades CPU time for ratio; verbose
+ * JSON typically compresses well even at Deflater.BEST_SPEED.
+ * 
+ * When decompressing, the original length given in the header
+ * is not trusted for allocation: the output buffer starts at a
+ * small multiple of the compressed length and grows as data is
+ * inflated, so a short payload claiming a huge original length
+ * costs little memory.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public class DeflateCodec implements CompressionCodec { 
+
+  public static final byte ID = 1;
+
+  // the first output buffer when decompressing is at most
+  // this multiple of the compressed length, or the minimum
+  private static final int INITIAL_EXPANSION = 4;
+  private static final int MIN_INITIAL_CAPACITY = 1024;
+
+  private final int level;
+
+  /** Create a codec with the default compression level. */
+  public DeflateCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /** Create a codec.
+   * @param level the compression level, from 
+   * Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION 
+   */
+  public DeflateCodec(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public byte getId() {
+    return ID;
+  }
+
+  @Override
+  public byte[] compress(byte[] data, int offset, int length) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+      // incompressible data grows slightly
+      byte[] out = new byte[length + length / 1000 + 64];
+      int count = 0;
+      while ( ! deflater.finished() ) {
+        if ( count == out.length ) {
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        count += deflater.deflate(out, count, out.length - count);
+      }
+      return Arrays.copyOf(out, count);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  @Override
+  public byte[] decompress(byte[] data, int offset, int length,
+      int originalLength) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, offset, length);
+      long initialCapacity = Math.max(MIN_INITIAL_CAPACITY, (long) length * INITIAL_EXPANSION);
+      byte[] out = new byte[(int) Math.min(originalLength, initialCapacity)];
+      int count = 0;
+      while ( ! inflater.finished() ) {
+        if ( count == originalLength ) {
+          // only the end of the stream may remain
+          if ( inflater.inflate(new byte[1]) != 0 || ! inflater.finished() ) {
+            throw new IOException("Deflate data is longer than "+originalLength+" bytes");
+          }
+          break;
+        }
+        if ( count == out.length ) {
+          out = Arrays.copyOf(out, (int) Math.min(originalLength, 2L * out.length));
+        }
+        int n = inflater.inflate(out, count, out.length - count);
+        if ( n == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+          throw new IOException("Deflate data is truncated");
+        }
+        count += n;
+      }
+      if ( count != originalLength ) {
+        throw new IOException("Deflate data is shorter than "+originalLength+" bytes");
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt Deflate data: "+e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  public String toString() {
+    return "Deflate (level "+level+")";
+  }
+} 
@@ -19,6 +19,10 @@ import com.mongodb.BasicDBObject;
  
 /** The Deserializer is responsible for deserializing
  * a binary payload and constructs a MongoDB document for storage.
+ * 
+ * The consumer caches one instance per producer code, which
+ * is shared by all processing workers, so implementations
+ * should be stateless or otherwise thread safe.
  *  
  * @author Henrik Baerbak Christensen, Aarhus University 
  * 
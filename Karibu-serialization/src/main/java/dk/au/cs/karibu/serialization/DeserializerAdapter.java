@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+ 
+import java.util.Arrays;
+
+import com.mongodb.BasicDBObject; 
+ 
+/** Adapts a Deserializer to the ByteRangeDeserializer
+ * interface by copying the payload out of the buffer; thus
+ * existing deserializers work unchanged, at the cost of the
+ * copy.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ * 
+ */ 
+public class DeserializerAdapter implements ByteRangeDeserializer { 
+
+  private final Deserializer deserializer;
+
+  public DeserializerAdapter(Deserializer deserializer) {
+    this.deserializer = deserializer;
+  }
+
+  /** Return the given deserializer as a ByteRangeDeserializer,
+   * adapting it only if it does not implement the interface
+   * itself. */
+  public static ByteRangeDeserializer adapt(Deserializer deserializer) {
+    if ( deserializer instanceof ByteRangeDeserializer ) {
+      return (ByteRangeDeserializer) deserializer;
+    }
+    return new DeserializerAdapter(deserializer);
+  }
+ 
+  @Override
+  public BasicDBObject buildDocumentFromByteRange(byte[] buffer, int offset, int length) {
+    byte[] payload = Arrays.copyOfRange(buffer, offset, offset + length);
+    return deserializer.buildDocumentFromByteArray(payload);
+  }
+
+  public String toString() {
+    return deserializer.toString();
+  }
+} 
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+ 
+package dk.au.cs.karibu.serialization; 
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+ 
+/** A growable byte buffer that a BufferedSerializer writes
+ * into, and that the caller may reuse for many payloads.
+ * 
+ * As an OutputStream it may be handed to any library that
+ * writes to streams; the bytes written so far are available
+ * through getBuffer() and size() without copying.
+ * 
+ * Not thread safe.
+ *  
+ * @author Henrik Baerbak Christensen, Aarhus University 
+ */ 
+public class SerializationBuffer extends ByteArrayOutputStream { 
+
+  public SerializationBuffer() {
+    this(256);
+  }
+
+  public SerializationBuffer(int initialCapacity) {
+    super(initialCapacity);
+  }
+
+  /** Append a byte array, growing the buffer as needed. */
+  public void write(byte[] bytes) {
+    write(bytes, 0, bytes.length);
+  }
+
+  /** return the array holding the bytes; only the first
+   * size() bytes are valid, and the array is replaced when
+   * the buffer grows. */
+  public byte[] getBuffer() {
+    return buf;
+  }
+
+  /** return the length of the array holding the bytes. */
+  public int capacity() {
+    return buf.length;
+  }
+
+  /** Discard the bytes after the first 'size' ones, for
+   * instance to reuse a buffer that holds a header. */
+  public void truncate(int size) {
+    if ( size < 0 || size > count ) {
+      throw new IllegalArgumentException("Cannot truncate "+count+" bytes to "+size);
+    }
+    count = size;
+  }
+
+  /** return a copy of the valid bytes. */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, count);
+  }
+} 
@@ -22,11 +22,12 @@ import com.mongodb.BasicDBObject;
 
 import org.codehaus.jackson.map.util.ISO8601Utils;
 
-import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.utilities.StreamingJSONDeserializer;
 
 /** An example deserializer for JSON payloads. 
- * You can write these rather generic using methods
- * from the mongo and jackson libraries.
+ * You can write these rather generic using the streaming
+ * JSON deserializer, which parses the payload directly into
+ * a Mongo document.
  * 
  * To allow Mongo to index timestamps properly,
  * convert it from a string to a real Mongo Data object.
@@ -35,18 +36,12 @@ import dk.au.cs.karibu.serialization.Deserializer;
  *
  */
 
-public class EXMRE001 implements Deserializer {
+public class EXMRE001 extends StreamingJSONDeserializer {
 
   @Override
-  public BasicDBObject buildDocumentFromByteArray(byte[] payload) {
+  protected BasicDBObject completeDocument(BasicDBObject dbo) {
     Date theTimestamp;
 
-    // The binary payload is actually a string in JSON format 
-    String asJSON = new String(payload); 
-     
-    // and Mongo has utils to convert that :) 
-    BasicDBObject dbo = (BasicDBObject) com.mongodb.util.JSON.parse(asJSON); 
-    
     // Read out the timestamp as string and write it back as Date object 
     String asISODate = dbo.getString("timestamp"); 
     theTimestamp = ISO8601Utils.parse(asISODate); 
@@ -18,19 +18,21 @@ package dk.au.cs.karibu.domain;
 
 import java.io.IOException; 
 
-import org.codehaus.jackson.JsonGenerationException; 
 import org.codehaus.jackson.map.*; 
 
-import dk.au.cs.karibu.serialization.Serializer;
+import dk.au.cs.karibu.serialization.*;
 
 /** A standard implementation of the serializer that 
 * serializes into JSON strings, encoded as byte array. 
+* 
+* Jackson writes the UTF-8 encoded JSON directly into the
+* buffer, without an intermediate String.
 *  
 * @author Henrik Baerbak Christensen, Aarhus University 
 * 
 * @param <T> 
 */ 
-public class StandardJSONSerializer<T> implements Serializer<T> { 
+public class StandardJSONSerializer<T> implements BufferedSerializer<T> { 
 
   private ObjectMapper mapper; 
 
@@ -40,16 +42,20 @@ public class StandardJSONSerializer<T> implements Serializer<T> {
 
   @Override 
   public byte[] serialize(T myData) { 
-    String result = null; 
+    SerializationBuffer buffer = new SerializationBuffer();
+    serialize(myData, buffer);
+    return buffer.toByteArray(); 
+  } 
+
+  @Override 
+  public void serialize(T myData, SerializationBuffer buffer) { 
     try { 
-      result = mapper.writeValueAsString(myData); 
-    } catch (JsonGenerationException e) { 
-      e.printStackTrace(); 
-    } catch (JsonMappingException e) { 
-      e.printStackTrace(); 
+      mapper.writeValue(buffer, myData); 
     } catch (IOException e) { 
-      e.printStackTrace(); 
+      // covers JsonGenerationException and JsonMappingException;
+      // the buffer holds partial JSON that must never be sent
+      throw new IllegalArgumentException("Data object could not be serialized to JSON: "
+          + e.getMessage(), e); 
     } 
-    return result.getBytes(); 
   } 
 } 
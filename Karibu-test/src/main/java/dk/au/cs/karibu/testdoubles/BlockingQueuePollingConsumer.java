@@ -142,6 +142,12 @@ public class BlockingQueuePollingConsumer implements PollingConsumer {
     }
   }
 
+  @Override
+  public void acknowledgeUpTo(Delivery delivery) throws IOException {
+    // Only a single message is ever outstanding
+    acknowledge(delivery);
+  }
+
   @Override
   public void recover() {
     // No op in this test spy
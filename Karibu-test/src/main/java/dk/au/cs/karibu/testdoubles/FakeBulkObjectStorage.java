@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.testdoubles;
+
+import java.util.*;
+
+import com.mongodb.*;
+
+import dk.au.cs.karibu.backend.BulkProcessingStrategy;
+
+/** Fake object storage that also handles bulk processing,
+ * like MongoDB's unordered bulk insert: the documents are
+ * stored individually and the failed ones are reported by
+ * their index.
+ *
+ * A single document may be made to fail once, and the sizes
+ * of the bulks processed are recorded.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class FakeBulkObjectStorage extends FakeObjectStorage
+  implements BulkProcessingStrategy {
+
+  private List<Integer> bulkSizes;
+  private String failingKey;
+  private Object failingValue;
+
+  public FakeBulkObjectStorage() {
+    bulkSizes = new ArrayList<Integer>();
+    failingKey = null;
+  }
+
+  @Override
+  public synchronized Map<Integer, MongoException> processBulk(String producerCode,
+      List<BasicDBObject> dbos) {
+    bulkSizes.add(dbos.size());
+    Map<Integer,MongoException> failures = new HashMap<Integer, MongoException>();
+    for ( int i = 0; i < dbos.size(); i++ ) {
+      BasicDBObject dbo = dbos.get(i);
+      if ( failingKey != null && failingValue.equals(dbo.get(failingKey)) ) {
+        failingKey = null;
+        failures.put(i, new MongoException(11000, "E11000 duplicate key error"));
+        continue;
+      }
+      try {
+        process(producerCode, dbo);
+      } catch (MongoException e) {
+        failures.put(i, e);
+      }
+    }
+    return failures;
+  }
+
+  /** Make the next bulk containing a document with the
+   * given key/value pair fail for that document. */
+  public synchronized void failOnceOnDocument(String key, Object value) {
+    failingKey = key;
+    failingValue = value;
+  }
+
+  /** return the number of documents in each bulk, in the
+   * order they were processed. */
+  public synchronized List<Integer> getBulkSizes() {
+    return new ArrayList<Integer>(bulkSizes);
+  }
+}
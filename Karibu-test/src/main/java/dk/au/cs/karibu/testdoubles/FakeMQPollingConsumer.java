@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.testdoubles;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.rabbitmq.client.ShutdownSignalException;
+
+import dk.au.cs.karibu.backend.*;
+
+/** A fake polling consumer that mimics the acknowledgement
+ * semantics of a RabbitMQ channel more closely than the
+ * BlockingQueuePollingConsumer, and which may be used by
+ * a receiver endpoint with several processing workers.
+ *
+ * Fetched messages are kept as 'unacknowledged' under their
+ * delivery tag until acknowledged; recover() and closeChannel()
+ * requeue all unacknowledged messages at the front of the
+ * queue, and they will then be redelivered under a new tag.
+ * Acknowledging a tag that is not unacknowledged is counted
+ * (on RabbitMQ it is a channel error).
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class FakeMQPollingConsumer implements PollingConsumer {
+
+  private BlockingDeque<byte[]> readyQueue;
+  private LinkedHashMap<Long,byte[]> unacknowledged;
+  private List<Long> acknowledgedTags;
+  private long lastDeliveryTag;
+  private int unknownTagAcknowledgeCount;
+  private int acknowledgeCallCount;
+  private int recoverCount;
+  private boolean channelOpen;
+
+  public FakeMQPollingConsumer() {
+    readyQueue = new LinkedBlockingDeque<byte[]>();
+    unacknowledged = new LinkedHashMap<Long, byte[]>();
+    acknowledgedTags = new ArrayList<Long>();
+    lastDeliveryTag = 0L;
+    unknownTagAcknowledgeCount = 0;
+    acknowledgeCallCount = 0;
+    recoverCount = 0;
+    channelOpen = false;
+  }
+
+  @Override
+  public synchronized void openChannelAndSetRouting() throws IOException {
+    channelOpen = true;
+  }
+
+  @Override
+  public synchronized void closeChannel() throws IOException {
+    channelOpen = false;
+    requeueUnacknowledged();
+  }
+
+  @Override
+  public Delivery nextDelivery() throws ShutdownSignalException,
+      InterruptedException {
+    byte[] payload = readyQueue.take();
+    synchronized (this) {
+      if ( ! channelOpen ) {
+        throw new RuntimeException("Channel is not open");
+      }
+      lastDeliveryTag++;
+      unacknowledged.put(lastDeliveryTag, payload);
+      return new Delivery(lastDeliveryTag, payload);
+    }
+  }
+
+  @Override
+  public synchronized void acknowledge(Delivery delivery) throws IOException {
+    acknowledgeCallCount++;
+    Long tag = delivery.getDeliveryTag();
+    if ( unacknowledged.remove(tag) == null ) {
+      unknownTagAcknowledgeCount++;
+    } else {
+      acknowledgedTags.add(tag);
+    }
+  }
+
+  @Override
+  public synchronized void acknowledgeUpTo(Delivery delivery) throws IOException {
+    acknowledgeCallCount++;
+    if ( ! unacknowledged.containsKey(delivery.getDeliveryTag()) ) {
+      unknownTagAcknowledgeCount++;
+      return;
+    }
+    Iterator<Long> iterator = unacknowledged.keySet().iterator();
+    while ( iterator.hasNext() ) {
+      Long tag = iterator.next();
+      if ( tag > delivery.getDeliveryTag() ) { break; }
+      acknowledgedTags.add(tag);
+      iterator.remove();
+    }
+  }
+
+  @Override
+  public synchronized void recover() throws IOException {
+    recoverCount++;
+    requeueUnacknowledged();
+  }
+
+  private void requeueUnacknowledged() {
+    List<byte[]> toRequeue = new ArrayList<byte[]>(unacknowledged.values());
+    Collections.reverse(toRequeue);
+    for ( byte[] payload : toRequeue ) {
+      readyQueue.addFirst(payload);
+    }
+    unacknowledged.clear();
+  }
+
+  /** Testing API method, put a message into the
+   * queue as if sent by a producer.
+   * @param bytes the message
+   */
+  public void pushAMessage(byte[] bytes) {
+    readyQueue.addLast(bytes);
+  }
+
+  /** return the delivery tags acknowledged, in the
+   * order the acknowledgements were made. */
+  public synchronized List<Long> getAcknowledgedTags() {
+    return new ArrayList<Long>(acknowledgedTags);
+  }
+
+  public synchronized int getUnacknowledgedCount() {
+    return unacknowledged.size();
+  }
+
+  public int getReadyCount() {
+    return readyQueue.size();
+  }
+
+  public synchronized int getUnknownTagAcknowledgeCount() {
+    return unknownTagAcknowledgeCount;
+  }
+
+  /** return the number of acknowledge operations sent,
+   * single as well as multiple. */
+  public synchronized int getAcknowledgeCallCount() {
+    return acknowledgeCallCount;
+  }
+
+  public synchronized int getRecoverCount() {
+    return recoverCount;
+  }
+
+  public String toString() {
+    return "FakeMQPollingConsumer";
+  }
+}
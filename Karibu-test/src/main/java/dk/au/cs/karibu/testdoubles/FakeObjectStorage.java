@@ -20,7 +20,7 @@ import java.util.*;
 
 import com.mongodb.*;
 
-import dk.au.cs.karibu.backend.ProcessingStrategy;
+import dk.au.cs.karibu.backend.RawProcessingStrategy;
 
 /** Fake Object storage that mimics MongoDB behaviour 
  * somewhat: It handles multiple collections 
@@ -28,28 +28,36 @@ import dk.au.cs.karibu.backend.ProcessingStrategy;
  * 
  * Also it may mimic as replica set election exception
  * during storage.
+ * 
+ * Raw BSON documents are kept as byte arrays in separate
+ * raw collections.
+ * 
+ * It is thread safe so it can be used with several
+ * processing workers.
  *  
  * @author Henrik Baerbak Christensen, Aarhus University 
  * 
  */ 
 
-public class FakeObjectStorage implements ProcessingStrategy {
+public class FakeObjectStorage implements RawProcessingStrategy {
   private String toThrow;
   private int countOfStoresBeforeThrow = -1;
   private int storeMethodInvocationCount = 0;
  
   private Map<String,List<BasicDBObject>> database; 
+  private Map<String,List<byte[]>> rawDatabase; 
  
   public FakeObjectStorage() { 
     database = new HashMap<String, List<BasicDBObject>>(10); 
+    rawDatabase = new HashMap<String, List<byte[]>>(10); 
   } 
  
-  public List<BasicDBObject> getCollectionNamed(String collectionName) { 
+  public synchronized List<BasicDBObject> getCollectionNamed(String collectionName) { 
     return database.get(collectionName); 
   } 
  
   @Override 
-  public void process(String collectionName, BasicDBObject dbo) {
+  public synchronized void process(String collectionName, BasicDBObject dbo) {
     if ( storeMethodInvocationCount == countOfStoresBeforeThrow ) {
       storeMethodInvocationCount++;
       throw new MongoException(toThrow);
@@ -64,8 +72,29 @@ public class FakeObjectStorage implements ProcessingStrategy {
     } 
     collection.add(dbo); 
   } 
+
+  public synchronized List<byte[]> getRawCollectionNamed(String collectionName) { 
+    return rawDatabase.get(collectionName); 
+  } 
+
+  @Override 
+  public synchronized void processRaw(String collectionName, byte[] buffer, 
+      int offset, int length) {
+    if ( storeMethodInvocationCount == countOfStoresBeforeThrow ) {
+      storeMethodInvocationCount++;
+      throw new MongoException(toThrow);
+    }
+    storeMethodInvocationCount++;
+
+    List<byte[]> collection = rawDatabase.get(collectionName); 
+    if ( collection == null ) { 
+      collection = new ArrayList<byte[]>(2); 
+      rawDatabase.put(collectionName, collection); 
+    } 
+    collection.add(Arrays.copyOfRange(buffer, offset, offset + length)); 
+  } 
   
-  public void setExceptionTrigger( String exceptionMsg, int countBeforeThrow) {
+  public synchronized void setExceptionTrigger( String exceptionMsg, int countBeforeThrow) {
     toThrow = exceptionMsg; countOfStoresBeforeThrow = countBeforeThrow;
   }
 }
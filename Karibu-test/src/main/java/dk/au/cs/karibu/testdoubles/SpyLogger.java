@@ -34,7 +34,7 @@ public class SpyLogger implements Logger {
     return getLastLog(1);
   }
   /** get the n'th latest log entry */
-  public String getLastLog(int n) {
+  public synchronized String getLastLog(int n) {
     assert n > 0;
     if (fullLog.size() == 0 ) 
       return null;
@@ -75,7 +75,7 @@ public class SpyLogger implements Logger {
   public void debug(Marker arg0, String arg1, Object arg2, Object arg3) { e(); } 
  
   @Override 
-  public void error(String arg0) {
+  public synchronized void error(String arg0) {
     lastLog = "ERROR:"+arg0; 
     fullLog.add(lastLog);
   } 
@@ -113,7 +113,7 @@ public class SpyLogger implements Logger {
   } 
  
   @Override 
-  public void info(String arg0) { 
+  public synchronized void info(String arg0) { 
     lastLog = "INFO:"+arg0; 
     fullLog.add(lastLog);
     //System.out.println(" --> "+ lastLog); 
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.integration;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.*;
+
+import org.junit.*;
+
+import com.mongodb.*;
+
+import dk.au.cs.karibu.backend.standard.StandardServerRequestHandler;
+import dk.au.cs.karibu.hobbydomain.*;
+import dk.au.cs.karibu.producer.*;
+import dk.au.cs.karibu.serialization.*;
+import dk.au.cs.karibu.testdoubles.*;
+
+/** Test that batch envelopes pack many data objects into
+ * one message, which the consumer stores as one bulk.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestBatchEnvelope {
+
+  private static final String TOPIC = "exampleproject.reading.store";
+  private static final String CODE = GameFavoriteSerializer.EXAMPLE_PRODUCER_CODE;
+
+  private FakeBulkObjectStorage storage;
+  private StandardServerRequestHandler srh;
+  private InVMInterProcessConnector connector;
+  private BatchingClientRequestHandler<GameFavorite> crh;
+
+  @Before
+  public void setup() {
+    storage = new FakeBulkObjectStorage();
+    srh = new StandardServerRequestHandler(storage, new GameFavoriteDeserializerFactory());
+    connector = new InVMInterProcessConnector(srh);
+    // max 3 records or 1000 bytes, linger 100 ms, fail fast
+    crh = new BatchingClientRequestHandler<GameFavorite>(CODE, connector,
+        new GameFavoriteSerializer(), 3, 1000, 100, 0, 0, new SpyLogger());
+  }
+
+  @After
+  public void teardown() throws IOException {
+    crh.close();
+  }
+
+  private void sendFavorites(int count) throws IOException {
+    for ( int i = 0; i < count; i++ ) {
+      crh.send(new GameFavorite("Player"+i, "Game"+i), TOPIC);
+    }
+  }
+
+  @Test
+  public void shouldSendEnvelopeWhenCountReached() throws IOException {
+    sendFavorites(5);
+    // one envelope of three stored as one bulk
+    assertEquals( 1, connector.getCountOfSuccessfulProcessing() );
+    assertEquals( Arrays.asList(3), storage.getBulkSizes() );
+    assertEquals( 2, crh.getPendingRecordCount() );
+
+    crh.flush();
+    assertEquals( Arrays.asList(3, 2), storage.getBulkSizes() );
+    List<BasicDBObject> stored = storage.getCollectionNamed(CODE);
+    assertEquals( 5, stored.size() );
+    assertEquals( "Player0", stored.get(0).get("name") );
+    assertEquals( "Game4", stored.get(4).get("game") );
+  }
+
+  @Test
+  public void shouldSendEnvelopeWhenBytesReached() throws IOException {
+    crh.send(new GameFavorite(new String(new char[1200]).replace('\0', 'x'), "Go"), TOPIC);
+    assertEquals( Arrays.asList(1), storage.getBulkSizes() );
+  }
+
+  @Test
+  public void shouldSendLingeringEnvelope() throws Exception {
+    sendFavorites(1);
+    assertNull( storage.getCollectionNamed(CODE) );
+    Thread.sleep(400);
+    assertEquals( 1, storage.getCollectionNamed(CODE).size() );
+    assertEquals( 0, crh.getPendingRecordCount() );
+  }
+
+  @Test
+  public void shouldKeepEnvelopeWhenSendFails() throws IOException {
+    sendFavorites(2);
+    connector.pushExceptionToBeThrownAtNextSend(new ConnectException("Broker down"));
+    // the data object is queued even though its envelope failed
+    sendFavorites(1);
+    assertEquals( 3, crh.getPendingRecordCount() );
+    assertEquals( 1, crh.getUnsentEnvelopeCount() );
+    // the failed envelope is sent as it is by the next send
+    sendFavorites(1);
+    assertEquals( Arrays.asList(3), storage.getBulkSizes() );
+    assertEquals( 1, crh.getPendingRecordCount() );
+  }
+
+  @Test
+  public void shouldRejectDataObjectsWhenBacklogIsFull() throws IOException {
+    crh.setMaxUnsentEnvelopes(1);
+    connector.pushExceptionToBeThrownAtNextSend(new ConnectException("Broker down"));
+    sendFavorites(3);
+    assertEquals( 1, crh.getUnsentEnvelopeCount() );
+    try {
+      sendFavorites(1);
+      fail("a full backlog must be reported");
+    } catch (IOException e) {
+      assertTrue( e.getMessage().startsWith("Envelope backlog full") );
+    }
+    // the rejected data object is not queued
+    assertEquals( 3, crh.getPendingRecordCount() );
+
+    crh.flush();
+    assertEquals( Arrays.asList(3), storage.getBulkSizes() );
+    sendFavorites(3);
+    assertEquals( Arrays.asList(3, 3), storage.getBulkSizes() );
+  }
+
+  @Test
+  public void shouldReportFailureOfFlush() throws IOException {
+    sendFavorites(1);
+    connector.pushExceptionToBeThrownAtNextSend(new ConnectException("Broker down"));
+    try {
+      crh.flush();
+      fail("the failed flush must be reported");
+    } catch (ConnectException e) {
+      // expected
+    }
+    assertEquals( 1, crh.getUnsentEnvelopeCount() );
+    crh.flush();
+    assertEquals( Arrays.asList(1), storage.getBulkSizes() );
+  }
+
+  @Test
+  public void shouldFlagWholeEnvelopeWhenDocumentFails() throws IOException {
+    storage.failOnceOnDocument("name", "Player1");
+    sendFavorites(3);
+    // stored documents are kept but the message is not acknowledged
+    assertEquals( 0, connector.getCountOfSuccessfulProcessing() );
+    assertEquals( 2, storage.getCollectionNamed(CODE).size() );
+  }
+
+  /** A storage without bulk inserts that fails on the
+   * document of the given player. */
+  private static class FailingStorage extends FakeObjectStorage {
+    private final String player;
+    private final MongoException failure;
+    FailingStorage(String player, MongoException failure) {
+      this.player = player;
+      this.failure = failure;
+    }
+    @Override
+    public void process(String collectionName, BasicDBObject dbo) {
+      if ( player.equals(dbo.get("name")) ) { throw failure; }
+      super.process(collectionName, dbo);
+    }
+  }
+
+  private byte[] envelopeOfThree() {
+    BatchEnvelope envelope = new BatchEnvelope();
+    envelope.add("Player0|Go".getBytes());
+    envelope.add("Player1|Chess".getBytes());
+    envelope.add("Player2|SkyRim".getBytes());
+    return message(envelope.toByteArray());
+  }
+
+  @Test
+  public void shouldDropOversizedDocumentWithoutBulkStorage() {
+    FailingStorage single = new FailingStorage("Player1", 
+        new MongoInternalException("Document is over Max BSON size"));
+    SpyLogger logger = new SpyLogger();
+    StandardServerRequestHandler handler = new StandardServerRequestHandler(single, 
+        new GameFavoriteDeserializerFactory(), new NullStatisticHandler(), logger);
+    assertTrue( handler.receive(envelopeOfThree()) );
+    // the documents behind the oversized one are stored
+    List<BasicDBObject> stored = single.getCollectionNamed(CODE);
+    assertEquals( 2, stored.size() );
+    assertEquals( "Player2", stored.get(1).get("name") );
+    assertTrue( logger.getLastLog().contains("will be dropped") );
+  }
+
+  @Test
+  public void shouldFlagEnvelopeWhenDocumentFailsWithoutBulkStorage() {
+    FailingStorage single = new FailingStorage("Player1", 
+        new MongoException("Write operation failed"));
+    StandardServerRequestHandler handler = new StandardServerRequestHandler(single, 
+        new GameFavoriteDeserializerFactory(), new NullStatisticHandler(), new SpyLogger());
+    assertFalse( handler.receive(envelopeOfThree()) );
+    // the other documents are stored, and stored again on redelivery
+    assertEquals( 2, single.getCollectionNamed(CODE).size() );
+  }
+
+  @Test
+  public void shouldUnpackIndividuallyCompressedRecords() {
+    BatchEnvelope envelope = new BatchEnvelope();
+    envelope.add("Henrik|Go".getBytes());
+    envelope.add(Compression.compress(new DeflateCodec(), "Mikkel|SkyRim".getBytes()));
+    assertTrue( srh.receive(message(envelope.toByteArray())) );
+    assertEquals( "SkyRim", storage.getCollectionNamed(CODE).get(1).get("game") );
+  }
+
+  @Test
+  public void shouldStoreIllformedEnvelopeAsWrongFormat() {
+    BatchEnvelope envelope = new BatchEnvelope();
+    envelope.add("Henrik|Go".getBytes());
+    // a record compressed on its own is decompressed, unless corrupt
+    envelope.add(Compression.compress(new DeflateCodec(), "Mikkel|SkyRim".getBytes()));
+    byte[] corrupt = Compression.compress(new DeflateCodec(), "Mikkel|SkyRim".getBytes());
+    corrupt[corrupt.length - 1]++;
+    envelope.add(corrupt);
+    assertTrue( srh.receive(message(envelope.toByteArray())) );
+
+    // a record overrunning the envelope
+    byte[] truncated = envelope.toByteArray();
+    assertTrue( srh.receive(message(Arrays.copyOf(truncated, truncated.length - 2))) );
+
+    assertNull( storage.getCollectionNamed(CODE) );
+    assertEquals( 2, storage.getCollectionNamed(
+        StandardServerRequestHandler.WRONG_FORMAT_COLLECTION_NAME_PREFIX+CODE).size() );
+  }
+
+  private byte[] message(byte[] payload) {
+    byte[] message = new byte[CODE.length() + payload.length];
+    System.arraycopy(CODE.getBytes(), 0, message, 0, CODE.length());
+    System.arraycopy(payload, 0, message, CODE.length(), payload.length);
+    return message;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.integration;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.testdoubles.*;
+
+/**
+ * Integration testing of the MessageReceiverEndpoint when
+ * configured to batch the acknowledgements.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestBatchedAcknowledgement {
+
+  private static final String PRODUCER_CODE = "EXMTT002";
+
+  private FakeMQPollingConsumer pollingConsumer;
+  private FakeObjectStorage storage;
+  private MessageReceiverEndpoint messageReceiver;
+  private Thread receiverThread;
+
+  @Before
+  public void setup() {
+    pollingConsumer = new FakeMQPollingConsumer();
+    storage = new FakeObjectStorage();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    messageReceiver.stopReceiving();
+    // wake up the receiver thread
+    pushMessage(-1);
+    receiverThread.join(2000);
+  }
+
+  private void startReceiver(ProcessingStrategy strategy, int workerCount,
+      int batchSize, int maxDelayMs) {
+    messageReceiver = new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(pollingConsumer).
+        processingStrategy(strategy).
+        deserializerFactory(new DeserializerFactory() {
+          @Override
+          public Deserializer createDeserializer(String producerCode) {
+            return new JSONDeserializer();
+          }
+        }).
+        logger(new SpyLogger()).
+        statisticsHandler(new NullStatisticHandler()).
+        mongoElectDelayMs(10).
+        processingWorkers(workerCount).
+        acknowledgeInBatches(batchSize, maxDelayMs).
+        build();
+    receiverThread = new Thread(messageReceiver, "ReceiverThread");
+    receiverThread.start();
+  }
+
+  private void pushMessage(int sequenceNumber) {
+    String msg = PRODUCER_CODE + "{ \"seq\": " + sequenceNumber + " }";
+    pollingConsumer.pushAMessage(msg.getBytes());
+  }
+
+  private void awaitStoredCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( System.currentTimeMillis() < deadline ) {
+      List<BasicDBObject> collection = storage.getCollectionNamed(PRODUCER_CODE);
+      if ( collection != null && collection.size() >= count ) { break; }
+      Thread.sleep(10);
+    }
+    assertEquals( count, storage.getCollectionNamed(PRODUCER_CODE).size() );
+  }
+
+  private void awaitAcknowledgedCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( pollingConsumer.getAcknowledgedTags().size() < count
+        && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10);
+    }
+    assertEquals( count, pollingConsumer.getAcknowledgedTags().size() );
+  }
+
+  @Test
+  public void shouldAcknowledgeWhenBatchIsFull() throws InterruptedException {
+    startReceiver(storage, 1, 10, 60000);
+    for ( int i = 0; i < 25; i++ ) {
+      pushMessage(i);
+    }
+    awaitStoredCount(25);
+    Thread.sleep(50);
+
+    // Two full batches acknowledged, each in a single operation
+    assertEquals( 20, pollingConsumer.getAcknowledgedTags().size() );
+    assertEquals( 2, pollingConsumer.getAcknowledgeCallCount() );
+    assertEquals( 5, pollingConsumer.getUnacknowledgedCount() );
+  }
+
+  @Test
+  public void shouldAcknowledgeWhenDelayHasPassed() throws InterruptedException {
+    startReceiver(storage, 1, 100, 50);
+    for ( int i = 0; i < 5; i++ ) {
+      pushMessage(i);
+    }
+    awaitStoredCount(5);
+    awaitAcknowledgedCount(5);
+    assertEquals( 1, pollingConsumer.getAcknowledgeCallCount() );
+  }
+
+  @Test
+  public void shouldAcknowledgeProcessedBeforeRecovering() throws InterruptedException {
+    storage.setExceptionTrigger("com.mongodb.MongoException$Network:"+
+        "Write operation to server ecosensedb01.cs.au.dk failed", 3);
+    startReceiver(storage, 1, 100, 60000);
+    for ( int i = 0; i < 10; i++ ) {
+      pushMessage(i);
+    }
+    awaitStoredCount(10);
+
+    // The three processed before the failure are acknowledged
+    // before the recover; the failed one is redelivered
+    assertEquals( Arrays.asList(1L, 2L, 3L), pollingConsumer.getAcknowledgedTags() );
+    assertEquals( 1, pollingConsumer.getRecoverCount() );
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+  }
+
+  @Test
+  public void shouldNeverAcknowledgeMessageInProgressWithWorkers()
+      throws InterruptedException {
+    // A storage that stalls the document with sequence number 3
+    final CountDownLatch releaseStalled = new CountDownLatch(1);
+    startReceiver(new ProcessingStrategy() {
+      @Override
+      public void process(String collectionName, BasicDBObject dbo) {
+        if ( dbo.getInt("seq") == 3 ) {
+          try {
+            releaseStalled.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        storage.process(collectionName, dbo);
+      }
+    }, 4, 100, 20);
+
+    for ( int i = 0; i < 8; i++ ) {
+      pushMessage(i);
+    }
+    awaitStoredCount(7);
+    Thread.sleep(100);
+    // Only the three before the stalled one may be acknowledged
+    assertEquals( Arrays.asList(1L, 2L, 3L), pollingConsumer.getAcknowledgedTags() );
+
+    releaseStalled.countDown();
+    awaitAcknowledgedCount(8);
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+  }
+}
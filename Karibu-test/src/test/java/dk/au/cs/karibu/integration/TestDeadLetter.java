@@ -19,6 +19,7 @@ package dk.au.cs.karibu.integration;
 import static org.junit.Assert.*; 
 
 import java.io.IOException; 
+import java.util.Calendar;
  
 
 
@@ -38,7 +39,7 @@ import dk.au.cs.karibu.backend.DeserializerFactory;
 import dk.au.cs.karibu.backend.standard.StandardServerRequestHandler;
 import dk.au.cs.karibu.hobbydomain.*;
 import dk.au.cs.karibu.producer.*;
-import dk.au.cs.karibu.serialization.Serializer;
+import dk.au.cs.karibu.serialization.*;
 import dk.au.cs.karibu.testdoubles.*;
 
 public class TestDeadLetter {
@@ -105,4 +106,62 @@ public class TestDeadLetter {
     assertEquals("Mikkel|SkyRim", asString); 
   }
 
+
+  /** A factory that knows no producer codes, and counts how
+   * often it is asked. */
+  private static class CountingUnknownFactory implements DeserializerFactory {
+    int count = 0;
+    @Override
+    public Deserializer createDeserializer(String producerCode) {
+      count++;
+      return null;
+    }
+  }
+
+  private void sendUnknown(StandardServerRequestHandler handler) {
+    assertTrue( handler.receive("WRONG001Mikkel|SkyRim".getBytes()) );
+  }
+
+  @Test
+  public void shouldRememberUnknownProducerCodeForTimeToLive() {
+    CountingUnknownFactory factory = new CountingUnknownFactory();
+    StubTimestampStrategy clock = new StubTimestampStrategy();
+    Calendar cal = Calendar.getInstance();
+    clock.setTime(cal);
+    StandardServerRequestHandler handler =
+        new StandardServerRequestHandler(storage, factory);
+    handler.setTimestampStrategy(clock);
+    handler.setUnknownProducerCodeTimeToLive(1000);
+
+    for ( int i = 0; i < 5; i++ ) {
+      sendUnknown(handler);
+    }
+    assertEquals( 1, factory.count );
+    String deadLetterCollectionName = StandardServerRequestHandler.DEADLETTER_COLLECTION_NAME_PREFIX+"WRONG001";
+    assertEquals( 5, storage.getCollectionNamed(deadLetterCollectionName).size() );
+
+    // the factory is asked again once the time to live has passed
+    cal.add(Calendar.MILLISECOND, 1000);
+    clock.setTime(cal);
+    sendUnknown(handler);
+    assertEquals( 2, factory.count );
+    sendUnknown(handler);
+    assertEquals( 2, factory.count );
+
+    // ... or the codes are invalidated
+    assertEquals( 1, handler.invalidateUnknownProducerCodes() );
+    sendUnknown(handler);
+    assertEquals( 3, factory.count );
+  }
+
+  @Test
+  public void shouldAskFactoryEveryTimeWithoutTimeToLive() {
+    CountingUnknownFactory factory = new CountingUnknownFactory();
+    StandardServerRequestHandler handler =
+        new StandardServerRequestHandler(storage, factory);
+    handler.setUnknownProducerCodeTimeToLive(0);
+    sendUnknown(handler);
+    sendUnknown(handler);
+    assertEquals( 2, factory.count );
+  }
 }
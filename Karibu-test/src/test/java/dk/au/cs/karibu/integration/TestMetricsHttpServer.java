@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.integration;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+
+import org.junit.*;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.backend.standard.*;
+import dk.au.cs.karibu.monitor.MetricsHttpServer;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.testdoubles.*;
+
+/**
+ * Integration testing of the HTTP metrics endpoint of a
+ * MessageReceiverEndpoint with processing workers.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestMetricsHttpServer {
+
+  private static final String PRODUCER_CODE = "EXMTT003";
+
+  private FakeMQPollingConsumer pollingConsumer;
+  private MessageReceiverEndpoint messageReceiver;
+  private Thread receiverThread;
+  private MetricsHttpServer metrics;
+
+  @Before
+  public void setup() {
+    pollingConsumer = new FakeMQPollingConsumer();
+    SpyLogger spyLogger = new SpyLogger();
+    messageReceiver = new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(pollingConsumer).
+        processingStrategy(new FakeObjectStorage()).
+        deserializerFactory(new DeserializerFactory() {
+          @Override
+          public Deserializer createDeserializer(String producerCode) {
+            return new JSONDeserializer();
+          }
+        }).
+        logger(spyLogger).
+        statisticsHandler(new StandardStatisticHandler(new SpyStatisticStorage(),
+            new RealTimestampStrategy())).
+        baseReconnectionDelayMs(2).
+        mongoElectDelayMs(10).
+        processingWorkers(2).
+        build();
+    receiverThread = new Thread(messageReceiver, "ReceiverThread");
+    receiverThread.start();
+    // refreshed only on demand by the tests
+    metrics = new MetricsHttpServer(messageReceiver, 0, 3600 * 1000L, spyLogger);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    metrics.stop();
+    messageReceiver.stopReceiving();
+    // wake up the receiver thread
+    pushMessages(1);
+    receiverThread.join(2000);
+  }
+
+  private void pushMessages(int count) {
+    for ( int i = 0; i < count; i++ ) {
+      String msg = PRODUCER_CODE + "{ \"seq\": " + i + " }";
+      pollingConsumer.pushAMessage(msg.getBytes());
+    }
+  }
+
+  private void awaitAcknowledgedCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( pollingConsumer.getAcknowledgedTags().size() < count
+        && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10);
+    }
+    assertEquals( count, pollingConsumer.getAcknowledgedTags().size() );
+  }
+
+  private HttpURLConnection connect(String method) throws IOException {
+    URL url = new URL("http://localhost:"+metrics.getPort()+MetricsHttpServer.CONTEXT_PATH);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    return connection;
+  }
+
+  private String scrape() throws IOException {
+    HttpURLConnection connection = connect("GET");
+    assertEquals( 200, connection.getResponseCode() );
+    assertTrue( connection.getContentType().startsWith("text/plain") );
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(connection.getInputStream(), "UTF-8"));
+    StringBuilder body = new StringBuilder();
+    String line;
+    while ( (line = reader.readLine()) != null ) {
+      body.append(line).append('\n');
+    }
+    reader.close();
+    return body.toString();
+  }
+
+  @Test
+  public void shouldServeEndpointAndLatencyMetrics() throws Exception {
+    pushMessages(10);
+    awaitAcknowledgedCount(10);
+    metrics.start();
+
+    String body = scrape();
+    assertTrue( body, body.contains("\nkaribu_chunk_messages 10\n") );
+    assertTrue( body, body.contains("# TYPE karibu_stage_latency_seconds summary\n") );
+    assertTrue( body, body.contains("karibu_stage_latency_seconds_count{producer_code=\""+
+        PRODUCER_CODE+"\",stage=\"Store\"} 10\n") );
+    assertTrue( body, body.contains("karibu_stage_latency_seconds_sum{producer_code=\""+
+        PRODUCER_CODE+"\",stage=\"Store\"} ") );
+    assertTrue( body, body.contains("karibu_messages_per_second{producer_code=\""+
+        PRODUCER_CODE+"\",window=\"1m\"}") );
+    // the rates of all codes are not a producer code series
+    assertTrue( body, body.contains("\nkaribu_total_messages_per_second{window=\"1m\"} ") );
+    assertTrue( body, body.contains("\nkaribu_total_bytes_per_second{window=\"1m\"} ") );
+    assertFalse( body, body.contains("producer_code=\"Total\"") );
+    assertTrue( body, body.contains("\nkaribu_max_in_flight_messages 4\n") );
+    assertTrue( body, body.contains("karibu_flow_control_limit{limit=\"prefetch\"} -1\n") );
+  }
+
+  @Test
+  public void shouldServeSnapshotUntilRefreshed() throws Exception {
+    metrics.start();
+    assertTrue( scrape().contains("\nkaribu_chunk_messages 0\n") );
+
+    pushMessages(5);
+    awaitAcknowledgedCount(5);
+    assertTrue( scrape().contains("\nkaribu_chunk_messages 0\n") );
+    metrics.refresh();
+    assertTrue( scrape().contains("\nkaribu_chunk_messages 5\n") );
+  }
+
+  @Test
+  public void shouldLabelOnlyCodesWithRates() throws Exception {
+    pushMessages(1);
+    awaitAcknowledgedCount(1);
+    // a code that has latencies but no rates
+    messageReceiver.getStatistic().getLatencyHistograms().
+      record(LatencyHistograms.Stage.STORE, "EXMZZ999", 1000L);
+    metrics.start();
+
+    String body = scrape();
+    assertTrue( body, body.contains("producer_code=\""+PRODUCER_CODE+"\",stage=\"Store\"") );
+    assertFalse( body, body.contains("EXMZZ999") );
+  }
+
+  @Test
+  public void shouldRejectOtherMethodsThanGet() throws Exception {
+    metrics.start();
+    assertEquals( 405, connect("POST").getResponseCode() );
+    assertEquals( 200, connect("HEAD").getResponseCode() );
+  }
+}
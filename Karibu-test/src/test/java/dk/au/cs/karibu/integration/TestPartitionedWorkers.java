@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.integration;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.testdoubles.*;
+
+/**
+ * Integration testing of the MessageReceiverEndpoint when
+ * configured with workers partitioned by producer code.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestPartitionedWorkers {
+
+  private static final String[] PRODUCER_CODES =
+    { "EXMTT001", "EXMTT002", "EXMTT003", "EXMTT004" };
+
+  private FakeMQPollingConsumer pollingConsumer;
+  private MessageReceiverEndpoint messageReceiver;
+  private Thread receiverThread;
+  private List<Deserializer> createdDeserializers;
+
+  @Before
+  public void setup() {
+    pollingConsumer = new FakeMQPollingConsumer();
+    createdDeserializers = Collections.synchronizedList(new ArrayList<Deserializer>());
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    messageReceiver.stopReceiving();
+    // wake up the receiver thread
+    pushMessage(PRODUCER_CODES[0], -1);
+    receiverThread.join(2000);
+  }
+
+  private void startReceiver(ProcessingStrategy storage) {
+    messageReceiver = new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(pollingConsumer).
+        processingStrategy(storage).
+        deserializerFactory(new DeserializerFactory() {
+          @Override
+          public Deserializer createDeserializer(String producerCode) {
+            Deserializer deserializer = new JSONDeserializer();
+            createdDeserializers.add(deserializer);
+            return deserializer;
+          }
+        }).
+        logger(new SpyLogger()).
+        statisticsHandler(new NullStatisticHandler()).
+        mongoElectDelayMs(10).
+        processingWorkers(3).
+        partitionByProducerCode().
+        build();
+    receiverThread = new Thread(messageReceiver, "ReceiverThread");
+    receiverThread.start();
+  }
+
+  private void pushMessage(String producerCode, int sequenceNumber) {
+    String msg = producerCode + "{ \"seq\": " + sequenceNumber + " }";
+    pollingConsumer.pushAMessage(msg.getBytes());
+  }
+
+  private void pushInterleaved(int countPerProducer) {
+    for ( int i = 0; i < countPerProducer; i++ ) {
+      for ( String producerCode : PRODUCER_CODES ) {
+        pushMessage(producerCode, i);
+      }
+    }
+  }
+
+  private void awaitAcknowledgedCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( pollingConsumer.getAcknowledgedTags().size() < count
+        && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10);
+    }
+    assertEquals( count, pollingConsumer.getAcknowledgedTags().size() );
+  }
+
+  private void assertStoredInOrder(List<BasicDBObject> collection, int count) {
+    assertEquals( count, collection.size() );
+    for ( int i = 0; i < count; i++ ) {
+      assertEquals( i, collection.get(i).getInt("seq") );
+    }
+  }
+
+  /** A storage that records which thread stored each
+   * producer's documents, and is slow on the first. */
+  private static class ThreadRecordingStorage extends FakeObjectStorage {
+    private Map<String,Set<String>> threadsPerCollection =
+        new HashMap<String, Set<String>>();
+
+    @Override
+    public void process(String collectionName, BasicDBObject dbo) {
+      if ( collectionName.equals(PRODUCER_CODES[0]) ) {
+        try {
+          Thread.sleep(2);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      synchronized (this) {
+        Set<String> threads = threadsPerCollection.get(collectionName);
+        if ( threads == null ) {
+          threads = new HashSet<String>();
+          threadsPerCollection.put(collectionName, threads);
+        }
+        threads.add(Thread.currentThread().getName());
+      }
+      super.process(collectionName, dbo);
+    }
+  }
+
+  @Test
+  public void shouldKeepOrderWithinEachProducerCode() throws InterruptedException {
+    ThreadRecordingStorage storage = new ThreadRecordingStorage();
+    startReceiver(storage);
+
+    pushInterleaved(25);
+    awaitAcknowledgedCount(100);
+
+    for ( String producerCode : PRODUCER_CODES ) {
+      assertStoredInOrder(storage.getCollectionNamed(producerCode), 25);
+      assertEquals( 1, storage.threadsPerCollection.get(producerCode).size() );
+    }
+    // no deserializer is shared between the workers
+    assertEquals( PRODUCER_CODES.length, createdDeserializers.size() );
+  }
+
+  /** A storage that holds back the first producer's documents. */
+  private static class BlockingStorage extends FakeObjectStorage {
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    @Override
+    public void process(String collectionName, BasicDBObject dbo) {
+      if ( collectionName.equals(PRODUCER_CODES[0]) ) {
+        try {
+          released.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      super.process(collectionName, dbo);
+    }
+  }
+
+  @Test
+  public void shouldBoundTheDeliveriesInFlightPerPartition() throws InterruptedException {
+    BlockingStorage storage = new BlockingStorage();
+    startReceiver(storage);
+
+    for ( int i = 0; i < 8; i++ ) {
+      pushMessage(PRODUCER_CODES[0], i);
+    }
+    // the partition of the held back producer has spent its budget
+    // of two, and the polling thread holds the next delivery; the
+    // rest of the budget is left to the other partitions
+    long deadline = System.currentTimeMillis() + 2000;
+    while ( messageReceiver.getInFlightCount() < 3 && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(5);
+    }
+    Thread.sleep(50);
+    assertEquals( 3, messageReceiver.getInFlightCount() );
+    assertEquals( 6, messageReceiver.getMaxInFlight() );
+
+    storage.released.countDown();
+    awaitAcknowledgedCount(8);
+    assertStoredInOrder(storage.getCollectionNamed(PRODUCER_CODES[0]), 8);
+  }
+
+  @Test
+  public void shouldKeepOrderWithinProducerCodeOnFailure() throws InterruptedException {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    storage.setExceptionTrigger("com.mongodb.MongoException$Network:"+
+        "Write operation to server ecosensedb01.cs.au.dk failed", 10);
+    startReceiver(storage);
+
+    pushInterleaved(10);
+    awaitAcknowledgedCount(40);
+
+    // the failed one and those behind it are redelivered in order
+    for ( String producerCode : PRODUCER_CODES ) {
+      assertStoredInOrder(storage.getCollectionNamed(producerCode), 10);
+    }
+    assertEquals( 1, pollingConsumer.getRecoverCount() );
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.integration;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.testdoubles.*;
+
+/**
+ * Integration testing of the MessageReceiverEndpoint when
+ * configured with a pipeline of decoding and storing stages.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestPipeline {
+
+  private static final String PRODUCER_CODE = "EXMTT002";
+
+  private FakeMQPollingConsumer pollingConsumer;
+  private SpyLogger spyLogger;
+  private MessageReceiverEndpoint messageReceiver;
+  private Thread receiverThread;
+
+  @Before
+  public void setup() {
+    spyLogger = new SpyLogger();
+    pollingConsumer = new FakeMQPollingConsumer();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    if ( receiverThread == null ) { return; }
+    messageReceiver.stopReceiving();
+    // wake up the receiver thread
+    pushMessage(-1);
+    receiverThread.join(2000);
+  }
+
+  private MessageReceiverEndpointFactory.Builder configuredBuilder(
+      ProcessingStrategy storage) {
+    return new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(pollingConsumer).
+        processingStrategy(storage).
+        deserializerFactory(new DeserializerFactory() {
+          @Override
+          public Deserializer createDeserializer(String producerCode) {
+            return new JSONDeserializer();
+          }
+        }).
+        logger(spyLogger).
+        statisticsHandler(new NullStatisticHandler()).
+        mongoElectDelayMs(10);
+  }
+
+  private void startReceiver(MessageReceiverEndpointFactory.Builder builder) {
+    messageReceiver = builder.build();
+    receiverThread = new Thread(messageReceiver, "ReceiverThread");
+    receiverThread.start();
+  }
+
+  private void pushMessage(int sequenceNumber) {
+    String msg = PRODUCER_CODE + "{ \"seq\": " + sequenceNumber + " }";
+    pollingConsumer.pushAMessage(msg.getBytes());
+  }
+
+  private void awaitAcknowledgedCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( pollingConsumer.getAcknowledgedTags().size() < count
+        && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10);
+    }
+    assertEquals( count, pollingConsumer.getAcknowledgedTags().size() );
+  }
+
+  private Set<Integer> sequenceNumbersIn(List<BasicDBObject> collection) {
+    Set<Integer> result = new HashSet<Integer>();
+    for ( BasicDBObject dbo : collection ) {
+      result.add( dbo.getInt("seq") );
+    }
+    return result;
+  }
+
+  @Test
+  public void shouldStoreAndAcknowledgeAllMessagesInOrder() throws InterruptedException {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    startReceiver(configuredBuilder(storage).pipelinedProcessing(2, 3, 8));
+
+    for ( int i = 0; i < 100; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(100);
+
+    List<BasicDBObject> collection = storage.getCollectionNamed(PRODUCER_CODE);
+    assertEquals( 100, sequenceNumbersIn(collection).size() );
+    List<Long> tags = pollingConsumer.getAcknowledgedTags();
+    for ( int i = 0; i < tags.size(); i++ ) {
+      assertEquals( i + 1L, tags.get(i).longValue() );
+    }
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+  }
+
+  @Test
+  public void shouldRecoverFailedMessageWithoutLosingOthers()
+      throws InterruptedException {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    storage.setExceptionTrigger("com.mongodb.MongoException$Network:"+
+        "Write operation to server ecosensedb01.cs.au.dk failed", 3);
+    // a single storer must be able to handle the recovery
+    startReceiver(configuredBuilder(storage).pipelinedProcessing(2, 1, 4));
+
+    for ( int i = 0; i < 20; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(20);
+
+    List<BasicDBObject> collection = storage.getCollectionNamed(PRODUCER_CODE);
+    assertEquals( 20, collection.size() );
+    assertEquals( 20, sequenceNumbersIn(collection).size() );
+    assertEquals( 1, pollingConsumer.getRecoverCount() );
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+    assertTrue( spyLogger.getFullLog().contains("INFO:Will ask consumer to recover.") );
+  }
+
+  @Test
+  public void shouldReportFullRingsWhenStoringStalls() throws InterruptedException {
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final FakeObjectStorage storage = new FakeObjectStorage();
+    startReceiver(configuredBuilder(new ProcessingStrategy() {
+      @Override
+      public void process(String collectionName, BasicDBObject dbo) {
+        if ( dbo.getInt("seq") == 0 ) {
+          try {
+            releaseFirst.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        storage.process(collectionName, dbo);
+      }
+    }).pipelinedProcessing(1, 1, 2));
+
+    for ( int i = 0; i < 10; i++ ) {
+      pushMessage(i);
+    }
+    Thread.sleep(200);
+
+    String status = messageReceiver.getStageStatus();
+    assertTrue( status, status.startsWith("Pipeline: decode ring 2/2") );
+    assertTrue( status, status.contains("store ring 2/2") );
+    assertTrue( status, status.contains("in flight 6/6") );
+
+    releaseFirst.countDown();
+    awaitAcknowledgedCount(10);
+  }
+
+  @Test(expected=RuntimeException.class)
+  public void shouldRejectPipelineCombinedWithWorkers() {
+    configuredBuilder(new FakeObjectStorage()).
+        processingWorkers(4).
+        pipelinedProcessing(2, 2, 16).
+        build();
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.integration;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.backend.standard.AdaptiveFlowController;
+import dk.au.cs.karibu.monitor.Monitoring;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.testdoubles.*;
+
+/**
+ * Integration testing of the MessageReceiverEndpoint when
+ * configured with several processing workers.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestWorkerPool {
+
+  private static final String PRODUCER_CODE = "EXMTT002";
+  private static final int WORKER_COUNT = 4;
+
+  private FakeMQPollingConsumer pollingConsumer;
+  private SpyLogger spyLogger;
+  private DeserializerFactory factory;
+  private MessageReceiverEndpoint messageReceiver;
+  private Thread receiverThread;
+
+  @Before
+  public void setup() {
+    spyLogger = new SpyLogger();
+    pollingConsumer = new FakeMQPollingConsumer();
+    factory = new DeserializerFactory() {
+      @Override
+      public Deserializer createDeserializer(String producerCode) {
+        return new JSONDeserializer();
+      }
+    };
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    if ( receiverThread == null ) { return; }
+    messageReceiver.stopReceiving();
+    // wake up the receiver thread
+    pushMessage(-1);
+    receiverThread.join(2000);
+  }
+
+  private void startReceiver(ProcessingStrategy storage) {
+    startReceiver(configuredBuilder(storage));
+  }
+
+  private MessageReceiverEndpointFactory.Builder configuredBuilder(
+      ProcessingStrategy storage) {
+    return new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(pollingConsumer).
+        processingStrategy(storage).
+        deserializerFactory(factory).
+        logger(spyLogger).
+        statisticsHandler(new NullStatisticHandler()).
+        baseReconnectionDelayMs(2).
+        mongoElectDelayMs(10).
+        processingWorkers(WORKER_COUNT);
+  }
+
+  private void startReceiver(MessageReceiverEndpointFactory.Builder builder) {
+    messageReceiver = builder.build();
+    receiverThread = new Thread(messageReceiver, "ReceiverThread");
+    receiverThread.start();
+  }
+
+  private void pushMessage(int sequenceNumber) {
+    String msg = PRODUCER_CODE + "{ \"seq\": " + sequenceNumber + " }";
+    pollingConsumer.pushAMessage(msg.getBytes());
+  }
+
+  private void awaitAcknowledgedCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( pollingConsumer.getAcknowledgedTags().size() < count
+        && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10);
+    }
+    assertEquals( count, pollingConsumer.getAcknowledgedTags().size() );
+  }
+
+  private void assertAscending(List<Long> tags) {
+    for ( int i = 1; i < tags.size(); i++ ) {
+      assertTrue( "Ack of tag "+tags.get(i)+" after tag "+tags.get(i-1),
+          tags.get(i) > tags.get(i-1) );
+    }
+  }
+
+  private Set<Integer> sequenceNumbersIn(List<BasicDBObject> collection) {
+    Set<Integer> result = new HashSet<Integer>();
+    for ( BasicDBObject dbo : collection ) {
+      result.add( dbo.getInt("seq") );
+    }
+    return result;
+  }
+
+  @Test
+  public void shouldStoreAndAcknowledgeAllMessages() throws InterruptedException {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    startReceiver(storage);
+
+    for ( int i = 0; i < 100; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(100);
+
+    List<BasicDBObject> collection = storage.getCollectionNamed(PRODUCER_CODE);
+    assertEquals( 100, collection.size() );
+    assertEquals( 100, sequenceNumbersIn(collection).size() );
+
+    assertAscending( pollingConsumer.getAcknowledgedTags() );
+    assertEquals( 0, pollingConsumer.getUnacknowledgedCount() );
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+  }
+
+  @Test
+  public void shouldAcknowledgeInDeliveryOrderWhenFinishingOutOfOrder()
+      throws InterruptedException {
+    // A storage that stalls the very first document
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final FakeObjectStorage storage = new FakeObjectStorage();
+    startReceiver(new ProcessingStrategy() {
+      @Override
+      public void process(String collectionName, BasicDBObject dbo) {
+        if ( dbo.getInt("seq") == 0 ) {
+          try {
+            releaseFirst.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        storage.process(collectionName, dbo);
+      }
+    });
+
+    for ( int i = 0; i < 6; i++ ) {
+      pushMessage(i);
+    }
+    Thread.sleep(200);
+
+    // all but the first are stored, but none may be acknowledged
+    // as the first one is still in progress
+    assertEquals( 5, storage.getCollectionNamed(PRODUCER_CODE).size() );
+    assertEquals( 0, pollingConsumer.getAcknowledgedTags().size() );
+
+    releaseFirst.countDown();
+    awaitAcknowledgedCount(6);
+    assertEquals( Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L),
+        pollingConsumer.getAcknowledgedTags() );
+  }
+
+  @Test
+  public void shouldRecoverFailedMessageWithoutLosingOthers()
+      throws InterruptedException {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    storage.setExceptionTrigger("com.mongodb.MongoException$Network:"+
+        "Write operation to server ecosensedb01.cs.au.dk failed", 3);
+    startReceiver(storage);
+
+    for ( int i = 0; i < 20; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(20);
+
+    // every message is stored exactly once; the failed one
+    // after being redelivered by the recover
+    List<BasicDBObject> collection = storage.getCollectionNamed(PRODUCER_CODE);
+    assertEquals( 20, collection.size() );
+    assertEquals( 20, sequenceNumbersIn(collection).size() );
+
+    assertEquals( 1, pollingConsumer.getRecoverCount() );
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+    assertEquals( 0, pollingConsumer.getUnacknowledgedCount() );
+
+    List<String> log = spyLogger.getFullLog();
+    int index = log.indexOf("INFO:Request handler flagged message as 'not processed', will sleep (10) ms.");
+    assertTrue( index >= 0 );
+    assertTrue( log.indexOf("INFO:Will ask consumer to recover.") > index );
+    assertTrue( log.indexOf("INFO:Will continue receiving now.") > index );
+  }
+
+  @Test
+  public void shouldStoreInBatchesAndRecoverOnlyFailedDocument()
+      throws InterruptedException {
+    FakeBulkObjectStorage storage = new FakeBulkObjectStorage();
+    storage.failOnceOnDocument("seq", 5);
+    startReceiver(configuredBuilder(storage).batchInserts(WORKER_COUNT, 100000, 20));
+
+    for ( int i = 0; i < 20; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(20);
+
+    List<BasicDBObject> collection = storage.getCollectionNamed(PRODUCER_CODE);
+    assertEquals( 20, collection.size() );
+    assertEquals( 20, sequenceNumbersIn(collection).size() );
+    assertEquals( 1, pollingConsumer.getRecoverCount() );
+    assertEquals( 0, pollingConsumer.getUnknownTagAcknowledgeCount() );
+    // documents are stored in batches
+    assertTrue( storage.getBulkSizes().size() < 20 );
+  }
+
+  @Test
+  public void shouldTuneBatchSizeWithAdaptiveFlowControl()
+      throws InterruptedException {
+    FakeBulkObjectStorage storage = new FakeBulkObjectStorage();
+    startReceiver(configuredBuilder(storage).
+        batchInserts(2, 100000, 20).
+        adaptiveFlowControl(1000));
+
+    for ( int i = 0; i < 20; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(20);
+    assertEquals( 20, storage.getCollectionNamed(PRODUCER_CODE).size() );
+
+    AdaptiveFlowController controller = messageReceiver.getFlowController();
+    // the fake consumer has no prefetch count to tune
+    assertEquals( -1, controller.getValue(MessageReceiverEndpointFactory.PREFETCH_COUNT) );
+    // storing is fast, so the batch size is increased
+    controller.adjust();
+    assertTrue( controller.getValue(MessageReceiverEndpointFactory.INSERT_BATCH_SIZE) > 2 );
+
+    // but never beyond the number of workers that fill a batch
+    for ( int i = 20; i < 30; i++ ) {
+      pushMessage(i);
+      awaitAcknowledgedCount(i + 1);
+      controller.adjust();
+    }
+    assertEquals( WORKER_COUNT,
+        controller.getValue(MessageReceiverEndpointFactory.INSERT_BATCH_SIZE) );
+  }
+
+  @Test
+  public void shouldChangeFixedLimitsThroughMonitoring()
+      throws InterruptedException {
+    FakeBulkObjectStorage storage = new FakeBulkObjectStorage();
+    startReceiver(configuredBuilder(storage).
+        batchInserts(WORKER_COUNT, 100000, 20));
+    assertNull( messageReceiver.getFlowController() );
+
+    Monitoring monitor = new Monitoring(messageReceiver);
+    assertEquals( WORKER_COUNT, monitor.getInsertBatchSize() );
+    monitor.setInsertBatchSize(3);
+    assertEquals( 3, monitor.getInsertBatchSize() );
+    try {
+      monitor.setInsertBatchSize(0);
+      fail("the batch size must be positive");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals( 3, monitor.getInsertBatchSize() );
+
+    // the fake consumer has no prefetch count to change
+    assertEquals( -1, monitor.getPrefetchCount() );
+    try {
+      monitor.setPrefetchCount(50);
+      fail("a limit that is not configured cannot be changed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    for ( int i = 0; i < 6; i++ ) {
+      pushMessage(i);
+    }
+    awaitAcknowledgedCount(6);
+    for ( int size : storage.getBulkSizes() ) {
+      assertTrue( size <= 3 );
+    }
+  }
+
+  @Test(expected=RuntimeException.class)
+  public void shouldRejectBatchInsertsWithoutBulkStrategy() {
+    configuredBuilder(new FakeObjectStorage()).
+        batchInserts(WORKER_COUNT, 100000, 20).
+        build();
+  }
+
+  @Test(expected=RuntimeException.class)
+  public void shouldRejectBatchesLargerThanTheWorkerCount() {
+    configuredBuilder(new FakeBulkObjectStorage()).
+        batchInserts(WORKER_COUNT + 1, 100000, 20).
+        build();
+  }
+
+  @Test(expected=RuntimeException.class)
+  public void shouldRejectZeroWorkers() {
+    new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(pollingConsumer).
+        processingWorkers(0);
+  }
+}
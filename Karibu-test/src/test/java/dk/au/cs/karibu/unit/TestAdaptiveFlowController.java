@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.mongodb.*;
+
+import dk.au.cs.karibu.backend.ProcessingStrategy;
+import dk.au.cs.karibu.backend.standard.*;
+import dk.au.cs.karibu.testdoubles.*;
+
+/** Test the AIMD tuning of the adaptive flow controller.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestAdaptiveFlowController {
+
+  private static final long MS = 1000000L;
+
+  private AdaptiveFlowController controller;
+  private IntLimit prefetch;
+
+  /** A limit that is just an int. */
+  private static class IntLimit implements AdaptiveFlowController.Tunable {
+    int value;
+    IntLimit(int value) { this.value = value; }
+    @Override
+    public int getValue() { return value; }
+    @Override
+    public void setValue(int value) { this.value = value; }
+  }
+
+  @Before
+  public void setup() {
+    // target latency 20 ms
+    controller = new AdaptiveFlowController(20, true, new SpyLogger());
+    prefetch = new IntLimit(100);
+    controller.addLimit("prefetch", prefetch, 1, 150, 10);
+  }
+
+  @Test
+  public void shouldIncreaseAdditivelyUpToMaxWhenFast() {
+    for ( int i = 0; i < 5; i++ ) {
+      controller.recordStore(5 * MS, 1, 0);
+      controller.adjust();
+      assertEquals( 100 + 10 * (i + 1), prefetch.value );
+    }
+    for ( int i = 0; i < 10; i++ ) {
+      controller.recordStore(5 * MS, 1, 0);
+      controller.adjust();
+    }
+    assertEquals( 150, prefetch.value );
+  }
+
+  @Test
+  public void shouldHalveDownToMinWhenSlow() {
+    controller.recordStore(10 * MS, 1, 0);
+    controller.recordStore(50 * MS, 1, 0);
+    // average 30 ms is above target
+    controller.adjust();
+    assertEquals( 50, prefetch.value );
+    for ( int i = 0; i < 10; i++ ) {
+      controller.recordStore(50 * MS, 1, 0);
+      controller.adjust();
+    }
+    assertEquals( 1, prefetch.value );
+  }
+
+  @Test
+  public void shouldHalveOnlyWhenErrorRateIsAboveMax() {
+    // one failure in a hundred is tolerated by default
+    controller.recordStore(1 * MS, 100, 1);
+    controller.adjust();
+    assertEquals( 110, prefetch.value );
+
+    controller.recordStore(1 * MS, 100, 2);
+    controller.adjust();
+    assertEquals( 55, prefetch.value );
+
+    controller.setMaxErrorRate(0.0);
+    controller.recordStore(1 * MS, 100, 1);
+    controller.adjust();
+    assertEquals( 27, prefetch.value );
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void shouldRejectInvalidMaxErrorRate() {
+    controller.setMaxErrorRate(1.5);
+  }
+
+  @Test
+  public void shouldHoldWhenIdleOrDisabled() {
+    controller.adjust();
+    assertEquals( 100, prefetch.value );
+
+    controller.setEnabled(false);
+    controller.recordStore(50 * MS, 1, 0);
+    controller.adjust();
+    assertEquals( 100, prefetch.value );
+  }
+
+  @Test
+  public void shouldAllowOverrideByName() {
+    controller.setValue("prefetch", 7);
+    assertEquals( 7, prefetch.value );
+    assertEquals( 7, controller.getValue("prefetch") );
+    assertEquals( -1, controller.getValue("no such limit") );
+    // adaptation continues from the overridden value
+    controller.recordStore(1 * MS, 1, 0);
+    controller.adjust();
+    assertEquals( 17, prefetch.value );
+  }
+
+  @Test
+  public void shouldMeasureStorageCalls() {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    storage.setExceptionTrigger("Write failed", 1);
+    MeasuringProcessingStrategy measuring =
+        new MeasuringProcessingStrategy(storage, controller);
+
+    measuring.process("EXMTT001", new BasicDBObject("seq", 1));
+    try {
+      measuring.process("EXMTT001", new BasicDBObject("seq", 2));
+      fail("the failure must be passed on");
+    } catch (MongoException e) {
+      // expected
+    }
+    // a failure halves the limit
+    controller.adjust();
+    assertEquals( 50, prefetch.value );
+    assertEquals( 1, storage.getCollectionNamed("EXMTT001").size() );
+  }
+
+  @Test
+  public void shouldProcessBulkOneByOneForPlainStrategy() {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    storage.setExceptionTrigger("Write failed", 1);
+    MeasuringProcessingStrategy measuring =
+        new MeasuringProcessingStrategy(storage, controller);
+
+    Map<Integer,MongoException> failures = measuring.processBulk("EXMTT001",
+        Arrays.asList(new BasicDBObject("seq", 1), new BasicDBObject("seq", 2),
+            new BasicDBObject("seq", 3)));
+    assertEquals( Collections.singleton(1), failures.keySet() );
+    assertEquals( 2, storage.getCollectionNamed("EXMTT001").size() );
+  }
+
+  @Test
+  public void shouldNotCountOversizedDocumentsAsFailures() {
+    MeasuringProcessingStrategy measuring =
+        new MeasuringProcessingStrategy(new ProcessingStrategy() {
+          @Override
+          public void process(String producerCode, BasicDBObject dbo) {
+            throw new MongoInternalException("Document is over Max BSON size");
+          }
+        }, controller);
+    controller.setMaxErrorRate(0.0);
+
+    try {
+      measuring.process("EXMTT001", new BasicDBObject("seq", 1));
+      fail("the failure must be passed on");
+    } catch (MongoInternalException e) {
+      // expected
+    }
+    Map<Integer,MongoException> failures = measuring.processBulk("EXMTT001",
+        Arrays.asList(new BasicDBObject("seq", 2), new BasicDBObject("seq", 3)));
+    assertEquals( 2, failures.size() );
+
+    // the documents are dropped by policy, which is no congestion
+    controller.adjust();
+    assertEquals( 110, prefetch.value );
+  }
+}
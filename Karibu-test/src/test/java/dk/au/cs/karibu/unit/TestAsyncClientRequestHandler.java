@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import dk.au.cs.karibu.producer.*;
+import dk.au.cs.karibu.producer.AsyncClientRequestHandler.OverflowPolicy;
+
+/** Test the asynchronous client request handler, sending
+ * through a handler that can be held back or made to fail.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestAsyncClientRequestHandler {
+
+  private SlowHandler slow;
+
+  /** A handler that records the sends once they are released. */
+  private static class SlowHandler implements ClientRequestHandler<String> {
+    final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    final Semaphore entered = new Semaphore(0);
+    final CountDownLatch released = new CountDownLatch(1);
+    volatile boolean failing = false;
+    @Override
+    public void send(String dataObjectToSend, String topic) throws IOException {
+      entered.release();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted");
+      }
+      if ( failing ) { throw new IOException("Broker down"); }
+      sent.add(dataObjectToSend);
+    }
+  }
+
+  @Before
+  public void setup() {
+    slow = new SlowHandler();
+  }
+
+  @Test
+  public void shouldSendInOrderInTheBackground() throws Exception {
+    AsyncClientRequestHandler<String> crh = new AsyncClientRequestHandler<String>(slow);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for ( int i = 0; i < 10; i++ ) {
+      futures.add(crh.sendAsync("Data "+i, "exm.tt.all"));
+    }
+    // the caller is not held back by the slow handler
+    assertFalse( futures.get(0).isDone() );
+    slow.released.countDown();
+    for ( Future<Void> future : futures ) {
+      future.get(2, TimeUnit.SECONDS);
+    }
+    assertEquals( "Data 0", slow.sent.get(0) );
+    assertEquals( "Data 9", slow.sent.get(9) );
+    assertEquals( 10, crh.getSentCount() );
+    crh.close(1000);
+  }
+
+  @Test
+  public void shouldFailNewSendWhenFull() throws Exception {
+    AsyncClientRequestHandler<String> crh = 
+        new AsyncClientRequestHandler<String>(slow, 2, OverflowPolicy.FAIL);
+    Future<Void> first = crh.sendAsync("Data 0", "exm.tt.all");
+    assertTrue( slow.entered.tryAcquire(2, TimeUnit.SECONDS) );
+    crh.sendAsync("Data 1", "exm.tt.all");
+    crh.sendAsync("Data 2", "exm.tt.all");
+    Future<Void> rejected = crh.sendAsync("Data 3", "exm.tt.all");
+    assertFailed( rejected, "Rejected" );
+    assertEquals( 1, crh.getDroppedCount() );
+
+    slow.released.countDown();
+    first.get(2, TimeUnit.SECONDS);
+    crh.close(1000);
+    assertEquals( Arrays.asList("Data 0", "Data 1", "Data 2"), slow.sent );
+  }
+
+  @Test
+  public void shouldDropOldestWhenFull() throws Exception {
+    AsyncClientRequestHandler<String> crh = 
+        new AsyncClientRequestHandler<String>(slow, 2, OverflowPolicy.DROP_OLDEST);
+    crh.sendAsync("Data 0", "exm.tt.all");
+    assertTrue( slow.entered.tryAcquire(2, TimeUnit.SECONDS) );
+    Future<Void> oldest = crh.sendAsync("Data 1", "exm.tt.all");
+    crh.sendAsync("Data 2", "exm.tt.all");
+    Future<Void> last = crh.sendAsync("Data 3", "exm.tt.all");
+    assertFailed( oldest, "Dropped" );
+
+    slow.released.countDown();
+    last.get(2, TimeUnit.SECONDS);
+    assertEquals( Arrays.asList("Data 0", "Data 2", "Data 3"), slow.sent );
+    crh.close(1000);
+  }
+
+  @Test
+  public void shouldPassFailuresToTheCaller() throws Exception {
+    AsyncClientRequestHandler<String> crh = new AsyncClientRequestHandler<String>(slow);
+    slow.failing = true;
+    slow.released.countDown();
+    assertFailed( crh.sendAsync("Data 0", "exm.tt.all"), "Broker down" );
+    try {
+      crh.send("Data 1", "exm.tt.all");
+      fail("the blocking send must throw the failure");
+    } catch (IOException e) {
+      assertEquals( "Broker down", e.getMessage() );
+    }
+    assertEquals( 2, crh.getFailedCount() );
+    crh.close(1000);
+    assertFailed( crh.sendAsync("Data 2", "exm.tt.all"), "The handler is closed" );
+  }
+
+  @Test
+  public void shouldFailSendQueuedAfterClose() throws Exception {
+    // a handler that holds the sender thread, even when interrupted
+    final CountDownLatch released = new CountDownLatch(1);
+    ClientRequestHandler<String> stuck = new ClientRequestHandler<String>() {
+      @Override
+      public void send(String dataObjectToSend, String topic) throws IOException {
+        boolean interrupted = false;
+        while ( true ) {
+          try {
+            released.await();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if ( interrupted ) { Thread.currentThread().interrupt(); }
+      }
+    };
+    final AsyncClientRequestHandler<String> crh = 
+        new AsyncClientRequestHandler<String>(stuck, 1, OverflowPolicy.BLOCK);
+    crh.sendAsync("Data 0", "exm.tt.all");
+    // wait until the sender holds the first send, then fill the queue
+    long deadline = System.currentTimeMillis() + 2000;
+    while ( crh.getQueueSize() > 0 && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(5);
+    }
+    Future<Void> queued = crh.sendAsync("Data 1", "exm.tt.all");
+
+    // a send that waits for room in the queue while closing
+    final List<Future<Void>> blocked = new ArrayList<Future<Void>>();
+    Thread caller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        blocked.add(crh.sendAsync("Data 2", "exm.tt.all"));
+      }
+    });
+    caller.start();
+    deadline = System.currentTimeMillis() + 2000;
+    while ( caller.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(5);
+    }
+
+    crh.close(100);
+    assertFailed( queued, "The handler was closed" );
+    caller.join(2000);
+    assertFalse( caller.isAlive() );
+    // the drain of the close made room, but the send must not stay queued
+    assertFailed( blocked.get(0), "The handler was closed" );
+    assertEquals( 0, crh.getQueueSize() );
+    released.countDown();
+  }
+
+  private void assertFailed(Future<Void> future, String message) throws Exception {
+    try {
+      future.get(2, TimeUnit.SECONDS);
+      fail("the send must fail");
+    } catch (ExecutionException e) {
+      assertTrue( e.getCause() instanceof IOException );
+      assertTrue( e.getCause().getMessage().startsWith(message) );
+    }
+  }
+}
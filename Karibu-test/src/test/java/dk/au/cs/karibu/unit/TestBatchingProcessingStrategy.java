@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.mongodb.*;
+
+import dk.au.cs.karibu.backend.standard.BatchingProcessingStrategy;
+import dk.au.cs.karibu.testdoubles.FakeBulkObjectStorage;
+
+/** Test the batching of documents into bulk processing.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestBatchingProcessingStrategy {
+
+  private static final String PRODUCER_CODE = "EXMTT002";
+
+  private FakeBulkObjectStorage storage;
+  private ExecutorService callers;
+
+  @Before
+  public void setup() {
+    storage = new FakeBulkObjectStorage();
+    callers = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  private BasicDBObject document(int sequenceNumber) {
+    return new BasicDBObject("seq", sequenceNumber);
+  }
+
+  /** process the documents, each by its own thread, and return
+   * the outcome of each: null if processed, otherwise the exception */
+  private List<RuntimeException> processConcurrently(
+      final BatchingProcessingStrategy batching, int count) throws Exception {
+    List<Future<RuntimeException>> outcomes =
+        new ArrayList<Future<RuntimeException>>();
+    for ( int i = 0; i < count; i++ ) {
+      final BasicDBObject dbo = document(i);
+      outcomes.add(callers.submit(new Callable<RuntimeException>() {
+        @Override
+        public RuntimeException call() {
+          try {
+            batching.process(PRODUCER_CODE, dbo);
+            return null;
+          } catch (RuntimeException e) {
+            return e;
+          }
+        }
+      }));
+    }
+    List<RuntimeException> result = new ArrayList<RuntimeException>();
+    for ( Future<RuntimeException> outcome : outcomes ) {
+      result.add(outcome.get(5, TimeUnit.SECONDS));
+    }
+    return result;
+  }
+
+  @Test
+  public void shouldFlushWhenBatchIsFull() throws Exception {
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 3, 100000, 60000, 10);
+    List<RuntimeException> outcomes = processConcurrently(batching, 6);
+
+    assertEquals( Arrays.asList(null, null, null, null, null, null), outcomes );
+    assertEquals( Arrays.asList(3, 3), storage.getBulkSizes() );
+    assertEquals( 6, storage.getCollectionNamed(PRODUCER_CODE).size() );
+  }
+
+  @Test
+  public void shouldFlushWhenBatchIsTooLarge() throws Exception {
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 10, 10, 60000, 10);
+    processConcurrently(batching, 3);
+
+    assertEquals( Arrays.asList(1, 1, 1), storage.getBulkSizes() );
+  }
+
+  @Test
+  public void shouldFlushWhenAllCallersAreWaiting() throws Exception {
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 4, 100000, 60000, 4);
+    processConcurrently(batching, 4);
+
+    assertEquals( Arrays.asList(4), storage.getBulkSizes() );
+  }
+
+  @Test
+  public void shouldFlushWhenDelayHasPassed() {
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 10, 100000, 50, 10);
+    long start = System.currentTimeMillis();
+    batching.process(PRODUCER_CODE, document(0));
+
+    assertTrue( System.currentTimeMillis() - start >= 50 );
+    assertEquals( Arrays.asList(1), storage.getBulkSizes() );
+  }
+
+  @Test
+  public void shouldReportFailureOnlyToCallerOfFailedDocument() throws Exception {
+    storage.failOnceOnDocument("seq", 2);
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 5, 100000, 60000, 10);
+    List<RuntimeException> outcomes = processConcurrently(batching, 5);
+
+    for ( int i = 0; i < 5; i++ ) {
+      if ( i == 2 ) {
+        assertTrue( outcomes.get(i) instanceof MongoException );
+      } else {
+        assertNull( outcomes.get(i) );
+      }
+    }
+    assertEquals( 4, storage.getCollectionNamed(PRODUCER_CODE).size() );
+  }
+
+  @Test
+  public void shouldReportFailureOfWholeBatchToAllCallers() throws Exception {
+    BatchingProcessingStrategy batching = new BatchingProcessingStrategy(
+        new FakeBulkObjectStorage() {
+          @Override
+          public Map<Integer, MongoException> processBulk(String producerCode,
+              List<BasicDBObject> dbos) {
+            throw new MongoException("Write operation failed");
+          }
+        }, 3, 100000, 60000, 10);
+    List<RuntimeException> outcomes = processConcurrently(batching, 3);
+
+    for ( RuntimeException outcome : outcomes ) {
+      assertTrue( outcome instanceof MongoException );
+    }
+  }
+
+  @Test
+  public void shouldKeepCollectionsInSeparateBatches() {
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 10, 100000, 10, 10);
+    batching.process(PRODUCER_CODE, document(0));
+    batching.process("EXMTT003", document(1));
+
+    assertEquals( 1, storage.getCollectionNamed(PRODUCER_CODE).size() );
+    assertEquals( 1, storage.getCollectionNamed("EXMTT003").size() );
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void shouldRejectMoreDocumentsThanCallers() {
+    new BatchingProcessingStrategy(storage, 11, 100000, 60000, 10);
+  }
+
+  @Test
+  public void shouldCapMaxDocumentsToCallers() {
+    BatchingProcessingStrategy batching =
+        new BatchingProcessingStrategy(storage, 5, 100000, 60000, 10);
+    batching.setMaxDocuments(50);
+    assertEquals( 10, batching.getMaxDocuments() );
+  }
+}
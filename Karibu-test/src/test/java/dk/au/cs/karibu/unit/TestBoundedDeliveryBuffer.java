@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+
+import com.rabbitmq.client.ShutdownSignalException;
+
+import dk.au.cs.karibu.backend.Delivery;
+import dk.au.cs.karibu.backend.rabbitmq.BoundedDeliveryBuffer;
+import dk.au.cs.karibu.testdoubles.SpyLogger;
+
+/** Test the bounded buffer of the push based RabbitMQ consumer.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestBoundedDeliveryBuffer {
+
+  private List<String> flowCalls;
+  private BoundedDeliveryBuffer buffer;
+  private long nextTag;
+
+  @Before
+  public void setup() {
+    flowCalls = new ArrayList<String>();
+    // max 4 messages or 1000 bytes
+    buffer = new BoundedDeliveryBuffer(4, 1000,
+        new BoundedDeliveryBuffer.FlowControl() {
+          @Override
+          public void pause() throws IOException {
+            flowCalls.add("pause");
+          }
+          @Override
+          public void resume() throws IOException {
+            flowCalls.add("resume");
+          }
+        }, new SpyLogger());
+    nextTag = 1L;
+  }
+
+  private void addMessageOfSize(int size) {
+    buffer.add(new Delivery(nextTag++, new byte[size]));
+  }
+
+  @Test
+  public void shouldDeliverInOrder() throws InterruptedException {
+    addMessageOfSize(10);
+    addMessageOfSize(20);
+    assertEquals( 2, buffer.size() );
+    assertEquals( 30, buffer.getByteCount() );
+    assertEquals( 1L, buffer.take().getDeliveryTag() );
+    assertEquals( 2L, buffer.take().getDeliveryTag() );
+    assertEquals( 0, buffer.getByteCount() );
+    assertTrue( flowCalls.isEmpty() );
+  }
+
+  @Test
+  public void shouldPauseWhenCountLimitReachedAndResumeWhenDrained()
+      throws InterruptedException {
+    for ( int i = 0; i < 3; i++ ) { addMessageOfSize(10); }
+    assertTrue( flowCalls.isEmpty() );
+    addMessageOfSize(10);
+    assertEquals( Arrays.asList("pause"), flowCalls );
+    // messages on their way are still buffered, but no new pause
+    addMessageOfSize(10);
+    assertEquals( 1, flowCalls.size() );
+    assertTrue( buffer.isPaused() );
+
+    // resume once at half the limit
+    buffer.take();
+    buffer.take();
+    assertEquals( 1, flowCalls.size() );
+    buffer.take();
+    assertEquals( Arrays.asList("pause", "resume"), flowCalls );
+    assertFalse( buffer.isPaused() );
+    assertEquals( 1L, buffer.getPauseCount() );
+  }
+
+  @Test
+  public void shouldPauseWhenByteLimitReached() throws InterruptedException {
+    addMessageOfSize(600);
+    assertTrue( flowCalls.isEmpty() );
+    addMessageOfSize(600);
+    assertEquals( Arrays.asList("pause"), flowCalls );
+
+    buffer.take();
+    assertEquals( Arrays.asList("pause"), flowCalls );
+    buffer.take();
+    assertEquals( Arrays.asList("pause", "resume"), flowCalls );
+  }
+
+  @Test
+  public void shouldResumeWhenClearedWhilePaused() {
+    for ( int i = 0; i < 4; i++ ) { addMessageOfSize(10); }
+    buffer.clear();
+    assertEquals( 0, buffer.size() );
+    assertEquals( Arrays.asList("pause", "resume"), flowCalls );
+  }
+
+  @Test
+  public void shouldThrowShutdownSignalWhenTerminated() throws InterruptedException {
+    addMessageOfSize(10);
+    ShutdownSignalException signal =
+        new ShutdownSignalException(false, false, null, null);
+    buffer.terminate(signal);
+    try {
+      buffer.take();
+      fail("take() must throw the shutdown signal");
+    } catch (ShutdownSignalException e) {
+      assertSame( signal, e );
+    }
+    // deliveries after termination are dropped
+    addMessageOfSize(10);
+    assertEquals( 0, buffer.size() );
+
+    buffer.reset();
+    addMessageOfSize(10);
+    assertEquals( 3L, buffer.take().getDeliveryTag() );
+  }
+
+  @Test
+  public void shouldWakeUpWaitingTaker() throws InterruptedException {
+    final List<Delivery> taken = Collections.synchronizedList(new ArrayList<Delivery>());
+    Thread taker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          taken.add(buffer.take());
+        } catch (InterruptedException e) {
+          // ends the test thread
+        }
+      }
+    });
+    taker.start();
+    Thread.sleep(50);
+    addMessageOfSize(10);
+    taker.join(1000);
+    assertEquals( 1, taken.size() );
+  }
+}
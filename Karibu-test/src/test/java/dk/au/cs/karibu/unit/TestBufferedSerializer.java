@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+
+import dk.au.cs.karibu.domain.*;
+import dk.au.cs.karibu.producer.*;
+import dk.au.cs.karibu.serialization.*;
+
+/** Test that the client request handler serializes into
+ * a reused buffer when the serializer supports it.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestBufferedSerializer {
+
+  private List<byte[]> sent;
+  private ChannelConnector connector;
+  private int bufferedCalls;
+
+  /** A serializer of strings that counts the buffered calls. */
+  private class StringSerializer implements BufferedSerializer<String> {
+    @Override
+    public byte[] serialize(String myData) {
+      fail("the buffered variant must be used");
+      return null;
+    }
+    @Override
+    public void serialize(String myData, SerializationBuffer buffer) {
+      bufferedCalls++;
+      try {
+        buffer.write(myData.getBytes("UTF-8"));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** A data object that Jackson cannot serialize. */
+  public static class Unserializable {
+    public String getName() { return "partial"; }
+    public String getValue() { throw new IllegalStateException("no value"); }
+  }
+
+  @Before
+  public void setup() {
+    sent = new ArrayList<byte[]>();
+    connector = new ChannelConnector() {
+      @Override
+      public void send(byte[] bytes, String topic) throws IOException { sent.add(bytes); }
+      @Override
+      public void openConnection() throws IOException { }
+      @Override
+      public void closeConnection() throws IOException { }
+      @Override
+      public boolean isOpen() { return true; }
+    };
+  }
+
+  @Test
+  public void shouldWriteBodyAfterProducerCode() throws IOException {
+    ClientRequestHandler<String> crh = new StandardClientRequestHandler<String>(
+        "EXMTT001", connector, new StringSerializer());
+    crh.send("a longer first payload", "exm.tt.all");
+    crh.send("short", "exm.tt.all");
+    char[] large = new char[100 * 1024];
+    Arrays.fill(large, 'x');
+    crh.send(new String(large), "exm.tt.all");
+    crh.send("after", "exm.tt.all");
+
+    assertEquals( 4, bufferedCalls );
+    assertEquals( "EXMTT001a longer first payload", new String(sent.get(0), "UTF-8") );
+    assertEquals( "EXMTT001short", new String(sent.get(1), "UTF-8") );
+    assertEquals( 8 + large.length, sent.get(2).length );
+    assertEquals( "EXMTT001after", new String(sent.get(3), "UTF-8") );
+  }
+
+  @Test
+  public void shouldTruncateAndGrowBuffer() {
+    SerializationBuffer buffer = new SerializationBuffer(4);
+    buffer.write(new byte[] { 1, 2, 3 });
+    buffer.write(new byte[] { 4, 5, 6 });
+    assertEquals( 6, buffer.size() );
+    assertTrue( buffer.capacity() >= 6 );
+    buffer.truncate(2);
+    buffer.write(7);
+    assertArrayEquals( new byte[] { 1, 2, 7 }, buffer.toByteArray() );
+    assertEquals( 7, buffer.getBuffer()[2] );
+    try {
+      buffer.truncate(4);
+      fail("cannot truncate beyond the size");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void shouldNotSendPartialJSON() throws IOException {
+    StandardJSONSerializer<Unserializable> serializer =
+        new StandardJSONSerializer<Unserializable>();
+    try {
+      serializer.serialize(new Unserializable(), new SerializationBuffer());
+      fail("a data object that cannot be serialized must be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    ClientRequestHandler<Unserializable> crh =
+        new StandardClientRequestHandler<Unserializable>("EXMTT001", connector, serializer);
+    try {
+      crh.send(new Unserializable(), "exm.tt.all");
+      fail("a data object that cannot be serialized must be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals( 0, sent.size() );
+  }
+}
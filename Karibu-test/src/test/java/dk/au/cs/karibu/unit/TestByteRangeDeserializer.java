@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.bson.types.Binary;
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.deserializer.EXMRE001;
+import dk.au.cs.karibu.serialization.*;
+import dk.au.cs.karibu.utilities.DeadLetterDeserializer;
+
+/** Test that deserializers read the payload from a range of
+ * the received message buffer.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestByteRangeDeserializer {
+
+  private static final String PRODUCER_CODE = "EXMRE001";
+
+  private byte[] message;
+  private int payloadLength;
+
+  @Before
+  public void setup() {
+    String json = "{ \"value\": 17, \"timestamp\": \"2013-06-01T07:30:00Z\" }";
+    message = (PRODUCER_CODE + json).getBytes();
+    payloadLength = message.length - PRODUCER_CODE.length();
+  }
+
+  @Test
+  public void shouldAdaptExistingDeserializerByCopyingRange() {
+    final List<byte[]> received = new ArrayList<byte[]>();
+    Deserializer legacy = new Deserializer() {
+      @Override
+      public BasicDBObject buildDocumentFromByteArray(byte[] payload) {
+        received.add(payload);
+        return new BasicDBObject("length", payload.length);
+      }
+    };
+    ByteRangeDeserializer adapted = DeserializerAdapter.adapt(legacy);
+    BasicDBObject dbo = adapted.buildDocumentFromByteRange(message,
+        PRODUCER_CODE.length(), payloadLength);
+
+    assertEquals( payloadLength, dbo.getInt("length") );
+    assertEquals( '{', (char) received.get(0)[0] );
+  }
+
+  @Test
+  public void shouldNotAdaptByteRangeDeserializer() {
+    EXMRE001 deserializer = new EXMRE001();
+    assertSame( deserializer, DeserializerAdapter.adapt(deserializer) );
+  }
+
+  @Test
+  public void shouldReadJSONInPlace() {
+    BasicDBObject dbo = new EXMRE001().buildDocumentFromByteRange(message,
+        PRODUCER_CODE.length(), payloadLength);
+    assertEquals( 17, dbo.getInt("value") );
+    assertTrue( dbo.get("timestamp") instanceof Date );
+  }
+
+  @Test
+  public void shouldCopyDeadLetterPayload() {
+    BasicDBObject dbo = new DeadLetterDeserializer().buildDocumentFromByteRange(message,
+        PRODUCER_CODE.length(), payloadLength);
+    byte[] stored = ((Binary) dbo.get("payload")).getData();
+    assertEquals( payloadLength, stored.length );
+    // reusing the buffer does not change the document
+    message[PRODUCER_CODE.length()] = 'X';
+    assertEquals( '{', (char) stored[0] );
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.DeserializerFactory;
+import dk.au.cs.karibu.backend.standard.StandardServerRequestHandler;
+import dk.au.cs.karibu.serialization.*;
+import dk.au.cs.karibu.testdoubles.FakeObjectStorage;
+
+/** Test that payloads compressed by the producer are
+ * decompressed by the consumer before deserialization.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestCompression {
+
+  private static final String PRODUCER_CODE = "EXMCO001";
+
+  private CompressingSerializer<String> serializer;
+  private String verboseJSON;
+
+  @Before
+  public void setup() {
+    serializer = new CompressingSerializer<String>(new Serializer<String>() {
+      @Override
+      public byte[] serialize(String myData) {
+        return myData.getBytes();
+      }
+    });
+    StringBuilder sb = new StringBuilder("{ \"readings\": [ ");
+    for ( int i = 0; i < 100; i++ ) {
+      sb.append("{ \"sensor\": \"temperature\", \"value\": ").append(i).append(" }, ");
+    }
+    verboseJSON = sb.append("{} ] }").toString();
+  }
+
+  @Test
+  public void shouldCompressAndDecompress() throws IOException {
+    byte[] payload = serializer.serialize(verboseJSON);
+    assertTrue( Compression.isCompressed(payload, 0, payload.length) );
+    assertTrue( payload.length < verboseJSON.length() / 4 );
+
+    CompressionStatistics consumerSide = new CompressionStatistics();
+    byte[] original = Compression.decompress(payload, 0, payload.length, consumerSide);
+    assertEquals( verboseJSON, new String(original) );
+
+    CompressionStatistics producerSide = serializer.getStatistics();
+    assertEquals( 1, producerSide.getCompressedCount() );
+    assertEquals( verboseJSON.length(), producerSide.getOriginalBytes() );
+    assertEquals( payload.length, producerSide.getCompressedBytes() );
+    assertTrue( producerSide.getRatio() < 0.25 );
+    assertEquals( producerSide.getRatio(), consumerSide.getRatio(), 0.0001 );
+  }
+
+  @Test
+  public void shouldSendSmallAndIncompressiblePayloadsAsIs() {
+    byte[] payload = serializer.serialize("{ \"value\": 17 }");
+    assertEquals( "{ \"value\": 17 }", new String(payload) );
+
+    assertEquals( 1, serializer.getStatistics().getUncompressedCount() );
+
+    CompressingSerializer<byte[]> binarySerializer = 
+        new CompressingSerializer<byte[]>(new Serializer<byte[]>() {
+          @Override
+          public byte[] serialize(byte[] myData) {
+            return myData;
+          }
+        });
+    byte[] noise = new byte[1000];
+    new Random(42).nextBytes(noise);
+    noise[0] = '{';
+    assertSame( noise, binarySerializer.serialize(noise) );
+    assertEquals( 0, binarySerializer.getStatistics().getCompressedCount() );
+    assertEquals( 1, binarySerializer.getStatistics().getUncompressedCount() );
+  }
+
+  @Test
+  public void shouldDecompressBeforeDeserializing() {
+    final List<String> received = new ArrayList<String>();
+    FakeObjectStorage storage = new FakeObjectStorage();
+    StandardServerRequestHandler handler = new StandardServerRequestHandler(storage, 
+        new DeserializerFactory() {
+          @Override
+          public Deserializer createDeserializer(String producerCode) {
+            return new Deserializer() {
+              @Override
+              public BasicDBObject buildDocumentFromByteArray(byte[] payload) {
+                received.add(new String(payload));
+                return new BasicDBObject("length", payload.length);
+              }
+            };
+          }
+        });
+
+    assertTrue( handler.receive(message(serializer.serialize(verboseJSON))) );
+    assertEquals( Arrays.asList(verboseJSON), received );
+    assertEquals( 1, handler.getDecompressionStatistics().getCompressedCount() );
+
+    // a corrupt payload is stored as wrong format
+    byte[] corrupt = serializer.serialize(verboseJSON);
+    Arrays.fill(corrupt, Compression.HEADER_LENGTH, corrupt.length, (byte) 7);
+    assertTrue( handler.receive(message(corrupt)) );
+    assertEquals( 1, received.size() );
+    assertEquals( 1, storage.getCollectionNamed(
+        StandardServerRequestHandler.WRONG_FORMAT_COLLECTION_NAME_PREFIX+PRODUCER_CODE).size() );
+  }
+
+  @Test
+  public void shouldRejectUnknownCodecAndWrongLength() {
+    byte[] payload = serializer.serialize(verboseJSON);
+    byte[] unknownCodec = payload.clone();
+    unknownCodec[3] = 99;
+    assertCorrupt( unknownCodec );
+    // the original length is a big endian int32
+    byte[] wrongLength = payload.clone();
+    wrongLength[7]++;
+    assertCorrupt( wrongLength );
+    assertCorrupt( Arrays.copyOf(payload, payload.length - 2) );
+  }
+
+  @Test
+  public void shouldNotTrustTheClaimedOriginalLength() throws IOException {
+    // a highly compressible payload grows the output buffer
+    byte[] zeros = new byte[1024 * 1024];
+    byte[] framed = Compression.compress(new DeflateCodec(), zeros);
+    assertTrue( framed.length < 8 * 1024 );
+    assertArrayEquals( zeros, 
+        Compression.decompress(framed, 0, framed.length, new CompressionStatistics()) );
+
+    // a short payload claiming the max length is rejected
+    byte[] bomb = Compression.compress(new DeflateCodec(), "Mikkel".getBytes());
+    setOriginalLength(bomb, Compression.MAX_ORIGINAL_LENGTH);
+    assertCorrupt( bomb );
+    // and above the max it is rejected by the header
+    setOriginalLength(bomb, Compression.MAX_ORIGINAL_LENGTH + 1);
+    assertCorrupt( bomb );
+  }
+
+  @Test
+  public void shouldCountTheCPUTimeOfIncompressiblePayloads() {
+    CompressingSerializer<byte[]> binarySerializer = 
+        new CompressingSerializer<byte[]>(new Serializer<byte[]>() {
+          @Override
+          public byte[] serialize(byte[] myData) {
+            return myData;
+          }
+        });
+    byte[] noise = new byte[256 * 1024];
+    new Random(42).nextBytes(noise);
+    assertSame( noise, binarySerializer.serialize(noise) );
+
+    CompressionStatistics statistics = binarySerializer.getStatistics();
+    assertEquals( 1, statistics.getUncompressedCount() );
+    assertEquals( 0, statistics.getOriginalBytes() );
+    assertTrue( statistics.getCpuTimeNanos() > 0 );
+  }
+
+  @Test
+  public void shouldNotMistakeBSONForCompressed() {
+    // a BSON document of 5,917,695 bytes starts with the magic bytes
+    byte[] bson = new byte[Compression.HEADER_LENGTH + 8];
+    int length = 0x005A4BFF;
+    bson[0] = (byte) length;
+    bson[1] = (byte) (length >>> 8);
+    bson[2] = (byte) (length >>> 16);
+    bson[3] = (byte) (length >>> 24);
+    assertEquals( (byte) 0xFF, bson[0] );
+    assertEquals( 'K', bson[1] );
+    assertEquals( 'Z', bson[2] );
+    assertFalse( Compression.isCompressed(bson, 0, bson.length) );
+    bson[3] = (byte) 0x80;
+    assertFalse( Compression.isCompressed(bson, 0, bson.length) );
+    // but a codec id makes it a header
+    bson[3] = DeflateCodec.ID;
+    assertTrue( Compression.isCompressed(bson, 0, bson.length) );
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void shouldRejectCodecWithoutValidId() {
+    Compression.register(new DeflateCodec() {
+      @Override
+      public byte getId() {
+        return 0;
+      }
+    });
+  }
+
+  private void setOriginalLength(byte[] framed, int length) {
+    framed[4] = (byte) (length >>> 24);
+    framed[5] = (byte) (length >>> 16);
+    framed[6] = (byte) (length >>> 8);
+    framed[7] = (byte) length;
+  }
+
+  private void assertCorrupt(byte[] payload) {
+    try {
+      Compression.decompress(payload, 0, payload.length, new CompressionStatistics());
+      fail("corrupt payload must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private byte[] message(byte[] payload) {
+    byte[] message = new byte[PRODUCER_CODE.length() + payload.length];
+    System.arraycopy(PRODUCER_CODE.getBytes(), 0, message, 0, PRODUCER_CODE.length());
+    System.arraycopy(payload, 0, message, PRODUCER_CODE.length(), payload.length);
+    return message;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import org.junit.*;
+
+import com.rabbitmq.client.*;
+
+import dk.au.cs.karibu.common.Histogram;
+import dk.au.cs.karibu.producer.rabbitmq.*;
+
+/** Test the tracking of publisher confirms, using a
+ * channel that records the publishes and lets the test
+ * play the role of the broker.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestConfirmingConnector {
+
+  private List<String> published;
+  private ConfirmListener broker;
+  private long nextSeqNo;
+  private boolean channelOpen;
+  // the number of publishes before the channel fails, -1 for never
+  private int publishesBeforeFailure;
+  private TestableConnector connector;
+
+  /** A connector that uses the recording channel. */
+  private class TestableConnector extends ConfirmingRabbitChannelConnector {
+    TestableConnector(int maxOutstanding) throws IOException {
+      super(new StandardRabbitExchangeConfiguration("guest", "guest",
+          new Address[] { new Address("localhost") }, false, "exchange",
+          true, "topic"), maxOutstanding);
+    }
+    @Override
+    public void openConnection() throws IOException {
+      nextSeqNo = 1;
+      channelOpen = true;
+      channel = createRecordingChannel();
+      enableConfirms();
+    }
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+
+  @Before
+  public void setup() throws IOException {
+    published = new ArrayList<String>();
+    publishesBeforeFailure = -1;
+    connector = new TestableConnector(3);
+    connector.openConnection();
+  }
+
+  @Test
+  public void shouldTrackAcks() throws Exception {
+    send("a"); send("b"); send("c");
+    assertEquals( 3, connector.getOutstandingCount() );
+
+    broker.handleAck(1, false);
+    assertEquals( 2, connector.getOutstandingCount() );
+    broker.handleAck(3, true);
+    assertEquals( 0, connector.getOutstandingCount() );
+    assertEquals( 3, connector.getConfirmedCount() );
+    assertEquals( 3, connector.getConfirmLatency().getCount() );
+    assertTrue( connector.waitForConfirms(0) );
+  }
+
+  @Test
+  public void shouldRepublishNackedMessages() throws Exception {
+    send("a"); send("b"); send("c");
+    broker.handleNack(2, true);
+    assertEquals( Arrays.asList("a", "b", "c", "a", "b"), published );
+    assertEquals( 2, connector.getNackedCount() );
+    assertEquals( 3, connector.getOutstandingCount() );
+
+    broker.handleAck(5, true);
+    assertEquals( 0, connector.getOutstandingCount() );
+    assertEquals( 3, connector.getConfirmedCount() );
+  }
+
+  @Test
+  public void shouldRepublishUnconfirmedOnReconnect() throws Exception {
+    send("a"); send("b");
+    broker.handleAck(1, false);
+    ConfirmListener oldBroker = broker;
+    connector.openConnection();
+    assertEquals( Arrays.asList("a", "b", "b"), published );
+    // a late confirm from the old channel is ignored
+    oldBroker.handleAck(2, false);
+    assertEquals( 1, connector.getOutstandingCount() );
+    broker.handleAck(1, false);
+    assertEquals( 0, connector.getOutstandingCount() );
+  }
+
+  @Test
+  public void shouldKeepUnpublishedWhenRepublishFails() throws Exception {
+    send("a"); send("b"); send("c");
+    publishesBeforeFailure = 1;
+    try {
+      connector.openConnection();
+      fail("the failed republish must be reported");
+    } catch (IOException e) {
+      assertEquals( "Connection reset", e.getMessage() );
+    }
+    assertEquals( Arrays.asList("a", "b", "c", "a"), published );
+    // 'a' awaits its confirm, 'b' and 'c' are kept
+    assertEquals( 3, connector.getOutstandingCount() );
+
+    publishesBeforeFailure = -1;
+    connector.openConnection();
+    assertEquals( Arrays.asList("a", "b", "c", "a", "a", "b", "c"), published );
+    broker.handleAck(3, true);
+    assertEquals( 0, connector.getOutstandingCount() );
+    assertEquals( 3, connector.getConfirmedCount() );
+  }
+
+  @Test
+  public void shouldBlockWhileWindowIsFull() throws Exception {
+    send("a"); send("b"); send("c");
+    Thread sender = new Thread() {
+      public void run() {
+        try { send("d"); } catch (IOException e) { /* failure shows below */ }
+      }
+    };
+    sender.start();
+    sender.join(200);
+    assertTrue( sender.isAlive() );
+    assertEquals( 3, published.size() );
+
+    broker.handleAck(1, false);
+    sender.join(1000);
+    assertFalse( sender.isAlive() );
+    assertEquals( "d", published.get(3) );
+    assertFalse( connector.waitForConfirms(10) );
+  }
+
+  @Test(expected = AlreadyClosedException.class)
+  public void shouldFailWhenChannelClosesWithFullWindow() throws Exception {
+    send("a"); send("b"); send("c");
+    channelOpen = false;
+    send("d");
+  }
+
+  @Test
+  public void shouldReportPercentiles() {
+    Histogram histogram = new Histogram();
+    for ( int i = 1; i <= 1000; i++ ) {
+      histogram.record(i);
+    }
+    assertEquals( 1000, histogram.getCount() );
+    assertEquals( 1000, histogram.getMax() );
+    assertEquals( 500.5, histogram.getMean(), 0.001 );
+    // buckets are within 1/8 of their values
+    assertEquals( 500, histogram.getValueAtPercentile(50.0), 500 / 8 );
+    assertEquals( 990, histogram.getValueAtPercentile(99.0), 990 / 8 );
+    assertEquals( 1000, histogram.getValueAtPercentile(100.0) );
+    histogram.reset();
+    assertEquals( 0, histogram.getCount() );
+    assertEquals( 0, histogram.getValueAtPercentile(50.0) );
+  }
+
+  private void send(String message) throws IOException {
+    connector.send(message.getBytes("UTF-8"), "topic");
+  }
+
+  private Channel createRecordingChannel() {
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[] { Channel.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args)
+          throws Throwable {
+        String name = method.getName();
+        if ( name.equals("getNextPublishSeqNo") ) {
+          return nextSeqNo;
+        } else if ( name.equals("basicPublish") ) {
+          if ( publishesBeforeFailure == 0 ) { throw new IOException("Connection reset"); }
+          if ( publishesBeforeFailure > 0 ) { publishesBeforeFailure--; }
+          nextSeqNo++;
+          synchronized (published) {
+            published.add(new String((byte[]) args[args.length - 1], "UTF-8"));
+          }
+        } else if ( name.equals("addConfirmListener") ) {
+          broker = (ConfirmListener) args[0];
+        } else if ( name.equals("isOpen") ) {
+          return channelOpen;
+        } else if ( name.equals("hashCode") ) {
+          return System.identityHashCode(proxy);
+        } else if ( name.equals("equals") ) {
+          return proxy == args[0];
+        }
+        return null;
+      }
+    });
+  }
+}
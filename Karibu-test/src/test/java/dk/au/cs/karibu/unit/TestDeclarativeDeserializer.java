@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSONParseException;
+
+import dk.au.cs.karibu.backend.DeserializerFactory;
+import dk.au.cs.karibu.backend.standard.DeclarativeDeserializerFactory;
+import dk.au.cs.karibu.deserializer.EXMRE001;
+import dk.au.cs.karibu.hobbydomain.GameFavoriteDeserializer;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.utilities.FieldConversion;
+
+/** Test deserializers declared in properties.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestDeclarativeDeserializer {
+
+  private static final String JSON =
+      "{ \"timestamp\": \"2013-06-01T07:30:00Z\", \"temp\": \"21.5\", "+
+      "\"count\": 3, \"debug\": \"x\", \"name\": \"Henrik\" }";
+
+  private Properties properties;
+  private DeserializerFactory factory;
+
+  @Before
+  public void setup() {
+    properties = new Properties();
+    properties.setProperty("producerCodes", "EXMRE001, EXMRE002");
+    properties.setProperty("EXMRE001.convert.timestamp", "date");
+    properties.setProperty("EXMRE002.convert.timestamp", "date");
+    properties.setProperty("EXMRE002.convert.temp", "double");
+    properties.setProperty("EXMRE002.convert.count", "long");
+    properties.setProperty("EXMRE002.rename.temp", "temperature");
+    properties.setProperty("EXMRE002.drop", "debug");
+    factory = new DeclarativeDeserializerFactory(properties, new DeserializerFactory() {
+      @Override
+      public Deserializer createDeserializer(String producerCode) {
+        return producerCode.equals("EXMTT001") ? new GameFavoriteDeserializer() : null;
+      }
+    });
+  }
+
+  private BasicDBObject deserialize(String producerCode, String json) {
+    return factory.createDeserializer(producerCode).buildDocumentFromByteArray(json.getBytes());
+  }
+
+  @Test
+  public void shouldDeserializeLikeCodedDeserializer() {
+    BasicDBObject coded = new EXMRE001().buildDocumentFromByteArray(JSON.getBytes());
+    assertEquals( coded, deserialize("EXMRE001", JSON) );
+  }
+
+  @Test
+  public void shouldConvertRenameAndDropFields() {
+    BasicDBObject dbo = deserialize("EXMRE002", JSON);
+    assertEquals( new Date(1370071800000L), dbo.get("timestamp") );
+    assertEquals( Double.valueOf(21.5), dbo.get("temperature") );
+    assertFalse( dbo.containsField("temp") );
+    assertEquals( Long.valueOf(3), dbo.get("count") );
+    assertFalse( dbo.containsField("debug") );
+    assertEquals( "Henrik", dbo.get("name") );
+  }
+
+  @Test
+  public void shouldUseFallbackForUndeclaredCodes() {
+    assertTrue( factory.createDeserializer("EXMTT001") instanceof GameFavoriteDeserializer );
+    assertNull( factory.createDeserializer("EXMTT002") );
+  }
+
+  @Test
+  public void shouldParseISO8601Variants() {
+    long expected = 1370071800000L;
+    String[] stamps = { "2013-06-01T07:30:00Z", "2013-06-01T09:30:00+02:00",
+        "2013-06-01T09:30:00.000+0200", "2013-06-01T02:30-05:00", "2013-06-01T07:30:00" };
+    for ( String stamp : stamps ) {
+      BasicDBObject dbo = deserialize("EXMRE001", "{ \"timestamp\": \""+stamp+"\" }");
+      assertEquals( stamp, new Date(expected), dbo.get("timestamp") );
+    }
+    BasicDBObject dbo = deserialize("EXMRE001", "{ \"timestamp\": \"2013-06-01T07:30:00.25Z\" }");
+    assertEquals( new Date(expected + 250), dbo.get("timestamp") );
+    dbo = deserialize("EXMRE001", "{ \"timestamp\": \"1969-12-31\" }");
+    assertEquals( new Date(-86400000L), dbo.get("timestamp") );
+  }
+
+  @Test(expected=JSONParseException.class)
+  public void shouldRejectInconvertibleValue() {
+    deserialize("EXMRE001", "{ \"timestamp\": \"yesterday\" }");
+  }
+
+  @Test
+  public void shouldRejectImpossibleDates() {
+    String[] dates = { "2013-02-29", "2013-02-30", "2013-04-31", "1900-02-29" };
+    for ( String date : dates ) {
+      try {
+        deserialize("EXMRE001", "{ \"timestamp\": \""+date+"\" }");
+        fail(date+" must be rejected");
+      } catch (JSONParseException e) {
+        // expected
+      }
+    }
+    BasicDBObject dbo = deserialize("EXMRE001", "{ \"timestamp\": \"2000-02-29\" }");
+    assertEquals( new Date(951782400000L), dbo.get("timestamp") );
+  }
+
+  @Test
+  public void shouldConvertNumbersOnlyWithoutLoss() {
+    assertEquals( Integer.valueOf(7), FieldConversion.INT.convert(7L) );
+    assertEquals( Integer.valueOf(7), FieldConversion.INT.convert(7.0) );
+    assertEquals( Long.valueOf(1L << 40), FieldConversion.LONG.convert((double) (1L << 40)) );
+    assertEquals( Long.valueOf(Long.MAX_VALUE), 
+        FieldConversion.LONG.convert(BigInteger.valueOf(Long.MAX_VALUE)) );
+    Object[][] lossy = { 
+        { FieldConversion.INT, 2.5 }, 
+        { FieldConversion.INT, 1L << 40 },
+        { FieldConversion.INT, Double.NaN },
+        { FieldConversion.LONG, 1e19 },
+        { FieldConversion.LONG, Double.POSITIVE_INFINITY },
+        { FieldConversion.LONG, BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE) },
+        { FieldConversion.LONG, 0.1f } };
+    for ( Object[] c : lossy ) {
+      try {
+        ((FieldConversion) c[0]).convert(c[1]);
+        fail(c[1]+" must not be converted to "+c[0]);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void shouldRejectLossyNumber() {
+    try {
+      deserialize("EXMRE002", "{ \"count\": 2.5 }");
+      fail("a fraction is not a long");
+    } catch (JSONParseException e) {
+      // expected
+    }
+  }
+
+  @Test(expected=RuntimeException.class)
+  public void shouldRejectUnknownConversion() {
+    properties.setProperty("EXMRE001.convert.timestamp", "calendar");
+    new DeclarativeDeserializerFactory(properties, null);
+  }
+}
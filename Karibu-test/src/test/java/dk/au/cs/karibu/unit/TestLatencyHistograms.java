@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.backend.LatencyHistograms.Stage;
+import dk.au.cs.karibu.backend.standard.*;
+import dk.au.cs.karibu.common.Histogram;
+import dk.au.cs.karibu.serialization.Deserializer;
+import dk.au.cs.karibu.testdoubles.*;
+
+/** Test the per stage latency histograms of the request
+ * handler and their inclusion in the statistics.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestLatencyHistograms {
+
+  private static final long MS = 1000000L;
+
+  private SpyStatisticStorage spyStorage;
+  private StatisticHandler stat;
+  private FakeObjectStorage storage;
+  private DeserializerFactory factory;
+  private ServerRequestHandler handler;
+
+  @Before
+  public void setup() {
+    spyStorage = new SpyStatisticStorage();
+    StubTimestampStrategy timestampStrategy = new StubTimestampStrategy();
+    timestampStrategy.setTime( Calendar.getInstance() );
+    stat = new StandardStatisticHandler(spyStorage, timestampStrategy);
+    storage = new FakeObjectStorage();
+    factory = new DeserializerFactory() {
+      @Override
+      public Deserializer createDeserializer(String producerCode) {
+        return new Deserializer() {
+          @Override
+          public BasicDBObject buildDocumentFromByteArray(byte[] payload) {
+            return new BasicDBObject("value", new String(payload));
+          }
+        };
+      }
+    };
+    handler = new StandardServerRequestHandler(storage, factory, stat, new SpyLogger());
+  }
+
+  @Test
+  public void shouldRecordHandlerStagesPerProducerCode() {
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( handler.receive(("EXMLA001value"+i).getBytes()) );
+    }
+    assertTrue( handler.receive("EXMLB001value".getBytes()) );
+
+    LatencyHistograms latencies = stat.getLatencyHistograms();
+    assertEquals( 3, latencies.getHistogram("EXMLA001", Stage.DESERIALIZE).getCount() );
+    assertEquals( 3, latencies.getHistogram("EXMLA001", Stage.STORE).getCount() );
+    assertEquals( 1, latencies.getHistogram("EXMLB001", Stage.STORE).getCount() );
+    // the queue and ack stages are recorded by the receiver
+    assertEquals( 0, latencies.getHistogram("EXMLA001", Stage.QUEUE).getCount() );
+    assertNull( latencies.getHistogram("EXMLC001", Stage.STORE) );
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldIncludePercentilesInStatistics() {
+    LatencyHistograms latencies = stat.getLatencyHistograms();
+    for ( int i = 1; i <= 1000; i++ ) {
+      latencies.record(Stage.STORE, "EXMLA001", i * MS);
+    }
+    latencies.record(Stage.ACK, "EXMLA001value".getBytes(), 5 * MS);
+    stat.flushToStorage();
+
+    BasicDBObject dbo = spyStorage.getLast();
+    List<BasicDBObject> list = (List<BasicDBObject>) dbo.get("StageLatencyList");
+    assertEquals( 1, list.size() );
+    BasicDBObject item = list.get(0);
+    assertEquals( "EXMLA001", item.getString("ProducerCode") );
+
+    BasicDBObject store = (BasicDBObject) item.get("Store");
+    assertEquals( 1000L, store.getLong("Count") );
+    // percentiles are accurate to 12.5%
+    assertEquals( 500.0, store.getDouble("P50Ms"), 500 * 0.125 );
+    assertEquals( 990.0, store.getDouble("P99Ms"), 990 * 0.125 );
+    assertEquals( 1000.0, store.getDouble("P999Ms"), 1000 * 0.125 );
+    assertEquals( 1000.0, store.getDouble("MaxMs"), 0.001 );
+    assertEquals( 500500.0, store.getDouble("SumMs"), 0.001 );
+
+    BasicDBObject ack = (BasicDBObject) item.get("Ack");
+    assertEquals( 1L, ack.getLong("Count") );
+    assertEquals( 5.0, ack.getDouble("MaxMs"), 0.001 );
+
+    // the flush starts a new chunk
+    assertNull( latencies.getHistogram("EXMLA001", Stage.STORE) );
+    stat.flushToStorage();
+    list = (List<BasicDBObject>) spyStorage.getLast().get("StageLatencyList");
+    assertTrue( list.isEmpty() );
+  }
+
+  @Test
+  public void shouldBoundTheNumberOfProducerCodes() {
+    LatencyHistograms latencies = stat.getLatencyHistograms();
+    for ( int i = 0; i < LatencyHistograms.MAX_CODES + 10; i++ ) {
+      latencies.record(Stage.STORE, "EXM"+(10000 + i), MS);
+    }
+    assertEquals( LatencyHistograms.MAX_CODES, latencies.toBSON().size() );
+    assertNull( latencies.getHistogram("EXM"+(10000 + LatencyHistograms.MAX_CODES), Stage.STORE) );
+    // codes already held are still recorded
+    latencies.record(Stage.STORE, "EXM10000", MS);
+    assertEquals( 2, latencies.getHistogram("EXM10000", Stage.STORE).getCount() );
+    // a new chunk may hold other codes
+    latencies.drain();
+    latencies.record(Stage.STORE, "EXMLA001", MS);
+    assertEquals( 1, latencies.getHistogram("EXMLA001", Stage.STORE).getCount() );
+  }
+
+  @Test
+  public void shouldReportStatusForMonitoring() {
+    LatencyHistograms latencies = stat.getLatencyHistograms();
+    assertEquals( "No latencies recorded", latencies.getStatusAsString() );
+    latencies.record(Stage.QUEUE, "EXMLA001", 2 * MS);
+    String status = latencies.getStatusAsString();
+    assertTrue( status, status.startsWith("EXMLA001 Queue: ") );
+    assertFalse( status, status.contains("Store") );
+  }
+
+  @Test
+  public void shouldMeasureQueueStageFromArrivalOnSingleThread() 
+      throws InterruptedException {
+    final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+    final CountDownLatch acknowledged = new CountDownLatch(1);
+    PollingConsumer consumer = new PollingConsumer() {
+      @Override
+      public void openChannelAndSetRouting() throws IOException { }
+      @Override
+      public void closeChannel() throws IOException { }
+      @Override
+      public Delivery nextDelivery() throws ShutdownSignalException, InterruptedException {
+        return deliveries.take();
+      }
+      @Override
+      public void acknowledge(Delivery delivery) throws IOException { acknowledged.countDown(); }
+      @Override
+      public void acknowledgeUpTo(Delivery delivery) throws IOException { acknowledged.countDown(); }
+      @Override
+      public void recover() throws IOException { }
+    };
+    MessageReceiverEndpoint receiver = new MessageReceiverEndpointFactory.Builder().
+        pollingConsumer(consumer).
+        processingStrategy(storage).
+        statisticsHandler(stat).
+        deserializerFactory(factory).
+        logger(new SpyLogger()).
+        build();
+    Thread thread = new Thread(receiver);
+    thread.start();
+
+    // a delivery that waited 50 ms in the client side queue
+    deliveries.add(new Delivery(1, "EXMLA001value1".getBytes(), 
+        System.nanoTime() - 50 * MS));
+    assertTrue( acknowledged.await(2, TimeUnit.SECONDS) );
+    receiver.stopReceiving();
+    deliveries.add(new Delivery(2, "EXMLA001value2".getBytes()));
+    thread.join(2000);
+
+    Histogram queue = stat.getLatencyHistograms().getHistogram("EXMLA001", Stage.QUEUE);
+    assertTrue( queue.getMax() >= 50 * MS );
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import dk.au.cs.karibu.producer.*;
+import dk.au.cs.karibu.testdoubles.SpyLogger;
+
+/** Test the store and forward outbox, forwarding to a
+ * connector that can be made unreachable.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestOutbox {
+
+  private File directory;
+  private RecordingConnector broker;
+
+  /** A connector that records the payloads, unless it is down. */
+  private static class RecordingConnector implements ChannelConnector {
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean reachable = true;
+    volatile boolean open = false;
+    @Override
+    public void send(byte[] bytes, String topic) throws IOException {
+      if ( ! reachable || ! open ) { throw new java.net.ConnectException("Broker down"); }
+      received.add(topic+":"+new String(bytes, "UTF-8"));
+    }
+    @Override
+    public void openConnection() throws IOException {
+      if ( ! reachable ) { throw new java.net.ConnectException("Broker down"); }
+      open = true;
+    }
+    @Override
+    public void closeConnection() throws IOException { open = false; }
+    @Override
+    public boolean isOpen() { return open; }
+  }
+
+  @Before
+  public void setup() throws IOException {
+    directory = File.createTempFile("outbox", "");
+    directory.delete();
+    broker = new RecordingConnector();
+  }
+
+  @After
+  public void teardown() {
+    File[] files = directory.listFiles();
+    for ( File file : files == null ? new File[0] : files ) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void shouldForwardInOrder() throws Exception {
+    OutboxChannelConnector outbox = createOutbox(1024, 4);
+    outbox.openConnection();
+    send(outbox, 0, 50);
+    assertTrue( outbox.waitUntilDrained(2000) );
+    assertEquals( expected(0, 50), broker.received );
+    assertEquals( 50, outbox.getForwardedCount() );
+    outbox.closeConnection();
+    // forwarded segments are deleted, except the one in use
+    assertEquals( 1, directory.listFiles().length );
+  }
+
+  @Test
+  public void shouldStoreDuringOutageAndForwardLater() throws Exception {
+    broker.reachable = false;
+    OutboxChannelConnector outbox = createOutbox(256, 4);
+    outbox.openConnection();
+    send(outbox, 0, 20);
+    assertFalse( outbox.waitUntilDrained(50) );
+    assertEquals( 20, outbox.getPendingCount() );
+    assertTrue( outbox.getSegmentCount() > 1 );
+
+    broker.reachable = true;
+    assertTrue( outbox.waitUntilDrained(2000) );
+    assertEquals( expected(0, 20), broker.received );
+    outbox.closeConnection();
+  }
+
+  @Test
+  public void shouldRecoverPendingPayloadsAfterRestart() throws Exception {
+    OutboxChannelConnector outbox = createOutbox(1024, 4);
+    outbox.openConnection();
+    send(outbox, 0, 5);
+    assertTrue( outbox.waitUntilDrained(2000) );
+    outbox.closeConnection();
+    // the client stops with payloads pending
+    send(outbox, 5, 10);
+
+    OutboxChannelConnector restarted = createOutbox(1024, 4);
+    assertEquals( 5, restarted.getPendingCount() );
+    restarted.openConnection();
+    assertTrue( restarted.waitUntilDrained(2000) );
+    assertEquals( expected(0, 10), broker.received );
+    restarted.closeConnection();
+    assertEquals( 0, createOutbox(1024, 4).getPendingCount() );
+  }
+
+  @Test
+  public void shouldDiscardTornPayloadOnRecovery() throws Exception {
+    OutboxChannelConnector outbox = createOutbox(1024, 4);
+    send(outbox, 0, 3);
+    outbox.closeConnection();
+    // corrupt the last byte of the third payload
+    File segment = directory.listFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    int recordSize = 8 + 2 + "exm.tt.all".length() + "Payload 0".length();
+    raf.seek(3 * recordSize - 1);
+    raf.write('X');
+    raf.close();
+
+    OutboxChannelConnector restarted = createOutbox(1024, 4);
+    assertEquals( 2, restarted.getPendingCount() );
+    send(restarted, 3, 4);
+    restarted.openConnection();
+    assertTrue( restarted.waitUntilDrained(2000) );
+    assertEquals( Arrays.asList("exm.tt.all:Payload 0", "exm.tt.all:Payload 1",
+        "exm.tt.all:Payload 3"), broker.received );
+    restarted.closeConnection();
+  }
+
+  @Test
+  public void shouldBoundDiskUsage() throws Exception {
+    broker.reachable = false;
+    OutboxChannelConnector outbox = createOutbox(64, 2);
+    // a record of 29 bytes, two per segment
+    send(outbox, 0, 4);
+    try {
+      send(outbox, 4, 5);
+      fail("the outbox is full");
+    } catch (IOException e) {
+      assertTrue( e.getMessage().startsWith("Outbox full") );
+    }
+    try {
+      outbox.send(new byte[64], "exm.tt.all");
+      fail("the payload is larger than a segment");
+    } catch (IOException e) {
+      assertTrue( e.getMessage().contains("does not fit") );
+    }
+    assertEquals( 2, directory.listFiles().length );
+  }
+
+  private OutboxChannelConnector createOutbox(int segmentSize, int maxSegments) 
+      throws IOException {
+    return new OutboxChannelConnector(broker, directory, segmentSize, maxSegments,
+        10, new SpyLogger());
+  }
+
+  private void send(ChannelConnector outbox, int from, int to) throws IOException {
+    for ( int i = from; i < to; i++ ) {
+      outbox.send(("Payload "+i).getBytes("UTF-8"), "exm.tt.all");
+    }
+  }
+
+  private List<String> expected(int from, int to) {
+    List<String> list = new ArrayList<String>();
+    for ( int i = from; i < to; i++ ) {
+      list.add("exm.tt.all:Payload "+i);
+    }
+    return list;
+  }
+}
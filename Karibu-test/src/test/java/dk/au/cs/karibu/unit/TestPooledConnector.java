@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.rabbitmq.client.*;
+
+import dk.au.cs.karibu.hobbydomain.*;
+import dk.au.cs.karibu.producer.*;
+import dk.au.cs.karibu.producer.rabbitmq.*;
+import dk.au.cs.karibu.testdoubles.SpyLogger;
+
+/** Test that the pooled connector can be shared by many
+ * client request handlers sending from many threads, using
+ * connections and channels that record their use.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestPooledConnector {
+
+  private AtomicInteger connectionsCreated;
+  private AtomicInteger channelsCreated;
+  private AtomicInteger published;
+  private AtomicBoolean concurrentUse;
+  private AtomicBoolean connectionOpen;
+  private AtomicBoolean failNextPublish;
+  private PooledRabbitChannelConnector connector;
+
+  @Before
+  public void setup() {
+    connectionsCreated = new AtomicInteger();
+    channelsCreated = new AtomicInteger();
+    published = new AtomicInteger();
+    concurrentUse = new AtomicBoolean();
+    failNextPublish = new AtomicBoolean();
+    connector = new PooledRabbitChannelConnector(new StandardRabbitExchangeConfiguration(
+        "guest", "guest", new Address[] { new Address("localhost") }, false, 
+        "exchange", true, "topic"), 2) {
+      @Override
+      protected Connection createConnection() {
+        connectionsCreated.incrementAndGet();
+        connectionOpen = new AtomicBoolean(true);
+        return createRecordingConnection(connectionOpen);
+      }
+    };
+  }
+
+  @Test
+  public void shouldShareOneConnectionAcrossHandlersAndThreads() throws Exception {
+    final int threads = 8, sends = 50;
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    List<Thread> senders = new ArrayList<Thread>();
+    for ( int t = 0; t < threads; t++ ) {
+      final ClientRequestHandler<GameFavorite> crh = 
+          new StandardClientRequestHandler<GameFavorite>("EXMTT00"+t, connector, 
+              new GameFavoriteSerializer());
+      Thread sender = new Thread() {
+        public void run() {
+          try {
+            for ( int i = 0; i < sends; i++ ) {
+              crh.send(new GameFavorite("Henrik", "Game "+i), "exm.tt.all");
+            }
+          } catch (Exception e) {
+            failures.add(e);
+          }
+        }
+      };
+      senders.add(sender);
+      sender.start();
+    }
+    for ( Thread sender : senders ) {
+      sender.join(5000);
+    }
+    assertTrue( failures.toString(), failures.isEmpty() );
+    assertEquals( threads * sends, published.get() );
+    assertEquals( 1, connectionsCreated.get() );
+    assertTrue( channelsCreated.get() <= 2 );
+    assertEquals( channelsCreated.get(), connector.getChannelCount() );
+    assertFalse( "a channel was used by two threads at a time", concurrentUse.get() );
+  }
+
+  @Test
+  public void shouldReconnectOnlyWhenConnectionIsClosed() throws Exception {
+    connector.openConnection();
+    connector.openConnection();
+    assertEquals( 1, connectionsCreated.get() );
+
+    ClientRequestHandler<GameFavorite> crh = 
+        new StandardClientRequestHandler<GameFavorite>("EXMTT001", connector, 
+            new GameFavoriteSerializer(), 1, 2, new SpyLogger());
+    connectionOpen.set(false);
+    crh.send(new GameFavorite("Henrik", "Catan"), "exm.tt.all");
+    assertEquals( 2, connectionsCreated.get() );
+    assertEquals( 1, published.get() );
+  }
+
+  @Test
+  public void shouldReplaceFailedChannel() throws Exception {
+    ClientRequestHandler<GameFavorite> crh = 
+        new StandardClientRequestHandler<GameFavorite>("EXMTT001", connector, 
+            new GameFavoriteSerializer(), 1, 2, new SpyLogger());
+    crh.send(new GameFavorite("Henrik", "Catan"), "exm.tt.all");
+    failNextPublish.set(true);
+    crh.send(new GameFavorite("Henrik", "Go"), "exm.tt.all");
+
+    assertEquals( 1, connectionsCreated.get() );
+    assertEquals( 2, channelsCreated.get() );
+    assertEquals( 1, connector.getChannelCount() );
+    assertEquals( 2, published.get() );
+  }
+
+  private Connection createRecordingConnection(final AtomicBoolean open) {
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, java.lang.reflect.Method method, 
+          Object[] args) throws Throwable {
+        String name = method.getName();
+        if ( name.equals("createChannel") ) {
+          channelsCreated.incrementAndGet();
+          return createRecordingChannel((Connection) proxy);
+        } else if ( name.equals("isOpen") ) {
+          return open.get();
+        } else if ( name.equals("close") ) {
+          open.set(false);
+        }
+        return identity(proxy, name, args);
+      }
+    });
+  }
+
+  private Channel createRecordingChannel(final Connection connection) {
+    final AtomicBoolean open = new AtomicBoolean(true);
+    final AtomicInteger users = new AtomicInteger();
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[] { Channel.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, java.lang.reflect.Method method, 
+          Object[] args) throws Throwable {
+        String name = method.getName();
+        if ( name.equals("basicPublish") ) {
+          if ( ! connection.isOpen() || ! open.get() ) {
+            throw new AlreadyClosedException("closed", proxy);
+          }
+          if ( failNextPublish.compareAndSet(true, false) ) {
+            open.set(false);
+            throw new AlreadyClosedException("channel failed", proxy);
+          }
+          if ( users.incrementAndGet() > 1 ) { concurrentUse.set(true); }
+          Thread.yield();
+          users.decrementAndGet();
+          published.incrementAndGet();
+        } else if ( name.equals("isOpen") ) {
+          return open.get() && connection.isOpen();
+        } else if ( name.equals("close") ) {
+          open.set(false);
+        } else if ( name.equals("getConnection") ) {
+          return connection;
+        }
+        return identity(proxy, name, args);
+      }
+    });
+  }
+
+  private static Object identity(Object proxy, String name, Object[] args) {
+    if ( name.equals("hashCode") ) {
+      return System.identityHashCode(proxy);
+    } else if ( name.equals("equals") ) {
+      return proxy == args[0];
+    } else if ( name.equals("toString") ) {
+      return "Recording proxy";
+    }
+    return null;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import dk.au.cs.karibu.backend.standard.ProducerCodeTable;
+
+/** Test the table of canonical producer codes.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestProducerCodeTable {
+
+  private ProducerCodeTable table;
+
+  @Before
+  public void setup() {
+    table = new ProducerCodeTable();
+  }
+
+  private byte[] message(String producerCode) {
+    return (producerCode + "{ \"x\": 1 }").getBytes();
+  }
+
+  @Test
+  public void shouldReturnCanonicalInstance() {
+    String first = table.lookup(message("EXMTT001"));
+    assertEquals( "EXMTT001", first );
+    assertSame( first, table.lookup(message("EXMTT001")) );
+    assertEquals( 1, table.size() );
+  }
+
+  @Test
+  public void shouldKeepCodesApartWhenGrowing() {
+    String[] codes = new String[100];
+    for ( int i = 0; i < codes.length; i++ ) {
+      codes[i] = table.lookup(message(String.format("EXM%05d", i)));
+    }
+    assertEquals( 100, table.size() );
+    for ( int i = 0; i < codes.length; i++ ) {
+      String code = table.lookup(message(String.format("EXM%05d", i)));
+      assertSame( codes[i], code );
+      assertEquals( String.format("EXM%05d", i), code );
+    }
+  }
+
+  @Test
+  public void shouldPackBytesInOrder() {
+    assertEquals( 0x4558544D54543031L, ProducerCodeTable.pack(message("EXTMTT01")) );
+    assertTrue( ProducerCodeTable.pack(message("EXMTT001")) !=
+        ProducerCodeTable.pack(message("EXMTT010")) );
+  }
+
+  @Test
+  public void shouldStopCachingAtMaxCodes() {
+    for ( int i = 0; i < ProducerCodeTable.MAX_CODES; i++ ) {
+      table.lookup(message(String.format("G%07d", i)));
+    }
+    String code = table.lookup(message("OVERFLOW"));
+    assertEquals( "OVERFLOW", code );
+    assertEquals( ProducerCodeTable.MAX_CODES, table.size() );
+    assertNotSame( code, table.lookup(message("OVERFLOW")) );
+  }
+}
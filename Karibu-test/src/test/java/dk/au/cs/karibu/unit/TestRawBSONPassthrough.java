@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.bson.BSONException;
+import org.junit.*;
+
+import com.mongodb.BasicDBObject;
+
+import dk.au.cs.karibu.backend.*;
+import dk.au.cs.karibu.backend.standard.*;
+import dk.au.cs.karibu.serialization.*;
+import dk.au.cs.karibu.testdoubles.*;
+
+/** Test that BSON payloads are validated and passed on to
+ * the storage without being decoded.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestRawBSONPassthrough {
+
+  private static final String PRODUCER_CODE = "EXMBS001";
+
+  private byte[] document;
+  private FakeObjectStorage storage;
+  private ServerRequestHandler handler;
+
+  @Before
+  public void setup() throws IOException {
+    document = document(
+        element(0x10, "value", int32(17)),
+        element(0x02, "unit", string("celsius")),
+        element(0x03, "position", document(
+            element(0x01, "lat", new byte[8]),
+            element(0x01, "lon", new byte[8]))),
+        element(0x04, "samples", document(
+            element(0x10, "0", int32(1)),
+            element(0x10, "1", int32(2)))),
+        element(0x05, "blob", concat(int32(3), new byte[] { 0, 1, 2, 3 })),
+        element(0x0A, "nothing", new byte[0]));
+
+    storage = new FakeObjectStorage();
+    handler = new StandardServerRequestHandler(storage, new DeserializerFactory() {
+      @Override
+      public Deserializer createDeserializer(String producerCode) {
+        return PRODUCER_CODE.equals(producerCode) ? new BSONDeserializer() : null;
+      }
+    });
+  }
+
+  @Test
+  public void shouldAcceptWellFramedDocument() throws IOException {
+    BSONDeserializer.validate(document, 0, document.length);
+    byte[] message = concat(PRODUCER_CODE.getBytes(), document);
+    BSONDeserializer.validate(message, 8, document.length);
+  }
+
+  @Test
+  public void shouldRejectBadFraming() throws IOException {
+    // total length one too many
+    byte[] tooLong = document.clone();
+    tooLong[0]++;
+    assertRejected( tooLong );
+    // missing terminator
+    assertRejected( Arrays.copyOf(document, document.length - 1) );
+    // trailing garbage after the document
+    assertRejected( concat(document, new byte[] { 0 }) );
+    // string length overrunning the document
+    assertRejected( document(element(0x02, "s", concat(int32(50), "x\0".getBytes()))) );
+    // unknown element type
+    assertRejected( document(element(0x42, "x", new byte[0])) );
+    // embedded document longer than its parent
+    assertRejected( document(element(0x03, "d", concat(int32(40), new byte[] { 0 }))) );
+  }
+
+  @Test
+  public void shouldPassRawBSONToStorage() throws IOException {
+    assertTrue( handler.receive(concat(PRODUCER_CODE.getBytes(), document)) );
+    List<byte[]> stored = storage.getRawCollectionNamed(PRODUCER_CODE);
+    assertEquals( 1, stored.size() );
+    assertArrayEquals( document, stored.get(0) );
+    // no document was built
+    assertNull( storage.getCollectionNamed(PRODUCER_CODE) );
+  }
+
+  @Test
+  public void shouldStoreIllFramedBSONAsWrongFormat() throws IOException {
+    byte[] truncated = Arrays.copyOf(document, document.length - 3);
+    assertTrue( handler.receive(concat(PRODUCER_CODE.getBytes(), truncated)) );
+    assertNull( storage.getRawCollectionNamed(PRODUCER_CODE) );
+    assertEquals( 1, storage.getCollectionNamed(
+        StandardServerRequestHandler.WRONG_FORMAT_COLLECTION_NAME_PREFIX+PRODUCER_CODE).size() );
+  }
+
+  @Test
+  public void shouldDecodeForStorageWithoutRawSupport() throws IOException {
+    final List<BasicDBObject> processed = new ArrayList<BasicDBObject>();
+    ProcessingStrategy plain = new ProcessingStrategy() {
+      @Override
+      public void process(String producerCode, BasicDBObject dbo) {
+        processed.add(dbo);
+      }
+    };
+    MeasuringProcessingStrategy measuring = new MeasuringProcessingStrategy(plain,
+        new AdaptiveFlowController(20, false, new SpyLogger()));
+    measuring.processRaw(PRODUCER_CODE, document, 0, document.length);
+    assertEquals( 1, processed.size() );
+
+    // but raw documents are passed through the decorator
+    measuring = new MeasuringProcessingStrategy(storage,
+        new AdaptiveFlowController(20, false, new SpyLogger()));
+    measuring.processRaw(PRODUCER_CODE, document, 0, document.length);
+    assertEquals( 1, storage.getRawCollectionNamed(PRODUCER_CODE).size() );
+  }
+
+  private void assertRejected(byte[] bson) {
+    try {
+      BSONDeserializer.validate(bson, 0, bson.length);
+      fail("ill framed BSON must be rejected");
+    } catch (BSONException e) {
+      // expected
+    }
+  }
+
+  // --- hand made BSON ---
+
+  private static byte[] document(byte[]... elements) throws IOException {
+    byte[] body = concat(elements);
+    return concat(int32(4 + body.length + 1), body, new byte[] { 0 });
+  }
+
+  private static byte[] element(int type, String name, byte[] value) throws IOException {
+    return concat(new byte[] { (byte) type }, name.getBytes("UTF-8"), new byte[] { 0 }, value);
+  }
+
+  private static byte[] string(String s) throws IOException {
+    byte[] utf8 = s.getBytes("UTF-8");
+    return concat(int32(utf8.length + 1), utf8, new byte[] { 0 });
+  }
+
+  private static byte[] int32(int v) {
+    return new byte[] { (byte) v, (byte) (v >>> 8), (byte) (v >>> 16), (byte) (v >>> 24) };
+  }
+
+  private static byte[] concat(byte[]... parts) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for ( byte[] part : parts ) { out.write(part); }
+    return out.toByteArray();
+  }
+}
@@ -179,4 +179,69 @@ public class TestStatistics {
     
   }
 
+  @Test
+  public void shouldNotLoseNotificationsDuringConcurrentFlushes() throws Exception {
+    final int threads = 4, notifications = 20000;
+    List<Thread> workers = new ArrayList<Thread>();
+    for ( int t = 0; t < threads; t++ ) {
+      final String code = "GFKRE00"+t;
+      Thread worker = new Thread() {
+        public void run() {
+          for ( int i = 0; i < notifications; i++ ) {
+            stat.notifyReceive(code, 10);
+          }
+        }
+      };
+      workers.add(worker);
+      worker.start();
+    }
+    long totalCount = 0, totalBytes = 0;
+    boolean running = true;
+    while ( running ) {
+      running = false;
+      for ( Thread worker : workers ) { running |= worker.isAlive(); }
+      stat.flushToStorage();
+      dbo = spyStorage.getLast();
+      // every flushed chunk is consistent
+      assertEquals( 10 * dbo.getLong("TotalCountMsg"), dbo.getLong("TotalBytesSent") );
+      long codeCount = 0;
+      for ( Object item : (List<?>) dbo.get("CodeStatList") ) {
+        codeCount += ((BasicDBObject) item).getLong("CountMsg");
+      }
+      assertEquals( dbo.getLong("TotalCountMsg"), codeCount );
+      totalCount += dbo.getLong("TotalCountMsg");
+      totalBytes += dbo.getLong("TotalBytesSent");
+    }
+    assertEquals( threads * notifications, totalCount );
+    assertEquals( 10L * threads * notifications, totalBytes );
+  }
+
+  @Test
+  public void shouldCoverPayloadSizeDistribution() {
+    stat.notifyReceive("GFKRE003", 10);
+    stat.notifyReceive("GFKRE003", 100);
+    stat.notifyReceive("GFKRE003", 120);
+    stat.notifyReceive("GFKRE003", 9L * 1024 * 1024);
+    String status = stat.getPayloadSizeStatus();
+    assertTrue( status, status.startsWith("GFKRE003: n=4 ") );
+    assertTrue( status, status.endsWith(" large=1") );
+    stat.flushToStorage();
+
+    dbo = spyStorage.getLast();
+    BasicDBObject item = (BasicDBObject) ((List<?>) dbo.get("CodeStatList")).get(0);
+    assertEquals( 9L * 1024 * 1024, item.getLong("SizeMaxBytes") );
+    assertEquals( 1L, item.getLong("LargeCount") );
+    // sizes are counted per power of two
+    List<?> buckets = (List<?>) item.get("SizeBuckets");
+    assertEquals( 3, buckets.size() );
+    assertBucket( 16L, 1L, buckets.get(0) );
+    assertBucket( 128L, 2L, buckets.get(1) );
+    assertBucket( 16L * 1024 * 1024, 1L, buckets.get(2) );
+  }
+
+  private void assertBucket(long belowBytes, long count, Object bucket) {
+    assertEquals( belowBytes, ((BasicDBObject) bucket).getLong("BelowBytes") );
+    assertEquals( count, ((BasicDBObject) bucket).getLong("Count") );
+  }
+
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+import org.junit.*;
+
+import com.mongodb.*;
+import com.mongodb.util.*;
+
+import dk.au.cs.karibu.backend.standard.StandardServerRequestHandler;
+import dk.au.cs.karibu.testdoubles.*;
+import dk.au.cs.karibu.utilities.StreamingJSONDeserializer;
+
+/** Test the single pass JSON to BSON deserializer.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestStreamingJSONDeserializer {
+
+  private StreamingJSONDeserializer deserializer;
+
+  @Before
+  public void setup() {
+    deserializer = new StreamingJSONDeserializer();
+  }
+
+  private BasicDBObject parse(String json) {
+    try {
+      return deserializer.buildDocumentFromByteArray(json.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void assertParsedAsMongoJSON(String json) {
+    assertEquals( JSON.parse(json), parse(json) );
+  }
+
+  @Test
+  public void shouldParseLikeMongoJSON() {
+    assertParsedAsMongoJSON("{}");
+    assertParsedAsMongoJSON("{ \"name\": \"Henrik\", \"game\": \"SCII\" }");
+    assertParsedAsMongoJSON("{\"a\":1,\"b\":-2,\"c\":3000000000,\"d\":2.5,\"e\":-1.5e3}");
+    assertParsedAsMongoJSON("{ \"t\": true, \"f\": false, \"n\": null }");
+    assertParsedAsMongoJSON("{ \"list\": [ 1, \"two\", { \"three\": [] }, [4] ] }");
+    assertParsedAsMongoJSON("{ 'single': 'quoted' }");
+    assertParsedAsMongoJSON(" \n{ \"esc\": \"a\\\"b\\\\c\\nd\\u00e6\" }\t");
+  }
+
+  @Test
+  public void shouldAcceptUnquotedFieldNames() {
+    BasicDBObject dbo = parse("{ unquoted: 1, also:2 }");
+    assertEquals( 1, dbo.getInt("unquoted") );
+    assertEquals( 2, dbo.getInt("also") );
+  }
+
+  @Test
+  public void shouldParseNumberTypes() {
+    BasicDBObject dbo = parse("{ \"i\": 2147483647, \"l\": -9223372036854775808, "+
+        "\"big\": 9223372036854775808, \"d\": 1.0 }");
+    assertEquals( Integer.valueOf(Integer.MAX_VALUE), dbo.get("i") );
+    assertEquals( Long.valueOf(Long.MIN_VALUE), dbo.get("l") );
+    assertTrue( dbo.get("big") instanceof Double );
+    assertEquals( Double.valueOf(1.0), dbo.get("d") );
+  }
+
+  @Test
+  public void shouldDecodeUTF8() {
+    BasicDBObject dbo = parse("{ \"by\": \"Bærbak\", \"sym\": \"€ 😀\" }");
+    assertEquals( "Bærbak", dbo.getString("by") );
+    assertEquals( "€ 😀", dbo.getString("sym") );
+  }
+
+  @Test
+  public void shouldInternFieldNames() {
+    BasicDBObject first = parse("{ \"temperature\": 17 }");
+    BasicDBObject second = parse("{ \"temperature\": 18 }");
+    assertSame( first.keySet().iterator().next(), second.keySet().iterator().next() );
+  }
+
+  @Test
+  public void shouldReadRangeOfBuffer() {
+    byte[] message = "EXMTT001{ \"x\": 1 }trailing".getBytes();
+    BasicDBObject dbo = deserializer.buildDocumentFromByteRange(message, 8, 10);
+    assertEquals( 1, dbo.getInt("x") );
+  }
+
+  @Test
+  public void shouldThrowJSONParseExceptionWhenIllformed() {
+    String[] illformed = { "", "{", "{ \"a\": }", "{ \"a\" 1 }", "{ \"a\": 1, }",
+        "{ \"a\": \"unterminated }", "{ \"a\": 1 } x", "[1]", "{ \"a\": tru }",
+        "{ \"a\": 1.2.3 }" };
+    for ( String json : illformed ) {
+      try {
+        parse(json);
+        fail("Must not accept: "+json);
+      } catch (JSONParseException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void shouldStoreIllformedPayloadInWrongFormatCollection() {
+    FakeObjectStorage storage = new FakeObjectStorage();
+    StandardServerRequestHandler srh = new StandardServerRequestHandler(storage,
+        new dk.au.cs.karibu.backend.DeserializerFactory() {
+          @Override
+          public dk.au.cs.karibu.serialization.Deserializer createDeserializer(String code) {
+            return deserializer;
+          }
+        });
+    assertTrue( srh.receive("EXMTT001{ \"version\": ".getBytes()) );
+    List<BasicDBObject> stored = storage.getCollectionNamed(
+        StandardServerRequestHandler.WRONG_FORMAT_COLLECTION_NAME_PREFIX+"EXMTT001");
+    assertEquals( 1, stored.size() );
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Henrik Baerbak Christensen, Aarhus University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package dk.au.cs.karibu.unit;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import dk.au.cs.karibu.backend.ThroughputWindows;
+import dk.au.cs.karibu.backend.ThroughputWindows.Window;
+
+/** Test the rolling windows of the throughput.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ */
+public class TestThroughputWindows {
+
+  private long now;
+  private ThroughputWindows windows;
+
+  @Before
+  public void setup() {
+    now = 1370071800000L;
+    windows = new ThroughputWindows(new ThroughputWindows.Clock() {
+      @Override
+      public long currentTimeMillis() {
+        return now;
+      }
+    });
+  }
+
+  private void advanceSeconds(int seconds) {
+    now += seconds * 1000L;
+  }
+
+  @Test
+  public void shouldReportRatesOfWholeSeconds() {
+    for ( int i = 0; i < 10; i++ ) {
+      windows.record("GFKRE003", 100);
+    }
+    windows.record("GFKSC002", 1000);
+    // the current second is not included
+    assertEquals( 0.0, windows.getMessageRate("GFKRE003", Window.SECOND), 0.001 );
+
+    advanceSeconds(1);
+    assertEquals( 10.0, windows.getMessageRate("GFKRE003", Window.SECOND), 0.001 );
+    assertEquals( 1000.0, windows.getByteRate("GFKRE003", Window.SECOND), 0.001 );
+    assertEquals( 11.0, windows.getMessageRate(ThroughputWindows.TOTAL, Window.SECOND), 0.001 );
+    assertEquals( 2000.0, windows.getByteRate(ThroughputWindows.TOTAL, Window.SECOND), 0.001 );
+    assertEquals( 10.0 / 60, windows.getMessageRate("GFKRE003", Window.MINUTE), 0.001 );
+    assertEquals( 0.0, windows.getMessageRate("GFKXX001", Window.MINUTE), 0.001 );
+  }
+
+  @Test
+  public void shouldRollOldSecondsOut() {
+    // one message per second for ten minutes
+    for ( int i = 0; i < 600; i++ ) {
+      windows.record("GFKRE003", 10);
+      advanceSeconds(1);
+    }
+    assertEquals( 1.0, windows.getMessageRate("GFKRE003", Window.SECOND), 0.001 );
+    assertEquals( 1.0, windows.getMessageRate("GFKRE003", Window.MINUTE), 0.001 );
+    assertEquals( 1.0, windows.getMessageRate("GFKRE003", Window.FIVE_MINUTES), 0.001 );
+
+    // then silence for two minutes
+    advanceSeconds(120);
+    assertEquals( 0.0, windows.getMessageRate("GFKRE003", Window.SECOND), 0.001 );
+    assertEquals( 0.0, windows.getMessageRate("GFKRE003", Window.MINUTE), 0.001 );
+    assertEquals( 180.0 / 300, windows.getMessageRate("GFKRE003", Window.FIVE_MINUTES), 0.001 );
+
+    // a reused slot only counts its new second
+    windows.record("GFKRE003", 10);
+    advanceSeconds(1);
+    assertEquals( 1.0, windows.getMessageRate("GFKRE003", Window.SECOND), 0.001 );
+  }
+
+  @Test
+  public void shouldForgetIdleProducerCodes() {
+    windows.record("GFKRE003", 10);
+    advanceSeconds(200);
+    windows.record("GFKSC002", 10);
+    assertEquals( 3, windows.getProducerCodes().size() );
+    advanceSeconds(200);
+    // GFKRE003 has been idle for more than five minutes
+    assertEquals( 2, windows.getProducerCodes().size() );
+    assertFalse( windows.getProducerCodes().contains("GFKRE003") );
+    assertEquals( 0.0, windows.getMessageRate("GFKRE003", Window.FIVE_MINUTES), 0.001 );
+  }
+
+  @Test
+  public void shouldBoundTheNumberOfProducerCodes() {
+    for ( int i = 0; i < 2 * ThroughputWindows.MAX_CODES; i++ ) {
+      windows.record("GARBA"+(100 + i), 10);
+    }
+    // the total is always counted
+    assertEquals( ThroughputWindows.MAX_CODES + 1, windows.size() );
+    advanceSeconds(1);
+    assertEquals( 2.0 * ThroughputWindows.MAX_CODES,
+        windows.getMessageRate(ThroughputWindows.TOTAL, Window.SECOND), 0.001 );
+
+    // once the codes are idle, new ones get rings again
+    advanceSeconds(400);
+    windows.record("GFKRE003", 10);
+    assertTrue( windows.getProducerCodes().contains("GFKRE003") );
+    assertEquals( 2, windows.size() );
+  }
+
+  @Test
+  public void shouldListTotalFirstInStatus() {
+    assertEquals( "No messages received", windows.getStatusAsString() );
+    windows.record("GFKSC002", 2048);
+    advanceSeconds(1);
+    String status = windows.getStatusAsString();
+    assertTrue( status, status.startsWith("Total: 1s=1.0 msg/s 2.0 KB/s") );
+    assertTrue( status, status.contains("; GFKSC002: 1s=1.0 msg/s 2.0 KB/s") );
+  }
+}